@@ -0,0 +1,273 @@
+package ePortfolio;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Hosts the portfolios of many client accounts in one JVM. Each account is an
+ * independent Portfolio saved as a snapshot named after the account in the
+ * registry's directory.
+ *
+ * An account is loaded the first time it is used. At most capacity accounts
+ * stay in memory; when another one is needed, the least recently used account
+ * that no thread is working with is saved, if it changed, and dropped. An
+ * account whose save fails is kept in memory instead, so its trades aren't
+ * lost. An account whose snapshot can't be read is never saved, so its file
+ * isn't overwritten. The strings the accounts have in common are shared
+ * through the StringPool, which lets go of them once no account uses them.
+ *
+ * Accounts are used through withAccount, which keeps the account in memory
+ * while the action runs. Different accounts can be used from different
+ * threads at the same time, and each Portfolio is itself thread-safe.
+ */
+public class AccountRegistry implements Closeable {
+
+    /** The characters allowed in an account id, since it names a file. */
+    private static final Pattern ACCOUNT_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    /**
+     * One account held in memory.
+     */
+    private static class Account {
+
+        /** The account's portfolio. */
+        final Portfolio portfolio = new Portfolio();
+
+        /** Whether the portfolio has been read from its file yet. */
+        boolean loaded = false;
+
+        /** The number of threads using the account; guarded by the registry. */
+        int users = 0;
+
+        /** The modification count of the portfolio when it was last saved. */
+        long savedModifications = 0;
+    }
+
+    /** The directory the account snapshots are kept in. */
+    private final Path directory;
+
+    /** The most accounts kept in memory while they are idle. */
+    private final int capacity;
+
+    /** The accounts in memory, least recently used first. */
+    private final LinkedHashMap<String, Account> accounts = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Accounts evicted but still being saved; a new use takes them back. */
+    private final HashMap<String, Account> evicting = new HashMap<>();
+
+    /** The number of accounts read from disk. */
+    private long loads = 0;
+
+    /** The number of accounts evicted. */
+    private long evictions = 0;
+
+    /** The number of evicted accounts kept because they couldn't be saved. */
+    private long saveFailures = 0;
+
+    /**
+     * Constructs a registry over a directory of account snapshots.
+     *
+     * @param directory the directory the accounts are loaded from and saved to
+     * @param capacity  the most accounts kept in memory while they are idle
+     */
+    public AccountRegistry(Path directory, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be at least 1.");
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Runs an action on an account's portfolio, loading the account if it isn't
+     * in memory. The account can't be evicted while the action runs; the
+     * portfolio must not be kept after it returns.
+     *
+     * @param <T>       the type of the action's result
+     * @param accountId the account, made of letters, digits, '_' and '-'
+     * @param action    the action to run
+     * @return the result of the action
+     * @throws IllegalStateException if the account's snapshot couldn't be read;
+     *                               the account is read again on its next use
+     */
+    public <T> T withAccount(String accountId, Function<Portfolio, T> action) {
+        if (!ACCOUNT_ID.matcher(accountId).matches()) {
+            throw new IllegalArgumentException("Invalid account id '" + accountId + "'.");
+        }
+
+        Account account;
+        synchronized (this) {
+            account = accounts.get(accountId);
+            if (account == null) {
+                // Take back an account that is still being saved, or start a new one
+                account = evicting.remove(accountId);
+                if (account == null) {
+                    account = new Account();
+                }
+                accounts.put(accountId, account);
+            }
+            account.users++;
+        }
+
+        try {
+            // Load outside the registry lock, so other accounts aren't held up
+            synchronized (account) {
+                if (!account.loaded) {
+                    Path file = snapshotFile(accountId);
+                    if (Files.exists(file) && !account.portfolio.readInvestments(file.toString())) {
+                        // Drop what was read, and leave the account unloaded so
+                        // it is never saved over its file
+                        account.portfolio.clear();
+                        throw new IllegalStateException("The account '" + accountId + "' couldn't be loaded.");
+                    }
+                    account.loaded = true;
+                    synchronized (this) {
+                        loads++;
+                    }
+                }
+            }
+            return action.apply(account.portfolio);
+        } finally {
+            ArrayList<Map.Entry<String, Account>> evicted;
+            synchronized (this) {
+                account.users--;
+                evicted = evictIdle();
+            }
+            for (Map.Entry<String, Account> entry : evicted) {
+                boolean saved = save(entry.getKey(), entry.getValue());
+                synchronized (this) {
+                    // Keep an account that couldn't be saved, so its trades
+                    // aren't lost; it is saved again when next evicted
+                    if (evicting.remove(entry.getKey(), entry.getValue())) {
+                        if (saved) {
+                            entry.getValue().portfolio.releaseSearchCache();
+                        } else {
+                            accounts.put(entry.getKey(), entry.getValue());
+                            saveFailures++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of accounts in memory.
+     *
+     * @return the number of accounts
+     */
+    public synchronized int size() {
+        return accounts.size();
+    }
+
+    /**
+     * Gets the number of accounts read from disk so far.
+     *
+     * @return the number of loads
+     */
+    public synchronized long getLoadCount() {
+        return loads;
+    }
+
+    /**
+     * Gets the number of accounts evicted so far.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of evicted accounts that couldn't be saved and were kept
+     * in memory instead of being dropped.
+     *
+     * @return the number of failed saves
+     */
+    public synchronized long getSaveFailureCount() {
+        return saveFailures;
+    }
+
+    /**
+     * Saves every account in memory that changed since it was last saved.
+     */
+    public void saveAll() {
+        ArrayList<Map.Entry<String, Account>> all;
+        synchronized (this) {
+            all = new ArrayList<>(accounts.entrySet());
+        }
+        for (Map.Entry<String, Account> entry : all) {
+            save(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Saves every changed account. The registry can still be used afterwards.
+     */
+    @Override
+    public void close() {
+        saveAll();
+    }
+
+    /**
+     * Removes idle accounts, least recently used first, until the registry is
+     * back within its capacity. The caller must hold the registry lock.
+     *
+     * @return the evicted accounts, which the caller saves after releasing the lock
+     */
+    private ArrayList<Map.Entry<String, Account>> evictIdle() {
+        ArrayList<Map.Entry<String, Account>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Account>> eldest = accounts.entrySet().iterator();
+        while (accounts.size() > capacity && eldest.hasNext()) {
+            Map.Entry<String, Account> entry = eldest.next();
+            if (entry.getValue().users == 0) {
+                eldest.remove();
+                evicting.put(entry.getKey(), entry.getValue());
+                evicted.add(Map.entry(entry.getKey(), entry.getValue()));
+                evictions++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Saves an account's portfolio if it changed since it was last saved.
+     *
+     * @param accountId the account
+     * @param account   the account's state
+     * @return true if the account is saved, false if its snapshot couldn't be
+     *         written
+     */
+    private boolean save(String accountId, Account account) {
+        synchronized (account) {
+            long modifications = account.portfolio.getModificationCount();
+            if (!account.loaded || modifications == account.savedModifications) {
+                return true;
+            }
+            if (!account.portfolio.writeSnapshot(snapshotFile(accountId).toString())) {
+                System.out.println("Error in saving account " + accountId + "; it stays in memory.");
+                return false;
+            }
+            account.savedModifications = modifications;
+            return true;
+        }
+    }
+
+    /**
+     * Gets the snapshot file of an account.
+     *
+     * @param accountId the account
+     * @return the file in the registry's directory
+     */
+    private Path snapshotFile(String accountId) {
+        return directory.resolve(accountId + PortfolioSnapshot.EXTENSION);
+    }
+}
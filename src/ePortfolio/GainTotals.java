@@ -0,0 +1,220 @@
+package ePortfolio;
+
+/**
+ * Running totals of the book value, market value and gain of a portfolio,
+ * split between stocks and mutual funds. The portfolio adds a holding's share
+ * when it starts holding it and takes the share out before changing the
+ * holding, so the totals are always current without visiting every holding.
+ *
+ * The market value of a holding is the payment selling all of it would bring,
+ * so the gain is the market value minus the book value, the same as
+ * Investment.Gain. The sums are kept in micro-units (see Money), so they are
+ * exact and match a full recompute however many trades are applied.
+ */
+public class GainTotals {
+
+    /** Index of the stock totals. */
+    private static final int STOCK = 0;
+
+    /** Index of the mutual fund totals. */
+    private static final int MUTUAL_FUND = 1;
+
+    /** The sum of the book values in micro-units, by type. */
+    private final long[] bookValue = new long[2];
+
+    /** The sum of the market values in micro-units, by type. */
+    private final long[] marketValue = new long[2];
+
+    /**
+     * Constructs empty totals.
+     */
+    public GainTotals() {
+    }
+
+    /**
+     * Constructs a copy of other totals.
+     *
+     * @param totals the totals to copy
+     */
+    public GainTotals(GainTotals totals) {
+        System.arraycopy(totals.bookValue, 0, bookValue, 0, 2);
+        System.arraycopy(totals.marketValue, 0, marketValue, 0, 2);
+    }
+
+    /**
+     * Adds a holding's share to the totals.
+     *
+     * @param investment the holding
+     */
+    void add(Investment investment) {
+        int type = investment instanceof MutualFund ? MUTUAL_FUND : STOCK;
+        bookValue[type] += investment.getBookValueMicros();
+        marketValue[type] += investment.paymentMicros(investment.getQuantity());
+    }
+
+    /**
+     * Takes a holding's share out of the totals. The holding must be unchanged
+     * since its share was added.
+     *
+     * @param investment the holding
+     */
+    void remove(Investment investment) {
+        int type = investment instanceof MutualFund ? MUTUAL_FUND : STOCK;
+        bookValue[type] -= investment.getBookValueMicros();
+        marketValue[type] -= investment.paymentMicros(investment.getQuantity());
+    }
+
+    /**
+     * Checks that the totals would still fit in micro-units with a holding's
+     * share replaced by a new one, without changing them, so a trade that
+     * would overflow can be refused before anything is changed.
+     *
+     * @param investment  the holding whose share is taken out, or null if its
+     *                    share isn't in the totals
+     * @param mutualFund  true if the new share is a mutual fund's
+     * @param bookValue   the book value of the new share in micro-units
+     * @param marketValue the market value of the new share in micro-units
+     * @return true if every total, overall and by type, fits in a long
+     */
+    boolean fits(Investment investment, boolean mutualFund, long bookValue, long marketValue) {
+        long[] book = this.bookValue.clone();
+        long[] market = this.marketValue.clone();
+        try {
+            if (investment != null) {
+                int type = investment instanceof MutualFund ? MUTUAL_FUND : STOCK;
+                book[type] = Math.subtractExact(book[type], investment.getBookValueMicros());
+                market[type] = Math.subtractExact(market[type],
+                        investment.paymentMicros(investment.getQuantity()));
+            }
+            int type = mutualFund ? MUTUAL_FUND : STOCK;
+            book[type] = Math.addExact(book[type], bookValue);
+            market[type] = Math.addExact(market[type], marketValue);
+            for (type = STOCK; type <= MUTUAL_FUND; type++) {
+                Math.subtractExact(market[type], book[type]);
+            }
+            Math.subtractExact(Math.addExact(market[STOCK], market[MUTUAL_FUND]),
+                    Math.addExact(book[STOCK], book[MUTUAL_FUND]));
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resets the totals to zero.
+     */
+    void clear() {
+        for (int type = STOCK; type <= MUTUAL_FUND; type++) {
+            bookValue[type] = 0;
+            marketValue[type] = 0;
+        }
+    }
+
+    /**
+     * Gets the total book value.
+     *
+     * @return the book value of every holding
+     */
+    public double getBookValue() {
+        return Money.toDouble(bookValue[STOCK] + bookValue[MUTUAL_FUND]);
+    }
+
+    /**
+     * Gets the total market value.
+     *
+     * @return the payment selling every holding would bring
+     */
+    public double getMarketValue() {
+        return Money.toDouble(marketValue[STOCK] + marketValue[MUTUAL_FUND]);
+    }
+
+    /**
+     * Gets the total gain.
+     *
+     * @return the gain of every holding
+     */
+    public double getGain() {
+        return Money.toDouble(getGainMicros());
+    }
+
+    /**
+     * Gets the total gain in micro-units.
+     *
+     * @return the gain of every holding in micro-units
+     */
+    public long getGainMicros() {
+        return marketValue[STOCK] + marketValue[MUTUAL_FUND] - bookValue[STOCK] - bookValue[MUTUAL_FUND];
+    }
+
+    /**
+     * Gets the book value of the stocks.
+     *
+     * @return the book value of the stocks
+     */
+    public double getStockBookValue() {
+        return Money.toDouble(bookValue[STOCK]);
+    }
+
+    /**
+     * Gets the market value of the stocks.
+     *
+     * @return the payment selling every stock would bring
+     */
+    public double getStockMarketValue() {
+        return Money.toDouble(marketValue[STOCK]);
+    }
+
+    /**
+     * Gets the gain of the stocks.
+     *
+     * @return the gain of the stocks
+     */
+    public double getStockGain() {
+        return Money.toDouble(getStockGainMicros());
+    }
+
+    /**
+     * Gets the gain of the stocks in micro-units.
+     *
+     * @return the gain of the stocks in micro-units
+     */
+    public long getStockGainMicros() {
+        return marketValue[STOCK] - bookValue[STOCK];
+    }
+
+    /**
+     * Gets the book value of the mutual funds.
+     *
+     * @return the book value of the mutual funds
+     */
+    public double getMutualFundBookValue() {
+        return Money.toDouble(bookValue[MUTUAL_FUND]);
+    }
+
+    /**
+     * Gets the market value of the mutual funds.
+     *
+     * @return the payment selling every mutual fund would bring
+     */
+    public double getMutualFundMarketValue() {
+        return Money.toDouble(marketValue[MUTUAL_FUND]);
+    }
+
+    /**
+     * Gets the gain of the mutual funds.
+     *
+     * @return the gain of the mutual funds
+     */
+    public double getMutualFundGain() {
+        return Money.toDouble(getMutualFundGainMicros());
+    }
+
+    /**
+     * Gets the gain of the mutual funds in micro-units.
+     *
+     * @return the gain of the mutual funds in micro-units
+     */
+    public long getMutualFundGainMicros() {
+        return marketValue[MUTUAL_FUND] - bookValue[MUTUAL_FUND];
+    }
+}
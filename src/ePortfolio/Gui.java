@@ -4,6 +4,7 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.table.TableRowSorter;
 
 /**
  * GUI class for the ePortfolio application that handles the graphical user
@@ -22,6 +23,12 @@ public class Gui extends JFrame {
   static final Color guiColorWhite = new Color(220, 220, 230);
   static final Color guiColorBlack = Color.BLACK;
 
+  /** The largest number of close name matches suggested by a search. */
+  static final int NAME_SUGGESTIONS = 20;
+
+  /** The number of search results shown at a time. */
+  static final int SEARCH_PAGE_SIZE = 200;
+
 /** The welcome message displayed at the start. */
 String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" + 
     "Choose a command from the “Commands” menu to buy or sell\n" + 
@@ -29,7 +36,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     "portfolio, search for relevant investments, or quit the program.";
 
   /** The portfolio object used to manage investments. */
-  private Portfolio portfolio1 = new Portfolio();
+  private final Portfolio portfolio1;
 
   /** Text fields shared between various menu options. */
   JTextField inputField1, inputField2, inputField3, inputField4;
@@ -45,13 +52,40 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
   JComboBox<String> comboBox1;
   /** The message box for displaying information to the user. */
   JTextArea messageBox;
+  /** The table model of the holdings, kept up to date as trades happen. */
+  private final HoldingTableModel holdingModel;
+  /** The sorter of the holdings table, for filtering it. */
+  TableRowSorter<HoldingTableModel> holdingSorter;
+  /** The holdings table in its scroll pane, made once and shared by the menus. */
+  private JScrollPane holdingPane;
+  /** The status bar: the action running in the background and its progress. */
+  JLabel statusLabel;
+  JProgressBar progressBar;
+  JButton cancelButton;
+  /** The action running in the background, or null. */
+  private PortfolioTask<?> runningTask;
+  /** The More button of the search menu, and the search of the next page. */
+  JButton moreButton;
+  private Runnable nextResults;
 
   /**
-   * Constructor for the Gui class, initializes the graphical user interface.
-   * It prepares the GUI and shows the menu bar.
+   * Constructor for the Gui class, initializes the graphical user interface
+   * with a new, empty portfolio.
    */
   public Gui() {
+    this(new Portfolio());
+  }
+
+  /**
+   * Constructor for the Gui class that manages the given portfolio.
+   * It prepares the GUI and shows the menu bar.
+   *
+   * @param portfolio the portfolio to show and trade
+   */
+  public Gui(Portfolio portfolio) {
     super();
+    portfolio1 = portfolio;
+    holdingModel = new HoldingTableModel(portfolio);
     prepareGUI(); // Method to set up the GUI
     showMenuBar(); // Method to display the menu bar
   }
@@ -75,7 +109,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     public void actionPerformed(ActionEvent e) {
       indexInv = 0; // Reset the investment index to 0 for the update menu
       showUpdateMenu(); // Show the update menu
-      if (Portfolio.getInvestListSize() != 0) {
+      if (portfolio1.getInvestListSize() != 0) {
         setUpdateBoxes(indexInv); // Set the text boxes for the first investment
       }
     }
@@ -88,6 +122,27 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     }
   }
 
+  // Listener for the Holdings button to change display to the holdings table
+  private class HoldingsListener implements ActionListener {
+    public void actionPerformed(ActionEvent e) {
+      showHoldingsMenu(); // Show the holdings table when the Holdings button is pressed
+    }
+  }
+
+  // Listener for the Filter button to filter the holdings table
+  private class FilterListener implements ActionListener {
+    public void actionPerformed(ActionEvent e) {
+      // The combo box lists "All text" and then every column
+      int column = comboBox1.getSelectedIndex() - 1;
+      try {
+        holdingSorter.setRowFilter(HoldingTableModel.filter(inputField1.getText(), column));
+      } catch (NumberFormatException error) {
+        JOptionPane.showMessageDialog(Gui.this, "Enter a number, or a low and a high number, for "
+            + comboBox1.getSelectedItem() + ".", "Filter", JOptionPane.ERROR_MESSAGE);
+      }
+    }
+  }
+
   // Listener for the Search button to change display to the search menu
   private class SearchListener implements ActionListener {
     public void actionPerformed(ActionEvent e) {
@@ -98,8 +153,52 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
   // Listener for the Quit button to exit the program
   private class QuitListener implements ActionListener {
     public void actionPerformed(ActionEvent e) {
-      portfolio1.writeInvestment("investments.txt"); // Save the portfolio data before quitting
-      System.exit(0); // Exit the program
+      // Save to the save file given on the command line, falling back to the old default
+      String saveFile = portfolio1.getFileName().isEmpty() ? "investments.txt" : portfolio1.getFileName();
+
+      // Take away every way to trade first, so no trade can miss the save
+      // file or land in the discarded journal before the program exits
+      getJMenuBar().getMenu(0).setEnabled(false);
+      modifyScrollMessageBox("Saving the portfolio to " + saveFile + "...", 16, -1);
+      dynamicPanel.removeAll();
+      dynamicPanel.add(messageScrollBars, BorderLayout.CENTER);
+      dynamicPanel.revalidate();
+      dynamicPanel.repaint();
+
+      // Save in the background so the window shows the progress, then exit
+      boolean started = runTask(new PortfolioTask<Boolean>("Quit", false, progress -> {
+        boolean saved = portfolio1.writePortfolio(saveFile, progress);
+        if (saved) {
+          portfolio1.discardJournal(); // The save file now holds every trade
+        }
+        return saved;
+      }, saved -> {
+        if (saved) {
+          System.exit(0); // Exit the program
+        }
+
+        // Keep running, with the trades still journaled, so nothing is lost
+        getJMenuBar().getMenu(0).setEnabled(true);
+        statusLabel.setText("Quit failed");
+        messageBox.setText("The portfolio couldn't be saved to " + saveFile
+            + ".\nNo trades were lost; fix the problem and quit again.");
+        JOptionPane.showMessageDialog(Gui.this, "The portfolio couldn't be saved to " + saveFile + ".",
+            "Quit", JOptionPane.ERROR_MESSAGE);
+      }));
+      if (!started) {
+        getJMenuBar().getMenu(0).setEnabled(true); // A load or save is still running
+        showMainMenu();
+      }
+    }
+  }
+
+  // Listener for the Cancel button in the status bar to stop the running action
+  private class CancelListener implements ActionListener {
+    public void actionPerformed(ActionEvent e) {
+      if (runningTask != null && runningTask.isCancellable()) {
+        runningTask.cancel(false); // Let the search notice, rather than interrupting it
+        statusLabel.setText(runningTask.getName() + " cancelled");
+      }
     }
   }
 
@@ -118,7 +217,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
       setUpdateBoxes(indexInv); // Set the text boxes to show the new investment
 
       // Disable/enable next/prev buttons if they reach the end of the list
-      if (indexInv == Portfolio.getInvestListSize() - 1) {
+      if (indexInv == portfolio1.getInvestListSize() - 1) {
         nextButton.setEnabled(false); // Disable next button at the end of the list
       }
       if (indexInv > 0) {
@@ -138,7 +237,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
       if (indexInv == 0) {
         prevButton.setEnabled(false); // Disable prev button at the beginning of the list
       }
-      if (indexInv < Portfolio.getInvestListSize()) {
+      if (indexInv < portfolio1.getInvestListSize()) {
         nextButton.setEnabled(true); // Enable next button once we're past the first investment
       }
     }
@@ -147,6 +246,8 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
   // Logic for the Buy button in the buy menu
   private class BuyInvestmentListener implements ActionListener {
     public void actionPerformed(ActionEvent e) {
+      PortfolioEvents.GuiAction action = new PortfolioEvents.GuiAction();
+      action.begin();
       String errorMessage = ""; // String to hold any error messages during validation
 
       // Get the information from the input fields
@@ -162,7 +263,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
       }
 
       // Validate the name (required only if symbol is unique to the portfolio)
-      if (Portfolio.checkifString(name, true) == false && Portfolio.findInvestment(symbol) == -1) {
+      if (Portfolio.checkifString(name, true) == false && portfolio1.findInvestment(symbol) == -1) {
         errorMessage += "Name can't be left Empty.\n\n";
       }
 
@@ -187,19 +288,22 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
         if (name.equals("")) {
           name = " "; // Default to empty name if not provided
         }
-        messageBox.setText(Portfolio.buy(type, symbol, name, Integer.parseInt(quantity), Double.parseDouble(price))); // Execute
+        messageBox.setText(portfolio1.buy(type, symbol, name, Integer.parseInt(quantity), Double.parseDouble(price))); // Execute
                                                                                                                       // buy
                                                                                                                       // and
                                                                                                                       // display
                                                                                                                       // the
                                                                                                                       // result
       }
+      action.record("BuyInvestment");
     }
   }
 
   // Logic for the Sell button in the sell menu
   private class SellInvestmentListener implements ActionListener {
     public void actionPerformed(ActionEvent e) {
+      PortfolioEvents.GuiAction action = new PortfolioEvents.GuiAction();
+      action.begin();
       String errorMessage = ""; // String to hold any error messages during validation
 
       // Get the information from the input fields
@@ -230,12 +334,12 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
 
       // If no errors, proceed with selling the investment
       if (errorMessage.equals("")) {
-        messageBox.setText(Portfolio.sell(symbol, Integer.parseInt(quantity), Double.parseDouble(price))); // Execute
+        messageBox.setText(portfolio1.sell(symbol, Integer.parseInt(quantity), Double.parseDouble(price))); // Execute
                                                                                                            // sell and
                                                                                                            // display
                                                                                                            // the result
       }
-
+      action.record("SellInvestment");
     }
   }
 
@@ -253,6 +357,8 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
      * Displays error messages in the messageBox if the validation fails.
      */
     public void actionPerformed(ActionEvent e) {
+      PortfolioEvents.GuiAction action = new PortfolioEvents.GuiAction();
+      action.begin();
       String errorMessage = "";
 
       // Get the new price from the input field
@@ -269,9 +375,10 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
 
       // If no errors are found, update the investment's price and display the result
       if (errorMessage.equals("")) {
-        messageBox.setText(Portfolio.update(Portfolio.getInvestment(indexInv),
+        messageBox.setText(portfolio1.update(portfolio1.getInvestment(indexInv),
             Double.parseDouble(price)));
       }
+      action.record("UpdateInvestment");
     }
   }
 
@@ -330,14 +437,80 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
         highPrice = "-1";
       }
 
-      // If no errors are found, perform the search and display the results
+      // If no errors are found, perform the search in the background and display
+      // the results in this menu's message box. A new search replaces one still running
       if (errorMessage.equals("")) {
-        messageBox.setText(
-            Portfolio.search(symbol, nameKeys, Double.parseDouble(lowPrice), Double.parseDouble(highPrice)));
+        double low = Double.parseDouble(lowPrice);
+        double high = Double.parseDouble(highPrice);
+        boolean suggest = symbol.isEmpty() && low == -1 && high == -1 && !nameKeys.trim().isEmpty()
+            && !nameKeys.trim().contains(" ");
+        searchResults(symbol, nameKeys, low, high, null, suggest, messageBox);
+      }
+    }
+  }
+
+  // Listener for the More button to show the next page of search results
+  private class MoreListener implements ActionListener {
+    public void actionPerformed(ActionEvent e) {
+      if (nextResults != null) {
+        nextResults.run(); // Fetch the page after the last one shown
       }
     }
   }
 
+  /**
+   * Searches for one page of results in the background and adds it to a
+   * message box. If there are more results, the More button fetches the next
+   * page; only the results shown are ever formatted.
+   *
+   * @param symbol    is the symbol searched for, or empty
+   * @param nameKeys  is the name keywords searched for
+   * @param low       is the low price, or -1
+   * @param high      is the high price, or -1
+   * @param after     is the key of the last result shown, or null for the first page
+   * @param suggest   is true to suggest close names if the first page is empty
+   * @param resultBox is the message box of the search menu
+   */
+  private void searchResults(String symbol, String nameKeys, double low, double high, SearchPage.Key after,
+      boolean suggest, JTextArea resultBox) {
+    nextResults = null;
+    moreButton.setEnabled(false);
+    runTask(new PortfolioTask<SearchPage>("SearchInvestment", true,
+        progress -> portfolio1.searchPage(symbol, nameKeys, low, high, SearchPage.BY_PORTFOLIO, after,
+            SEARCH_PAGE_SIZE, progress),
+        page -> {
+          if (after == null) {
+            resultBox.setText(page.toString());
+          } else {
+            resultBox.append(page.toString());
+          }
+
+          // Offer the next page, or suggest names if nothing matched exactly
+          if (page.hasMore()) {
+            nextResults = () -> searchResults(symbol, nameKeys, low, high, page.getNextKey(), false, resultBox);
+            moreButton.setEnabled(true);
+          } else if (after == null && page.getHoldings().isEmpty() && suggest) {
+            suggestNames(nameKeys, resultBox);
+          }
+        }));
+  }
+
+  /**
+   * Searches for partial and close matches of a single name word in the
+   * background, and shows them in a message box.
+   *
+   * @param nameKeys  is the name word searched for
+   * @param resultBox is the message box of the search menu
+   */
+  private void suggestNames(String nameKeys, JTextArea resultBox) {
+    runTask(new PortfolioTask<String>("SearchName", true,
+        progress -> portfolio1.searchName(nameKeys, NAME_SUGGESTIONS), suggestions -> {
+          if (!suggestions.isEmpty()) {
+            resultBox.setText("No exact matches. Closest names:\n\n" + suggestions);
+          }
+        }));
+  }
+
   /**
    * Creates the main window for the GUI.
    * Sets up the JFrame, panels, and main menu for the application.
@@ -361,9 +534,94 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     // Show the main menu when the window is prepared
     showMainMenu();
 
+    // Status bar showing the action running in the background
+    JPanel statusPanel = formatPanel(new JPanel(new BorderLayout(10, 0)), -1, -1, guiColorWhite);
+    statusPanel.setBorder(new EmptyBorder(5, 10, 5, 10));
+    statusLabel = formatLabel(new JLabel(" "), 16);
+    progressBar = new JProgressBar(0, 100);
+    progressBar.setStringPainted(true);
+    progressBar.setVisible(false);
+    cancelButton = new JButton("Cancel");
+    cancelButton.addActionListener(new CancelListener());
+    cancelButton.setEnabled(false);
+    statusPanel.add(statusLabel, BorderLayout.WEST);
+    statusPanel.add(progressBar, BorderLayout.CENTER);
+    statusPanel.add(cancelButton, BorderLayout.EAST);
+
     // Add panels to the window layout
     add(dynamicPanel, BorderLayout.CENTER);
     add(controlPanel, BorderLayout.NORTH);
+    add(statusPanel, BorderLayout.SOUTH);
+  }
+
+  /**
+   * Loads the portfolio in the background while the window shows the progress.
+   * The menu is disabled until the portfolio is loaded and every trade it
+   * recovered from the journal is applied.
+   *
+   * @param loadFile is the file to load investments from
+   * @param saveFile is the file investments are saved to on quitting
+   */
+  public void load(String loadFile, String saveFile) {
+    getJMenuBar().getMenu(0).setEnabled(false);
+    runTask(new PortfolioTask<Integer>("Load", false, progress -> {
+      portfolio1.recoverInvestments(loadFile, saveFile, progress);
+      return portfolio1.getInvestListSize();
+    }, loaded -> {
+      getJMenuBar().getMenu(0).setEnabled(true);
+      statusLabel.setText(loaded + " investments loaded");
+    }));
+  }
+
+  /**
+   * Runs an action in the background and shows it in the status bar. Only one
+   * action runs at a time: a new action cancels the one running, so only the
+   * newest result is shown, unless the running one is a load or a save, which
+   * must finish first. If the action throws, the error is shown in a dialog
+   * and the message box.
+   *
+   * @param task is the action to run
+   * @return true if the action was started
+   */
+  private boolean runTask(PortfolioTask<?> task) {
+    if (runningTask != null) {
+      if (!runningTask.isCancellable()) {
+        statusLabel.setText("Please wait for " + runningTask.getName() + " to finish");
+        return false;
+      }
+      runningTask.cancel(false); // Its result is dropped
+    }
+
+    // Tell the user if the action fails, and give back the menu a load or a
+    // quit took away
+    task.setFailureHandler(cause -> {
+      getJMenuBar().getMenu(0).setEnabled(true);
+      statusLabel.setText(task.getName() + " failed");
+      String message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+      messageBox.setText("Error in " + task.getName() + ": " + message);
+      JOptionPane.showMessageDialog(this, message, task.getName() + " failed", JOptionPane.ERROR_MESSAGE);
+    });
+
+    // Show the action and follow its progress until it is done
+    runningTask = task;
+    statusLabel.setText(task.getName() + "...");
+    progressBar.setValue(0);
+    progressBar.setVisible(true);
+    cancelButton.setEnabled(task.isCancellable());
+    task.addPropertyChangeListener(event -> {
+      if (event.getPropertyName().equals("progress")) {
+        progressBar.setValue((Integer) event.getNewValue());
+      } else if (task.isDone() && runningTask == task) {
+        runningTask = null;
+        if (!task.isCancelled() && statusLabel.getText().equals(task.getName() + "...")) {
+          statusLabel.setText(" ");
+        }
+        progressBar.setVisible(false);
+        cancelButton.setEnabled(false);
+      }
+    });
+    task.execute();
+    return true;
   }
 
   /**
@@ -390,6 +648,9 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     JMenuItem getGainMenuItem = new JMenuItem("Get Gain");
     getGainMenuItem.addActionListener(new GetGainListener()); // Attach listener to Get Gain option
 
+    JMenuItem holdingsMenuItem = new JMenuItem("Holdings");
+    holdingsMenuItem.addActionListener(new HoldingsListener()); // Attach listener to Holdings option
+
     JMenuItem searchMenuItem = new JMenuItem("Search");
     searchMenuItem.addActionListener(new SearchListener()); // Attach listener to Search option
 
@@ -401,6 +662,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     commandsMenu.add(sellMenuItem);
     commandsMenu.add(updateMenuItem);
     commandsMenu.add(getGainMenuItem);
+    commandsMenu.add(holdingsMenuItem);
     commandsMenu.add(searchMenuItem);
     commandsMenu.add(quitMenuItem);
 
@@ -510,7 +772,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     String boxMessage = ""; // Message to display in the message box
 
     // Check if investments exist, set message accordingly
-    if (Portfolio.getInvestListSize() == 0) {
+    if (portfolio1.getInvestListSize() == 0) {
       investmentsExist = false;
       boxMessage = "- No investments exist -";
     }
@@ -581,7 +843,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     String boxMessage = ""; // message to display in message box
 
     // Check if investments exist in the portfolio
-    if (Portfolio.getInvestListSize() == 0) {
+    if (portfolio1.getInvestListSize() == 0) {
       investmentsExist = false; // Set to false if no investments exist
       boxMessage = "- No investments exist -"; // Set message to show to user
     }
@@ -599,14 +861,14 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
 
     // Previous button to navigate through investments
     prevButton = formatButton(new JButton("Prev"), 100, 150,
-        investmentsExist && Portfolio.getInvestListSize() > 1 && indexInv != 0); // Enable only if more than 1
+        investmentsExist && portfolio1.getInvestListSize() > 1 && indexInv != 0); // Enable only if more than 1
                                                                                  // investment
     PrevListener prevListener = new PrevListener();
     prevButton.addActionListener(prevListener); // Add action listener for "Prev" button
 
     // Next button to navigate to next investment
     nextButton = formatButton(new JButton("Next"), 100, 150,
-        investmentsExist && Portfolio.getInvestListSize() > 1); // Enable only if more than 1 investment
+        investmentsExist && portfolio1.getInvestListSize() > 1); // Enable only if more than 1 investment
     NextListener nextListener = new NextListener();
     nextButton.addActionListener(nextListener); // Add action listener for "Next" button
 
@@ -656,33 +918,48 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
    * GUI.
    */
   private void showGainMenu() {
-    String boxMessage = Portfolio.getSingleGain();
-
-    // Check if investments exist
-    if (Portfolio.getInvestListSize() == 0) {
-      boxMessage = "- No investments exist -";
-    }
-
     // Create panels for organizing the layout of the gain menu
     JPanel backPanel = formatPanel(new JPanel(new BorderLayout()), -1, -1, guiColorWhite);
-    JPanel inputPanel = formatPanel(new JPanel(new GridLayout(1, 2, 0, 30)), -1, -1, guiColorWhite);
+    JPanel inputPanel = formatPanel(new JPanel(new GridLayout(3, 2, 0, 15)), -1, -1, guiColorWhite);
     JPanel fillerPanel = formatPanel(new JPanel(new GridLayout(1, 1)), 100, 350, guiColorWhite);
     JPanel messagePanel = formatPanel(new JPanel(new BorderLayout()), -1, -1, guiColorWhite);
 
-    // Create text field for displaying the total gain
-    inputField1 = createTextField(false); // Total Gain
-    inputField1.setText(Portfolio.getGain());
-
-    // Modify the scroll box to fit properly
-    modifyScrollMessageBox(boxMessage, 16, 300);
+    // Create text fields for displaying the total gain and the gain by type
+    JTextField totalField = createTextField(false); // Total Gain
+    JTextField stockField = createTextField(false); // Stock Gain
+    JTextField fundField = createTextField(false); // Mutual Fund Gain
+    inputField1 = totalField;
+    inputField2 = stockField;
+    inputField3 = fundField;
+
+    // Compute the gains in the background, and fill in the boxes of this menu.
+    // All three come from one copy of the totals, so they always add up
+    runTask(new PortfolioTask<String[]>("GetGain", true, progress -> {
+      GainTotals totals = portfolio1.getGainTotals();
+      return new String[] { Money.toString(totals.getGainMicros()), Money.toString(totals.getStockGainMicros()),
+          Money.toString(totals.getMutualFundGainMicros()) };
+    }, gains -> {
+      totalField.setText(gains[0]);
+      stockField.setText(gains[1]);
+      fundField.setText(gains[2]);
+    }));
+
+    // Show the individual gains in the holdings table, largest gain first
+    JScrollPane holdingScrollBars = holdingTable(300);
+    holdingSorter.setSortKeys(
+        java.util.List.of(new RowSorter.SortKey(HoldingTableModel.GAIN, SortOrder.DESCENDING)));
 
     // Add all input boxes and labels to the input panel
     inputPanel.add(formatLabel(new JLabel("Total gain"), Font_Size));
     inputPanel.add(inputField1);
+    inputPanel.add(formatLabel(new JLabel("Stocks"), Font_Size));
+    inputPanel.add(inputField2);
+    inputPanel.add(formatLabel(new JLabel("Mutual funds"), Font_Size));
+    inputPanel.add(inputField3);
 
     // Add labels and the scroll box to the message panel
     messagePanel.add(formatLabel(new JLabel("Individual gains"), Font_Size), BorderLayout.NORTH);
-    messagePanel.add(messageScrollBars, BorderLayout.CENTER);
+    messagePanel.add(holdingScrollBars, BorderLayout.CENTER);
 
     // Add panels to backPanel for layout arrangement
     backPanel.add(formatLabel(new JLabel("Getting total gain"), Font_Size), BorderLayout.NORTH);
@@ -696,6 +973,86 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     dynamicPanel.revalidate();
   }
 
+  /**
+   * Displays the holdings menu.
+   * This method shows every holding in a table that can be sorted by clicking a
+   * column header and filtered by text or by a range of numbers.
+   */
+  private void showHoldingsMenu() {
+    // Create panels for organizing the holdings menu layout
+    JPanel backPanel = formatPanel(new JPanel(new BorderLayout()), -1, -1, guiColorWhite);
+    JPanel inputPanel = formatPanel(new JPanel(new GridLayout(2, 2, 0, 15)), -1, -1, guiColorWhite);
+    JPanel buttonPanel = formatPanel(new JPanel(new GridLayout(1, 1)), -1, 300, guiColorWhite);
+
+    // Combo box of what to filter on: the text columns, or a single column
+    comboBox1 = new JComboBox<>();
+    comboBox1.addItem("All text");
+    for (int column = 0; column < holdingModel.getColumnCount(); column++) {
+      comboBox1.addItem(holdingModel.getColumnName(column));
+    }
+    comboBox1.setFont(new Font("Courier", Font.PLAIN, Font_Size));
+
+    // Text field for the filter, applied when Enter or the Filter button is pressed
+    FilterListener filterListener = new FilterListener();
+    inputField1 = createTextField(true);
+    inputField1.addActionListener(filterListener);
+    JButton filterButton = formatButton(new JButton("Filter"), 100, 150, true);
+    filterButton.addActionListener(filterListener);
+    buttonPanel.setBorder(new EmptyBorder(20, 20, 20, 20));
+    buttonPanel.add(filterButton);
+
+    // Add the filter boxes and labels to the input panel
+    inputPanel.add(formatLabel(new JLabel("Filter on"), Font_Size));
+    inputPanel.add(comboBox1);
+    inputPanel.add(formatLabel(new JLabel("Containing, or low high"), Font_Size));
+    inputPanel.add(inputField1);
+
+    // Add panels to backPanel for layout arrangement
+    JPanel filterPanel = formatPanel(new JPanel(new BorderLayout()), -1, -1, guiColorWhite);
+    filterPanel.add(formatLabel(new JLabel("Holdings"), Font_Size), BorderLayout.NORTH);
+    filterPanel.add(inputPanel, BorderLayout.CENTER);
+    filterPanel.add(buttonPanel, BorderLayout.EAST);
+    backPanel.add(filterPanel, BorderLayout.NORTH);
+    backPanel.add(holdingTable(-1), BorderLayout.CENTER);
+
+    // Remove all panels from the dynamic panel, and add the new ones
+    dynamicPanel.removeAll();
+    dynamicPanel.add(backPanel, BorderLayout.CENTER);
+    dynamicPanel.revalidate();
+  }
+
+  /**
+   * Gets the table of the holdings in a scroll pane, unsorted and unfiltered.
+   * The table only draws the rows in view, and its rows follow trades as they
+   * happen. It is made the first time it is shown and reused afterwards, so
+   * the model never has more than one table and sorter to keep up to date.
+   *
+   * @param height is the height of the scroll pane, or -1 to fill the space
+   * @return the scroll pane holding the table
+   */
+  private JScrollPane holdingTable(int height) {
+    if (holdingPane == null) {
+      JTable table = new JTable(holdingModel);
+      holdingSorter = new TableRowSorter<>(holdingModel);
+      holdingSorter.setSortsOnUpdates(true); // Keep the order when prices change
+      table.setRowSorter(holdingSorter);
+      table.setFont(new Font("Courier", Font.PLAIN, 16));
+      table.setRowHeight(22);
+      table.setFillsViewportHeight(true);
+      table.setBackground(guiColorWhite);
+      table.getTableHeader().setFont(new Font("Courier", Font.BOLD, 16));
+
+      holdingPane = new JScrollPane(table, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS,
+          JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+    }
+
+    // Start each menu from the holdings in portfolio order
+    holdingSorter.setRowFilter(null);
+    holdingSorter.setSortKeys(null);
+    holdingPane.setPreferredSize(height > 0 ? new Dimension(800, height) : null);
+    return holdingPane;
+  }
+
   /**
    * Displays the search menu.
    * This method allows the user to search for investments by various criteria.
@@ -705,7 +1062,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     String boxMessage = ""; // message to display in message box
 
     // Check if investments exist
-    if (Portfolio.getInvestListSize() == 0) {
+    if (portfolio1.getInvestListSize() == 0) {
       investmentsExist = false;
       boxMessage = "- No investments exist -";
     }
@@ -713,7 +1070,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     // Create panels for organizing the search menu layout
     JPanel backPanel = formatPanel(new JPanel(new BorderLayout()), -1, -1, guiColorWhite);
     JPanel inputPanel = formatPanel(new JPanel(new GridLayout(4, 2, 0, 20)), -1, -1, guiColorWhite);
-    JPanel buttonPanel = formatPanel(new JPanel(new GridLayout(2, 1, 10, 30)), -1, 300, guiColorWhite);
+    JPanel buttonPanel = formatPanel(new JPanel(new GridLayout(3, 1, 10, 15)), -1, 300, guiColorWhite);
     JPanel messagePanel = formatPanel(new JPanel(new BorderLayout()), -1, -1, guiColorWhite);
 
     // Create text fields for input (Symbol, Name Keywords, Low Price, High Price)
@@ -732,6 +1089,11 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     SearchInvestmentListener searchListener = new SearchInvestmentListener();
     searchButton.addActionListener(searchListener);
 
+    // More button that shows the next page of results, once there is one
+    moreButton = formatButton(new JButton("More"), 100, 150, false);
+    moreButton.addActionListener(new MoreListener());
+    nextResults = null;
+
     // Modify the borders of the button panel so buttons fit better
     buttonPanel.setBorder(new EmptyBorder(20, 20, 20, 20));
 
@@ -751,6 +1113,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
     // Add all the buttons to the button panel
     buttonPanel.add(resetButton);
     buttonPanel.add(searchButton);
+    buttonPanel.add(moreButton);
 
     // Add labels and the scroll box to the message panel
     messagePanel.add(formatLabel(new JLabel("Search results"), Font_Size), BorderLayout.NORTH);
@@ -814,7 +1177,7 @@ String firstMessage = "Welcome to ePortfolio.\n\n\n\n\n" +
    * @param index the index of the investment to display
    */
   private void setUpdateBoxes(int index) {
-    Investment investment = Portfolio.getInvestment(index);
+    Investment investment = portfolio1.getInvestment(index);
     inputField1.setText(investment.getSymbol());
     inputField2.setText(investment.getName());
   }
@@ -0,0 +1,248 @@
+package ePortfolio;
+
+import java.util.Arrays;
+
+/**
+ * A columnar copy of the numbers of a portfolio's holdings: the quantity,
+ * price, book value and type of the holding with each id sit at that id in
+ * parallel arrays, with amounts in micro-units (see Money). Valuation and price band scans run as tight loops over
+ * primitive arrays instead of following a pointer to every Investment and
+ * calling its payment method.
+ *
+ * The Investment objects stay the portfolio's holdings; the portfolio copies
+ * a holding's numbers here whenever it changes one. Free ids (tombstones)
+ * have the EMPTY type and no quantity, so they add nothing to the sums.
+ */
+public class HoldingColumns {
+
+    /** Type of a stock. */
+    static final byte STOCK = 0;
+
+    /** Type of a mutual fund. */
+    static final byte MUTUAL_FUND = 1;
+
+    /** Type of a free id. */
+    static final byte EMPTY = 2;
+
+    /** The fee taken when selling in micro-units, by type. */
+    private static final long[] FEES = { Stock.COMMISSION, MutualFund.REDEMPTION_FEE, 0 };
+
+    /** The quantity of each holding. */
+    private int[] quantity = new int[16];
+
+    /** The price of each holding. */
+    private long[] price = new long[16];
+
+    /** The book value of each holding. */
+    private long[] bookValue = new long[16];
+
+    /** The type of each holding. */
+    private byte[] type = new byte[16];
+
+    /** The number of ids in use, including free ones. */
+    private int size = 0;
+
+    /**
+     * Constructs an empty HoldingColumns.
+     */
+    public HoldingColumns() {
+    }
+
+    /**
+     * Copies a holding's numbers into the row of its id.
+     *
+     * @param investment the holding
+     */
+    void set(Investment investment) {
+        int id = investment.getId();
+        if (id >= quantity.length) {
+            int capacity = Math.max(id + 1, quantity.length * 2);
+            quantity = Arrays.copyOf(quantity, capacity);
+            price = Arrays.copyOf(price, capacity);
+            bookValue = Arrays.copyOf(bookValue, capacity);
+            type = Arrays.copyOf(type, capacity);
+        }
+        for (int free = size; free < id; free++) {
+            type[free] = EMPTY;
+        }
+        size = Math.max(size, id + 1);
+
+        quantity[id] = investment.getQuantity();
+        price[id] = investment.getPriceMicros();
+        bookValue[id] = investment.getBookValueMicros();
+        type[id] = investment instanceof MutualFund ? MUTUAL_FUND : STOCK;
+    }
+
+    /**
+     * Frees the row of a removed holding.
+     *
+     * @param id the id of the holding
+     */
+    void remove(int id) {
+        quantity[id] = 0;
+        price[id] = 0;
+        bookValue[id] = 0;
+        type[id] = EMPTY;
+    }
+
+    /**
+     * Moves a row to a lower id while the portfolio compacts its ids.
+     *
+     * @param from the old id
+     * @param to   the new id, at most from
+     */
+    void move(int from, int to) {
+        quantity[to] = quantity[from];
+        price[to] = price[from];
+        bookValue[to] = bookValue[from];
+        type[to] = type[from];
+    }
+
+    /**
+     * Drops the rows from an id on, after the portfolio compacted its ids.
+     *
+     * @param size the number of ids still in use
+     */
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Removes every row.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Gets the number of ids in use, including free ones.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the price of a holding.
+     *
+     * @param id the id of the holding
+     * @return the price in micro-units
+     */
+    public long getPrice(int id) {
+        return price[id];
+    }
+
+    /**
+     * Gets the gain of a holding, the same as Investment.gainMicros.
+     *
+     * @param id the id of the holding
+     * @return the gain in micro-units
+     */
+    public long getGain(int id) {
+        return type[id] == EMPTY ? 0 : quantity[id] * price[id] - FEES[type[id]] - bookValue[id];
+    }
+
+    /**
+     * Sums the payment selling every holding would bring.
+     *
+     * @return the market value in micro-units
+     */
+    public long marketValue() {
+        // Four independent sums, so the additions don't wait on each other
+        long sum0 = 0;
+        long sum1 = 0;
+        long sum2 = 0;
+        long sum3 = 0;
+        int i = 0;
+        for (; i + 3 < size; i += 4) {
+            sum0 += quantity[i] * price[i] - FEES[type[i]];
+            sum1 += quantity[i + 1] * price[i + 1] - FEES[type[i + 1]];
+            sum2 += quantity[i + 2] * price[i + 2] - FEES[type[i + 2]];
+            sum3 += quantity[i + 3] * price[i + 3] - FEES[type[i + 3]];
+        }
+        for (; i < size; i++) {
+            sum0 += quantity[i] * price[i] - FEES[type[i]];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Sums the book values.
+     *
+     * @return the book value in micro-units
+     */
+    public long bookValue() {
+        long sum0 = 0;
+        long sum1 = 0;
+        long sum2 = 0;
+        long sum3 = 0;
+        int i = 0;
+        for (; i + 3 < size; i += 4) {
+            sum0 += bookValue[i];
+            sum1 += bookValue[i + 1];
+            sum2 += bookValue[i + 2];
+            sum3 += bookValue[i + 3];
+        }
+        for (; i < size; i++) {
+            sum0 += bookValue[i];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Sums the gains.
+     *
+     * @return the market value minus the book value, in micro-units
+     */
+    public long gain() {
+        return marketValue() - bookValue();
+    }
+
+    /**
+     * Counts the holdings priced within a band.
+     *
+     * @param low  the lowest price (inclusive)
+     * @param high the highest price (inclusive)
+     * @return the number of holdings
+     */
+    public int countInPriceBand(double low, double high) {
+        return countInPriceBand(Money.ceilMicros(low), Money.floorMicros(high));
+    }
+
+    /**
+     * Counts the holdings priced within a band of micro-units.
+     *
+     * @param low  the lowest price in micro-units (inclusive)
+     * @param high the highest price in micro-units (inclusive)
+     * @return the number of holdings
+     */
+    private int countInPriceBand(long low, long high) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            // Adding the comparisons avoids a branch per row
+            count += (price[i] >= low ? 1 : 0) & (price[i] <= high ? 1 : 0) & (type[i] != EMPTY ? 1 : 0);
+        }
+        return count;
+    }
+
+    /**
+     * Finds the holdings priced within a band.
+     *
+     * @param low  the lowest price (inclusive)
+     * @param high the highest price (inclusive)
+     * @return the ids of the holdings, in increasing order
+     */
+    public int[] findInPriceBand(double low, double high) {
+        long lowMicros = Money.ceilMicros(low);
+        long highMicros = Money.floorMicros(high);
+        int[] ids = new int[countInPriceBand(lowMicros, highMicros)];
+        int count = 0;
+        for (int i = 0; i < size && count < ids.length; i++) {
+            if (price[i] >= lowMicros && price[i] <= highMicros && type[i] != EMPTY) {
+                ids[count++] = i;
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,306 @@
+package ePortfolio;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.regex.Pattern;
+
+import javax.swing.RowFilter;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A table model over the live holdings of a portfolio, for a JTable. Cells
+ * are read from the holdings when the table paints them, so only the visible
+ * rows cost anything, however many holdings there are.
+ *
+ * The model listens to the portfolio. Changes arrive on the trading thread,
+ * are merged per holding, and are applied on the Swing event thread in one
+ * pass, firing an event for each changed, added or removed row; a pass with
+ * more than BULK_CHANGES changes fires a single data changed event instead,
+ * which is cheaper for a sorted table. A removed row is filled with the last
+ * row, so rows never shift.
+ */
+public class HoldingTableModel extends AbstractTableModel implements Portfolio.HoldingListener {
+
+    /** The version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /** The number of changes above which a pass redraws the whole table. */
+    public static final int BULK_CHANGES = 256;
+
+    /** Column: "Stock" or "Mutual Fund". */
+    public static final int TYPE = 0;
+
+    /** Column: the symbol. */
+    public static final int SYMBOL = 1;
+
+    /** Column: the name. */
+    public static final int NAME = 2;
+
+    /** Column: the quantity. */
+    public static final int QUANTITY = 3;
+
+    /** Column: the price. */
+    public static final int PRICE = 4;
+
+    /** Column: the book value. */
+    public static final int BOOK_VALUE = 5;
+
+    /** Column: the gain. */
+    public static final int GAIN = 6;
+
+    /** The column names. */
+    private static final String[] COLUMNS = { "Type", "Symbol", "Name", "Quantity", "Price", "Book Value",
+            "Gain" };
+
+    /** The column classes, so numbers sort as numbers. */
+    private static final Class<?>[] CLASSES = { String.class, String.class, String.class, Integer.class,
+            Double.class, Double.class, Double.class };
+
+    /** The holding shown in each row; only used on the event thread. */
+    private final ArrayList<Investment> rows = new ArrayList<>();
+
+    /** The row of each holding; only used on the event thread. */
+    private final IdentityHashMap<Investment, Integer> rowOf = new IdentityHashMap<>();
+
+    /**
+     * The changes not applied yet, true for a removal; guarded by itself. Keyed
+     * by identity, since holdings with the same values are still different rows
+     * and a trade changes the values a holding is compared by.
+     */
+    private final IdentityHashMap<Investment, Boolean> pending = new IdentityHashMap<>();
+
+    /** The holdings in pending, in the order they first changed; guarded by pending. */
+    private final ArrayList<Investment> pendingOrder = new ArrayList<>();
+
+    /** Whether the portfolio was cleared since the last pass; guarded by pending. */
+    private boolean cleared = false;
+
+    /** Whether a pass is scheduled on the event thread; guarded by pending. */
+    private boolean scheduled = false;
+
+    /** The portfolio shown. */
+    private final Portfolio portfolio;
+
+    /**
+     * Constructs a model showing a portfolio's holdings and keeping up with
+     * its trades.
+     *
+     * @param portfolio the portfolio to show
+     */
+    public HoldingTableModel(Portfolio portfolio) {
+        this.portfolio = portfolio;
+        portfolio.addHoldingListener(this);
+    }
+
+    /**
+     * Stops following the portfolio's trades.
+     */
+    public void dispose() {
+        portfolio.removeHoldingListener(this);
+    }
+
+    /**
+     * Gets the holding shown in a row.
+     *
+     * @param row the row in the model
+     * @return the holding
+     */
+    public Investment getHolding(int row) {
+        return rows.get(row);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return CLASSES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Investment investment = rows.get(row);
+        switch (column) {
+            case TYPE:
+                return investment instanceof Stock ? "Stock" : "Mutual Fund";
+            case SYMBOL:
+                return investment.getSymbol();
+            case NAME:
+                return investment.getName();
+            case QUANTITY:
+                return investment.getQuantity();
+            case PRICE:
+                return investment.getPrice();
+            case BOOK_VALUE:
+                return investment.getBookValue();
+            default:
+                return investment.Gain();
+        }
+    }
+
+    @Override
+    public void holdingChanged(Investment investment) {
+        change(investment, false);
+    }
+
+    @Override
+    public void holdingRemoved(Investment investment) {
+        change(investment, true);
+    }
+
+    @Override
+    public void holdingsCleared() {
+        synchronized (pending) {
+            pending.clear();
+            pendingOrder.clear();
+            cleared = true;
+            schedule();
+        }
+    }
+
+    /**
+     * Builds a row filter for one column, or for every text column. Text
+     * matches anywhere in the cell, ignoring case. On a number column,
+     * "low high" keeps the values from low to high and a single number keeps
+     * the values from it up.
+     *
+     * @param text   the filter text; empty keeps every row
+     * @param column the column, or -1 for the type, symbol and name
+     * @return the filter, or null to keep every row
+     * @throws NumberFormatException if a number column is given words
+     */
+    public static RowFilter<HoldingTableModel, Integer> filter(String text, int column) {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        if (column < QUANTITY) {
+            String pattern = "(?iu)" + Pattern.quote(trimmed);
+            return column < 0 ? RowFilter.regexFilter(pattern, TYPE, SYMBOL, NAME)
+                    : RowFilter.regexFilter(pattern, column);
+        }
+
+        String[] bounds = trimmed.split("\\s+");
+        double low = Double.parseDouble(bounds[0]);
+        double high = bounds.length > 1 ? Double.parseDouble(bounds[1]) : Double.POSITIVE_INFINITY;
+        return new RowFilter<HoldingTableModel, Integer>() {
+            @Override
+            public boolean include(Entry<? extends HoldingTableModel, ? extends Integer> entry) {
+                double value = ((Number) entry.getValue(column)).doubleValue();
+                return value >= low && value <= high;
+            }
+        };
+    }
+
+    /**
+     * Queues a change of a holding for the next pass.
+     *
+     * @param investment the holding
+     * @param removed    true if it left the portfolio
+     */
+    private void change(Investment investment, boolean removed) {
+        synchronized (pending) {
+            if (pending.put(investment, removed) == null) {
+                pendingOrder.add(investment);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Schedules a pass on the event thread unless one is already scheduled.
+     * The caller holds the pending lock.
+     */
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            SwingUtilities.invokeLater(this::applyPending);
+        }
+    }
+
+    /**
+     * Applies the queued changes to the rows and fires the table events. Runs
+     * on the event thread.
+     */
+    private void applyPending() {
+        Investment[] changed;
+        boolean[] removed;
+        boolean reset;
+        synchronized (pending) {
+            changed = pendingOrder.toArray(new Investment[0]);
+            removed = new boolean[changed.length];
+            for (int i = 0; i < changed.length; i++) {
+                removed[i] = pending.get(changed[i]);
+            }
+            reset = cleared;
+            pending.clear();
+            pendingOrder.clear();
+            cleared = false;
+            scheduled = false;
+        }
+
+        boolean bulk = reset || changed.length > BULK_CHANGES;
+        if (reset) {
+            rows.clear();
+            rowOf.clear();
+        }
+        for (int i = 0; i < changed.length; i++) {
+            Investment investment = changed[i];
+            Integer row = rowOf.get(investment);
+            if (removed[i]) {
+                if (row != null) {
+                    removeRow(row, bulk);
+                }
+            } else if (row != null) {
+                if (!bulk) {
+                    fireTableRowsUpdated(row, row);
+                }
+            } else {
+                rowOf.put(investment, rows.size());
+                rows.add(investment);
+                if (!bulk) {
+                    fireTableRowsInserted(rows.size() - 1, rows.size() - 1);
+                }
+            }
+        }
+        if (bulk) {
+            fireTableDataChanged();
+        }
+    }
+
+    /**
+     * Removes a row by moving the last row into it.
+     *
+     * @param row  the row to remove
+     * @param bulk true if the table is redrawn at the end of the pass
+     */
+    private void removeRow(int row, boolean bulk) {
+        int last = rows.size() - 1;
+        rowOf.remove(rows.get(row));
+        if (row != last) {
+            Investment moved = rows.get(last);
+            rows.set(row, moved);
+            rowOf.put(moved, row);
+        }
+        rows.remove(last);
+        if (!bulk) {
+            if (row != last) {
+                fireTableRowsUpdated(row, row);
+            }
+            fireTableRowsDeleted(last, last);
+        }
+    }
+}
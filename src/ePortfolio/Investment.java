@@ -18,11 +18,20 @@ public abstract class Investment {
     /** The quantity of the investment owned. */
     protected int Quantity;
 
-    /** The price per unit of the investment. */
-    protected double Price;
+    /** The price per unit of the investment, in micro-units (see Money). */
+    protected long Price;
 
-    /** The book value of the investment, representing its cost basis. */
-    protected double bookValue;
+    /** The book value of the investment, representing its cost basis, in micro-units. */
+    protected long bookValue;
+
+    /** The id the portfolio assigned to the investment, or -1 if it has none. */
+    protected int id;
+
+    /**
+     * The tax lots of the investment, or null while the whole holding is one
+     * lot with id 0: bought once, or never bought again since its last sale.
+     */
+    protected TaxLots lots;
 
     /**
      * Constructs a new Investment object with the specified details.
@@ -57,15 +66,26 @@ public abstract class Investment {
             throw new Exception("Quantity must be greater than 0.");
         }
 
-        // Validate and set the price for the investment
-        if (price > 0) {
-            this.Price = price;
+        // Validate and set the price for the investment, which must be positive
+        // once it is rounded to micro-units
+        if (price > 0 && Money.isValid(price) && Money.fromDouble(price) > 0) {
+            this.Price = Money.fromDouble(price);
         } else {
             throw new Exception("Price must be greater than 0 and should be a double value.");
         }
 
+        // The holding's value must fit in micro-units
+        try {
+            Money.times(this.Price, quantity);
+        } catch (ArithmeticException e) {
+            throw new Exception("The total value of the investment is too large.");
+        }
+
         // Initialize book value to 0
         this.bookValue = 0;
+
+        // The portfolio assigns the id when the investment is added
+        this.id = -1;
     }
 
     /**
@@ -80,6 +100,8 @@ public abstract class Investment {
         this.Quantity = investment1.Quantity;
         this.Price = investment1.Price;
         this.bookValue = investment1.bookValue;
+        this.id = investment1.id;
+        this.lots = investment1.lots == null ? null : new TaxLots(investment1.lots);
     }
 
     /**
@@ -91,26 +113,149 @@ public abstract class Investment {
      */
     public abstract void calculateBookValue(int quantity, double price);
 
+    /**
+     * Abstract method to calculate the cost of buying a quantity of the
+     * investment at a price, in micro-units, including any fees.
+     * This method must be implemented by subclasses to provide specific logic.
+     *
+     * @param quantity the number of units bought
+     * @param price    the price per unit in micro-units
+     * @return the total cost, in micro-units
+     * @throws ArithmeticException if the cost doesn't fit in micro-units
+     */
+    public abstract long costMicros(int quantity, long price);
+
     /**
      * Abstract method to calculate the payment received after selling a quantity of
-     * the investment.
+     * the investment at a price, in micro-units. The investment isn't changed, so
+     * a trade can be checked before it is made.
      * This method must be implemented by subclasses to provide specific logic.
      *
      * @param quantity the number of units sold
+     * @param price    the price per unit in micro-units
+     * @return the total payment received, in micro-units
+     * @throws ArithmeticException if the payment doesn't fit in micro-units
+     */
+    public abstract long paymentMicros(int quantity, long price);
+
+    /**
+     * Calculates the payment received after selling a quantity of the
+     * investment at its current price, in micro-units.
+     *
+     * @param quantity the number of units sold
+     * @return the total payment received, in micro-units
+     */
+    public long paymentMicros(int quantity) {
+        return paymentMicros(quantity, this.Price);
+    }
+
+    /**
+     * Calculates the payment received after selling a quantity of the investment.
+     *
+     * @param quantity the number of units sold
      * @return the total payment received
      */
-    public abstract double payment(int quantity);
+    public double payment(int quantity) {
+        return Money.toDouble(paymentMicros(quantity));
+    }
+
+    /**
+     * Adds a purchase to the book value and records it as a lot. The quantity
+     * must already include the purchase.
+     *
+     * @param quantity the number of units bought
+     * @param cost     the cost of the purchase in micro-units
+     */
+    protected void addLot(int quantity, long cost) {
+        if (lots == null && this.Quantity > quantity) {
+            // Bought again: what was held so far becomes the first lot
+            lots = new TaxLots(this.Quantity - quantity, this.bookValue);
+        }
+        if (lots != null) {
+            lots.add(quantity, cost);
+        }
+        this.bookValue += cost;
+    }
 
     /**
      * Adjusts the book value of the investment after selling a portion of it.
-     * The adjustment is proportional to the remaining quantity.
+     * The adjustment is proportional to the remaining quantity, rounded to the
+     * nearest micro-unit. Selling at the average cost pools the lots into one.
      *
      * @param quantityOld the quantity of the investment before selling
      */
     public void bValueSellC(int quantityOld) {
         // Calculate the new book value after selling a portion
-        double result = bookValue * Quantity / quantityOld;
-        this.bookValue = result; // Update book value based on the remaining quantity
+        this.bookValue = Money.scale(bookValue, Quantity, quantityOld);
+        if (lots != null) {
+            if (Quantity == 0) {
+                lots = null;
+            } else {
+                lots.pool(Quantity, bookValue);
+            }
+        }
+    }
+
+    /**
+     * Sells a quantity of the investment under a lot policy, updating the
+     * quantity and the book value. The caller checks there is enough to sell,
+     * using lotQuantity for SPECIFIC_LOT.
+     *
+     * @param quantity the number of units sold
+     * @param policy   a TaxLots policy
+     * @param lot      the id of the lot to sell from, for SPECIFIC_LOT
+     * @return the book value of the units sold, in micro-units
+     */
+    public long sellLots(int quantity, byte policy, long lot) {
+        int quantityOld = this.Quantity;
+        long bookValueOld = this.bookValue;
+        this.Quantity = quantityOld - quantity;
+        if (policy == TaxLots.AVERAGE_COST || lots == null) {
+            // A single lot sells the same way under every policy
+            bValueSellC(quantityOld);
+        } else {
+            this.bookValue -= lots.sell(quantity, policy, lot);
+            if (this.Quantity == 0) {
+                lots = null;
+            }
+        }
+        return bookValueOld - this.bookValue;
+    }
+
+    /**
+     * Gets the quantity left in a lot.
+     *
+     * @param lot the id of the lot
+     * @return the quantity, or 0 if the investment has no such lot
+     */
+    public int lotQuantity(long lot) {
+        if (lots == null) {
+            return lot == 0 ? this.Quantity : 0;
+        }
+        return lots.quantityOf(lot);
+    }
+
+    /**
+     * Returns a string with a line for every lot of the investment, oldest
+     * first.
+     *
+     * @return the lots, like "Lot 3: 10 units, cost 1009.99"
+     */
+    public String lotsToString() {
+        if (lots == null) {
+            return "Lot 0: " + this.Quantity + " units, cost " + Money.toString(this.bookValue) + "\n";
+        }
+        return lots.toString();
+    }
+
+    /**
+     * Calculates the gain of the investment, which is the difference between the
+     * payment for the current quantity and the book value, in micro-units.
+     *
+     * @return the calculated gain in micro-units
+     */
+    public long gainMicros() {
+        return paymentMicros(this.Quantity) - this.bookValue;
     }
 
     /**
@@ -120,9 +265,7 @@ public abstract class Investment {
      * @return the calculated gain
      */
     public double Gain() {
-        // Calculate the gain as the difference between payment and book value
-        double result = payment(this.Quantity) - this.bookValue;
-        return result;
+        return Money.toDouble(gainMicros());
     }
 
     // Getter and setter methods for each field
@@ -187,15 +330,34 @@ public abstract class Investment {
      * @return the price per unit
      */
     public double getPrice() {
-        return this.Price;
+        return Money.toDouble(this.Price);
     }
 
     /**
-     * Sets the price per unit of the investment.
+     * Sets the price per unit of the investment, rounded to the nearest
+     * micro-unit.
      *
      * @param price the new price per unit to set
      */
     public void setPrice(double price) {
+        this.Price = Money.fromDouble(price);
+    }
+
+    /**
+     * Gets the price per unit of the investment in micro-units.
+     *
+     * @return the price per unit in micro-units
+     */
+    public long getPriceMicros() {
+        return this.Price;
+    }
+
+    /**
+     * Sets the price per unit of the investment in micro-units.
+     *
+     * @param price the new price per unit in micro-units
+     */
+    public void setPriceMicros(long price) {
         this.Price = price;
     }
 
@@ -205,18 +367,74 @@ public abstract class Investment {
      * @return the book value of the investment
      */
     public double getBookValue() {
-        return this.bookValue;
+        return Money.toDouble(this.bookValue);
     }
 
     /**
-     * Sets the book value of the investment.
+     * Sets the book value of the investment, rounded to the nearest micro-unit.
      *
      * @param bookValue the new book value to set
      */
     public void setBookValue(double bookValue) {
+        this.bookValue = Money.fromDouble(bookValue);
+    }
+
+    /**
+     * Gets the book value of the investment in micro-units.
+     *
+     * @return the book value in micro-units
+     */
+    public long getBookValueMicros() {
+        return this.bookValue;
+    }
+
+    /**
+     * Sets the book value of the investment in micro-units.
+     *
+     * @param bookValue the new book value in micro-units
+     */
+    public void setBookValueMicros(long bookValue) {
         this.bookValue = bookValue;
     }
 
+    /**
+     * Gets the tax lots of the investment.
+     *
+     * @return the lots, or null if the investment is a single lot
+     */
+    TaxLots getLots() {
+        return this.lots;
+    }
+
+    /**
+     * Sets the tax lots of the investment. Their quantities and costs must
+     * add up to the investment's quantity and book value.
+     *
+     * @param lots the lots, or null for a single lot
+     */
+    void setLots(TaxLots lots) {
+        this.lots = lots;
+    }
+
+    /**
+     * Gets the id the portfolio assigned to the investment.
+     * The id stays the same while other investments are bought and sold.
+     *
+     * @return the id of the investment, or -1 if it isn't in the portfolio
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * Sets the id of the investment. Only the portfolio assigns ids.
+     *
+     * @param id the new id to set
+     */
+    void setId(int id) {
+        this.id = id;
+    }
+
     /**
      * Returns a string representation of the Investment object,
      * including all its details.
@@ -229,8 +447,8 @@ public abstract class Investment {
         return "Symbol: " + this.getSymbol() + "\n" +
                 "Name: " + this.getName() + "\n" +
                 "Quantity: " + this.getQuantity() + "\n" +
-                "Price: " + this.getPrice() + "\n" +
-                "Book Value: " + this.getBookValue();
+                "Price: " + Money.toString(this.Price) + "\n" +
+                "Book Value: " + Money.toString(this.bookValue);
     }
 
     /**
@@ -253,7 +471,7 @@ public abstract class Investment {
         return Symbol.equals(that.Symbol) &&
                 Name.equals(that.Name) &&
                 Quantity == that.Quantity &&
-                Double.compare(that.Price, Price) == 0;
+                Price == that.Price;
     }
 
     /**
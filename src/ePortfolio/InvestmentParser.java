@@ -0,0 +1,555 @@
+package ePortfolio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A streaming parser for the text investment format, where every record is a
+ * run of key = "value" lines starting with a Type line:
+ *
+ * <pre>
+ * Type = "Stock"
+ * Symbol = "AAPL"
+ * Name = "Apple Inc."
+ * Quantity = "10"
+ * Price = "150.0"
+ * BookValue = "1509.99"
+ * </pre>
+ *
+ * Input is fed in buffers of any size and scanned byte by byte. Keys are
+ * matched and numbers are parsed straight from the bytes, so the only objects
+ * created per record are its symbol, name and investment. Investments and
+ * problems are passed to a Handler instead of being printed.
+ *
+ * A record ends at the next Type line or at the end of the input, so its
+ * BookValue line is kept. Lines that can't be used are reported and skipped;
+ * a record that is still missing a field when it ends is reported and
+ * dropped.
+ */
+public class InvestmentParser {
+
+    /**
+     * Receives what the parser finds.
+     */
+    public interface Handler {
+
+        /**
+         * Called for every complete record, in input order.
+         *
+         * @param investment the investment, with its book value set
+         */
+        void investment(Investment investment);
+
+        /**
+         * Called for every line or record that couldn't be used, in input
+         * order.
+         *
+         * @param line    the line number, counted from 1 at the start of the
+         *                input fed to this parser
+         * @param message a description of the problem, including the line
+         */
+        void problem(long line, String message);
+    }
+
+    /** The type of a record whose Type line hasn't been seen. */
+    private static final byte TYPE_NONE = 0;
+
+    /** The type of a Stock record. */
+    private static final byte TYPE_STOCK = 1;
+
+    /** The type of a MutualFund record. */
+    private static final byte TYPE_MUTUAL_FUND = 2;
+
+    /** The type of a record whose Type line names no known type. */
+    private static final byte TYPE_UNKNOWN = 3;
+
+    /** Exact powers of ten, for the fast path of parseDouble. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** Receives the investments and problems. */
+    private final Handler handler;
+
+    /** The line being collected; a line may straddle two buffers. */
+    private byte[] line = new byte[256];
+
+    /** The number of bytes collected in line. */
+    private int length = 0;
+
+    /** The number of the line being collected. */
+    private long lineNumber = 1;
+
+    /** The type of the record being collected. */
+    private byte type = TYPE_NONE;
+
+    /** The symbol of the record being collected, or null. */
+    private String symbol = null;
+
+    /** The name of the record being collected, or null. */
+    private String name = null;
+
+    /** The quantity of the record being collected; -1 if it was invalid. */
+    private int quantity = 0;
+
+    /** The price of the record being collected; -1 if it was invalid. */
+    private double price = 0.0;
+
+    /** The book value of the record being collected; -1 if it was invalid. */
+    private double bookValue = 0.0;
+
+    /** Whether a record has been started since the last one ended. */
+    private boolean started = false;
+
+    /** The line the record being collected started on. */
+    private long recordLine = 0;
+
+    /**
+     * Constructs a parser that passes what it finds to a handler.
+     *
+     * @param handler receives the investments and problems
+     */
+    public InvestmentParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parses the bytes remaining in a buffer. A line cut off at the end of the
+     * buffer is kept and finished by the next call.
+     *
+     * @param input the bytes to parse; its position is moved to its limit
+     */
+    public void feed(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            byte next = input.get();
+            if (next == '\n') {
+                parseLine();
+                continue;
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[length++] = next;
+        }
+    }
+
+    /**
+     * Parses a range of a byte array.
+     *
+     * @param bytes  the bytes to parse
+     * @param offset the first byte
+     * @param count  the number of bytes
+     */
+    public void feed(byte[] bytes, int offset, int count) {
+        feed(ByteBuffer.wrap(bytes, offset, count));
+    }
+
+    /**
+     * Parses the last line, if it had no line break, and ends the last record.
+     * The parser can then be fed a new input.
+     */
+    public void finish() {
+        if (length > 0) {
+            parseLine();
+        }
+        endRecord();
+        lineNumber = 1;
+    }
+
+    /**
+     * Parses the collected line and starts collecting the next one.
+     */
+    private void parseLine() {
+        int from = 0;
+        int to = length;
+        length = 0;
+
+        // Trim the line, including the carriage return of Windows line breaks
+        while (from < to && isSpace(line[from])) {
+            from++;
+        }
+        while (to > from && isSpace(line[to - 1])) {
+            to--;
+        }
+        if (from == to) {
+            lineNumber++;
+            return; // Skip empty lines
+        }
+
+        // A line needs exactly one equals sign with something after it
+        int equals = -1;
+        for (int i = from; i < to; i++) {
+            if (line[i] == '=') {
+                if (equals != -1) {
+                    equals = -2;
+                    break;
+                }
+                equals = i;
+            }
+        }
+        if (equals < 0 || equals == to - 1) {
+            problem("The line format is invalid: ", from, to);
+            lineNumber++;
+            return;
+        }
+
+        // Find the key and the value, without the spaces around them
+        int keyTo = equals;
+        while (keyTo > from && isSpace(line[keyTo - 1])) {
+            keyTo--;
+        }
+        int valueFrom = equals + 1;
+        while (valueFrom < to && isSpace(line[valueFrom])) {
+            valueFrom++;
+        }
+
+        if (keyIs("type", from, keyTo)) {
+            endRecord();
+            started = true;
+            recordLine = lineNumber;
+            type = valueIs("stock", valueFrom, to) ? TYPE_STOCK
+                    : valueIs("mutualfund", valueFrom, to) ? TYPE_MUTUAL_FUND : TYPE_UNKNOWN;
+            if (type == TYPE_UNKNOWN) {
+                problem("Warning: Unknown investment type in line: ", from, to);
+            }
+        } else if (keyIs("symbol", from, keyTo)) {
+            symbol = unquote(valueFrom, to);
+            start();
+        } else if (keyIs("name", from, keyTo)) {
+            name = unquote(valueFrom, to);
+            start();
+        } else if (keyIs("quantity", from, keyTo)) {
+            quantity = parseInt(valueFrom, to);
+            if (quantity == Integer.MIN_VALUE) {
+                problem("Warning: Invalid quantity format in line: ", from, to);
+                quantity = -1; // Invalid quantity, skip this entry
+            }
+            start();
+        } else if (keyIs("price", from, keyTo)) {
+            price = parseDouble(line, valueFrom, to);
+            if (Double.isNaN(price)) {
+                problem("Warning: Invalid price format in line: ", from, to);
+                price = -1.0; // Invalid price, skip this entry
+            }
+            start();
+        } else if (keyIs("bookvalue", from, keyTo)) {
+            bookValue = parseDouble(line, valueFrom, to);
+            if (Double.isNaN(bookValue)) {
+                problem("Warning: Invalid book value format in line: ", from, to);
+                bookValue = -1.0; // Invalid book value, skip this entry
+            }
+            start();
+        } else {
+            problem("Warning: Unknown attribute in line: ", from, to);
+        }
+        lineNumber++;
+    }
+
+    /**
+     * Notes that a record has begun, for records missing their Type line.
+     */
+    private void start() {
+        if (!started) {
+            started = true;
+            recordLine = lineNumber;
+        }
+    }
+
+    /**
+     * Passes the record being collected to the handler if it is complete, and
+     * resets the fields for the next one.
+     */
+    private void endRecord() {
+        if (!started) {
+            return;
+        }
+
+        if (type != TYPE_NONE && type != TYPE_UNKNOWN && symbol != null && !symbol.isEmpty() && name != null
+                && !name.isEmpty() && quantity > 0 && price > 0.0 && bookValue >= 0.0) {
+            try {
+                Investment investment = type == TYPE_STOCK ? new Stock(symbol, name, quantity, price)
+                        : new MutualFund(symbol, name, quantity, price);
+                investment.setBookValue(bookValue);
+                handler.investment(investment);
+            } catch (Exception e) {
+                handler.problem(recordLine, "Error in creating the investment: " + e.getMessage());
+            }
+        } else if (type != TYPE_UNKNOWN) {
+            handler.problem(recordLine, "Warning: Skipping the incomplete record starting on line " + recordLine);
+        }
+
+        // Reset for the next entry
+        started = false;
+        type = TYPE_NONE;
+        symbol = null;
+        name = null;
+        quantity = 0;
+        price = 0.0;
+        bookValue = 0.0;
+    }
+
+    /**
+     * Reports a problem with the current line.
+     *
+     * @param message the description, which the line is appended to
+     * @param from    the first byte of the trimmed line
+     * @param to      the end of the trimmed line
+     */
+    private void problem(String message, int from, int to) {
+        handler.problem(lineNumber, message + new String(line, from, to - from, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks if a key matches a lower-case word, ignoring case.
+     *
+     * @param word the lower-case word
+     * @param from the first byte of the key
+     * @param to   the end of the key
+     * @return true if they match
+     */
+    private boolean keyIs(String word, int from, int to) {
+        if (to - from != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            byte b = line[from + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a value matches a lower-case word, ignoring case and quotes.
+     *
+     * @param word the lower-case word
+     * @param from the first byte of the value
+     * @param to   the end of the value
+     * @return true if they match
+     */
+    private boolean valueIs(String word, int from, int to) {
+        int letter = 0;
+        for (int i = from; i < to; i++) {
+            byte b = line[i];
+            if (b == '"') {
+                continue;
+            }
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (letter == word.length() || b != word.charAt(letter++)) {
+                return false;
+            }
+        }
+        return letter == word.length();
+    }
+
+    /**
+     * Decodes a value with its quotes removed.
+     *
+     * @param from the first byte of the value
+     * @param to   the end of the value
+     * @return the value
+     */
+    private String unquote(int from, int to) {
+        // Usually the only quotes are the pair around the value
+        if (to - from >= 2 && line[from] == '"' && line[to - 1] == '"' && indexOfQuote(from + 1, to - 1) == -1) {
+            return new String(line, from + 1, to - from - 2, StandardCharsets.UTF_8);
+        }
+        if (indexOfQuote(from, to) == -1) {
+            return new String(line, from, to - from, StandardCharsets.UTF_8);
+        }
+
+        // Otherwise squeeze out every quote in place
+        int kept = from;
+        for (int i = from; i < to; i++) {
+            if (line[i] != '"') {
+                line[kept++] = line[i];
+            }
+        }
+        return new String(line, from, kept - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the first quote in a range of the line.
+     *
+     * @param from the first byte to check
+     * @param to   the end of the range
+     * @return the offset of the quote, or -1 if there is none
+     */
+    private int indexOfQuote(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a quoted or unquoted integer with an optional sign, following the
+     * rules of Integer.parseInt.
+     *
+     * @param from the first byte of the value
+     * @param to   the end of the value
+     * @return the integer, or Integer.MIN_VALUE if the value isn't one
+     */
+    private int parseInt(int from, int to) {
+        // Skip the quotes around the value
+        if (to - from >= 2 && line[from] == '"' && line[to - 1] == '"') {
+            from++;
+            to--;
+        }
+        if (from == to) {
+            return Integer.MIN_VALUE;
+        }
+
+        boolean negative = line[from] == '-';
+        if (negative || line[from] == '+') {
+            from++;
+            if (from == to) {
+                return Integer.MIN_VALUE;
+            }
+        }
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return Integer.MIN_VALUE; // Overflow
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE || value <= Integer.MIN_VALUE ? Integer.MIN_VALUE : (int) value;
+    }
+
+    /**
+     * Parses a quoted or unquoted decimal number. Plain decimals with up to 15
+     * significant digits, like every number the portfolio writes, are parsed
+     * straight from the bytes and rounded exactly like Double.parseDouble;
+     * anything else is passed to Double.parseDouble. Shared with the other
+     * byte parsers in the package.
+     *
+     * @param line the bytes holding the value
+     * @param from the first byte of the value
+     * @param to   the end of the value
+     * @return the number, or NaN if the value isn't one
+     */
+    static double parseDouble(byte[] line, int from, int to) {
+        // Skip the quotes around the value
+        if (to - from >= 2 && line[from] == '"' && line[to - 1] == '"') {
+            from++;
+            to--;
+        }
+
+        int i = from;
+        boolean negative = i < to && line[i] == '-';
+        if (i < to && (line[i] == '-' || line[i] == '+')) {
+            i++;
+        }
+
+        // Collect the digits into a whole number, remembering where the point was
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean any = false;
+        for (; i < to; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                any = true;
+                if (mantissa != 0 || b != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (point) {
+                    scale++;
+                }
+                if (digits > 15) {
+                    return parseDoubleSlowly(line, from, to);
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+
+        // An exponent, as written by Double.toString for very large and small values
+        int exponent = 0;
+        if (any && i < to && (line[i] == 'e' || line[i] == 'E')) {
+            i++;
+            boolean negativeExponent = i < to && line[i] == '-';
+            if (i < to && (line[i] == '-' || line[i] == '+')) {
+                i++;
+            }
+            int exponentFrom = i;
+            for (; i < to && line[i] >= '0' && line[i] <= '9' && i - exponentFrom < 4; i++) {
+                exponent = exponent * 10 + (line[i] - '0');
+            }
+            if (i == exponentFrom) {
+                return parseDoubleSlowly(line, from, to);
+            }
+            exponent = negativeExponent ? -exponent : exponent;
+        }
+        if (!any || i != to) {
+            return parseDoubleSlowly(line, from, to);
+        }
+
+        // Both the mantissa and the power of ten are exact doubles here, so a
+        // single multiplication or division rounds correctly
+        int power = exponent - scale;
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (power >= 0 && power < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[power];
+        } else if (power < 0 && -power < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-power];
+        } else {
+            return parseDoubleSlowly(line, from, to);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a number the fast path doesn't handle with Double.parseDouble.
+     *
+     * @param line the bytes holding the value
+     * @param from the first byte of the value, without quotes
+     * @param to   the end of the value
+     * @return the number, or NaN if the value isn't one
+     */
+    private static double parseDoubleSlowly(byte[] line, int from, int to) {
+        try {
+            double value = Double.parseDouble(new String(line, from, to - from, StandardCharsets.UTF_8));
+            return Double.isNaN(value) ? -1.0 : value; // A NaN price is never valid
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Checks if a byte is a space, tab or carriage return.
+     *
+     * @param b the byte
+     * @return true if the byte is white space
+     */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
@@ -1,9 +1,11 @@
 package ePortfolio;
 
+import javax.swing.SwingUtilities;
+
 /**
  * The Main class is the entry point of the ePortfolio application.
- * It handles loading investments from a file, initializing the user interface (GUI),
- * and saving the portfolio to a specified file upon exit.
+ * It handles initializing the user interface (GUI), loading investments from a file,
+ * journaling every trade, and saving the portfolio to a specified file upon exit.
  * 
  * It accepts two command-line arguments:
  * - args[0]: Path of the file to load investments from.
@@ -21,8 +23,8 @@ public class Main {
     
     /**
      * The main method is the entry point of the program. It initializes the
-     * portfolio, loads investments, displays the GUI, and saves the portfolio state
-     * when the program ends.
+     * portfolio, displays the GUI, loads investments in the background, and saves
+     * the portfolio state when the program ends.
      * 
      * @param args Command-line arguments:
      *             - args[0]: Path of the file to load investments from.
@@ -44,19 +46,19 @@ public class Main {
         String loadFile = args[0]; // The first argument is the load file
         String saveFile = args[1]; // The second argument is the save file
 
-        // Load investments from the specified load file
-        // The method readInvestments handles reading the file and adding investments to
-        // the portfolio
-        portfolio.readInvestments(loadFile);
-
-        // Initialize and show the GUI (Gui class instead of Display)
-        // The Gui class manages the user interface for interacting with the portfolio
-        Gui layout = new Gui();
-        layout.setVisible(true);
+        // Initialize and show the GUI (Gui class instead of Display) on the Swing
+        // event thread. The Gui class manages the user interface for interacting
+        // with the portfolio. Quitting writes the portfolio to the save file, as a
+        // binary snapshot if its name ends with ".snap", and discards the journal
+        SwingUtilities.invokeLater(() -> {
+            Gui layout = new Gui(portfolio);
+            layout.setVisible(true);
 
-        // After quitting the command loop, write the current state of the portfolio to
-        // the save file
-        // The method writeInvestment saves the portfolio's data to the specified file
-        portfolio.writeInvestment(saveFile);
+            // Load investments from the specified load file, or recover them from
+            // the journal next to the save file if the last session didn't quit
+            // normally. The window shows the progress, and every trade from now
+            // on is appended to the journal, so a crash doesn't lose the session
+            layout.load(loadFile, saveFile);
+        });
     }
 }
\ No newline at end of file
@@ -0,0 +1,252 @@
+package ePortfolio;
+
+import java.math.BigInteger;
+
+/**
+ * Fixed-point arithmetic for amounts of money. An amount is a long count of
+ * micro-units (millionths of a unit of currency), so sums and differences are
+ * exact and a long history of trades doesn't drift the way double arithmetic
+ * does. Investments keep their price and book value this way; the double
+ * getters convert at the edge.
+ *
+ * Rounding rules:
+ *
+ * <ul>
+ * <li>A double converted to micro-units is rounded to the nearest micro-unit,
+ * halves rounded up. Any decimal with at most six places below about 9
+ * billion converts exactly.</li>
+ * <li>Multiplying by a quantity is exact; an amount that no longer fits in a
+ * long throws an ArithmeticException instead of wrapping around.</li>
+ * <li>Scaling by a ratio (the book value left after a partial sale) rounds to
+ * the nearest micro-unit, halves to the even one, so repeated partial sales
+ * don't drift in one direction.</li>
+ * </ul>
+ */
+public class Money {
+
+    /** The number of micro-units in one unit of currency. */
+    public static final long SCALE = 1_000_000L;
+
+    /** The largest amount, in units of currency, that fits in micro-units. */
+    public static final double MAX_AMOUNT = (double) (Long.MAX_VALUE / SCALE);
+
+    /**
+     * Default constructor for the Money class.
+     */
+    public Money() {
+    }
+
+    /**
+     * Checks if an amount can be converted to micro-units.
+     *
+     * @param amount the amount in units of currency
+     * @return true if the amount is finite and within MAX_AMOUNT
+     */
+    public static boolean isValid(double amount) {
+        return Math.abs(amount) <= MAX_AMOUNT;
+    }
+
+    /**
+     * Converts an amount to micro-units, rounding to the nearest micro-unit.
+     *
+     * @param amount the amount in units of currency
+     * @return the amount in micro-units
+     * @throws ArithmeticException if the amount isn't valid
+     */
+    public static long fromDouble(double amount) {
+        if (!isValid(amount)) {
+            throw new ArithmeticException("The amount " + amount + " is out of range.");
+        }
+        // The same as Math.round here, but floor compiles to one instruction
+        return (long) Math.floor(amount * SCALE + 0.5);
+    }
+
+    /**
+     * Converts micro-units to an amount. The result is the double nearest to
+     * the exact amount, so it prints as the decimal it stands for.
+     *
+     * @param micros the amount in micro-units
+     * @return the amount in units of currency
+     */
+    public static double toDouble(long micros) {
+        return micros / (double) SCALE;
+    }
+
+    /**
+     * Finds the smallest amount in micro-units that toDouble reports as at
+     * least a bound, so a comparison in micro-units gives the same answer as
+     * comparing the converted double.
+     *
+     * @param bound the lowest amount in units of currency
+     * @return the lowest amount in micro-units at or above the bound
+     */
+    public static long ceilMicros(double bound) {
+        if (!(bound > -MAX_AMOUNT)) {
+            return bound == bound ? Long.MIN_VALUE : Long.MAX_VALUE; // Nothing is above NaN
+        }
+        if (bound > MAX_AMOUNT) {
+            return Long.MAX_VALUE;
+        }
+        long micros = (long) Math.ceil(bound * SCALE);
+        while (toDouble(micros - 1) >= bound) {
+            micros--;
+        }
+        while (toDouble(micros) < bound) {
+            micros++;
+        }
+        return micros;
+    }
+
+    /**
+     * Finds the largest amount in micro-units that toDouble reports as at
+     * most a bound.
+     *
+     * @param bound the highest amount in units of currency
+     * @return the highest amount in micro-units at or below the bound
+     */
+    public static long floorMicros(double bound) {
+        if (!(bound < MAX_AMOUNT)) {
+            return bound == bound ? Long.MAX_VALUE : Long.MIN_VALUE; // Nothing is below NaN
+        }
+        if (bound < -MAX_AMOUNT) {
+            return Long.MIN_VALUE;
+        }
+        long micros = (long) Math.floor(bound * SCALE);
+        while (toDouble(micros + 1) <= bound) {
+            micros++;
+        }
+        while (toDouble(micros) > bound) {
+            micros--;
+        }
+        return micros;
+    }
+
+    /**
+     * Multiplies a price by a quantity.
+     *
+     * @param micros   the price in micro-units
+     * @param quantity the quantity
+     * @return the total in micro-units
+     * @throws ArithmeticException if the total doesn't fit in a long
+     */
+    public static long times(long micros, int quantity) {
+        return Math.multiplyExact(micros, quantity);
+    }
+
+    /**
+     * Scales an amount by a ratio, rounding to the nearest micro-unit with
+     * halves going to the even one.
+     *
+     * @param micros      the amount in micro-units
+     * @param numerator   the numerator of the ratio
+     * @param denominator the denominator of the ratio, greater than 0
+     * @return the scaled amount in micro-units
+     */
+    public static long scale(long micros, long numerator, long denominator) {
+        long product = micros * numerator;
+        if (Math.multiplyHigh(micros, numerator) != product >> 63) {
+            return scaleWide(micros, numerator, denominator);
+        }
+        long quotient = product / denominator;
+        return roundHalfEven(quotient, product - quotient * denominator, denominator);
+    }
+
+    /**
+     * Scales an amount like scale when the product needs 128 bits, as it does
+     * for a large book value times a large quantity. The quotient is estimated
+     * in floating point, then corrected with the exact 128 bit remainder. Kept
+     * apart from scale so the common case stays small enough to inline.
+     *
+     * @param micros      the amount in micro-units
+     * @param numerator   the numerator of the ratio
+     * @param denominator the denominator of the ratio, greater than 0
+     * @return the scaled amount in micro-units
+     */
+    private static long scaleWide(long micros, long numerator, long denominator) {
+        long high = Math.multiplyHigh(micros, numerator);
+        long product = micros * numerator;
+        long quotient = (long) ((double) micros * numerator / denominator);
+        long estimateHigh = Math.multiplyHigh(quotient, denominator);
+        long estimate = quotient * denominator;
+        long low = product - estimate;
+        long borrow = Long.compareUnsigned(product, estimate) < 0 ? 1 : 0;
+        if (high - estimateHigh - borrow != low >> 63) {
+            return scaleSlowly(micros, numerator, denominator);
+        }
+        long correction = low / denominator;
+        quotient += correction;
+        long remainder = low - correction * denominator;
+
+        // Truncate toward zero, like the long division in scale
+        if (remainder != 0 && (remainder < 0) != (high < 0)) {
+            quotient += high < 0 ? 1 : -1;
+            remainder += high < 0 ? -denominator : denominator;
+        }
+        return roundHalfEven(quotient, remainder, denominator);
+    }
+
+    /**
+     * Scales an amount like scale with BigInteger, for the products the
+     * estimate in scaleWide can't handle.
+     *
+     * @param micros      the amount in micro-units
+     * @param numerator   the numerator of the ratio
+     * @param denominator the denominator of the ratio, greater than 0
+     * @return the scaled amount in micro-units
+     */
+    private static long scaleSlowly(long micros, long numerator, long denominator) {
+        BigInteger[] division = BigInteger.valueOf(micros).multiply(BigInteger.valueOf(numerator))
+                .divideAndRemainder(BigInteger.valueOf(denominator));
+        return roundHalfEven(division[0].longValueExact(), division[1].longValue(), denominator);
+    }
+
+    /**
+     * Formats micro-units as a plain decimal with at least one decimal place
+     * and no trailing zeros, like "150.25" or "10.0".
+     *
+     * @param micros the amount in micro-units
+     * @return the formatted amount
+     */
+    public static String toString(long micros) {
+        StringBuilder text = new StringBuilder(24);
+        if (micros < 0) {
+            text.append('-');
+        }
+        // Work on the negative value, which can hold Long.MIN_VALUE
+        long negative = micros < 0 ? micros : -micros;
+        text.append(-(negative / SCALE)).append('.');
+        long fraction = -(negative % SCALE);
+        if (fraction == 0) {
+            return text.append('0').toString();
+        }
+        int digits = 6;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        String fractionText = Long.toString(fraction);
+        for (int i = fractionText.length(); i < digits; i++) {
+            text.append('0');
+        }
+        return text.append(fractionText).toString();
+    }
+
+    /**
+     * Rounds a truncated quotient to the nearest integer, halves to even.
+     * Whether to round is worked out without a branch, since it is a coin
+     * toss the processor can't predict.
+     *
+     * @param quotient    the quotient, truncated toward zero
+     * @param remainder   the remainder of the division
+     * @param denominator the divisor, greater than 0
+     * @return the rounded quotient
+     */
+    private static long roundHalfEven(long quotient, long remainder, long denominator) {
+        long sign = remainder >> 63; // -1 for a negative remainder, else 0
+        long distance = (remainder ^ sign) - sign;
+        // One when the remainder is past half, or exactly half and the
+        // quotient is odd
+        long up = (denominator - distance - distance - (quotient & 1)) >>> 63;
+        return quotient + ((up ^ sign) - sign);
+    }
+}
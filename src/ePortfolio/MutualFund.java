@@ -12,9 +12,10 @@ package ePortfolio;
 public class MutualFund extends Investment {
 
     /**
-     * The fixed redemption fee applied to each mutual fund selling transaction.
+     * The fixed redemption fee applied to each mutual fund selling transaction,
+     * in micro-units (45.00).
      */
-    private static final double REDEMPTION_FEE = 45.00;
+    static final long REDEMPTION_FEE = 45_000_000L;
 
     /**
      * Constructs a new MutualFund object with the specified details.
@@ -47,36 +48,34 @@ public class MutualFund extends Investment {
      */
     @Override
     public void calculateBookValue(int quantity, double price) {
-        // Compute the total cost of the purchased mutual fund units
-        double result = quantity * price;
-        // Add the cost to the current book value
-        this.setBookValue(this.getBookValue() + result);
+        // Add the cost to the current book value as a new lot
+        this.addLot(quantity, costMicros(quantity, Money.fromDouble(price)));
     }
 
     /**
-     * Calculates the payment received after selling a specified quantity of mutual fund units.
-     * The payment excludes the redemption fee.
+     * Calculates the cost of buying a quantity of mutual fund units at a price.
      * 
-     * @param quantity the number of mutual fund units sold
-     * @return the total payment after deducting the redemption fee
+     * @param quantity the number of mutual fund units purchased
+     * @param price    the price per unit in micro-units
+     * @return the total cost, in micro-units
      */
     @Override
-    public double payment(int quantity) {
-        // Compute the payment for the sold mutual fund units, deducting the redemption fee
-        double result = quantity * this.getPrice() - REDEMPTION_FEE;
-        return result;
+    public long costMicros(int quantity, long price) {
+        // Compute the total cost of the purchased mutual fund units
+        return Money.times(price, quantity);
     }
 
     /**
-     * Adjusts the book value of the mutual fund after selling a specified quantity of units.
-     * The adjustment is based on the proportion of the mutual fund that remains.
+     * Calculates the payment received after selling a specified quantity of mutual fund units.
+     * The payment excludes the redemption fee.
      * 
-     * @param quantityOld the total quantity of mutual fund units before selling
+     * @param quantity the number of mutual fund units sold
+     * @param price    the price per unit in micro-units
+     * @return the total payment after deducting the redemption fee, in micro-units
      */
     @Override
-    public void bValueSellC(int quantityOld) {
-        // Calculate the adjusted book value based on the remaining mutual fund quantity
-        double result = this.getBookValue() * this.getQuantity() / quantityOld;
-        this.setBookValue(result); // Update the book value
+    public long paymentMicros(int quantity, long price) {
+        // Compute the payment for the sold mutual fund units, deducting the redemption fee
+        return Math.subtractExact(Money.times(price, quantity), REDEMPTION_FEE);
     }
 }
\ No newline at end of file
@@ -0,0 +1,435 @@
+package ePortfolio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * An index over the distinct keywords of the investment names that supports
+ * partial matches. Keywords are kept in a sorted set for prefix matches, and
+ * every keyword is broken into padded trigrams (three letter pieces) so that
+ * substring and misspelled queries only look at keywords sharing pieces with
+ * the query.
+ *
+ * Matches are produced in rank order: the exact keyword, then keywords that
+ * start with the query, then keywords that contain it, then keywords one edit
+ * away, two edits away, and so on up to the allowed number of edits.
+ */
+public class NameIndex {
+
+    /** The length of the pieces keywords are broken into. */
+    private static final int GRAM = 3;
+
+    /** Padding added before a keyword, so its first letters form pieces too. */
+    private static final String PAD_START = "\u0002\u0002";
+
+    /** Padding added after a keyword, so its last letters form pieces too. */
+    private static final String PAD_END = "\u0003\u0003";
+
+    /**
+     * The most candidates checked for each edit distance. This bounds the cost
+     * of a misspelled query whose pieces are shared by a huge number of
+     * keywords; the most selective pieces are always checked first.
+     */
+    private static final int MAX_CANDIDATES = 10_000;
+
+    /** Every keyword in the index, in sorted order. */
+    private final TreeSet<String> keywords = new TreeSet<>();
+
+    /** The number assigned to each keyword, used in the trigram lists. */
+    private final HashMap<String, Integer> keywordIds = new HashMap<>();
+
+    /** The keyword for each number, or null if the number is free. */
+    private final ArrayList<String> keywordById = new ArrayList<>();
+
+    /** Numbers released by removed keywords, reused before new ones. */
+    private PostingList freeIds = new PostingList();
+
+    /** The numbers of the keywords containing each trigram. */
+    private final HashMap<String, PostingList> keywordsByGram = new HashMap<>();
+
+    /**
+     * Constructs an empty NameIndex.
+     */
+    public NameIndex() {
+    }
+
+    /**
+     * Gets the number of keywords in the index.
+     *
+     * @return the number of keywords
+     */
+    public int size() {
+        return keywords.size();
+    }
+
+    /**
+     * Adds a keyword to the index. Adding a keyword twice has no effect.
+     *
+     * @param keyword the lower-cased keyword to add
+     */
+    public void add(String keyword) {
+        if (keywordIds.containsKey(keyword)) {
+            return;
+        }
+
+        // Reuse the smallest free number, or take the next one
+        int id;
+        if (!freeIds.isEmpty()) {
+            id = freeIds.get(0);
+            freeIds.remove(id);
+            keywordById.set(id, keyword);
+        } else {
+            id = keywordById.size();
+            keywordById.add(keyword);
+        }
+
+        keywords.add(keyword);
+        keywordIds.put(keyword, id);
+        for (String gram : paddedGrams(keyword)) {
+            keywordsByGram.computeIfAbsent(gram, key -> new PostingList()).add(id);
+        }
+    }
+
+    /**
+     * Adds several keywords to the index, updating each trigram list once for
+     * all of them. Keywords already in the index are skipped.
+     *
+     * @param added the lower-cased keywords to add
+     */
+    public void addAll(Collection<String> added) {
+        HashMap<String, PostingList> idsByGram = new HashMap<>();
+        for (String keyword : added) {
+            if (keywordIds.containsKey(keyword)) {
+                continue;
+            }
+
+            // Reuse the smallest free number, or take the next one
+            int id;
+            if (!freeIds.isEmpty()) {
+                id = freeIds.get(0);
+                freeIds.remove(id);
+                keywordById.set(id, keyword);
+            } else {
+                id = keywordById.size();
+                keywordById.add(keyword);
+            }
+
+            keywords.add(keyword);
+            keywordIds.put(keyword, id);
+            for (String gram : paddedGrams(keyword)) {
+                idsByGram.computeIfAbsent(gram, key -> new PostingList()).add(id);
+            }
+        }
+
+        for (Map.Entry<String, PostingList> entry : idsByGram.entrySet()) {
+            PostingList locations = keywordsByGram.get(entry.getKey());
+            if (locations == null) {
+                keywordsByGram.put(entry.getKey(), entry.getValue());
+            } else {
+                locations.addAll(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes a keyword from the index.
+     *
+     * @param keyword the keyword to remove
+     */
+    public void remove(String keyword) {
+        Integer id = keywordIds.remove(keyword);
+        if (id == null) {
+            return;
+        }
+
+        keywords.remove(keyword);
+        keywordById.set(id, null);
+        freeIds.add(id);
+        for (String gram : paddedGrams(keyword)) {
+            PostingList locations = keywordsByGram.get(gram);
+            if (locations != null) {
+                locations.remove(id);
+                if (locations.isEmpty()) {
+                    keywordsByGram.remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes several keywords from the index, updating each trigram list
+     * once for all of them.
+     *
+     * @param removed the keywords to remove
+     */
+    public void removeAll(Collection<String> removed) {
+        HashMap<String, PostingList> idsByGram = new HashMap<>();
+        for (String keyword : removed) {
+            Integer id = keywordIds.remove(keyword);
+            if (id == null) {
+                continue;
+            }
+
+            keywords.remove(keyword);
+            keywordById.set(id, null);
+            freeIds.add(id);
+            for (String gram : paddedGrams(keyword)) {
+                idsByGram.computeIfAbsent(gram, key -> new PostingList()).add(id);
+            }
+        }
+
+        for (Map.Entry<String, PostingList> entry : idsByGram.entrySet()) {
+            PostingList locations = keywordsByGram.get(entry.getKey());
+            if (locations != null) {
+                locations.removeAll(entry.getValue());
+                if (locations.isEmpty()) {
+                    keywordsByGram.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes every keyword from the index.
+     */
+    public void clear() {
+        keywords.clear();
+        keywordIds.clear();
+        keywordById.clear();
+        keywordsByGram.clear();
+        freeIds = new PostingList();
+    }
+
+    /**
+     * Passes the keywords matching a query to a visitor in rank order, stopping
+     * as soon as the visitor returns false. Each tier is produced lazily, so a
+     * caller that only wants the top few matches never pays for the rest.
+     * Substring and misspelling matches need at least three letters.
+     *
+     * @param query    the lower-cased query
+     * @param maxEdits the largest edit distance accepted for misspellings
+     * @param visitor  receives each matching keyword, and returns false to stop
+     */
+    public void match(String query, int maxEdits, Predicate<String> visitor) {
+        if (query.isEmpty()) {
+            return;
+        }
+
+        // The keyword itself
+        if (keywords.contains(query) && !visitor.test(query)) {
+            return;
+        }
+
+        // Keywords that start with the query, in alphabetical order
+        for (String keyword : keywords.subSet(query, false, query + Character.MAX_VALUE, false)) {
+            if (!visitor.test(keyword)) {
+                return;
+            }
+        }
+
+        if (query.length() < GRAM) {
+            return;
+        }
+
+        // Keywords that contain the query somewhere after the start
+        if (!visitSubstrings(query, visitor)) {
+            return;
+        }
+
+        // Keywords within the allowed number of edits, closest first
+        for (int edits = 1; edits <= maxEdits; edits++) {
+            if (!visitMisspellings(query, edits, visitor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visits the keywords that contain the query but don't start with it. Only
+     * keywords holding every trigram of the query are checked.
+     *
+     * @param query   the query, at least three letters long
+     * @param visitor receives each matching keyword
+     * @return false if the visitor asked to stop
+     */
+    private boolean visitSubstrings(String query, Predicate<String> visitor) {
+        PostingList[] lists = new PostingList[query.length() - GRAM + 1];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = keywordsByGram.get(query.substring(i, i + GRAM));
+            if (lists[i] == null) {
+                return true; // Some piece of the query is in no keyword
+            }
+        }
+
+        ArrayList<String> matches = new ArrayList<>();
+        for (int id : PostingList.intersect(lists)) {
+            String keyword = keywordById.get(id);
+            if (!keyword.startsWith(query) && keyword.contains(query)) {
+                matches.add(keyword);
+            }
+        }
+
+        // Shorter keywords are closer to what was typed
+        matches.sort(Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder()));
+        for (String keyword : matches) {
+            if (!visitor.test(keyword)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the keywords exactly the given number of edits away from the query
+     * that weren't already matched as a prefix or substring. Swapping two
+     * neighbouring letters counts as one edit.
+     *
+     * An edit changes at most four of the query's trigrams, so a match must
+     * share at least (trigrams - 4 * edits) of them. Candidates are drawn only
+     * from the shortest lists that any such keyword has to appear in, and then
+     * counted against the longer lists with a binary search.
+     *
+     * @param query   the query, at least three letters long
+     * @param edits   the edit distance to look for
+     * @param visitor receives each matching keyword
+     * @return false if the visitor asked to stop
+     */
+    private boolean visitMisspellings(String query, int edits, Predicate<String> visitor) {
+        String[] grams = new HashSet<>(Arrays.asList(paddedGrams(query))).toArray(new String[0]);
+        PostingList[] lists = new PostingList[grams.length];
+        for (int i = 0; i < grams.length; i++) {
+            PostingList locations = keywordsByGram.get(grams[i]);
+            lists[i] = locations == null ? new PostingList() : locations;
+        }
+        Arrays.sort(lists, Comparator.comparingInt(PostingList::size));
+
+        // A match shares at least this many trigrams with the query
+        int required = Math.max(1, grams.length - (GRAM + 1) * edits);
+
+        // So it has to be in at least one of the shortest (lists - required + 1)
+        int sources = lists.length - required + 1;
+
+        // Stream the candidates list by list, so the visitor can stop the search
+        // before the rest of the candidates are even looked at
+        int[][] rows = new int[3][query.length() + 1];
+        int checked = 0;
+        for (int source = 0; source < sources; source++) {
+            PostingList candidates = lists[source];
+
+            for (int i = 0; i < candidates.size(); i++) {
+                if (++checked > MAX_CANDIDATES) {
+                    return true;
+                }
+
+                int id = candidates.get(i);
+                String keyword = keywordById.get(id);
+                if (Math.abs(keyword.length() - query.length()) > edits || keyword.contains(query)) {
+                    continue; // Too far apart, or already matched as a prefix or substring
+                }
+
+                // Skip keywords already seen in an earlier, shorter list
+                boolean seen = false;
+                for (int j = 0; j < source && !seen; j++) {
+                    seen = lists[j].contains(id);
+                }
+                if (seen) {
+                    continue;
+                }
+
+                // Count the shared trigrams, stopping once the keyword can no
+                // longer reach the required count
+                int shared = 1;
+                for (int j = source + 1; j < lists.length && shared < required
+                        && shared + lists.length - j >= required; j++) {
+                    if (lists[j].contains(id)) {
+                        shared++;
+                    }
+                }
+                if (shared < required) {
+                    continue;
+                }
+
+                if (editDistance(query, keyword, edits, rows) == edits && !visitor.test(keyword)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the edit distance between two words, where an edit inserts,
+     * deletes or replaces one letter, or swaps two neighbouring letters. Gives
+     * up as soon as the distance must be larger than maxEdits.
+     *
+     * @param query    the first word
+     * @param keyword  the second word
+     * @param maxEdits the largest distance of interest
+     * @param rows     three reusable rows, each at least query.length() + 1 long
+     * @return the edit distance, or maxEdits + 1 if it is larger than maxEdits
+     */
+    static int editDistance(String query, String keyword, int maxEdits, int[][] rows) {
+        int[] beforePrevious = rows[0];
+        int[] previous = rows[1];
+        int[] current = rows[2];
+        for (int i = 0; i <= query.length(); i++) {
+            previous[i] = i;
+        }
+        int previousMinimum = 0;
+
+        for (int j = 1; j <= keyword.length(); j++) {
+            current[0] = j;
+            int rowMinimum = current[0];
+            char letter = keyword.charAt(j - 1);
+
+            for (int i = 1; i <= query.length(); i++) {
+                int substitute = previous[i - 1] + (query.charAt(i - 1) == letter ? 0 : 1);
+                int best = Math.min(substitute, Math.min(previous[i], current[i - 1]) + 1);
+
+                // Two neighbouring letters swapped
+                if (i > 1 && j > 1 && query.charAt(i - 1) == keyword.charAt(j - 2)
+                        && query.charAt(i - 2) == letter) {
+                    best = Math.min(best, beforePrevious[i - 2] + 1);
+                }
+
+                current[i] = best;
+                rowMinimum = Math.min(rowMinimum, best);
+            }
+
+            // Later rows only build on this row and the one before it
+            if (rowMinimum > maxEdits && previousMinimum > maxEdits) {
+                return maxEdits + 1;
+            }
+            previousMinimum = rowMinimum;
+
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return Math.min(previous[query.length()], maxEdits + 1);
+    }
+
+    /**
+     * Breaks a keyword into its padded trigrams.
+     *
+     * @param keyword the keyword
+     * @return the trigrams, in order, including repeats
+     */
+    private static String[] paddedGrams(String keyword) {
+        String padded = PAD_START + keyword + PAD_END;
+        String[] grams = new String[padded.length() - GRAM + 1];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = padded.substring(i, i + GRAM);
+        }
+        return grams;
+    }
+}
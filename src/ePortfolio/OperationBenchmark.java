@@ -0,0 +1,347 @@
+package ePortfolio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A benchmark suite covering every public Portfolio operation, run over a
+ * grid of portfolio sizes and keyword cardinalities built by
+ * SyntheticPortfolio.
+ *
+ * Each operation is measured like a JMH benchmark: a few warm-up rounds, then
+ * measured rounds that each run the operation for a fixed time and report the
+ * average time per call. Operations that change the portfolio undo their
+ * change after every timed batch, outside the timing, so every operation
+ * sees the generated portfolio.
+ *
+ * Run it with: java ePortfolio.OperationBenchmark
+ *
+ * The grid and the timing can be changed with system properties:
+ *
+ * <ul>
+ * <li>ePortfolio.bench.sizes: the portfolio sizes (default
+ * 1000,10000,100000,1000000)</li>
+ * <li>ePortfolio.bench.cardinalities: the keyword cardinalities (default
+ * 16,1024,65536)</li>
+ * <li>ePortfolio.bench.operations: the names of the operations to run, or
+ * all of them if not set</li>
+ * <li>ePortfolio.bench.warmups, ePortfolio.bench.rounds and
+ * ePortfolio.bench.roundMillis: the number of warm-up and measured rounds
+ * and the length of a round (default 2, 5 and 200)</li>
+ * </ul>
+ */
+public class OperationBenchmark {
+
+    /** The portfolio sizes the suite is run against. */
+    private static final int[] SIZES = intList("ePortfolio.bench.sizes", "1000,10000,100000,1000000");
+
+    /** The keyword cardinalities the suite is run against. */
+    private static final int[] CARDINALITIES = intList("ePortfolio.bench.cardinalities", "16,1024,65536");
+
+    /** The operations to run, or null for every operation. */
+    private static final String OPERATIONS = System.getProperty("ePortfolio.bench.operations");
+
+    /** The number of unmeasured rounds before the measured ones. */
+    private static final int WARMUPS = Integer.getInteger("ePortfolio.bench.warmups", 2);
+
+    /** The number of measured rounds. */
+    private static final int ROUNDS = Integer.getInteger("ePortfolio.bench.rounds", 5);
+
+    /** The time every round runs the operation for, in nanoseconds. */
+    private static final long ROUND_NANOS = Integer.getInteger("ePortfolio.bench.roundMillis", 200) * 1_000_000L;
+
+    /** The largest number of calls timed as one batch. */
+    private static final int MAX_BATCH = 1024;
+
+    /** The number of precomputed search queries, cycled through. */
+    private static final int QUERIES = 1024;
+
+    /** The portfolio every operation runs against. */
+    private static final Portfolio portfolio = new Portfolio();
+
+    /** Receives a value from every call, so the JIT can't remove the calls. */
+    private static long blackhole = 0;
+
+    /**
+     * One call of a measured operation.
+     */
+    private interface Operation {
+
+        /**
+         * Calls the operation once.
+         *
+         * @param i the number of the call, counting from 0
+         * @return a value derived from the result
+         */
+        long run(int i);
+    }
+
+    /**
+     * Undoes the changes of a batch of calls.
+     */
+    private interface Undo {
+
+        /**
+         * Undoes the changes of the calls from first to first + count - 1.
+         *
+         * @param first the number of the first call
+         * @param count the number of calls
+         */
+        void run(int first, int count);
+    }
+
+    /**
+     * Default constructor for the OperationBenchmark class.
+     */
+    public OperationBenchmark() {
+    }
+
+    /**
+     * Runs the suite over every size and cardinality and prints the results.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) {
+        System.out.printf("operations: %d warm-up and %d measured rounds of %d ms%n", WARMUPS, ROUNDS,
+                ROUND_NANOS / 1_000_000);
+
+        for (int size : SIZES) {
+            for (int cardinality : CARDINALITIES) {
+                System.out.printf("%,d holdings, %,d keywords ===================%n", size, cardinality);
+                run(new SyntheticPortfolio(size, cardinality));
+            }
+        }
+        System.out.println("(check " + blackhole + ")");
+    }
+
+    /**
+     * Measures every operation against one synthetic portfolio.
+     *
+     * @param synthetic the generator of the portfolio
+     */
+    private static void run(SyntheticPortfolio synthetic) {
+        int size = synthetic.size();
+        synthetic.fill(portfolio);
+
+        // Build the arguments up front so the calls only measure the operation
+        String[] symbols = new String[size];
+        for (int i = 0; i < size; i++) {
+            symbols[i] = synthetic.symbol(i);
+        }
+        String[] keywords = new String[QUERIES];
+        double[] lows = new double[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            // Two words from two holdings, so every query has at least one match
+            String[] first = synthetic.name((int) ((q * 7919L) % size)).split(" ");
+            String[] second = synthetic.name((int) ((q * 104729L + 1) % size)).split(" ");
+            keywords[q] = first[1] + " " + second[2];
+            lows[q] = 1 + (q * 31) % SyntheticPortfolio.PRICES;
+        }
+
+        measure("buy (new symbol)", size, i -> portfolio.buy("stock", "NEW" + i, "New holding", 10, 5).length(),
+                (first, count) -> {
+                    for (int i = first; i < first + count; i++) {
+                        portfolio.sell("NEW" + i, 10, 5);
+                    }
+                });
+        measure("buy (existing)", size,
+                i -> portfolio.buy(synthetic.type(i % size), symbols[i % size], "Existing holding", 1,
+                        synthetic.price(i % size)).length(),
+                (first, count) -> {
+                    for (int i = first; i < first + count; i++) {
+                        portfolio.sell(symbols[i % size], 1, synthetic.price(i % size));
+                    }
+                });
+        measure("sell (partial)", size,
+                i -> portfolio.sell(symbols[i % size], 1, synthetic.price(i % size) + 1).length(),
+                (first, count) -> {
+                    for (int i = first; i < first + count; i++) {
+                        portfolio.buy(synthetic.type(i % size), symbols[i % size], synthetic.name(i % size), 1,
+                                synthetic.price(i % size));
+                    }
+                });
+        // Selling everything removes the holding and its keywords from the indexes
+        measure("sell (liquidate)", size,
+                i -> portfolio.sell(symbols[i % size], synthetic.quantity(i % size), synthetic.price(i % size))
+                        .length(),
+                (first, count) -> {
+                    for (int i = first; i < first + count; i++) {
+                        portfolio.buy(synthetic.type(i % size), symbols[i % size], synthetic.name(i % size),
+                                synthetic.quantity(i % size), synthetic.price(i % size));
+                    }
+                });
+
+        Investment[] holdings = new Investment[size];
+        for (int i = 0; i < size; i++) {
+            holdings[i] = holding(symbols[i]);
+        }
+        measure("update", size, i -> portfolio.update(holdings[i % size], synthetic.price(i % size) + 1).length(),
+                (first, count) -> {
+                    for (int i = first; i < first + count; i++) {
+                        portfolio.update(holdings[i % size], synthetic.price(i % size));
+                    }
+                });
+
+        measure("search (keywords)", size, i -> portfolio.search("", keywords[i % QUERIES], -1, -1).length(),
+                null);
+        measure("search (price band)", size,
+                i -> portfolio.search("", "", lows[i % QUERIES], lows[i % QUERIES] + 0.5).length(), null);
+        measure("search (combined)", size,
+                i -> portfolio.search("", keywords[i % QUERIES], lows[i % QUERIES], lows[i % QUERIES] + 50)
+                        .length(),
+                null);
+        measure("getGain", size, i -> portfolio.getGain().length(), null);
+        measure("getSingleGain", size, i -> portfolio.getSingleGain().length(), null);
+        measure("printInvestments", size, i -> portfolio.printInvestments().length(), null);
+
+        // Start the file operations from the generated portfolio, without the
+        // price history the trades above recorded
+        synthetic.fill(portfolio);
+        try {
+            File file = File.createTempFile("portfolio", ".txt");
+            File history = new File(file.getPath() + PriceHistory.EXTENSION);
+            file.deleteOnExit();
+            history.deleteOnExit();
+
+            // The file methods print their result, so discard standard output
+            PrintStream out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long[] write;
+            long[] read;
+            try {
+                write = rounds(size, i -> portfolio.writeInvestment(file.getPath()) ? 1 : 0, null);
+                read = rounds(size, i -> {
+                    portfolio.clear();
+                    portfolio.readInvestments(file.getPath());
+                    return portfolio.getInvestListSize();
+                }, null);
+            } finally {
+                System.setOut(out);
+            }
+            printResult("writeInvestment", write);
+            printResult("readInvestments", read);
+        } catch (IOException e) {
+            System.out.println("Error in creating the benchmark file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Measures an operation, if it was selected, and prints the result.
+     *
+     * @param name      the name of the operation
+     * @param size      the number of holdings
+     * @param operation the operation
+     * @param undo      undoes the changes of a batch of calls, or null if the
+     *                  operation doesn't change the portfolio
+     */
+    private static void measure(String name, int size, Operation operation, Undo undo) {
+        if (OPERATIONS != null && !Arrays.asList(OPERATIONS.split(",")).contains(name)) {
+            return;
+        }
+        printResult(name, rounds(size, operation, undo));
+    }
+
+    /**
+     * Runs the warm-up and measured rounds of an operation. Calls are timed in
+     * batches that double in size while a batch takes less than a hundredth of
+     * a round, so cheap calls aren't dominated by the clock and expensive ones
+     * aren't repeated needlessly. A batch never calls the operation twice for
+     * the same holding, so it can be undone.
+     *
+     * @param size      the number of holdings
+     * @param operation the operation
+     * @param undo      undoes the changes of a batch, or null
+     * @return the nanoseconds and the number of calls of every measured round
+     */
+    private static long[] rounds(int size, Operation operation, Undo undo) {
+        long[] results = new long[2 * ROUNDS];
+        int call = 0;
+        int batch = 1;
+        int limit = Math.max(1, Math.min(MAX_BATCH, size));
+
+        for (int round = -WARMUPS; round < ROUNDS; round++) {
+            long elapsed = 0;
+            long calls = 0;
+            while (elapsed < ROUND_NANOS) {
+                long start = System.nanoTime();
+                for (int i = call; i < call + batch; i++) {
+                    blackhole += operation.run(i);
+                }
+                long time = System.nanoTime() - start;
+                if (undo != null) {
+                    undo.run(call, batch);
+                }
+
+                elapsed += time;
+                calls += batch;
+                // Keep the call numbers positive so they can index the holdings
+                call += batch;
+                if (call > Integer.MAX_VALUE - MAX_BATCH) {
+                    call = 0;
+                }
+                if (time < ROUND_NANOS / 100 && batch < limit) {
+                    batch = Math.min(limit, batch * 2);
+                }
+            }
+            if (round >= 0) {
+                results[2 * round] = elapsed;
+                results[2 * round + 1] = calls;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Prints the mean time per call of the measured rounds, the spread between
+     * the rounds and the number of calls measured.
+     *
+     * @param name    the name of the operation
+     * @param results the nanoseconds and the number of calls of every round
+     */
+    private static void printResult(String name, long[] results) {
+        double sum = 0;
+        double squares = 0;
+        long calls = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            double perCall = (double) results[2 * round] / results[2 * round + 1];
+            sum += perCall;
+            squares += perCall * perCall;
+            calls += results[2 * round + 1];
+        }
+        double mean = sum / ROUNDS;
+        double deviation = Math.sqrt(Math.max(0, squares / ROUNDS - mean * mean));
+        System.out.printf("  %-20s %14.1f ns/op  +/- %5.1f%%  (%,d calls)%n", name, mean,
+                mean == 0 ? 0 : 100 * deviation / mean, calls);
+    }
+
+    /**
+     * Gets a holding by its symbol.
+     *
+     * @param symbol the symbol
+     * @return the holding
+     */
+    private static Investment holding(String symbol) {
+        return portfolio.getInvestmentBySymbol(symbol);
+    }
+
+    /**
+     * Reads a comma separated list of numbers from a system property.
+     *
+     * @param property the name of the property
+     * @param defaults the list used if the property isn't set
+     * @return the numbers
+     */
+    private static int[] intList(String property, String defaults) {
+        ArrayList<Integer> numbers = new ArrayList<>();
+        for (String number : System.getProperty(property, defaults).split(",")) {
+            if (!number.trim().isEmpty()) {
+                numbers.add(Integer.parseInt(number.trim().replace("_", "")));
+            }
+        }
+        return numbers.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
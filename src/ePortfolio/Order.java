@@ -0,0 +1,175 @@
+package ePortfolio;
+
+/**
+ * A buy or sell order for Portfolio.executeOrders. The investment type is
+ * decided once when the order is made, so a batch doesn't compare type
+ * strings for every trade.
+ *
+ * In an order file each non-blank line is one order:
+ *
+ * <pre>
+ * BUY,Stock,AAPL,10,150.25,Apple Inc.
+ * BUY,MutualFund,VFIAX,5,410.5,Vanguard 500 Index Fund
+ * SELL,AAPL,4,152
+ * </pre>
+ *
+ * The name comes last, so it may contain commas.
+ */
+public class Order {
+
+    /** Status of an order that was carried out. */
+    public static final byte FILLED = 0;
+
+    /** Status of a sell order for a symbol that isn't held. */
+    public static final byte UNKNOWN_SYMBOL = 1;
+
+    /** Status of a sell order for more units than are held. */
+    public static final byte INSUFFICIENT_QUANTITY = 2;
+
+    /** Status of a buy order for a symbol held as the other investment type. */
+    public static final byte TYPE_CONFLICT = 3;
+
+    /** Status of an order that is malformed or has invalid values. */
+    public static final byte INVALID = 4;
+
+    /** Status of an order that would take a holding or the totals out of range. */
+    public static final byte OUT_OF_RANGE = 5;
+
+    /** True for a buy order, false for a sell order. */
+    public final boolean buy;
+
+    /** True if a buy order is for a mutual fund rather than a stock. */
+    public final boolean mutualFund;
+
+    /** The symbol of the investment. */
+    public final String symbol;
+
+    /** The name of the investment bought; null for a sell order. */
+    public final String name;
+
+    /** The quantity to buy or sell. */
+    public final int quantity;
+
+    /** The price of the trade. */
+    public final double price;
+
+    /**
+     * Constructs an Order.
+     *
+     * @param buy        true to buy, false to sell
+     * @param mutualFund true if a buy order is for a mutual fund
+     * @param symbol     the symbol
+     * @param name       the name, or null for a sell order
+     * @param quantity   the quantity
+     * @param price      the price
+     */
+    private Order(boolean buy, boolean mutualFund, String symbol, String name, int quantity, double price) {
+        this.buy = buy;
+        this.mutualFund = mutualFund;
+        this.symbol = symbol;
+        this.name = name;
+        this.quantity = quantity;
+        this.price = price;
+    }
+
+    /**
+     * Makes an order to buy a stock.
+     *
+     * @param symbol   the symbol of the stock
+     * @param name     the name of the stock
+     * @param quantity the quantity to buy
+     * @param price    the price per unit
+     * @return the order
+     */
+    public static Order buyStock(String symbol, String name, int quantity, double price) {
+        return new Order(true, false, symbol, name, quantity, price);
+    }
+
+    /**
+     * Makes an order to buy a mutual fund.
+     *
+     * @param symbol   the symbol of the fund
+     * @param name     the name of the fund
+     * @param quantity the quantity to buy
+     * @param price    the price per unit
+     * @return the order
+     */
+    public static Order buyMutualFund(String symbol, String name, int quantity, double price) {
+        return new Order(true, true, symbol, name, quantity, price);
+    }
+
+    /**
+     * Makes an order to sell an investment.
+     *
+     * @param symbol   the symbol of the investment
+     * @param quantity the quantity to sell
+     * @param price    the price per unit
+     * @return the order
+     */
+    public static Order sell(String symbol, int quantity, double price) {
+        return new Order(false, false, symbol, null, quantity, price);
+    }
+
+    /**
+     * Parses one line of an order file.
+     *
+     * @param line the line
+     * @return the order, or null if the line isn't a valid order
+     */
+    public static Order parse(String line) {
+        String[] fields = line.split(",", 6);
+        try {
+            if (fields[0].trim().equalsIgnoreCase("BUY") && fields.length == 6) {
+                String type = fields[1].trim();
+                boolean mutualFund = type.equalsIgnoreCase("MutualFund");
+                if (!mutualFund && !type.equalsIgnoreCase("Stock")) {
+                    return null;
+                }
+                return new Order(true, mutualFund, fields[2].trim(), fields[5].trim(),
+                        Integer.parseInt(fields[3].trim()), Double.parseDouble(fields[4].trim()));
+            }
+            if (fields[0].trim().equalsIgnoreCase("SELL") && fields.length == 4) {
+                return sell(fields[1].trim(), Integer.parseInt(fields[2].trim()),
+                        Double.parseDouble(fields[3].trim()));
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the invalid order
+        }
+        return null;
+    }
+
+    /**
+     * Checks the values an order needs before it can be carried out: a
+     * symbol, a name for a buy, a positive quantity and a positive price that
+     * fits in micro-units.
+     *
+     * @return true if the order is well formed
+     */
+    boolean isValid() {
+        return !symbol.isEmpty() && (!buy || !name.isEmpty()) && quantity > 0 && price > 0
+                && Money.isValid(price);
+    }
+
+    /**
+     * Describes an order status for the user.
+     *
+     * @param status the status returned by Portfolio.executeOrders
+     * @return the description
+     */
+    public static String describe(byte status) {
+        switch (status) {
+            case FILLED:
+                return "Filled";
+            case UNKNOWN_SYMBOL:
+                return "ERROR: No investments exist with this symbol.";
+            case INSUFFICIENT_QUANTITY:
+                return "ERROR: Not enough units are held.";
+            case TYPE_CONFLICT:
+                return "ERROR: The symbol already exists in the other investment type.";
+            case OUT_OF_RANGE:
+                return "ERROR: The value of the holding would be out of range.";
+            default:
+                return "ERROR: Invalid order.";
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package ePortfolio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads large investment files in the text format on several threads.
+ * The file is split into chunks that each start at a "Type =" line, every
+ * chunk is memory-mapped and parsed on a fork-join pool, and the results are
+ * returned in file order so loading is deterministic.
+ */
+public class ParallelLoader {
+
+    /** Files at least this large are worth loading in parallel. */
+    public static final long PARALLEL_THRESHOLD = 8L << 20;
+
+    /** The smallest chunk handed to one task. */
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+
+    /** The largest chunk handed to one task; must fit in one mapping. */
+    private static final long MAX_CHUNK_SIZE = 256L << 20;
+
+    /** The number of chunks per thread, so uneven chunks still balance out. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** How far to look for a record start when placing a chunk boundary. */
+    private static final int BOUNDARY_WINDOW = 64 << 10;
+
+    /**
+     * Default constructor for the ParallelLoader class.
+     */
+    public ParallelLoader() {
+    }
+
+    /**
+     * The investments and messages produced by a load, plus its timing.
+     */
+    public static class Result {
+
+        /** The investments read, in file order. */
+        public final ArrayList<Investment> investments;
+
+        /** Warnings about lines that couldn't be used, in file order. */
+        public final ArrayList<String> warnings;
+
+        /** The number of bytes read. */
+        public final long bytes;
+
+        /** The time the load took in nanoseconds. */
+        public final long nanos;
+
+        /**
+         * Constructs a Result.
+         *
+         * @param investments the investments read
+         * @param warnings    the warnings produced
+         * @param bytes       the number of bytes read
+         * @param nanos       the time the load took in nanoseconds
+         */
+        Result(ArrayList<Investment> investments, ArrayList<String> warnings, long bytes, long nanos) {
+            this.investments = investments;
+            this.warnings = warnings;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Gets the load throughput.
+         *
+         * @return the throughput in megabytes per second
+         */
+        public double megabytesPerSecond() {
+            return nanos == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+        }
+    }
+
+    /**
+     * Loads every investment from a text file using the common fork-join pool.
+     *
+     * @param file the file to read
+     * @return the investments and warnings, in file order
+     * @throws IOException if the file can't be read
+     */
+    public static Result load(Path file) throws IOException {
+        return load(file, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Loads every investment from a text file using the given fork-join pool.
+     *
+     * @param file the file to read
+     * @param pool the pool the chunks are parsed on
+     * @return the investments and warnings, in file order
+     * @throws IOException if the file can't be read
+     */
+    public static Result load(Path file, ForkJoinPool pool) throws IOException {
+        long start = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] boundaries = findBoundaries(channel, size, pool.getParallelism());
+
+            // Parse every chunk on the pool
+            List<Callable<ChunkResult>> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < boundaries.length; i++) {
+                long from = boundaries[i];
+                long to = boundaries[i + 1];
+                tasks.add(() -> parseChunk(channel.map(FileChannel.MapMode.READ_ONLY, from, to - from)));
+            }
+
+            // Merge the chunks in file order
+            ArrayList<Investment> investments = new ArrayList<>();
+            ArrayList<String> warnings = new ArrayList<>();
+            for (Future<ChunkResult> future : pool.invokeAll(tasks)) {
+                ChunkResult chunk = future.get();
+                investments.addAll(chunk.investments);
+                warnings.addAll(chunk.warnings);
+            }
+
+            return new Result(investments, warnings, size, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Loading was interrupted: " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error in parsing " + file + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Splits the file into chunks that each start at the beginning of a record.
+     *
+     * @param channel     the file
+     * @param size        the size of the file
+     * @param parallelism the number of threads that will parse the chunks
+     * @return the chunk boundaries, starting with 0 and ending with size
+     * @throws IOException if the file can't be read
+     */
+    private static long[] findBoundaries(FileChannel channel, long size, int parallelism) throws IOException {
+        long chunkSize = size / Math.max(1, parallelism * CHUNKS_PER_THREAD);
+        chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+
+        ArrayList<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        long position = chunkSize;
+        while (position < size) {
+            long boundary = findRecordStart(channel, position, size);
+            if (boundary >= size) {
+                break;
+            }
+            boundaries.add(boundary);
+            position = boundary + chunkSize;
+        }
+        boundaries.add(size);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first line at or after a position that starts a record.
+     *
+     * @param channel  the file
+     * @param position the position to search from
+     * @param size     the size of the file
+     * @return the offset of the record's first byte, or size if there is none
+     * @throws IOException if the file can't be read
+     */
+    private static long findRecordStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(BOUNDARY_WINDOW);
+        byte[] bytes = window.array();
+
+        // Back up one byte so a line starting exactly at the position is found
+        long offset = position - 1;
+        while (offset < size) {
+            window.clear();
+            int length = 0;
+            while (window.hasRemaining() && offset + length < size) {
+                int read = channel.read(window, offset + length);
+                if (read <= 0) {
+                    break;
+                }
+                length += read;
+            }
+
+            // Check the start of every line in the window
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] == '\n' && isRecordStart(bytes, i + 1, length)) {
+                    return offset + i + 1;
+                }
+            }
+
+            // Keep the last few bytes, in case a line start straddles two windows
+            if (offset + length >= size) {
+                break;
+            }
+            offset += Math.max(1, length - 16);
+        }
+        return size;
+    }
+
+    /**
+     * Checks if a line starts with the "Type" key followed by an equals sign.
+     *
+     * @param bytes  the bytes holding the line
+     * @param from   the first byte of the line
+     * @param length the number of valid bytes
+     * @return true if the line starts a record, false if it doesn't or the
+     *         line runs past the valid bytes
+     */
+    private static boolean isRecordStart(byte[] bytes, int from, int length) {
+        int i = skipSpaces(bytes, from, length);
+        for (char letter : "type".toCharArray()) {
+            if (i >= length || Character.toLowerCase((char) bytes[i]) != letter) {
+                return false;
+            }
+            i++;
+        }
+        i = skipSpaces(bytes, i, length);
+        return i < length && bytes[i] == '=';
+    }
+
+    /**
+     * Skips spaces and tabs.
+     *
+     * @param bytes  the bytes to scan
+     * @param from   the first byte to check
+     * @param length the number of valid bytes
+     * @return the offset of the first byte that isn't a space or tab
+     */
+    private static int skipSpaces(byte[] bytes, int from, int length) {
+        while (from < length && (bytes[from] == ' ' || bytes[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * The investments and warnings read from one chunk.
+     */
+    private static class ChunkResult {
+
+        /** The investments read from the chunk, in order. */
+        final ArrayList<Investment> investments = new ArrayList<>();
+
+        /** Warnings about lines in the chunk, in order. */
+        final ArrayList<String> warnings = new ArrayList<>();
+    }
+
+    /**
+     * Parses one chunk of a text file. Every chunk starts at a record, so
+     * records never straddle two chunks.
+     *
+     * @param chunk the mapped chunk
+     * @return the investments and warnings read from the chunk
+     */
+    private static ChunkResult parseChunk(MappedByteBuffer chunk) {
+        ChunkResult result = new ChunkResult();
+        InvestmentParser parser = new InvestmentParser(new InvestmentParser.Handler() {
+            public void investment(Investment investment) {
+                result.investments.add(investment);
+            }
+
+            public void problem(long line, String message) {
+                result.warnings.add(message);
+            }
+        });
+        parser.feed(chunk);
+        parser.finish();
+        return result;
+    }
+}
@@ -2,6 +2,19 @@ package ePortfolio;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 /**
  * The Portfolio class manages a collection of investments (either Stock or
@@ -10,380 +23,2195 @@ import java.io.*;
  * as reading from
  * and writing to files. Additionally, the class maintains a keyword index for
  * searching investments.
+ *
+ * Each Portfolio is an independent set of holdings, so one JVM can host many
+ * accounts; see AccountRegistry. Symbols, names and keywords are shared
+ * between them through the StringPool.
+ *
+ * A portfolio can be used from several threads. Every trade changes the
+ * shared indexes, so trades hold one write lock, while searches and reports
+ * share a read lock and run in parallel. Symbol lookups don't lock at all, and
+ * the size and position lookups the GUI makes constantly are read
+ * optimistically and only lock if a trade got in the way. Trades wait for
+ * the journal to reach the disk after releasing the lock, so trades from
+ * several threads share one fsync.
+ *
+ * The investments returned by getInvestment are the live holdings; their
+ * fields change when they are traded.
  */
 public class Portfolio {
 
+    /**
+     * Receives every change to the holdings, for views that show them. The
+     * calls are made under the portfolio's write lock, on the thread that
+     * made the change, so a listener must be quick and must not call back
+     * into the portfolio; a Swing view hands the change to the event thread.
+     */
+    public interface HoldingListener {
+
+        /**
+         * Called when a holding is added, or after its quantity, price or
+         * book value changed.
+         *
+         * @param investment the live holding
+         */
+        void holdingChanged(Investment investment);
+
+        /**
+         * Called when a holding is sold out and leaves the portfolio.
+         *
+         * @param investment the holding that was removed
+         */
+        void holdingRemoved(Investment investment);
+
+        /**
+         * Called when every holding is removed at once.
+         */
+        void holdingsCleared();
+    }
+
+    /**
+     * Follows a long operation, such as a load, a save or a search, for a
+     * view that shows its progress on another thread. Calls are made on the
+     * thread running the operation, every few thousand holdings or every read
+     * buffer.
+     */
+    public interface Progress {
+
+        /**
+         * Called as the operation advances.
+         *
+         * @param done  the work done so far
+         * @param total the work in all, in the same unit
+         */
+        void report(long done, long total);
+
+        /**
+         * Checked as the operation advances. A search that is cancelled stops
+         * and returns the matches it found so far; loads and saves always
+         * finish, so a file is never left half written.
+         *
+         * @return true if the operation should stop
+         */
+        boolean isCancelled();
+    }
+
     /**
      * Default constructor for the Portfolio class.
      */
-    public Portfolio() {
+    public Portfolio() {
+        PortfolioMetrics.register(this);
+    }
+
+    // List to store all investments (stocks and mutual funds), indexed by id.
+    // A sold-out investment leaves a null tombstone so the other ids stay stable
+    private ArrayList<Investment> investments = new ArrayList<>(1);
+
+    // Number of null tombstones currently in the investments list
+    private int tombstones = 0;
+
+    // Compaction runs once there are at least this many tombstones and they
+    // outnumber the live investments
+    private static final int COMPACT_THRESHOLD = 64;
+
+    // Map to store keywords for searching investments (indexed by investment names)
+    private HashMap<String, PostingList> IndexofKeyword = new HashMap<>();
+
+    // Index over the distinct keywords for prefix, substring and misspelled
+    // name searches
+    private NameIndex IndexofName = new NameIndex();
+
+    // Map from each symbol to the id of its investment, so lookups by symbol
+    // don't have to scan every holding. It is concurrent so lookups don't
+    // need the lock
+    private ConcurrentHashMap<String, Integer> IndexofSymbol = new ConcurrentHashMap<>();
+
+    // Number of extra holdings per symbol held more than once, which only a
+    // load file can create; the symbol index points at the first of them
+    private HashMap<String, Integer> duplicateSymbols = new HashMap<>();
+
+    // Map from each price to the ids of the investments at that price, ordered
+    // by price so a price range is a single sub map
+    private TreeMap<Double, PostingList> IndexofPrice = new TreeMap<>();
+
+    // Running book value, market value and gain totals of the holdings
+    private final GainTotals totals = new GainTotals();
+
+    // The quantity, price, book value and type of every holding in columns,
+    // for valuation and price band scans
+    private final HoldingColumns columns = new HoldingColumns();
+
+    // Every price each symbol has traded or been updated at, with its time
+    private final PriceHistory history = new PriceHistory();
+
+    // Set while journaled trades are replayed; their prices are added to the
+    // price history at the time of their record instead of the current time
+    private boolean replaying = false;
+
+    // The time of the journal record being replayed, or 0 if the record has
+    // none, in which case its price isn't added to the price history
+    private long replayTime = 0;
+
+    // Check every total gain read against a full recompute
+    private static final boolean VERIFY_GAIN = Boolean.getBoolean("ePortfolio.verifyGain");
+
+    // Guards the investments list and every index: trades take the write
+    // lock, searches and reports take the read lock
+    private final StampedLock lock = new StampedLock();
+
+    // Variable to store the name of the file where investments will be saved
+    private volatile String fileSaveName = "";
+
+    // Journal of the trades made since the last checkpoint, or null if the
+    // portfolio isn't being journaled
+    private volatile TransactionJournal journal = null;
+
+    // Extension added to the save file name for the journal
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    // Extension of a journal frozen by the compactor until its checkpoint is written
+    private static final String ROTATED_EXTENSION = ".journal.old";
+
+    // Extension of the snapshot the compactor folds the journal into
+    private static final String CHECKPOINT_EXTENSION = ".checkpoint";
+
+    // The journal is folded into a new checkpoint once it grows past this size
+    private static final long JOURNAL_COMPACT_BYTES = 4L << 20;
+
+    // Number of times the ids were compacted, so search pages can tell
+    // whether the id they ended at still means the same place
+    private long compactions = 0;
+
+    // Results of recent searches, dropped by the trades that change them. The
+    // cache is shared by every portfolio, so its limits bound them all
+    private static final SearchCache searchCache = new SearchCache(
+            Integer.getInteger("ePortfolio.searchCache.entries", 256),
+            Long.getLong("ePortfolio.searchCache.bytes", 16L << 20));
+
+    // Number of the last portfolio created, and this portfolio's number in
+    // the search cache
+    private static final AtomicLong portfoliosCreated = new AtomicLong();
+    private final long cacheOwner = portfoliosCreated.incrementAndGet();
+
+    // Number of trades made since the portfolio was created
+    private long modifications = 0;
+
+    // Views told about every change to the holdings
+    private final CopyOnWriteArrayList<HoldingListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Set once the journal is registered to be closed when the program exits
+    private boolean closeOnExit = false;
+
+    // Set while the compactor is writing a checkpoint; cleared while holding
+    // the flag's monitor, which is notified so discardJournal can wait on it
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    // Number of holdings between two progress reports
+    private static final int PROGRESS_INTERVAL = 4096;
+
+    // Progress of the operations nobody follows
+    private static final Progress NO_PROGRESS = new Progress() {
+        public void report(long done, long total) {
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    // Size of the buffer text files are read through
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+
+    /**
+     * Writes the current investments to the specified file.
+     * 
+     * @param f_Name The file name where investments will be written.
+     * @return True if the investments were written, false otherwise.
+     */
+    public boolean writeInvestment(String f_Name) {
+        return writeInvestment(f_Name, NO_PROGRESS);
+    }
+
+    /**
+     * Writes the current investments to the specified file, reporting the
+     * number of holdings written.
+     * 
+     * @param f_Name   The file name where investments will be written.
+     * @param progress Follows the write.
+     * @return True if the investments were written, false otherwise.
+     */
+    public boolean writeInvestment(String f_Name, Progress progress) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.WRITE);
+        PortfolioEvents.FileAccess event = new PortfolioEvents.FileAccess();
+        event.begin();
+        long stamp = lock.readLock();
+        int holdings = investments.size() - tombstones;
+        try {
+            try (BufferedWriter write = new BufferedWriter(new FileWriter(f_Name))) {
+                // Iterate through all investments and write their details to the file
+                int total = investments.size();
+                for (int i = 0; i < total; i++) {
+                    Investment investment = investments.get(i);
+                    if (i % PROGRESS_INTERVAL == 0) {
+                        progress.report(i, total);
+                    }
+                    if (investment == null) {
+                        continue; // Skip tombstones
+                    }
+                    write.write("Type = \"" + (investment instanceof Stock ? "Stock" : "MutualFund") + "\"\n");
+                    write.write("Symbol = \"" + investment.getSymbol() + "\"\n");
+                    write.write("Name = \"" + investment.getName() + "\"\n");
+                    write.write("Quantity = \"" + investment.getQuantity() + "\"\n");
+                    write.write("Price = \"" + Money.toString(investment.getPriceMicros()) + "\"\n");
+                    write.write("BookValue = \"" + Money.toString(investment.getBookValueMicros()) + "\"\n");
+                }
+
+                progress.report(total, total);
+                System.out.println("The investments were successfully written to: " + f_Name);
+                writeHistory(f_Name);
+                return true;
+            } catch (IOException e) {
+                // Handle any IO errors while writing to the file
+                System.out.println("Error in writing the investments to the file: " + f_Name);
+                return false;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.WRITE, start);
+            event.record("writeInvestment", f_Name, holdings);
+        }
+    }
+
+    /**
+     * Writes the current investments to a binary snapshot file.
+     * Snapshots are much faster to save and load than the text format.
+     * 
+     * @param f_Name The file name where the snapshot will be written.
+     * @return True if the snapshot was written, false otherwise.
+     */
+    public boolean writeSnapshot(String f_Name) {
+        return writeSnapshot(f_Name, NO_PROGRESS);
+    }
+
+    /**
+     * Writes the current investments to a binary snapshot file, reporting the
+     * number of holdings written once it is done.
+     * 
+     * @param f_Name   The file name where the snapshot will be written.
+     * @param progress Follows the write.
+     * @return True if the snapshot was written, false otherwise.
+     */
+    public boolean writeSnapshot(String f_Name, Progress progress) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.WRITE);
+        PortfolioEvents.FileAccess event = new PortfolioEvents.FileAccess();
+        event.begin();
+        long stamp = lock.readLock();
+        int holdings = investments.size() - tombstones;
+        try {
+            try {
+                ArrayList<Investment> live = liveInvestments();
+                progress.report(0, live.size());
+                PortfolioSnapshot.write(Paths.get(f_Name), live);
+                progress.report(live.size(), live.size());
+                System.out.println("The investments were successfully written to: " + f_Name);
+                writeHistory(f_Name);
+                return true;
+            } catch (IOException e) {
+                // Handle any IO errors while writing to the file
+                System.out.println("Error in writing the investments to the file: " + f_Name);
+                return false;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.WRITE, start);
+            event.record("writeSnapshot", f_Name, holdings);
+        }
+    }
+
+    /**
+     * Saves the current investments, as a binary snapshot if the file name ends
+     * with the snapshot extension and in the text format otherwise.
+     * 
+     * @param f_Name The file name where investments will be written.
+     * @return True if the investments were written, false otherwise.
+     */
+    public boolean writePortfolio(String f_Name) {
+        return writePortfolio(f_Name, NO_PROGRESS);
+    }
+
+    /**
+     * Saves the current investments like writePortfolio, reporting the number
+     * of holdings written.
+     * 
+     * @param f_Name   The file name where investments will be written.
+     * @param progress Follows the write.
+     * @return True if the investments were written, false otherwise.
+     */
+    public boolean writePortfolio(String f_Name, Progress progress) {
+        if (f_Name.endsWith(PortfolioSnapshot.EXTENSION)) {
+            return writeSnapshot(f_Name, progress);
+        } else {
+            return writeInvestment(f_Name, progress);
+        }
+    }
+
+    /**
+     * Loads the portfolio and recovers the trades of a session that ended
+     * without saving, then starts journaling every trade. The portfolio is
+     * loaded from the checkpoint next to the save file if there is one, and
+     * from the load file otherwise; the journaled trades made after it are
+     * then applied in order.
+     * 
+     * The journal is written by a background thread in groups. How often it is
+     * forced to the disk is set with the system properties
+     * ePortfolio.journal.sync (none, batch or commit; batch by default),
+     * ePortfolio.journal.syncEvery (groups per fsync with batch; 1 by default)
+     * and ePortfolio.journal.flushMillis (the longest a trade waits before it
+     * is written; 20 by default).
+     * 
+     * @param loadFile The file name from which investments will be read.
+     * @param saveFile The file name where investments will be saved; the
+     *                 journal and checkpoint are kept next to it.
+     */
+    public void recoverInvestments(String loadFile, String saveFile) {
+        recoverInvestments(loadFile, saveFile, NO_PROGRESS);
+    }
+
+    /**
+     * Loads the portfolio and recovers the trades of a session that ended
+     * without saving like recoverInvestments, reporting the bytes of the load
+     * file read.
+     * 
+     * @param loadFile The file name from which investments will be read.
+     * @param saveFile The file name where investments will be saved; the
+     *                 journal and checkpoint are kept next to it.
+     * @param progress Follows the load.
+     */
+    public void recoverInvestments(String loadFile, String saveFile, Progress progress) {
+        closeJournal();
+        fileSaveName = saveFile;
+        Path checkpoint = Paths.get(saveFile + CHECKPOINT_EXTENSION);
+        Path rotated = Paths.get(saveFile + ROTATED_EXTENSION);
+        Path active = Paths.get(saveFile + JOURNAL_EXTENSION);
+
+        long start = PortfolioMetrics.start(PortfolioMetrics.READ);
+        long stamp = lock.writeLock();
+        try {
+            // A checkpoint is only left behind by a session that didn't quit
+            // normally, so it is newer than the load file
+            long sequence = 0;
+            if (Files.exists(checkpoint)) {
+                sequence = PortfolioSnapshot.readSequence(checkpoint);
+                readSnapshot(checkpoint.toString());
+                // The checkpoint's price history includes the load file's
+                boolean checkpointHistory = Files.exists(Paths.get(checkpoint + PriceHistory.EXTENSION));
+                readHistory(checkpointHistory ? checkpoint.toString() : loadFile);
+            } else {
+                readInvestmentsLocked(loadFile, progress);
+            }
+
+            // Apply the trades made after the checkpoint, oldest file first
+            boolean unfinished = Files.exists(rotated) || (Files.exists(active) && Files.size(active) > 0);
+            long replayedFrom = sequence;
+            replaying = true;
+            try {
+                sequence = TransactionJournal.replay(rotated, sequence, this::applyRecord);
+                sequence = TransactionJournal.replay(active, sequence, this::applyRecord);
+            } finally {
+                replaying = false;
+            }
+            if (unfinished) {
+                System.out.println((sequence - replayedFrom) + " trades have been recovered from the journal: "
+                        + active);
+
+                // Fold the recovered trades into a checkpoint right away, so
+                // they can't be applied twice if the load file is saved over
+                writeCheckpoint(checkpoint, liveInvestments(), history, sequence);
+                Files.deleteIfExists(rotated);
+                Files.deleteIfExists(active);
+            }
+
+            String policy = System.getProperty("ePortfolio.journal.sync", "batch");
+            journal = new TransactionJournal(active, sequence,
+                    TransactionJournal.SyncPolicy.valueOf(policy.toUpperCase()),
+                    Integer.getInteger("ePortfolio.journal.syncEvery", 1),
+                    Long.getLong("ePortfolio.journal.flushMillis", 20));
+
+            // Write out the last group when the program exits without quitting
+            if (!closeOnExit) {
+                Runtime.getRuntime().addShutdownHook(new Thread(this::closeJournal, "ePortfolio-journal-close"));
+                closeOnExit = true;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error in opening the journal: " + e.getMessage());
+        } finally {
+            lock.unlockWrite(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.READ, start);
+        }
+    }
+
+    /**
+     * Writes any trades still waiting in the journal and closes it. Trades
+     * made afterwards aren't journaled.
+     */
+    public void closeJournal() {
+        TransactionJournal closing;
+        synchronized (this) {
+            closing = journal;
+            journal = null;
+        }
+        if (closing == null) {
+            return;
+        }
+        try {
+            closing.close();
+        } catch (IOException e) {
+            System.out.println("Error in writing the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the journal and deletes it along with the checkpoint. Call this
+     * once the portfolio has been saved, since the save file then holds every
+     * trade.
+     */
+    public void discardJournal() {
+        closeJournal();
+        if (fileSaveName.isEmpty()) {
+            return;
+        }
+
+        // Wait for a running compaction, so it doesn't leave a checkpoint
+        // behind; an interrupt is kept for the caller rather than cutting the
+        // wait short
+        boolean interrupted = false;
+        synchronized (compacting) {
+            while (compacting.get()) {
+                try {
+                    compacting.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Files.deleteIfExists(Paths.get(fileSaveName + JOURNAL_EXTENSION));
+            Files.deleteIfExists(Paths.get(fileSaveName + ROTATED_EXTENSION));
+            Files.deleteIfExists(Paths.get(fileSaveName + CHECKPOINT_EXTENSION));
+            Files.deleteIfExists(Paths.get(fileSaveName + CHECKPOINT_EXTENSION + PriceHistory.EXTENSION));
+        } catch (IOException e) {
+            System.out.println("Error in deleting the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies a trade read back from the journal. The journal is not open
+     * during replay, so the trade isn't journaled again, and its price goes
+     * into the price history at the time of the record.
+     * 
+     * @param record the journaled trade
+     */
+    private void applyRecord(TransactionJournal.Record record) {
+        replayTime = record.time;
+        switch (record.operation) {
+            case TransactionJournal.BUY:
+                buyLocked(record.type, record.symbol, record.name, record.quantity, record.price);
+                break;
+            case TransactionJournal.SELL:
+                sellLocked(record.symbol, record.quantity, record.price, record.policy, record.lot);
+                break;
+            case TransactionJournal.UPDATE:
+                int id = findInvestment(record.symbol);
+                if (id != -1) {
+                    updateLocked(investments.get(id), record.price);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Folds the journal into a new checkpoint once it has grown large enough.
+     * The current holdings are copied and the journal is rotated here, so the
+     * checkpoint matches the rotated records exactly; the checkpoint is then
+     * written on a background thread while trading continues.
+     */
+    private void compactJournal() {
+        TransactionJournal journal = this.journal;
+        if (journal == null || journal.size() < JOURNAL_COMPACT_BYTES || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        Path checkpoint = Paths.get(fileSaveName + CHECKPOINT_EXTENSION);
+        Path rotated = Paths.get(fileSaveName + ROTATED_EXTENSION);
+        if (Files.exists(rotated)) {
+            // A failed compaction left its records behind; rotating again
+            // would replace them before they are in a checkpoint
+            endCompaction();
+            return;
+        }
+
+        try {
+            // Copy the holdings and the price history, since the originals keep changing
+            ArrayList<Investment> copies = new ArrayList<>(investments.size() - tombstones);
+            for (Investment investment : investments) {
+                if (investment instanceof Stock) {
+                    copies.add(new Stock((Stock) investment));
+                } else if (investment instanceof MutualFund) {
+                    copies.add(new MutualFund((MutualFund) investment));
+                }
+            }
+            PriceHistory prices = new PriceHistory(history);
+            long sequence = journal.lastSequence();
+            journal.rotate(rotated);
+
+            Thread compactor = new Thread(() -> {
+                try {
+                    writeCheckpoint(checkpoint, copies, prices, sequence);
+                    Files.deleteIfExists(rotated);
+                } catch (IOException e) {
+                    System.out.println("Error in writing the checkpoint: " + e.getMessage());
+                } finally {
+                    endCompaction();
+                }
+            }, "ePortfolio-compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        } catch (IOException e) {
+            endCompaction();
+            System.out.println("Error in compacting the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Marks the compaction as finished and wakes discardJournal if it is
+     * waiting for it.
+     */
+    private void endCompaction() {
+        synchronized (compacting) {
+            compacting.set(false);
+            compacting.notifyAll();
+        }
+    }
+
+    /**
+     * Writes a checkpoint snapshot and forces it to the disk before it
+     * replaces the previous one, so a crash leaves either the old or the new
+     * checkpoint, never a partial one. The price history is then written next
+     * to it the same way; a crash between the two only loses the prices of
+     * the trades folded into the checkpoint.
+     * 
+     * @param checkpoint the checkpoint file
+     * @param holdings   the investments to write
+     * @param history    the price history of the investments
+     * @param sequence   the last journal record the investments include
+     * @throws IOException if the checkpoint can't be written
+     */
+    private static void writeCheckpoint(Path checkpoint, List<Investment> holdings, PriceHistory history,
+            long sequence) throws IOException {
+        Path temporary = Paths.get(checkpoint + ".tmp");
+        PortfolioSnapshot.write(temporary, holdings, sequence);
+        replaceDurably(temporary, checkpoint);
+
+        Path historyFile = Paths.get(checkpoint + PriceHistory.EXTENSION);
+        temporary = Paths.get(historyFile + ".tmp");
+        history.write(temporary);
+        replaceDurably(temporary, historyFile);
+    }
+
+    /**
+     * Forces a file to the disk and moves it over another in one step.
+     * 
+     * @param temporary the file written
+     * @param target    the file it replaces
+     * @throws IOException if the file can't be forced or moved
+     */
+    private static void replaceDurably(Path temporary, Path target) throws IOException {
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Counts a trade and appends it to the journal if the portfolio is being
+     * journaled, and compacts the journal when it gets large. The caller must
+     * hold the write lock, so records are journaled in the order the trades
+     * were made.
+     * 
+     * @param operation the TransactionJournal operation tag
+     * @param holding   the investment traded
+     * @param quantity  the quantity bought or sold
+     * @param price     the price of the trade
+     */
+    private void journalTrade(byte operation, Investment holding, int quantity, double price) {
+        if (logTrade(operation, holding, quantity, price)) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * Counts a trade and appends it to the journal if the portfolio is being
+     * journaled, without compacting the journal. The caller must hold the
+     * write lock.
+     * 
+     * @param operation the TransactionJournal operation tag
+     * @param holding   the investment traded
+     * @param quantity  the quantity bought or sold
+     * @param price     the price of the trade
+     * @return true if the trade was journaled
+     */
+    private boolean logTrade(byte operation, Investment holding, int quantity, double price) {
+        return logTrade(operation, holding, quantity, price, TaxLots.AVERAGE_COST, 0);
+    }
+
+    /**
+     * Counts a trade like logTrade, with the lot policy of a sale.
+     * 
+     * @param operation the TransactionJournal operation tag
+     * @param holding   the investment traded
+     * @param quantity  the quantity bought or sold
+     * @param price     the price of the trade
+     * @param policy    the TaxLots policy of a sale
+     * @param lot       the lot named by a SPECIFIC_LOT sale
+     * @return true if the trade was journaled
+     */
+    private boolean logTrade(byte operation, Investment holding, int quantity, double price, byte policy,
+            long lot) {
+        modifications++;
+        TransactionJournal journal = this.journal;
+        if (journal == null) {
+            return false;
+        }
+
+        try {
+            switch (operation) {
+                case TransactionJournal.BUY:
+                    journal.logBuy(holding instanceof MutualFund, holding.getSymbol(), holding.getName(), quantity,
+                            price);
+                    break;
+                case TransactionJournal.SELL:
+                    journal.logSell(holding.getSymbol(), quantity, price, policy, lot);
+                    break;
+                default:
+                    journal.logUpdate(holding.getSymbol(), price);
+                    break;
+            }
+        } catch (IOException e) {
+            System.out.println("Error in writing the trade to the journal: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the journaled trades are on the disk if the journal's sync
+     * policy asks for it. Called after the write lock is released, so other
+     * threads can trade while this one waits.
+     */
+    private void commitJournal() {
+        TransactionJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.commit();
+        } catch (IOException e) {
+            System.out.println("Error in writing the trade to the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a trade under the write lock, then waits for its journal record to
+     * be committed.
+     * 
+     * @param trade the trade, returning its result message
+     * @return the result message of the trade
+     */
+    private String trade(Supplier<String> trade) {
+        String result;
+        long stamp = lock.writeLock();
+        try {
+            result = trade.get();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        commitJournal();
+        return result;
+    }
+
+    /**
+     * Reads a value optimistically without locking, and reads it again under
+     * the read lock if a trade changed the portfolio meanwhile. Only suitable
+     * for short reads without side effects.
+     * 
+     * @param <T>    the type of the value
+     * @param reader reads the value
+     * @return the value
+     */
+    private <T> T readOptimistically(Supplier<T> reader) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T value = reader.get();
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // The structures changed under the read; read again with the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Reads investments from the specified file and adds them to the portfolio.
+     * The file format must contain information about the investment type, symbol,
+     * name, quantity, price, and book value. Binary snapshots are detected by
+     * their magic number and loaded in bulk, and large text files are parsed on
+     * several threads.
+     * 
+     * @param f_Name The file name from which investments will be read.
+     * @return True if the file was read, false if it couldn't be, in which case
+     *         it may have been read in part.
+     */
+    public boolean readInvestments(String f_Name) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.READ);
+        PortfolioEvents.FileAccess event = new PortfolioEvents.FileAccess();
+        event.begin();
+        int holdings = 0;
+        long stamp = lock.writeLock();
+        try {
+            boolean read = readInvestmentsLocked(f_Name, NO_PROGRESS);
+            holdings = investments.size() - tombstones;
+            return read;
+        } finally {
+            lock.unlockWrite(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.READ, start);
+            event.record("readInvestments", f_Name, holdings);
+        }
+    }
+
+    /**
+     * Reads investments from the specified file like readInvestments. The
+     * caller must hold the write lock.
+     * 
+     * @param f_Name   The file name from which investments will be read.
+     * @param progress Follows the read, in bytes of the file.
+     * @return True if the file was read, false otherwise.
+     */
+    private boolean readInvestmentsLocked(String f_Name, Progress progress) {
+        readHistory(f_Name);
+
+        // Load snapshots with the binary reader
+        try {
+            long size = Files.size(Paths.get(f_Name));
+            progress.report(0, size);
+            if (PortfolioSnapshot.isSnapshot(Paths.get(f_Name))) {
+                boolean read = readSnapshot(f_Name);
+                progress.report(size, size);
+                return read;
+            }
+
+            // Split large text files across threads
+            if (size >= ParallelLoader.PARALLEL_THRESHOLD) {
+                boolean read = readInvestmentsParallel(f_Name);
+                progress.report(size, size);
+                return read;
+            }
+        } catch (IOException e) {
+            // Let the text reader report files that can't be opened
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(f_Name), StandardOpenOption.READ)) {
+            int[] loaded = new int[1];
+
+            // Add each investment as soon as its record ends, and report the
+            // lines that couldn't be used
+            InvestmentParser parser = new InvestmentParser(new InvestmentParser.Handler() {
+                public void investment(Investment investment) {
+                    addHolding(investment); // Adds to the list and the indexes
+                    loaded[0]++;
+                }
+
+                public void problem(long line, String message) {
+                    System.out.println(message + " (line " + line + ")");
+                }
+            });
+
+            // Stream the file through one reusable buffer
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            long size = channel.size();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                parser.feed(buffer);
+                buffer.clear();
+                progress.report(channel.position(), size);
+            }
+            parser.finish();
+
+            // Confirmation message after reading the investments
+            System.out.println(loaded[0] + " investments have been read from the file successfully: " + f_Name);
+            return true;
+
+        } catch (IOException e) {
+            System.out.println("Error in loading the investments from the file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads investments from a binary snapshot file and adds them to the
+     * portfolio, including their book values.
+     * 
+     * @param f_Name The file name from which investments will be read.
+     * @return True if the snapshot was read, false otherwise.
+     */
+    private boolean readSnapshot(String f_Name) {
+        try {
+            ArrayList<Investment> loaded = PortfolioSnapshot.read(Paths.get(f_Name));
+            investments.ensureCapacity(investments.size() + loaded.size());
+            for (Investment investment : loaded) {
+                addHolding(investment);
+            }
+
+            // Confirmation message after reading the investments
+            System.out.println(loaded.size() + " investments have been read from the snapshot successfully: "
+                    + f_Name);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error in loading the investments from the file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads a large text file with the parallel loader and adds its investments
+     * to the portfolio in file order.
+     * 
+     * @param f_Name The file name from which investments will be read.
+     * @return True if the file was read, false otherwise.
+     */
+    private boolean readInvestmentsParallel(String f_Name) {
+        try {
+            ParallelLoader.Result result = ParallelLoader.load(Paths.get(f_Name));
+
+            // Report the problem lines in the order they appear in the file
+            for (String warning : result.warnings) {
+                System.out.println(warning);
+            }
+
+            investments.ensureCapacity(investments.size() + result.investments.size());
+            for (Investment investment : result.investments) {
+                addHolding(investment);
+            }
+
+            // Confirmation message after reading the investments
+            System.out.printf("%d investments have been read from the file successfully: %s (%.1f MB at %.1f MB/s)%n",
+                    result.investments.size(), f_Name, result.bytes / (1024.0 * 1024.0),
+                    result.megabytesPerSecond());
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error in loading the investments from the file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Buys a new investment (either stock or mutual fund) and adds it to the
+     * portfolio.
+     * If an investment with the same symbol already exists, it updates the existing
+     * investment.
+     * 
+     * @param type     The type of investment ("stock" or "mutualfund").
+     * @param symbol   The symbol of the investment (e.g., stock ticker).
+     * @param name     The name of the investment.
+     * @param quantity The quantity to buy.
+     * @param price    The price per unit of the investment.
+     * @return A message indicating the success or failure of the purchase.
+     */
+    public String buy(String type, String symbol, String name, int quantity, double price) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.BUY);
+        PortfolioEvents.Trade event = new PortfolioEvents.Trade();
+        event.begin();
+        String result = trade(() -> buyLocked(type, symbol, name, quantity, price));
+        PortfolioMetrics.stop(PortfolioMetrics.BUY, start);
+        event.record("buy", symbol, quantity, price, result);
+        return result;
+    }
+
+    /**
+     * Buys an investment like buy. The caller must hold the write lock.
+     * 
+     * @param type     The type of investment ("stock" or "mutualfund").
+     * @param symbol   The symbol of the investment.
+     * @param name     The name of the investment.
+     * @param quantity The quantity to buy.
+     * @param price    The price per unit of the investment.
+     * @return A message indicating the success or failure of the purchase.
+     */
+    private String buyLocked(String type, String symbol, String name, int quantity, double price) {
+        Investment newInvestment = null;
+
+        try {
+            // Create a new investment based on the type
+            if (type.equalsIgnoreCase("stock")) {
+                newInvestment = new Stock(symbol, name, quantity, price);
+            } else if (type.equalsIgnoreCase("mutualfund")) {
+                newInvestment = new MutualFund(symbol, name, quantity, price);
+            } else {
+                return "Invalid investment Type '" + type + "'.";
+            }
+        } catch (Exception e) {
+            return "Failed to Create The Investment. The Details are as shown: " + e.toString();
+        }
+
+        // Check if the investment symbol already exists in the opposite investment type
+        int index = findInvestment(symbol);
+        if (index != -1) {
+            Investment newInvestment1 = investments.get(index);
+
+            if ((type.equalsIgnoreCase("stock") && newInvestment1 instanceof MutualFund) ||
+                    (type.equalsIgnoreCase("mutualfund") && newInvestment1 instanceof Stock)) {
+                return "Error: Symbol '" + symbol
+                        + "' already exists in the other investment type.";
+            } else {
+                if (!fits(totals, newInvestment1, true, (long) newInvestment1.getQuantity() + quantity, quantity,
+                        newInvestment.getPriceMicros())) {
+                    return "ERROR: The value of " + symbol + " at the price " + price + " is out of range.";
+                }
+
+                // Update the existing investment's quantity and price
+                untrack(newInvestment1);
+                newInvestment1.setQuantity(quantity + newInvestment1.getQuantity());
+                setHoldingPrice(newInvestment1, price);
+                newInvestment1.calculateBookValue(quantity, price);
+                track(newInvestment1);
+                recordPrice(newInvestment1);
+                journalTrade(TransactionJournal.BUY, newInvestment1, quantity, price);
+                return quantity + " Units were successfully added to an existing investment:\n\n"
+                        + newInvestment1.toString();
+            }
+        }
+
+        if (!fits(totals, newInvestment, false, quantity, quantity, newInvestment.getPriceMicros())) {
+            return "ERROR: The value of " + symbol + " at the price " + price + " is out of range.";
+        }
+
+        // Calculate book value for the new investment and add it to the list
+        newInvestment.calculateBookValue(quantity, price);
+
+        // Add the investment to the list and the indexes
+        addHolding(newInvestment);
+        recordPrice(newInvestment);
+        journalTrade(TransactionJournal.BUY, newInvestment, quantity, price);
+
+        // Return success message
+        return quantity + " Purchase was successfully made for " + symbol + ":\n\n" + newInvestment.toString();
+    }
+
+    /**
+     * Sells a specified quantity of shares from an investment and returns the
+     * payment received. The shares are sold at the average cost of the
+     * holding.
+     * 
+     * @param symbol   The symbol of the investment to sell.
+     * @param quantity The quantity of shares to sell.
+     * @param price    The price at which the shares are sold.
+     * @return A message indicating the result of the sale.
+     */
+    public String sell(String symbol, int quantity, double price) {
+        return sell(symbol, quantity, price, TaxLots.AVERAGE_COST, 0);
+    }
+
+    /**
+     * Sells a specified quantity of shares from an investment, choosing the
+     * lots sold with a policy, and returns the payment received and the gain
+     * realized.
+     * 
+     * @param symbol   The symbol of the investment to sell.
+     * @param quantity The quantity of shares to sell.
+     * @param price    The price at which the shares are sold.
+     * @param policy   The TaxLots policy, like TaxLots.FIFO.
+     * @param lot      The id of the lot to sell from, for TaxLots.SPECIFIC_LOT.
+     * @return A message indicating the result of the sale.
+     */
+    public String sell(String symbol, int quantity, double price, byte policy, long lot) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.SELL);
+        PortfolioEvents.Trade event = new PortfolioEvents.Trade();
+        event.begin();
+        String result = trade(() -> sellLocked(symbol, quantity, price, policy, lot));
+        PortfolioMetrics.stop(PortfolioMetrics.SELL, start);
+        event.record("sell", symbol, quantity, price, result);
+        return result;
+    }
+
+    /**
+     * Sells shares like sell. The caller must hold the write lock.
+     * 
+     * @param symbol   The symbol of the investment to sell.
+     * @param quantity The quantity of shares to sell.
+     * @param price    The price at which the shares are sold.
+     * @param policy   The TaxLots policy.
+     * @param lot      The id of the lot to sell from, for TaxLots.SPECIFIC_LOT.
+     * @return A message indicating the result of the sale.
+     */
+    private String sellLocked(String symbol, int quantity, double price, byte policy, long lot) {
+        if (!Money.isValid(price)) {
+            return "ERROR: The price " + price + " is out of range.";
+        }
+        if (policy < TaxLots.AVERAGE_COST || policy > TaxLots.SPECIFIC_LOT) {
+            return "ERROR: Unknown lot policy " + policy + ".";
+        }
+
+        // Find the matching investment index
+        int indexMatch = findInvestment(symbol);
+
+        // If a matching investment is found
+        if (indexMatch != -1) {
+            Investment sellInvestment = investments.get(indexMatch); // Get the investment object
+            int oldQuantity = sellInvestment.getQuantity(); // Store the current quantity
+
+            // Check if enough quantity is available to sell, in the lot if one is named
+            if (policy == TaxLots.SPECIFIC_LOT && sellInvestment.lotQuantity(lot) < quantity) {
+                return "ERROR: Cannot sell " + quantity + " shares when only " + sellInvestment.lotQuantity(lot)
+                        + " exist in lot " + lot + ".";
+            }
+            if (oldQuantity >= quantity) {
+                // Selling only lowers the values, so checking what is held at the new price is enough
+                if (!fits(totals, sellInvestment, true, oldQuantity, 0, Money.fromDouble(price))) {
+                    return "ERROR: The value of " + symbol + " at the price " + price + " is out of range.";
+                }
+                untrack(sellInvestment);
+                setHoldingPrice(sellInvestment, price); // Update the price
+                // Update the quantity and the book value
+                long soldBookValue = sellInvestment.sellLots(quantity, policy, lot);
+                long payment = sellInvestment.paymentMicros(quantity);
+
+                // Remove the investment if all shares are sold
+                if (sellInvestment.getQuantity() == 0) {
+                    removeHolding(indexMatch); // Remove from the list and the indexes
+                } else {
+                    track(sellInvestment);
+                }
+                recordPrice(sellInvestment);
+                if (logTrade(TransactionJournal.SELL, sellInvestment, quantity, price, policy, lot)) {
+                    compactJournal();
+                }
+
+                // Return the payment earned from selling and the gain it realized
+                return "The payment received from selling " + quantity + " shares of " + symbol + " is: "
+                        + Money.toDouble(payment) + "\nThe realized gain is: "
+                        + Money.toString(payment - soldBookValue);
+            } else {
+                // Error message if selling more than available quantity
+                return "ERROR: Cannot sell " + quantity + " shares when only " + oldQuantity + " exist.";
+            }
+        } else {
+            // Error message if no investment matches the given symbol
+            return "ERROR: No investments exist with symbol: '" + symbol + "'.";
+        }
+    }
+
+    /**
+     * Lists the tax lots of an investment.
+     * 
+     * @param symbol The symbol of the investment.
+     * @return A line for every lot, oldest first, or an error message.
+     */
+    public String getLots(String symbol) {
+        long stamp = lock.readLock();
+        try {
+            int index = findInvestment(symbol);
+            if (index == -1) {
+                return "ERROR: No investments exist with symbol: '" + symbol + "'.";
+            }
+            return investments.get(index).lotsToString();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the prices a symbol traded or was updated at within a time range.
+     * 
+     * @param symbol The symbol.
+     * @param from   The earliest time, in milliseconds since the epoch (inclusive).
+     * @param to     The latest time, in milliseconds since the epoch (inclusive).
+     * @return The prices and their times, oldest first.
+     */
+    public PriceHistory.Points getPriceHistory(String symbol, long from, long to) {
+        long stamp = lock.readLock();
+        try {
+            return history.range(symbol, from, to);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the last prices a symbol traded or was updated at.
+     * 
+     * @param symbol The symbol.
+     * @param count  The number of prices.
+     * @return Up to count prices and their times, oldest first.
+     */
+    public PriceHistory.Points getRecentPrices(String symbol, int count) {
+        long stamp = lock.readLock();
+        try {
+            return history.last(symbol, count);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the open, high, low and close price of a symbol for each interval
+     * of a time range that has a price.
+     * 
+     * @param symbol   The symbol.
+     * @param from     The start of the first interval, in milliseconds since the epoch.
+     * @param to       The latest time, in milliseconds since the epoch (inclusive).
+     * @param interval The length of an interval in milliseconds.
+     * @return The bars, oldest first.
+     */
+    public PriceHistory.Bar[] getPriceBars(String symbol, long from, long to, long interval) {
+        long stamp = lock.readLock();
+        try {
+            return history.bars(symbol, from, to, interval);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Updates the price of an investment and returns the updated details.
+     * 
+     * @param investment1 The investment to be updated.
+     * @param newPrice    The new price for the investment.
+     * @return A message indicating the successful update and details of the
+     *         investment.
+     */
+    public String update(Investment investment1, double newPrice) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.UPDATE);
+        PortfolioEvents.Trade event = new PortfolioEvents.Trade();
+        event.begin();
+        String result = trade(() -> updateLocked(investment1, newPrice));
+        PortfolioMetrics.stop(PortfolioMetrics.UPDATE, start);
+        event.record("update", investment1.getSymbol(), 0, newPrice, result);
+        return result;
+    }
+
+    /**
+     * Updates the price of an investment like update. The caller must hold the
+     * write lock.
+     * 
+     * @param investment1 The investment to be updated.
+     * @param newPrice    The new price for the investment.
+     * @return A message indicating the successful update and details of the
+     *         investment.
+     */
+    private String updateLocked(Investment investment1, double newPrice) {
+        if (!Money.isValid(newPrice)) {
+            return "ERROR: The price " + newPrice + " is out of range.";
+        }
+
+        // Only journal investments that are in the portfolio, not the empty placeholder
+        boolean held = investment1.getId() != -1 && investments.get(investment1.getId()) == investment1;
+        if (held && !fits(totals, investment1, true, investment1.getQuantity(), 0, Money.fromDouble(newPrice))) {
+            return "ERROR: The value of " + investment1.getSymbol() + " at the price " + newPrice
+                    + " is out of range.";
+        }
+
+        // Update the price of the investment
+        if (held) {
+            untrack(investment1);
+        }
+        setHoldingPrice(investment1, newPrice);
+        if (held) {
+            track(investment1);
+            recordPrice(investment1);
+            journalTrade(TransactionJournal.UPDATE, investment1, 0, newPrice);
+        }
+
+        // Return success message and updated investment details
+        return String.format("Investment was successfully updated.\n%s\n\n", investment1);
+    }
+
+    /**
+     * Reprices many holdings at once, like calling update for each of them,
+     * but under one write lock and without building a message per holding.
+     * Symbols that aren't held, prices out of range and prices that would take
+     * a holding's value out of range are skipped, and
+     * holdings already at their new price (to the micro-unit) are left alone.
+     * 
+     * @param symbols The symbols of the holdings to reprice.
+     * @param prices  The new price for each symbol.
+     * @param count   The number of symbols to reprice.
+     * @return The number of holdings whose price changed.
+     */
+    public int updatePrices(String[] symbols, double[] prices, int count) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.UPDATE_PRICES);
+        PortfolioEvents.Batch event = new PortfolioEvents.Batch();
+        event.begin();
+        int repriced = 0;
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < count; i++) {
+                int id = findInvestment(symbols[i]);
+                if (id == -1 || !Money.isValid(prices[i])) {
+                    continue;
+                }
+                Investment holding = investments.get(id);
+                long price = Money.fromDouble(prices[i]);
+                if (holding.getPriceMicros() != price && fits(totals, holding, true, holding.getQuantity(), 0, price)) {
+                    untrack(holding);
+                    setHoldingPrice(holding, prices[i]);
+                    track(holding);
+                    recordPrice(holding);
+                    logTrade(TransactionJournal.UPDATE, holding, 0, prices[i]);
+                    repriced++;
+                }
+            }
+            compactJournal();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        commitJournal();
+        PortfolioMetrics.stop(PortfolioMetrics.UPDATE_PRICES, start);
+        event.record("updatePrices", count, repriced);
+        return repriced;
+    }
+
+    /**
+     * Carries out the orders in an order file as one batch; see Order for the
+     * file format.
+     * 
+     * @param f_Name The order file.
+     * @return The status of the order on each non-blank line, in file order, or
+     *         null if the file can't be read.
+     */
+    public byte[] executeOrders(String f_Name) {
+        ArrayList<Order> orders = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(f_Name))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    orders.add(Order.parse(line)); // null marks a malformed line
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error in reading the orders from the file: " + f_Name);
+            return null;
+        }
+        return executeOrders(orders);
+    }
+
+    /**
+     * Carries out a batch of buy and sell orders. Each order has the same
+     * effect as the matching buy or sell call, but the whole batch runs under
+     * one write lock and waits for the journal once. The orders are grouped by
+     * symbol, so each symbol is looked up once, and the indexes are updated
+     * once per symbol at the end of its group instead of after every trade.
+     * Orders for the same symbol are applied in the order given.
+     * 
+     * @param orders The orders; a null order is reported as invalid.
+     * @return The Order status of each order, in the order given.
+     */
+    public byte[] executeOrders(Iterable<Order> orders) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.ORDERS);
+        PortfolioEvents.Batch event = new PortfolioEvents.Batch();
+        event.begin();
+        ArrayList<Order> batch = new ArrayList<>();
+        orders.forEach(batch::add);
+        byte[] status = new byte[batch.size()];
+
+        long stamp = lock.writeLock();
+        try {
+            executeOrdersLocked(batch, status);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        commitJournal();
+        PortfolioMetrics.stop(PortfolioMetrics.ORDERS, start);
+        int applied = 0;
+        for (byte code : status) {
+            applied += code == Order.FILLED ? 1 : 0;
+        }
+        event.record("executeOrders", status.length, applied);
+        return status;
     }
 
-    // List to store all investments (stocks and mutual funds)
-    private static ArrayList<Investment> investments = new ArrayList<>(1);
+    /**
+     * Carries out a batch of orders like executeOrders. The caller must hold
+     * the write lock.
+     * 
+     * @param orders the orders
+     * @param status receives the status of each order
+     */
+    private void executeOrdersLocked(ArrayList<Order> orders, byte[] status) {
+        // Chain the orders of each symbol together: chains maps a symbol to its
+        // first and last order, and next links each order to the following one
+        LinkedHashMap<String, int[]> chains = new LinkedHashMap<>();
+        int[] next = new int[orders.size()];
+        for (int i = 0; i < orders.size(); i++) {
+            Order order = orders.get(i);
+            if (order == null || !order.isValid()) {
+                status[i] = Order.INVALID;
+                continue;
+            }
+            next[i] = -1;
+            int[] chain = chains.get(order.symbol);
+            if (chain == null) {
+                chains.put(order.symbol, new int[] { i, i });
+            } else {
+                next[chain[1]] = i;
+                chain[1] = i;
+            }
+        }
 
-    // Map to store keywords for searching investments (indexed by investment names)
-    private static HashMap<String, ArrayList<Integer>> IndexofKeyword = new HashMap<>();
+        // Holdings the batch sold out are removed, and holdings it opened are
+        // added, together once every symbol is done. New holdings are added in
+        // the order of the orders that opened them, so the portfolio ends up in
+        // the same order as if the trades were made one at a time
+        Investment[] opened = new Investment[orders.size()];
+        ArrayList<Investment> closed = new ArrayList<>();
+        // The totals as they will be once the batch is done, so every order
+        // can be checked against the holdings opened before it
+        GainTotals projected = new GainTotals(totals);
+        for (int[] chain : chains.values()) {
+            executeChain(orders, next, chain[0], status, opened, closed, projected);
+        }
+        removeHoldings(closed);
+        ArrayList<String> newKeywords = new ArrayList<>();
+        for (Investment holding : opened) {
+            if (holding != null) {
+                addHolding(holding, newKeywords);
+            }
+        }
+        IndexofName.addAll(newKeywords);
 
-    // Variable to store the name of the file where investments will be saved
-    private static String fileSaveName = "";
+        // The indexes match the journal again, so it is safe to compact it
+        compactJournal();
+    }
 
     /**
-     * Writes the current investments to the specified file.
+     * Carries out the orders for one symbol, trading on the holding directly
+     * and bringing the indexes up to date once at the end. The caller must hold
+     * the write lock.
      * 
-     * @param f_Name The file name where investments will be written.
+     * @param orders the orders of the batch
+     * @param next   links each order to the next order for the same symbol
+     * @param first  the first order for the symbol
+     * @param status receives the status of each order
+     * @param opened receives a holding the orders opened that still has to be
+     *               added to the portfolio, at the position of its opening order
+     * @param closed receives the existing holding if the orders sold it out
+     * @param projected the totals once the batch is done, which the orders are
+     *               checked against and which receive the holding's final share
      */
-    public void writeInvestment(String f_Name) {
-        try (BufferedWriter write = new BufferedWriter(new FileWriter(f_Name))) {
-            // Iterate through all investments and write their details to the file
-            for (Investment investment : investments) {
-                write.write("Type = \"" + (investment instanceof Stock ? "Stock" : "MutualFund") + "\"\n");
-                write.write("Symbol = \"" + investment.getSymbol() + "\"\n");
-                write.write("Name = \"" + investment.getName() + "\"\n");
-                write.write("Quantity = \"" + investment.getQuantity() + "\"\n");
-                write.write("Price = \"" + investment.getPrice() + "\"\n");
-                write.write("BookValue = \"" + investment.getBookValue() + "\"\n");
+    private void executeChain(ArrayList<Order> orders, int[] next, int first, byte[] status, Investment[] opened,
+            ArrayList<Investment> closed, GainTotals projected) {
+        int id = findInvestment(orders.get(first).symbol);
+        Investment existing = id == -1 ? null : investments.get(id);
+        double indexedPrice = existing == null ? 0 : existing.getPrice();
+
+        // The holding the orders trade on, null once it is sold out, and the
+        // order that opened it
+        Investment holding = existing;
+        int openedAt = -1;
+        if (existing != null) {
+            untrack(existing); // Added back at the end if it is still held
+            projected.remove(existing);
+        }
+
+        for (int i = first; i != -1; i = next[i]) {
+            Order order = orders.get(i);
+            if (order.buy) {
+                if (holding == null) {
+                    Investment bought;
+                    try {
+                        bought = order.mutualFund
+                                ? new MutualFund(order.symbol, order.name, order.quantity, order.price)
+                                : new Stock(order.symbol, order.name, order.quantity, order.price);
+                    } catch (Exception e) {
+                        status[i] = Order.INVALID;
+                        continue;
+                    }
+                    if (!fits(projected, bought, false, order.quantity, order.quantity, bought.getPriceMicros())) {
+                        status[i] = Order.OUT_OF_RANGE;
+                        continue;
+                    }
+                    holding = bought;
+                    openedAt = i;
+                } else if (order.mutualFund != (holding instanceof MutualFund)) {
+                    status[i] = Order.TYPE_CONFLICT;
+                    continue;
+                } else if (!fits(projected, holding, false, (long) holding.getQuantity() + order.quantity,
+                        order.quantity, Money.fromDouble(order.price))) {
+                    status[i] = Order.OUT_OF_RANGE;
+                    continue;
+                } else {
+                    holding.setQuantity(order.quantity + holding.getQuantity());
+                    holding.setPrice(order.price);
+                }
+                holding.calculateBookValue(order.quantity, order.price);
+                recordPrice(holding);
+                logTrade(TransactionJournal.BUY, holding, order.quantity, order.price);
+            } else {
+                if (holding == null) {
+                    status[i] = Order.UNKNOWN_SYMBOL;
+                    continue;
+                }
+                int oldQuantity = holding.getQuantity();
+                if (oldQuantity < order.quantity) {
+                    status[i] = Order.INSUFFICIENT_QUANTITY;
+                    continue;
+                }
+                if (!fits(projected, holding, false, oldQuantity, 0, Money.fromDouble(order.price))) {
+                    status[i] = Order.OUT_OF_RANGE;
+                    continue;
+                }
+                holding.setPrice(order.price);
+                holding.setQuantity(oldQuantity - order.quantity);
+                holding.bValueSellC(oldQuantity);
+                recordPrice(holding);
+                logTrade(TransactionJournal.SELL, holding, order.quantity, order.price);
+                if (holding.getQuantity() == 0) {
+                    holding = null; // A later buy opens a new holding
+                }
             }
+            status[i] = Order.FILLED;
+        }
 
-            System.out.println("The investments were successfully written to: " + f_Name);
-        } catch (IOException e) {
-            // Handle any IO errors while writing to the file
-            System.out.println("Error in writing the investments to the file: " + f_Name);
+        // Move the existing holding to its final price, and leave it to be
+        // removed with the others if it was sold out
+        if (existing != null) {
+            if (existing.getPrice() != indexedPrice) {
+                removeFromPriceIndex(id, indexedPrice);
+                IndexofPrice.computeIfAbsent(existing.getPrice(), key -> new PostingList()).add(id);
+            }
+            if (existing.getQuantity() == 0) {
+                closed.add(existing);
+            } else {
+                track(existing);
+            }
+        }
+        if (holding != existing && holding != null) {
+            opened[openedAt] = holding;
+        }
+        if (holding != null) {
+            projected.add(holding);
         }
     }
 
     /**
-     * Reads investments from the specified file and adds them to the portfolio.
-     * The file format must contain information about the investment type, symbol,
-     * name, quantity, price, and book value.
+     * Returns the total gain of all investments. The gain is kept as a running
+     * total by every trade, so this doesn't visit the investments.
      * 
-     * @param f_Name The file name from which investments will be read.
+     * @return A string representation of the total gain.
      */
-    public void readInvestments(String f_Name) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(f_Name))) {
-            String line;
-            Investment investment = null;
-            String type = "", symbol = "", name = "";
-            int quantity = 0;
-            double price = 0.0, bookValue = 0.0;
+    public String getGain() {
+        long start = PortfolioMetrics.start(PortfolioMetrics.GAIN);
+        String gain;
+        if (VERIFY_GAIN) {
+            gain = Money.toString(verifyGain());
+        } else {
+            // The running total, kept up to date by every trade
+            gain = Money.toString(readOptimistically(totals::getGainMicros));
+        }
+        PortfolioMetrics.stop(PortfolioMetrics.GAIN, start);
+        return gain;
+    }
 
-            // Process each line in the file
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
+    /**
+     * Returns a copy of the running book value, market value and gain totals,
+     * overall and by investment type.
+     * 
+     * @return the totals
+     */
+    public GainTotals getGainTotals() {
+        return readOptimistically(() -> new GainTotals(totals));
+    }
 
-                // Skip empty lines
-                if (line.isEmpty()) {
-                    continue;
-                }
+    /**
+     * Recomputes the total gain from every investment and checks it against
+     * the running total and the holding columns, reporting any difference. Used when the
+     * ePortfolio.verifyGain system property is set.
+     * 
+     * @return the recomputed total gain in micro-units
+     */
+    private long verifyGain() {
+        long stamp = lock.readLock();
+        try {
+            // Calculate total gain by iterating over the investments list
+            long totalGain = investments.stream()
+                    .filter(Objects::nonNull) // Skip tombstones
+                    .mapToLong(Investment::gainMicros) // Calculate gain for each investment
+                    .sum(); // Sum all the gains
+
+            // The amounts are exact, so every sum must match to the micro-unit
+            long running = totals.getGainMicros();
+            if (running != totalGain) {
+                System.out.println("Warning: The running total gain " + Money.toString(running)
+                        + " doesn't match the recomputed total gain " + Money.toString(totalGain) + ".");
+            }
+            long columnGain = columns.gain();
+            if (columnGain != totalGain) {
+                System.out.println("Warning: The holding columns give a total gain of " + Money.toString(columnGain)
+                        + " instead of " + Money.toString(totalGain) + ".");
+            }
+            return totalGain;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the individual gain of each investment in a formatted string.
+     * 
+     * @return A string containing individual gains for each investment.
+     */
+    public String getSingleGain() {
+        long start = PortfolioMetrics.start(PortfolioMetrics.SINGLE_GAIN);
+        long stamp = lock.readLock();
+        try {
+            // Build a string with all individual gains using StringBuilder for performance
+            StringBuilder tempGain = new StringBuilder();
+
+            // Iterate over the investment list and append the gain for each investment
+            investments.stream().filter(Objects::nonNull).forEach(investment -> {
+                tempGain.append("Symbol: \"").append(investment.getSymbol()).append("\"\n")
+                        .append("Gain:   ").append(Money.toString(investment.gainMicros())).append("\n\n");
+            });
+
+            return tempGain.toString(); // Return the accumulated string
+        } finally {
+            lock.unlockRead(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.SINGLE_GAIN, start);
+        }
+    }
+
+    /**
+     * Searches for investments based on symbol, keywords, and price range.
+     * 
+     * @param symbol        The symbol of the investment to search for.
+     * @param keywordString The keywords to filter investments.
+     * @param priceLow      The minimum price of the investment.
+     * @param priceHigh     The maximum price of the investment.
+     * @return A string containing all the matching investments.
+     */
+    public String search(String symbol, String keywordString, double priceLow, double priceHigh) {
+        return search(symbol, keywordString, priceLow, priceHigh, NO_PROGRESS);
+    }
 
-                // Parse each line to extract key-value pairs
-                String[] parts = line.split("=");
-                if (parts.length != 2) {
-                    System.out.println("The line format is invalid: " + line);
-                    continue; // Skip invalid lines
+    /**
+     * Searches for investments like search, reporting the number of candidates
+     * checked. A cancelled search returns the matches found so far.
+     * 
+     * @param symbol        The symbol of the investment to search for.
+     * @param keywordString The keywords to filter investments.
+     * @param priceLow      The minimum price of the investment.
+     * @param priceHigh     The maximum price of the investment.
+     * @param progress      Follows the search, and may cancel it.
+     * @return A string containing all the matching investments.
+     */
+    public String search(String symbol, String keywordString, double priceLow, double priceHigh,
+            Progress progress) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.SEARCH);
+        PortfolioEvents.Search event = new PortfolioEvents.Search();
+        event.begin();
+        SearchPlan plan = null;
+        String cached = null;
+        int results = 0;
+        long stamp = lock.readLock();
+        try {
+            // Answer a repeated search from the cache
+            SearchCache.Query query = null;
+            if (searchCache.isEnabled()) {
+                query = new SearchCache.Query(cacheOwner, SearchCache.Query.SEARCH, symbol, keywordString, priceLow, priceHigh);
+                SearchCache.Entry entry = searchCache.get(query);
+                if (entry != null) {
+                    cached = (String) entry.results;
+                    results = entry.count;
+                    return cached;
                 }
+            }
 
-                String key = parts[0].trim().toLowerCase();
-                String value = parts[1].trim().replace("\"", "");
+            StringBuilder Stringmatch = new StringBuilder();
+            plan = planSearch(symbol, keywordString, priceLow, priceHigh);
+            boolean cancelled = false;
 
-                // Switch based on the key and assign appropriate values
-                switch (key) {
-                    case "type":
-                        type = value;
-                        break;
-                    case "symbol":
-                        symbol = value;
-                        break;
-                    case "name":
-                        name = value;
-                        break;
-                    case "quantity":
-                        try {
-                            quantity = Integer.parseInt(value);
-                        } catch (NumberFormatException e) {
-                            System.out.println("Warning: Invalid quantity format in line: " + line);
-                            quantity = -1; // Invalid quantity, skip this entry
-                        }
-                        break;
-                    case "price":
-                        try {
-                            price = Double.parseDouble(value);
-                        } catch (NumberFormatException e) {
-                            System.out.println("Warning: Invalid price format in line: " + line);
-                            price = -1.0; // Invalid price, skip this entry
-                        }
-                        break;
-                    case "bookvalue":
-                        try {
-                            bookValue = Double.parseDouble(value);
-                        } catch (NumberFormatException e) {
-                            System.out.println("Warning: Invalid book value format in line: " + line);
-                            bookValue = -1.0; // Invalid book value, skip this entry
-                        }
-                        break;
-                    default:
-                        System.out.println("Warning: Unknown attribute " + key + " in line: " + line);
+            // Iterate through the filtered investments and check for matches
+            for (int i = 0; i < plan.candidates; i++) {
+                if (i % PROGRESS_INTERVAL == 0) {
+                    if (progress.isCancelled()) {
+                        cancelled = true;
                         break;
+                    }
+                    progress.report(i, plan.candidates);
+                }
+                Investment tempInvestment = investments.get(plan.idAt(i));
+
+                // If all conditions match, add the investment's details to the result string
+                if (plan.matches(tempInvestment)) {
+                    Stringmatch.append(tempInvestment.toString()).append("\n");
+                    results++;
+                }
+            }
+
+            // Keep the results while the read lock still keeps trades out
+            String found = Stringmatch.toString();
+            if (query != null && !cancelled) {
+                searchCache.put(query, found, results);
+            }
+            return found;
+        } finally {
+            lock.unlockRead(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.SEARCH, start);
+            event.record("search", symbol, keywordString, priceLow, priceHigh,
+                    cached != null ? "cache" : plan == null ? "none" : plan.name, plan == null ? 0 : plan.candidates,
+                    results);
+        }
+    }
+
+    /**
+     * Searches for investments like search, returning one page of the matching
+     * holdings instead of their text. Pass null for the first page and the
+     * previous page's key for the next one. In portfolio order the search
+     * stops as soon as the page is full; the other orders check every
+     * candidate but only keep the best limit + 1 of them.
+     * 
+     * @param symbol        The symbol of the investment to search for.
+     * @param keywordString The keywords to filter investments.
+     * @param priceLow      The minimum price of the investment, or -1.
+     * @param priceHigh     The maximum price of the investment, or -1.
+     * @param order         A SearchPage order, such as SearchPage.BY_PORTFOLIO.
+     * @param after         The key the previous page ended at, or null.
+     * @param limit         The largest number of holdings on the page.
+     * @return The page of matching holdings.
+     * @throws ConcurrentModificationException if the holding the previous page
+     *                                         ended at was sold and the ids
+     *                                         were compacted since, in
+     *                                         portfolio order
+     */
+    public SearchPage searchPage(String symbol, String keywordString, double priceLow, double priceHigh,
+            byte order, SearchPage.Key after, int limit) {
+        return searchPage(symbol, keywordString, priceLow, priceHigh, order, after, limit, NO_PROGRESS);
+    }
+
+    /**
+     * Searches for one page of investments like searchPage, reporting the
+     * number of candidates checked. A cancelled search returns the holdings
+     * found so far.
+     * 
+     * @param symbol        The symbol of the investment to search for.
+     * @param keywordString The keywords to filter investments.
+     * @param priceLow      The minimum price of the investment, or -1.
+     * @param priceHigh     The maximum price of the investment, or -1.
+     * @param order         A SearchPage order, such as SearchPage.BY_PORTFOLIO.
+     * @param after         The key the previous page ended at, or null.
+     * @param limit         The largest number of holdings on the page.
+     * @param progress      Follows the search, and may cancel it.
+     * @return The page of matching holdings.
+     */
+    public SearchPage searchPage(String symbol, String keywordString, double priceLow, double priceHigh,
+            byte order, SearchPage.Key after, int limit, Progress progress) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("A page holds at least one holding: " + limit);
+        }
+        long start = PortfolioMetrics.start(PortfolioMetrics.SEARCH);
+        PortfolioEvents.Search event = new PortfolioEvents.Search();
+        event.begin();
+        SearchPlan plan = null;
+        SearchPage cached = null;
+        int checked = 0;
+        boolean cancelled = false;
+        ArrayList<Investment> page = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            // Answer a repeated first page from the cache
+            SearchCache.Query query = null;
+            if (after == null && searchCache.isEnabled()) {
+                query = new SearchCache.Query(cacheOwner, SearchCache.Query.firstPage(order, limit), symbol, keywordString,
+                        priceLow, priceHigh);
+                SearchCache.Entry entry = searchCache.get(query);
+                if (entry != null) {
+                    cached = (SearchPage) entry.results;
+                    return cached;
                 }
+            }
 
-                // Once all fields are collected, create the investment object if the entry is
-                // complete
-                if (!type.isEmpty() && !symbol.isEmpty() && !name.isEmpty() && quantity > 0 && price > 0.0
-                        && bookValue >= 0.0) {
-                    if (type.equalsIgnoreCase("stock")) {
-                        try {
-                            investment = new Stock(symbol, name, quantity, price);
-                        } catch (Exception e) {
-                            System.out.println("Error in creating the Stock investment: " + e.getMessage());
-                            // Skip this investment and continue processing
-                            continue;
+            plan = planSearch(symbol, keywordString, priceLow, priceHigh);
+
+            if (order == SearchPage.BY_PORTFOLIO) {
+                // Every plan gives its candidates in id order, so skip to the
+                // key and stop once one more than the page is found
+                int first = plan.firstAfter(after == null ? -1 : resumeId(after));
+                for (int i = first; i < plan.candidates && page.size() <= limit; i++, checked++) {
+                    if (checked % PROGRESS_INTERVAL == 0) {
+                        if (progress.isCancelled()) {
+                            cancelled = true;
+                            break;
                         }
-                    } else if (type.equalsIgnoreCase("mutualfund")) {
-                        try {
-                            investment = new MutualFund(symbol, name, quantity, price);
-                        } catch (Exception e) {
-                            System.out.println("Error in creating the MutualFund investment: " + e.getMessage());
-                            // Skip this investment and continue processing
-                            continue;
+                        progress.report(i, plan.candidates);
+                    }
+                    Investment investment = investments.get(plan.idAt(i));
+                    if (plan.matches(investment)) {
+                        page.add(investment);
+                    }
+                }
+            } else {
+                // Keep the best limit + 1 holdings after the key, worst on top
+                Comparator<Investment> comparator = SearchPage.comparator(order);
+                int afterId = after == null ? -1 : currentId(after);
+                PriorityQueue<Investment> best = new PriorityQueue<>(limit + 1, comparator.reversed());
+                for (int i = 0; i < plan.candidates; i++, checked++) {
+                    if (checked % PROGRESS_INTERVAL == 0) {
+                        if (progress.isCancelled()) {
+                            cancelled = true;
+                            break;
                         }
+                        progress.report(i, plan.candidates);
                     }
-
-                    // Add the investment to the portfolio and update the keyword index
-                    if (investment != null) {
-                        investments.add(investment);
-                        addToKeywordIndex(name); // Assuming this method adds keyword index
-                        System.out.println("Investment has been loaded successfully: " + investment); // Optional: Log
-                                                                                                      // successful
-                                                                                                      // loading
+                    Investment investment = investments.get(plan.idAt(i));
+                    if (plan.matches(investment) && (after == null || after.precedes(investment, afterId))) {
+                        best.add(investment);
+                        if (best.size() > limit + 1) {
+                            best.poll();
+                        }
                     }
-
-                    // Reset for the next entry
-                    type = "";
-                    symbol = "";
-                    name = "";
-                    quantity = 0;
-                    price = 0.0;
-                    bookValue = 0.0;
                 }
+                page.addAll(best);
+                page.sort(comparator);
             }
 
-            // Confirmation message after reading the investments
-            System.out.println("Investments have been read from the file successfully: " + f_Name);
-
-        } catch (IOException e) {
-            System.out.println("Error in loading the investments from the file: " + e.getMessage());
+            // The holding past the page only tells that there is a next page
+            boolean more = page.size() > limit;
+            if (more) {
+                page.remove(limit);
+            }
+            SearchPage.Key last = page.isEmpty() ? null
+                    : new SearchPage.Key(order, page.get(page.size() - 1), compactions);
+            SearchPage found = new SearchPage(page, more, last);
+            if (query != null && !cancelled) {
+                searchCache.put(query, found, page.size());
+            }
+            return found;
+        } finally {
+            lock.unlockRead(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.SEARCH, start);
+            event.record("searchPage", symbol, keywordString, priceLow, priceHigh,
+                    cached != null ? "cache" : plan == null ? "none" : plan.name, checked,
+                    cached != null ? cached.getHoldings().size() : page.size());
         }
     }
 
     /**
-     * Buys a new investment (either stock or mutual fund) and adds it to the
-     * portfolio.
-     * If an investment with the same symbol already exists, it updates the existing
-     * investment.
+     * Searches for investments like search, handing out the matching holdings
+     * one at a time. Pages of pageSize holdings are fetched with searchPage as
+     * the iterator reaches them, each under its own read lock, so trades can
+     * go on while the results are read.
      * 
-     * @param type     The type of investment ("stock" or "mutualfund").
-     * @param symbol   The symbol of the investment (e.g., stock ticker).
-     * @param name     The name of the investment.
-     * @param quantity The quantity to buy.
-     * @param price    The price per unit of the investment.
-     * @return A message indicating the success or failure of the purchase.
+     * @param symbol        The symbol of the investment to search for.
+     * @param keywordString The keywords to filter investments.
+     * @param priceLow      The minimum price of the investment, or -1.
+     * @param priceHigh     The maximum price of the investment, or -1.
+     * @param order         A SearchPage order, such as SearchPage.BY_PORTFOLIO.
+     * @param pageSize      The number of holdings fetched at a time.
+     * @return An iterator over the matching holdings.
      */
-    public static String buy(String type, String symbol, String name, int quantity, double price) {
-        Investment newInvestment = null;
+    public Iterator<Investment> searchCursor(String symbol, String keywordString, double priceLow,
+            double priceHigh, byte order, int pageSize) {
+        return new Iterator<Investment>() {
+            private SearchPage page = searchPage(symbol, keywordString, priceLow, priceHigh, order, null,
+                    pageSize);
+            private int next = 0;
+
+            public boolean hasNext() {
+                if (next == page.getHoldings().size() && page.hasMore()) {
+                    page = searchPage(symbol, keywordString, priceLow, priceHigh, order, page.getNextKey(),
+                            pageSize);
+                    next = 0;
+                }
+                return next < page.getHoldings().size();
+            }
+
+            public Investment next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.getHoldings().get(next++);
+            }
+        };
+    }
 
+    /**
+     * Counts the investments matching a search like search, stopping once the
+     * count reaches a limit, so "more than 1000 matches" doesn't cost a full
+     * search.
+     * 
+     * @param symbol        The symbol of the investment to search for.
+     * @param keywordString The keywords to filter investments.
+     * @param priceLow      The minimum price of the investment, or -1.
+     * @param priceHigh     The maximum price of the investment, or -1.
+     * @param limit         The count at which to stop.
+     * @return The number of matches, or limit if there are at least that many.
+     */
+    public int countMatches(String symbol, String keywordString, double priceLow, double priceHigh, int limit) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.SEARCH);
+        PortfolioEvents.Search event = new PortfolioEvents.Search();
+        event.begin();
+        SearchPlan plan = null;
+        int checked = 0;
+        int count = 0;
+        long stamp = lock.readLock();
         try {
-            // Create a new investment based on the type
-            if (type.equalsIgnoreCase("stock")) {
-                newInvestment = new Stock(symbol, name, quantity, price);
-            } else if (type.equalsIgnoreCase("mutualfund")) {
-                newInvestment = new MutualFund(symbol, name, quantity, price);
-            } else {
-                return "Invalid investment Type '" + type + "'.";
+            plan = planSearch(symbol, keywordString, priceLow, priceHigh);
+            if (plan.keywordsChecked && plan.pricesChecked && symbol.isEmpty() && plan.index != null) {
+                // The indexes hold no tombstones, so every candidate matches
+                return count = Math.min(plan.candidates, limit);
             }
-        } catch (Exception e) {
-            return "Failed to Create The Investment. The Details are as shown: " + e.toString();
+            for (; checked < plan.candidates && count < limit; checked++) {
+                if (plan.matches(investments.get(plan.idAt(checked)))) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.SEARCH, start);
+            event.record("countMatches", symbol, keywordString, priceLow, priceHigh,
+                    plan == null ? "none" : plan.name, checked, count);
         }
+    }
 
-        // Check if the investment symbol already exists in the opposite investment type
-        int index = findInvestment(symbol);
-        if (index != -1) {
-            Investment newInvestment1 = investments.get(index);
+    /**
+     * The candidates of a search and the checks they still need.
+     */
+    private final class SearchPlan {
 
-            if ((type.equalsIgnoreCase("stock") && newInvestment1 instanceof MutualFund) ||
-                    (type.equalsIgnoreCase("mutualfund") && newInvestment1 instanceof Stock)) {
-                return "Error: Symbol '" + symbol
-                        + "' already exists in the other investment type.";
-            } else {
-                // Update the existing investment's quantity and price
-                newInvestment1.setQuantity(quantity + newInvestment1.getQuantity());
-                newInvestment1.setPrice(price);
-                newInvestment1.calculateBookValue(quantity, price);
-                return quantity + " Units were successfully added to an existing investment:\n\n"
-                        + newInvestment1.toString();
+        /** The index the candidates came from, for events. */
+        String name;
+
+        /** The sorted ids of the candidates, or null for every id. */
+        int[] index;
+
+        /** The number of candidates. */
+        int candidates;
+
+        /** The symbol searched for, or empty. */
+        String symbol;
+
+        /** The posting lists of the keywords. */
+        PostingList[] keywordLists;
+
+        /** Whether every candidate is known to have the keywords. */
+        boolean keywordsChecked = true;
+
+        /** Whether no price range was given, so every price matches. */
+        boolean pricesChecked = false;
+
+        /** The price range in micro-units. */
+        long lowMicros;
+        long highMicros;
+
+        /**
+         * Gets the id of a candidate.
+         *
+         * @param i the position among the candidates
+         * @return the id
+         */
+        int idAt(int i) {
+            return index == null ? i : index[i];
+        }
+
+        /**
+         * Finds the first candidate after an id.
+         *
+         * @param id the id, or -1 for the start
+         * @return the position of the first candidate with a larger id
+         */
+        int firstAfter(int id) {
+            if (index == null) {
+                return Math.min(id + 1, candidates);
             }
+            int position = Arrays.binarySearch(index, 0, candidates, id + 1);
+            return position >= 0 ? position : -position - 1;
         }
 
-        // Calculate book value for the new investment and add it to the list
-        newInvestment.calculateBookValue(quantity, price);
-        investments.ensureCapacity(investments.size() + 1); // Ensure capacity for the new investment
-        investments.add(newInvestment);
+        /**
+         * Checks a candidate against the parts of the search its index didn't.
+         *
+         * @param investment the candidate, or null for a tombstone
+         * @return true if it matches the search
+         */
+        boolean matches(Investment investment) {
+            if (investment == null) {
+                return false; // Skip tombstones
+            }
 
-        // Tokenize the investment name and add keywords to the index
-        addToKeywordIndex(newInvestment.getName());
+            // Check if symbol matches
+            if (!symbol.isEmpty() && !investment.getSymbol().equals(symbol)) {
+                return false;
+            }
 
-        // Return success message
-        return quantity + " Purchase was successfully made for " + symbol + ":\n\n" + newInvestment.toString();
+            // Check if price matches the range
+            long price = investment.getPriceMicros();
+            if (price < lowMicros || price > highMicros) {
+                return false;
+            }
+
+            // Check the keywords if the candidates didn't come from them
+            if (!keywordsChecked) {
+                for (PostingList locations : keywordLists) {
+                    if (!locations.contains(investment.getId())) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
     }
 
     /**
-     * Sells a specified quantity of shares from an investment and returns the
-     * payment received.
+     * Picks the cheapest way to find the candidates of a search. The caller
+     * must hold a lock.
      * 
-     * @param symbol   The symbol of the investment to sell.
-     * @param quantity The quantity of shares to sell.
-     * @param price    The price at which the shares are sold.
-     * @return A message indicating the result of the sale.
+     * @param symbol        The symbol of the investment to search for.
+     * @param keywordString The keywords to filter investments.
+     * @param priceLow      The minimum price of the investment, or -1.
+     * @param priceHigh     The maximum price of the investment, or -1.
+     * @return The plan, with no candidates if nothing can match.
      */
-    public static String sell(String symbol, int quantity, double price) {
-        // Find the matching investment index
-        int indexMatch = findInvestment(symbol);
+    private SearchPlan planSearch(String symbol, String keywordString, double priceLow, double priceHigh) {
+        SearchPlan plan = new SearchPlan();
+        plan.symbol = symbol;
 
-        // If a matching investment is found
-        if (indexMatch != -1) {
-            Investment sellInvestment = investments.get(indexMatch); // Get the investment object
-            int oldQuantity = sellInvestment.getQuantity(); // Store the current quantity
+        // Only use the price index if a price range was given
+        boolean priceFilter = priceLow != -1 || priceHigh != -1;
 
-            // Check if enough quantity is available to sell
-            if (oldQuantity >= quantity) {
-                sellInvestment.setPrice(price); // Update the price
-                sellInvestment.setQuantity(oldQuantity - quantity); // Update the quantity
-                sellInvestment.bValueSellC(oldQuantity); // Recalculate book value
+        // Set default values for price range if not specified
+        double low = priceLow == -1 ? 0 : priceLow;
+        double high = priceHigh == -1 ? Integer.MAX_VALUE : priceHigh;
+
+        // Compare prices in micro-units, like the investments hold them
+        plan.lowMicros = Money.ceilMicros(low);
+        plan.highMicros = Money.floorMicros(high);
+
+        // Look up the keywords first, since a missing keyword ends the search
+        plan.keywordLists = findKeywordLists(keywordString);
+        if (plan.keywordLists == null) {
+            // At least one keyword matches no investments
+            plan.name = "keywords";
+            plan.index = new int[0];
+            return plan;
+        }
 
-                // Remove the investment if all shares are sold
-                if (sellInvestment.getQuantity() == 0) {
-                    removeFromkeyWordIndex(investments.indexOf(sellInvestment)); // Remove from keyword index
-                    investments.remove(indexMatch); // Remove from list
-                    investments.trimToSize(); // Adjust list size
+        // Pick the cheapest way to find the candidates, filling indexes array
+        if (!symbol.isEmpty()) {
+            // A symbol matches at most one investment
+            plan.name = "symbol";
+            int id = findInvestment(symbol);
+            plan.index = id == -1 ? new int[0] : new int[] { id };
+            plan.keywordsChecked = plan.keywordLists.length == 0;
+        } else if (plan.keywordLists.length > 0) {
+            plan.name = "keywords";
+
+            // Use the price range instead of the keywords if it turns out to hold
+            // fewer investments than the rarest keyword
+            if (priceFilter) {
+                int keywordEstimate = Integer.MAX_VALUE;
+                for (PostingList locations : plan.keywordLists) {
+                    keywordEstimate = Math.min(keywordEstimate, locations.size());
                 }
+                plan.index = findPriceRange(low, high, keywordEstimate);
+                plan.keywordsChecked = plan.index == null;
+                if (plan.index != null) {
+                    plan.name = "price";
+                }
+            }
 
-                // Return the payment earned from selling
-                return "The payment received from selling " + quantity + " shares of " + symbol + " is: "
-                        + sellInvestment.payment(quantity);
-            } else {
-                // Error message if selling more than available quantity
-                return "ERROR: Cannot sell " + quantity + " shares when only " + oldQuantity + " exist.";
+            // Intersect the matches of every keyword, smallest list first
+            if (plan.index == null) {
+                plan.index = PostingList.intersect(plan.keywordLists);
+                plan.pricesChecked = !priceFilter;
             }
+        } else if (priceFilter) {
+            // Only a price range was given
+            plan.name = "price";
+            plan.index = findPriceRange(low, high, Integer.MAX_VALUE);
         } else {
-            // Error message if no investment matches the given symbol
-            return "ERROR: No investments exist with symbol: '" + symbol + "'.";
+            // If no keywords are provided, consider all investments
+            plan.name = "scan";
+            plan.index = null;
+            plan.pricesChecked = true;
         }
+        plan.candidates = plan.index == null ? investments.size() : plan.index.length;
+        return plan;
     }
 
     /**
-     * Updates the price of an investment and returns the updated details.
+     * Finds the id a page in portfolio order ended at, which may have changed
+     * if the ids were compacted since. The caller must hold a lock.
      * 
-     * @param investment1 The investment to be updated.
-     * @param newPrice    The new price for the investment.
-     * @return A message indicating the successful update and details of the
-     *         investment.
+     * @param after the key of the previous page's last holding
+     * @return the id to resume after
+     * @throws ConcurrentModificationException if the holding was sold and the
+     *                                         ids were compacted since
      */
-    public static String update(Investment investment1, double newPrice) {
-        // Update the price of the investment
-        investment1.setPrice(newPrice);
-
-        // Return success message and updated investment details
-        return String.format("Investment was successfully updated.\n%s\n\n", investment1);
+    private int resumeId(SearchPage.Key after) {
+        int id = currentId(after);
+        if (id < 0) {
+            throw new ConcurrentModificationException("The holding the page ended at was sold: " + after.symbol);
+        }
+        return id;
     }
 
     /**
-     * Calculates and returns the total gain of all investments.
+     * Finds the id a page ended at like resumeId, without throwing. The caller
+     * must hold a lock.
      * 
-     * @return A string representation of the total gain.
+     * @param after the key of the previous page's last holding
+     * @return the id now, or -1 if the holding was sold and the ids were
+     *         compacted since
      */
-    public static String getGain() {
-        // Calculate total gain by iterating over the investments list
-        double totalGain = investments.stream()
-                .mapToDouble(Investment::Gain) // Calculate gain for each investment
-                .sum(); // Sum all the gains
-
-        return String.valueOf(totalGain); // Return the total gain as a string
+    private int currentId(SearchPage.Key after) {
+        if (after.compactions == compactions) {
+            return after.id; // Ids stay put until a compaction
+        }
+        int id = after.holding.getId(); // -1 once sold
+        if (id >= 0 && id < investments.size() && investments.get(id) == after.holding) {
+            return id;
+        }
+        return -1;
     }
 
     /**
-     * Returns the individual gain of each investment in a formatted string.
+     * Searches for investments whose names have a word that matches a partial or
+     * misspelled query. Results are ranked by how well the best word matches:
+     * the exact word first, then words starting with the query, then words
+     * containing it, then words within a few typing mistakes of it.
      * 
-     * @return A string containing individual gains for each investment.
+     * @param query The partial or misspelled word to search for.
+     * @param limit The largest number of investments to return.
+     * @return A string containing the best matching investments.
      */
-    public static String getSingleGain() {
-        // Build a string with all individual gains using StringBuilder for performance
-        StringBuilder tempGain = new StringBuilder();
+    public String searchName(String query, int limit) {
+        long start = PortfolioMetrics.start(PortfolioMetrics.SEARCH_NAME);
+        PortfolioEvents.Search event = new PortfolioEvents.Search();
+        event.begin();
+        int results = 0;
+        long stamp = lock.readLock();
+        try {
+            String term = cleanInput(query);
 
-        // Iterate over the investment list and append the gain for each investment
-        investments.forEach(investment -> {
-            tempGain.append("Symbol: \"").append(investment.getSymbol()).append("\"\n")
-                    .append("Gain:   ").append(investment.Gain()).append("\n\n");
-        });
+            // Allow one mistake in short words and two in longer ones
+            int maxEdits = term.length() < 6 ? 1 : 2;
 
-        return tempGain.toString(); // Return the accumulated string
+            StringBuilder Stringmatch = new StringBuilder();
+            HashSet<Integer> found = new HashSet<>();
+
+            // Take the investments of each matching word until the limit is reached
+            IndexofName.match(term, maxEdits, word -> {
+                PostingList locations = IndexofKeyword.get(word);
+                for (int i = 0; i < locations.size() && found.size() < limit; i++) {
+                    int id = locations.get(i);
+                    if (found.add(id)) {
+                        Stringmatch.append(investments.get(id).toString()).append("\n");
+                    }
+                }
+                return found.size() < limit;
+            });
+
+            results = found.size();
+            return Stringmatch.toString();
+        } finally {
+            lock.unlockRead(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.SEARCH_NAME, start);
+            event.record("searchName", "", query, -1, -1, "name", results, results);
+        }
     }
 
     /**
-     * Searches for investments based on symbol, keywords, and price range.
+     * Finds the ids of the investments priced within a range using the price
+     * index. The walk stops early once more than limit ids are found, so the
+     * caller can fall back to a cheaper plan. A range holding a large part of
+     * the portfolio is read from the price column instead, which is a single
+     * pass and gives the ids already sorted.
      * 
-     * @param symbol        The symbol of the investment to search for.
-     * @param keywordString The keywords to filter investments.
-     * @param priceLow      The minimum price of the investment.
-     * @param priceHigh     The maximum price of the investment.
-     * @return A string containing all the matching investments.
+     * @param priceLow  the minimum price (inclusive)
+     * @param priceHigh the maximum price (inclusive)
+     * @param limit     the largest number of ids worth collecting
+     * @return the sorted ids in the range, or null if there are more than limit
      */
-    public static String search(String symbol, String keywordString, double priceLow, double priceHigh) {
-        StringBuilder Stringmatch = new StringBuilder();
-        ArrayList<Integer> index = new ArrayList<>();
-        String[] Arraykeyword = keywordString.split(" "); // Split the input keywords
-
-        // Set default values for price range if not specified
-        if (priceLow == -1)
-            priceLow = 0;
-        if (priceHigh == -1)
-            priceHigh = Integer.MAX_VALUE;
+    private int[] findPriceRange(double priceLow, double priceHigh, int limit) {
+        if (priceLow > priceHigh) {
+            return new int[0];
+        }
 
-        // Process keyword search, filling indexes array
-        if (!keywordString.isEmpty()) {
-            index = IndexofKeyword.get(cleanInput(Arraykeyword[0])); // Get the first keyword matches
-            for (int i = 1; i < Arraykeyword.length; i++) {
-                if (index != null) {
-                    index.retainAll(IndexofKeyword.get(cleanInput(Arraykeyword[i]))); // Retain common elements
-                }
-            }
-        } else {
-            // If no keywords are provided, consider all investments
-            for (int i = 0; i < investments.size(); i++) {
-                index.add(i);
+        // Count the range first, which doesn't copy anything
+        Collection<PostingList> range = IndexofPrice.subMap(priceLow, true, priceHigh, true).values();
+        int total = 0;
+        for (PostingList locations : range) {
+            total += locations.size();
+            if (total > limit) {
+                return null;
             }
         }
+        if (total > (investments.size() - tombstones) / 8) {
+            return columns.findInPriceBand(priceLow, priceHigh);
+        }
 
-        // Iterate through the filtered investments and check for matches
-        for (int index1 : index) {
-            Investment tempInvestment = investments.get(index1);
-            boolean printMatch = true;
-
-            // Check if symbol matches
-            if (!symbol.isEmpty() && !tempInvestment.getSymbol().equals(symbol)) {
-                printMatch = false;
+        int[] ids = new int[total];
+        int count = 0;
+        for (PostingList locations : range) {
+            for (int i = 0; i < locations.size(); i++) {
+                ids[count++] = locations.get(i);
             }
+        }
 
-            // Check if price matches the range
-            if (tempInvestment.getPrice() < priceLow || tempInvestment.getPrice() > priceHigh) {
-                printMatch = false;
+        // Return the ids in portfolio order, like the other search paths
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Looks up the posting list of every keyword in a search string.
+     * 
+     * @param keywordString the keywords separated by spaces
+     * @return the posting lists of the keywords (empty if there are no keywords),
+     *         or null if some keyword matches no investments
+     */
+    private PostingList[] findKeywordLists(String keywordString) {
+        String[] Arraykeyword = keywordString.trim().split("\\s+"); // Split the input keywords
+        PostingList[] lists = new PostingList[Arraykeyword.length];
+        int count = 0;
+
+        for (String keyword : Arraykeyword) {
+            String cleaned = cleanInput(keyword);
+            if (cleaned.isEmpty()) {
+                continue; // Ignore blank input
             }
 
-            // If all conditions match, add the investment's details to the result string
-            if (printMatch) {
-                Stringmatch.append(tempInvestment.toString()).append("\n");
+            PostingList locations = IndexofKeyword.get(cleaned);
+            if (locations == null) {
+                return null;
             }
+            lists[count++] = locations;
         }
 
-        return Stringmatch.toString();
+        return Arrays.copyOf(lists, count);
     }
 
     /**
@@ -447,21 +2275,31 @@ public class Portfolio {
     }
 
     /**
-     * Finds the index of an investment by its symbol.
+     * Finds the id of an investment by its symbol.
      * 
      * @param symbol The symbol of the investment to search for.
-     * @return The index of the investment, or -1 if not found.
+     * @return The id of the investment, or -1 if not found.
      */
-    public static int findInvestment(String symbol) {
-        // Iterate through the investment list to find a matching symbol
-        for (int i = 0; i < investments.size(); i++) {
-            // If a match is found, return the index immediately
-            if (investments.get(i).getSymbol().equals(symbol)) {
-                return i;
-            }
-        }
+    public int findInvestment(String symbol) {
+        // Look the symbol up in the symbol index instead of scanning the list
+        Integer index = IndexofSymbol.get(symbol);
+
         // Return -1 if no match is found
-        return -1;
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Gets the holding with a symbol, looking its id up and reading it in one
+     * read, so a compaction can't renumber the id in between.
+     * 
+     * @param symbol the symbol of the holding
+     * @return the live holding, or null if the symbol isn't held
+     */
+    Investment getInvestmentBySymbol(String symbol) {
+        return readOptimistically(() -> {
+            Integer id = IndexofSymbol.get(symbol);
+            return id == null ? null : investments.get(id);
+        });
     }
 
     /**
@@ -480,125 +2318,638 @@ public class Portfolio {
      * 
      * @return a formatted string containing the investments' details
      */
-    public static String printInvestments() {
-        StringBuilder returnString = new StringBuilder("STOCKS===========================\n");
+    public String printInvestments() {
+        long start = PortfolioMetrics.start(PortfolioMetrics.PRINT);
+        long stamp = lock.readLock();
+        try {
+            StringBuilder returnString = new StringBuilder("STOCKS===========================\n");
+
+            // Print all stocks
+            investments.stream()
+                    .filter(investment -> investment instanceof Stock) // Also skips tombstones
+                    .forEach(investment -> returnString.append(investment.toString()).append("\n"));
+
+            returnString.append("MUTUAL FUNDS=====================\n");
+
+            // Print all mutual funds
+            investments.stream()
+                    .filter(investment -> investment instanceof MutualFund) // Also skips tombstones
+                    .forEach(investment -> returnString.append(investment.toString()).append("\n"));
+
+            return returnString.toString();
+        } finally {
+            lock.unlockRead(stamp);
+            PortfolioMetrics.stop(PortfolioMetrics.PRINT, start);
+        }
+    }
+
+    /**
+     * Appends an investment to the list with the next id and registers it in the
+     * symbol, keyword and price indexes.
+     * 
+     * @param investment the investment to add
+     */
+    private void addHolding(Investment investment) {
+        addHolding(investment, null);
+    }
+
+    /**
+     * Adds an investment like addHolding, optionally leaving the keywords that
+     * are new to the portfolio for the caller to add to the name index in bulk.
+     * 
+     * @param investment  the investment to add
+     * @param newKeywords receives the new keywords, or null to add them to the
+     *                    name index right away
+     */
+    private void addHolding(Investment investment, ArrayList<String> newKeywords) {
+        // Share the strings with every other portfolio holding the same investment
+        investment.setSymbol(StringPool.intern(investment.getSymbol()));
+        investment.setName(StringPool.intern(investment.getName()));
+
+        investment.setId(investments.size());
+        investments.add(investment);
 
-        // Print all stocks
-        investments.stream()
-                .filter(investment -> investment instanceof Stock)
-                .forEach(investment -> returnString.append(investment.toString()).append("\n"));
+        // Keep the first id for a symbol, matching the old linear scan
+        if (IndexofSymbol.putIfAbsent(investment.getSymbol(), investment.getId()) != null) {
+            duplicateSymbols.merge(investment.getSymbol(), 1, Integer::sum);
+        }
 
-        returnString.append("MUTUAL FUNDS=====================\n");
+        // Tokenize the investment name and add keywords to the index
+        addToKeywordIndex(investment.getId(), investment.getName(), newKeywords);
 
-        // Print all mutual funds
-        investments.stream()
-                .filter(investment -> investment instanceof MutualFund)
-                .forEach(investment -> returnString.append(investment.toString()).append("\n"));
+        // Add the investment to the price index
+        IndexofPrice.computeIfAbsent(investment.getPrice(), key -> new PostingList()).add(investment.getId());
 
-        return returnString.toString();
+        track(investment);
     }
 
     /**
-     * Removes the investment's index from the keyword index.
+     * Removes the investment with the given id from the symbol, keyword and
+     * price indexes and leaves a tombstone in its slot. Only the keywords of the
+     * removed investment are touched; the other ids don't change until the
+     * list is compacted. The caller takes the investment out of the gain
+     * totals before changing it.
      * 
-     * @param index the index of the investment to remove from the keyword index
+     * @param id the id of the investment to remove
      */
-    private static void removeFromkeyWordIndex(Integer index) {
-        List<String> keysToRemove = new ArrayList<>(); // To store keys to be removed
+    private void removeHolding(int id) {
+        Investment removed = investments.get(id);
+
+        removeFromkeyWordIndex(id, removed.getName()); // Remove from keyword index
+        removeFromSymbolIndex(id, removed.getSymbol()); // Remove from symbol index
+        removeFromPriceIndex(id, removed.getPrice()); // Remove from price index
+        columns.remove(id);
+        investments.set(id, null); // Leave a tombstone in the list
+        removed.setId(-1);
+        tombstones++;
+        for (HoldingListener listener : listeners) {
+            listener.holdingRemoved(removed);
+        }
 
-        // Iterate through all keys in the map
-        for (String currentKey : IndexofKeyword.keySet()) {
-            ArrayList<Integer> locations = IndexofKeyword.get(currentKey);
+        // Compact once the tombstones take up more than half of the list
+        if (tombstones >= COMPACT_THRESHOLD && tombstones > investments.size() - tombstones) {
+            compact();
+        }
+    }
 
-            // Remove the index from the locations list
-            if (locations.remove(index)) {
-                // Trim the size after removal
-                locations.trimToSize();
+    /**
+     * Removes an investment's id from the symbol index. If another holding
+     * has the same symbol, the index is pointed at the first of those still
+     * held, so it can still be found.
+     * 
+     * @param id     the id of the investment being removed
+     * @param symbol its symbol
+     */
+    private void removeFromSymbolIndex(int id, String symbol) {
+        Integer extra = duplicateSymbols.get(symbol);
+        if (extra == null) {
+            IndexofSymbol.remove(symbol, id);
+            return;
+        }
+        if (extra == 1) {
+            duplicateSymbols.remove(symbol);
+        } else {
+            duplicateSymbols.put(symbol, extra - 1);
+        }
+        if (IndexofSymbol.get(symbol) != id) {
+            return; // A later duplicate is removed; the first stays indexed
+        }
 
-                // Decrease the value of all indexes greater than the current one
-                for (int j = 0; j < locations.size(); j++) {
-                    if (locations.get(j) > index) {
-                        locations.set(j, locations.get(j) - 1);
-                    }
-                }
+        // Scan for the next holding with the symbol; only duplicates pay this
+        for (int other = 0; other < investments.size(); other++) {
+            Investment investment = investments.get(other);
+            if (other != id && investment != null && investment.getSymbol().equals(symbol)) {
+                IndexofSymbol.put(symbol, other);
+                return;
+            }
+        }
+        IndexofSymbol.remove(symbol, id); // Not reached while the count is right
+    }
+
+    /**
+     * Removes several investments like removeHolding, but updates each keyword
+     * and price list once for all of them instead of once per investment,
+     * which matters when many holdings share the same keywords. Like
+     * removeHolding, the gain totals are left to the caller.
+     * 
+     * @param removed the investments to remove
+     */
+    private void removeHoldings(ArrayList<Investment> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+
+        // Gather the ids to drop from each list, in id order
+        removed.sort(Comparator.comparingInt(Investment::getId));
+        HashMap<String, PostingList> idsByKeyword = new HashMap<>();
+        HashMap<Double, PostingList> idsByPrice = new HashMap<>();
+        for (Investment investment : removed) {
+            int id = investment.getId();
+            for (String word : splitName(investment.getName())) {
+                idsByKeyword.computeIfAbsent(word, key -> new PostingList()).add(id);
+            }
+            idsByPrice.computeIfAbsent(investment.getPrice(), key -> new PostingList()).add(id);
+            removeFromSymbolIndex(id, investment.getSymbol());
+            columns.remove(id);
+            investments.set(id, null); // Leave a tombstone in the list
+            investment.setId(-1);
+            tombstones++;
+            for (HoldingListener listener : listeners) {
+                listener.holdingRemoved(investment);
+            }
+        }
 
-                // If the locations list is empty, mark the key for removal
+        // Remove the ids, and the keywords no investment uses any more
+        ArrayList<String> unused = new ArrayList<>();
+        for (Map.Entry<String, PostingList> entry : idsByKeyword.entrySet()) {
+            PostingList locations = IndexofKeyword.get(entry.getKey());
+            if (locations != null) {
+                locations.removeAll(entry.getValue());
                 if (locations.isEmpty()) {
-                    keysToRemove.add(currentKey);
-                } else {
-                    // Update the map with the modified list of locations
-                    IndexofKeyword.put(currentKey, locations);
+                    IndexofKeyword.remove(entry.getKey());
+                    unused.add(entry.getKey());
+                }
+            }
+        }
+        IndexofName.removeAll(unused);
+        for (Map.Entry<Double, PostingList> entry : idsByPrice.entrySet()) {
+            PostingList locations = IndexofPrice.get(entry.getKey());
+            if (locations != null) {
+                locations.removeAll(entry.getValue());
+                if (locations.isEmpty()) {
+                    IndexofPrice.remove(entry.getKey());
                 }
             }
         }
 
-        // Remove all keys that are empty
-        for (String key : keysToRemove) {
-            IndexofKeyword.remove(key);
+        // Compact once the tombstones take up more than half of the list
+        if (tombstones >= COMPACT_THRESHOLD && tombstones > investments.size() - tombstones) {
+            compact();
+        }
+    }
+
+    /**
+     * Removes the tombstones from the investments list and renumbers the
+     * remaining investments in their current order. The indexes are remapped in
+     * place, which keeps every posting list sorted.
+     */
+    private void compact() {
+        if (tombstones == 0) {
+            return;
+        }
+
+        // Slide the live investments down and record the new id of each old one
+        int[] newIds = new int[investments.size()];
+        int live = 0;
+        for (int oldId = 0; oldId < investments.size(); oldId++) {
+            Investment investment = investments.get(oldId);
+            if (investment != null) {
+                newIds[oldId] = live;
+                investment.setId(live);
+                columns.move(oldId, live);
+                investments.set(live++, investment);
+            }
+        }
+        investments.subList(live, investments.size()).clear();
+        columns.truncate(live);
+        investments.trimToSize();
+        tombstones = 0;
+        compactions++;
+
+        // Point every index at the new ids
+        for (PostingList locations : IndexofKeyword.values()) {
+            locations.remap(newIds);
+        }
+        for (PostingList locations : IndexofPrice.values()) {
+            locations.remap(newIds);
+        }
+        for (Map.Entry<String, Integer> entry : IndexofSymbol.entrySet()) {
+            entry.setValue(newIds[entry.getValue()]);
+        }
+    }
+
+    /**
+     * Collects the investments that are still held, skipping tombstones.
+     * 
+     * @return the live investments, in portfolio order
+     */
+    private ArrayList<Investment> liveInvestments() {
+        ArrayList<Investment> live = new ArrayList<>(investments.size() - tombstones);
+        for (Investment investment : investments) {
+            if (investment != null) {
+                live.add(investment);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Removes every investment and clears all indexes.
+     */
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            investments.clear();
+            IndexofKeyword.clear();
+            IndexofName.clear();
+            IndexofSymbol.clear();
+            duplicateSymbols.clear();
+            IndexofPrice.clear();
+            totals.clear();
+            columns.clear();
+            history.clear();
+            searchCache.clear(cacheOwner);
+            tombstones = 0;
+            for (HoldingListener listener : listeners) {
+                listener.holdingsCleared();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a holding to the gain totals and copies its numbers into the
+     * columns, after it was added or changed.
+     * 
+     * @param investment the holding
+     */
+    private void track(Investment investment) {
+        totals.add(investment);
+        columns.set(investment);
+        searchCache.invalidate(cacheOwner, investment);
+        for (HoldingListener listener : listeners) {
+            listener.holdingChanged(investment);
+        }
+    }
+
+    /**
+     * Checks that a holding can take a trade: that its market value at the
+     * new quantity and price, its book value with the purchase, and the gain
+     * totals with all of it still fit in micro-units. Trades check this before
+     * changing anything, so one that would overflow is refused and leaves the
+     * holding, the indexes and the totals as they were.
+     * 
+     * @param totals   the totals to check against
+     * @param holding  the holding traded
+     * @param counted  true if the holding's current share is in the totals
+     * @param quantity the quantity the holding would have
+     * @param bought   the number of units bought, or 0
+     * @param price    the price the holding would have, in micro-units
+     * @return true if the holding and the totals fit
+     */
+    private static boolean fits(GainTotals totals, Investment holding, boolean counted, long quantity, int bought,
+            long price) {
+        if (quantity > Integer.MAX_VALUE) {
+            return false;
+        }
+        try {
+            long cost = bought == 0 ? 0 : holding.costMicros(bought, price);
+            long bookValue = Math.addExact(holding.getBookValueMicros(), cost);
+            long marketValue = holding.paymentMicros((int) quantity, price);
+            return totals.fits(counted ? holding : null, holding instanceof MutualFund, bookValue, marketValue);
+        } catch (ArithmeticException e) {
+            return false;
         }
     }
 
     /**
-     * Adds an investment's index to the keyword index.
+     * Takes a holding out of the gain totals before it is changed or removed.
+     * Its row in the columns is overwritten by track or freed on removal.
      * 
-     * @param name the name of the investment to add to the keyword index
+     * @param investment the holding
      */
-    private static void addToKeywordIndex(String name) {
-        // Clean up the input string: trim, replace multiple spaces, and convert to
-        // lowercase
-        name = name.trim().replaceAll("\\s+", " ").toLowerCase();
+    private void untrack(Investment investment) {
+        totals.remove(investment);
+        searchCache.invalidate(cacheOwner, investment);
+    }
 
-        // Split the cleaned name into words
-        String[] words = name.split(" ");
+    /**
+     * Adds a holding's current price to the price history, at the current
+     * time, or at the time of its record for a trade replayed from the
+     * journal. Replayed records without a time aren't added.
+     * 
+     * @param investment the holding that was traded or repriced
+     */
+    private void recordPrice(Investment investment) {
+        long time = replaying ? replayTime : System.currentTimeMillis();
+        if (time != 0) {
+            history.record(investment.getSymbol(), time, investment.getPrice());
+        }
+    }
 
-        // Iterate through all words in the array
-        for (String word : words) {
-            // Get the list of locations associated with the word
-            ArrayList<Integer> locations = (ArrayList<Integer>) IndexofKeyword.getOrDefault(word,
-                    new ArrayList<Integer>());
+    /**
+     * Writes the price history next to a portfolio file. The caller must hold
+     * the lock.
+     * 
+     * @param f_Name The portfolio file name.
+     */
+    private void writeHistory(String f_Name) {
+        try {
+            history.write(Paths.get(f_Name + PriceHistory.EXTENSION));
+        } catch (IOException e) {
+            System.out.println("Error in writing the price history to the file: " + f_Name
+                    + PriceHistory.EXTENSION);
+        }
+    }
+
+    /**
+     * Reads the price history next to a portfolio file, if there is one. The
+     * caller must hold the write lock.
+     * 
+     * @param f_Name The portfolio file name.
+     */
+    private void readHistory(String f_Name) {
+        Path file = Paths.get(f_Name + PriceHistory.EXTENSION);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            history.read(file);
+        } catch (IOException e) {
+            System.out.println("Error in loading the price history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Changes the price of an investment and moves it to its new place in the
+     * price index.
+     * 
+     * @param investment the investment to reprice
+     * @param price      the new price
+     */
+    private void setHoldingPrice(Investment investment, double price) {
+        int id = investment.getId();
+
+        // Investments outside the portfolio (like the empty placeholder) aren't indexed
+        if (id == -1 || investments.get(id) != investment) {
+            investment.setPrice(price);
+            return;
+        }
+
+        removeFromPriceIndex(id, investment.getPrice());
+        investment.setPrice(price);
+        // Index the price as rounded to micro-units, which later lookups use
+        IndexofPrice.computeIfAbsent(investment.getPrice(), key -> new PostingList()).add(id);
+    }
+
+    /**
+     * Removes an investment's id from the price index.
+     * 
+     * @param id    the id of the investment
+     * @param price the price the investment is indexed under
+     */
+    private void removeFromPriceIndex(int id, double price) {
+        PostingList locations = IndexofPrice.get(price);
+        if (locations != null) {
+            locations.remove(id);
+            if (locations.isEmpty()) {
+                IndexofPrice.remove(price);
+            }
+        }
+    }
+
+    /**
+     * Removes an investment's id from the keyword index. Only the keywords in
+     * the investment's own name are visited.
+     * 
+     * @param id   the id of the investment to remove from the keyword index
+     * @param name the name of the investment
+     */
+    private void removeFromkeyWordIndex(int id, String name) {
+        for (String word : splitName(name)) {
+            PostingList locations = IndexofKeyword.get(word);
+            if (locations == null) {
+                continue;
+            }
+
+            // Remove the id, and the keyword itself once no investment uses it
+            locations.remove(id);
+            if (locations.isEmpty()) {
+                IndexofKeyword.remove(word);
+                IndexofName.remove(word);
+            }
+        }
+    }
 
-            // Ensure the list contains the index of the current investment
-            if (!locations.contains(investments.size() - 1)) {
-                locations.add(investments.size() - 1);
+    /**
+     * Adds an investment's id to the keyword index.
+     * 
+     * @param id          the id of the investment to add to the keyword index
+     * @param name        the name of the investment to add to the keyword index
+     * @param newKeywords receives the keywords new to the index, or null to add
+     *                    them to the name index right away
+     */
+    private void addToKeywordIndex(int id, String name, ArrayList<String> newKeywords) {
+        // Iterate through all words in the name
+        for (String word : splitName(name)) {
+            // Get the list of locations associated with the word
+            PostingList locations = IndexofKeyword.get(word);
+            if (locations == null) {
+                // A new keyword is also added to the name index
+                word = StringPool.intern(word);
+                locations = new PostingList();
+                IndexofKeyword.put(word, locations);
+                if (newKeywords == null) {
+                    IndexofName.add(word);
+                } else {
+                    newKeywords.add(word);
+                }
             }
 
-            // Put the updated list of locations back into the map
-            IndexofKeyword.put(word, locations);
+            // Add the id of the current investment (ignored if already present)
+            locations.add(id);
+        }
+    }
+
+    /**
+     * Splits an investment name into the keywords used by the keyword index.
+     * 
+     * @param name the name of the investment
+     * @return the lower-cased words of the name
+     */
+    static String[] splitName(String name) {
+        // Clean up the input string: trim and convert to lowercase
+        name = name.trim().toLowerCase();
+
+        // Split the cleaned name into words at runs of the characters of the
+        // regular expression \s, without compiling one; the search cache
+        // splits a name on every trade
+        ArrayList<String> words = new ArrayList<>(4);
+        int start = -1;
+        for (int i = 0; i <= name.length(); i++) {
+            char c = i == name.length() ? ' ' : name.charAt(i);
+            boolean space = c == ' ' || (c >= '\t' && c <= '\r');
+            if (!space && start == -1) {
+                start = i;
+            } else if (space && start != -1) {
+                words.add(name.substring(start, i));
+                start = -1;
+            }
         }
+        return words.toArray(new String[0]);
     }
 
     /**
-     * Retrieves the investment at the given index from the list.
+     * Retrieves the investment at the given position in the portfolio.
+     * Positions count only the investments that are still held, in portfolio
+     * order. While there are tombstones the position is found by skipping
+     * them, rather than by compacting the list, which would renumber every id
+     * and rewrite every index for one read.
      * 
-     * @param index the index of the investment
+     * @param index the position of the investment
      * @return the investment at the specified index, or a default value if the list
      *         is empty
      */
-    public static Investment getInvestment(int index) {
-        if (investments.isEmpty()) {
-            try {
-                return new Stock("-", "-", 0, 0);
-            } catch (Exception e) {
-                e.printStackTrace(); // You can log or handle the exception here
-                return null; // Or return a default value if desired
+    public Investment getInvestment(int index) {
+        // Read without locking while positions and ids line up
+        long stamp = lock.tryOptimisticRead();
+        try {
+            if (stamp != 0 && tombstones == 0 && !investments.isEmpty()) {
+                Investment investment = investments.get(index % investments.size());
+                if (lock.validate(stamp)) {
+                    return investment;
+                }
             }
+        } catch (RuntimeException e) {
+            // A trade changed the list during the read; read again with the lock
         }
 
+        stamp = lock.readLock();
         try {
-            return investments.get(index % investments.size());
-        } catch (Exception e) {
-            e.printStackTrace(); // Handle any unexpected exceptions
-            return null; // Or return a default value if desired
+            int live = investments.size() - tombstones;
+            if (live == 0) {
+                try {
+                    return new Stock("-", "-", 0, 0);
+                } catch (Exception e) {
+                    e.printStackTrace(); // You can log or handle the exception here
+                    return null; // Or return a default value if desired
+                }
+            }
+            if (tombstones == 0) {
+                return investments.get(index % live);
+            }
+
+            // Walk the list, counting only the investments still held
+            int position = index % live;
+            for (Investment investment : investments) {
+                if (investment != null && position-- == 0) {
+                    return investment;
+                }
+            }
+            return null; // Not reached: the list holds live investments
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
     /**
-     * Returns the current size of the investments list.
+     * Returns the number of investments currently held.
+     * 
+     * @return the size of the investments list, not counting tombstones
+     */
+    public int getInvestListSize() {
+        return readOptimistically(() -> investments.size() - tombstones);
+    }
+
+    /**
+     * Returns the number of successful trades made on the portfolio, so a
+     * caller can tell whether it changed since it was last saved.
      * 
-     * @return the size of the investments list
+     * @return the number of trades
+     */
+    long getModificationCount() {
+        return readOptimistically(() -> modifications);
+    }
+
+    /**
+     * Adds a listener for changes to the holdings. The listener is first told
+     * about every current holding through holdingChanged, under the same lock
+     * as later changes, so it misses nothing.
+     *
+     * @param listener the listener to add
+     */
+    public void addHoldingListener(HoldingListener listener) {
+        long stamp = lock.writeLock();
+        try {
+            listeners.add(listener);
+            for (Investment investment : investments) {
+                if (investment != null) {
+                    listener.holdingChanged(investment);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a listener added by addHoldingListener.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeHoldingListener(HoldingListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Drops this portfolio's results from the search cache, so a portfolio
+     * that is no longer used doesn't keep room the others could use.
+     */
+    void releaseSearchCache() {
+        searchCache.clear(cacheOwner);
+    }
+
+    /**
+     * Returns the statistics of the search cache shared by every portfolio,
+     * for PortfolioMetrics.
+     *
+     * @return the hits, misses, invalidations, evictions, entries and bytes
+     */
+    static long[] searchCacheStatistics() {
+        return searchCache.statistics();
+    }
+
+    /**
+     * Returns the sizes of the holdings and the keyword index, for
+     * PortfolioMetrics.
+     *
+     * @return the number of holdings, keywords and postings, and the size of
+     *         the longest posting list
      */
-    public static int getInvestListSize() {
-        return investments.size();
+    long[] indexSizes() {
+        long stamp = lock.readLock();
+        try {
+            long postings = 0;
+            long largest = 0;
+            for (PostingList list : IndexofKeyword.values()) {
+                postings += list.size();
+                largest = Math.max(largest, list.size());
+            }
+            return new long[] { investments.size() - tombstones, IndexofKeyword.size(), postings, largest };
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -608,8 +2959,8 @@ public class Portfolio {
      * 
      * @return the file name (String)
      */
-    public static String getFileName() {
-        // Return the static fileSaveName variable which holds the name of the file
+    public String getFileName() {
+        // Return the fileSaveName variable which holds the name of the file
         return fileSaveName;
     }
 }
@@ -0,0 +1,1265 @@
+package ePortfolio;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small command line benchmark for the Portfolio operations.
+ * It fills the portfolio with synthetic holdings of increasing size and
+ * prints the average latency of each measured operation.
+ *
+ * Run it with: java ePortfolio.PortfolioBenchmark
+ */
+public class PortfolioBenchmark {
+
+    /** The portfolio sizes that every benchmark is run against. */
+    private static final int[] SIZES = { 1_000, 10_000, 100_000, 1_000_000 };
+
+    /** The number of measured operations per portfolio size. */
+    private static final int OPERATIONS = 1_000_000;
+
+    /** The number of distinct prices used by synthetic holdings. */
+    private static final int PRICES = 500;
+
+    /** The number of distinct sector words used in synthetic names. */
+    private static final int SECTORS = 97;
+
+    /** The number of distinct region words used in synthetic names. */
+    private static final int REGIONS = 89;
+
+    /** The thread counts the concurrent trading benchmark is run with. */
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+
+    /** The number of symbols the concurrent trades are spread over. */
+    private static final int TRADED_SYMBOLS = 1_000;
+
+    /** Receives the gains read by the arithmetic benchmark, so the JIT keeps them. */
+    private static double gainSink = 0;
+
+    /** The portfolio every benchmark runs against. */
+    private static final Portfolio portfolio = new Portfolio();
+
+    /**
+     * Default constructor for the PortfolioBenchmark class.
+     */
+    public PortfolioBenchmark() {
+    }
+
+    /**
+     * Runs every benchmark and prints the results.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) {
+        benchmarkFindInvestment();
+        benchmarkKeywordSearch();
+        benchmarkPriceSearch();
+        benchmarkNameSearch();
+        benchmarkPersistence();
+        benchmarkParser();
+        benchmarkConcurrentTrades();
+        benchmarkBatchOrders();
+        benchmarkPriceTicks();
+        benchmarkGain();
+        benchmarkColumns();
+        benchmarkMoney();
+        benchmarkLots();
+        benchmarkPriceHistory();
+        benchmarkMetrics();
+    }
+
+    /**
+     * Measures the latency of looking up an existing symbol with
+     * Portfolio.findInvestment for every portfolio size.
+     */
+    private static void benchmarkFindInvestment() {
+        System.out.println("findInvestment ===================");
+
+        for (int size : SIZES) {
+            fillPortfolio(size);
+
+            // Pick the symbols up front so the loop only measures the lookup
+            Random random = new Random(42);
+            String[] symbols = new String[OPERATIONS];
+            for (int i = 0; i < OPERATIONS; i++) {
+                symbols[i] = "SYM" + random.nextInt(size);
+            }
+
+            // Warm up the lookup before measuring it
+            long found = 0;
+            for (int i = 0; i < OPERATIONS; i++) {
+                found += portfolio.findInvestment(symbols[i]);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                found += portfolio.findInvestment(symbols[i]);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            printResult(size, elapsed, OPERATIONS, found);
+        }
+    }
+
+    /**
+     * Measures the latency of a two keyword Portfolio.search for every portfolio
+     * size. The two keywords are each shared by many holdings but intersect to a
+     * small result, so the time is dominated by the posting list intersection.
+     */
+    private static void benchmarkKeywordSearch() {
+        System.out.println("search (two keywords) ============");
+        int searches = OPERATIONS / 100;
+
+        for (int size : SIZES) {
+            fillPortfolio(size);
+
+            // Pick the keyword pairs up front so the loop only measures the search
+            Random random = new Random(42);
+            String[] keywords = new String[searches];
+            for (int i = 0; i < searches; i++) {
+                keywords[i] = "sector" + random.nextInt(SECTORS) + " region" + random.nextInt(REGIONS);
+            }
+
+            // Warm up the search before measuring it
+            long found = 0;
+            for (int i = 0; i < searches; i++) {
+                found += portfolio.search("", keywords[i], -1, -1).length();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < searches; i++) {
+                found += portfolio.search("", keywords[i], -1, -1).length();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            printResult(size, elapsed, searches, found);
+        }
+    }
+
+    /**
+     * Measures the latency of a price-only Portfolio.search for every portfolio
+     * size. Each band covers one price, so the result size stays proportional to
+     * the portfolio while the price index skips every other holding.
+     */
+    private static void benchmarkPriceSearch() {
+        System.out.println("search (price band) ==============");
+        int searches = OPERATIONS / 1000;
+
+        for (int size : SIZES) {
+            fillPortfolio(size);
+
+            // Pick the bands up front so the loop only measures the search
+            Random random = new Random(42);
+            double[] lows = new double[searches];
+            for (int i = 0; i < searches; i++) {
+                lows[i] = 1 + random.nextInt(PRICES) + 0.5;
+            }
+
+            // Warm up the search before measuring it
+            long found = 0;
+            for (int i = 0; i < searches; i++) {
+                found += portfolio.search("", "", lows[i], lows[i] + 1).length();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < searches; i++) {
+                found += portfolio.search("", "", lows[i], lows[i] + 1).length();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            printResult(size, elapsed, searches, found);
+        }
+    }
+
+    /**
+     * Measures the latency of Portfolio.searchName for every portfolio size,
+     * cycling through a prefix, a substring and a misspelled query.
+     */
+    private static void benchmarkNameSearch() {
+        System.out.println("searchName (top 20) ==============");
+        int searches = OPERATIONS / 100;
+
+        for (int size : SIZES) {
+            fillPortfolio(size);
+
+            // Pick the queries up front so the loop only measures the search
+            Random random = new Random(42);
+            String[] queries = new String[searches];
+            for (int i = 0; i < searches; i++) {
+                String word = "holding" + random.nextInt(size);
+                switch (i % 3) {
+                    case 0: // Prefix
+                        queries[i] = word.substring(0, word.length() - 1);
+                        break;
+                    case 1: // Substring
+                        queries[i] = word.substring(3);
+                        break;
+                    default: // Two letters swapped
+                        queries[i] = word.substring(0, 2) + word.charAt(3) + word.charAt(2) + word.substring(4);
+                        break;
+                }
+            }
+
+            // Warm up the search before measuring it
+            long found = 0;
+            for (int i = 0; i < searches; i++) {
+                found += portfolio.searchName(queries[i], 20).length();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < searches; i++) {
+                found += portfolio.searchName(queries[i], 20).length();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            printResult(size, elapsed, searches, found);
+        }
+    }
+
+    /**
+     * Measures how long saving and loading take in the text format and in the
+     * binary snapshot format for every portfolio size.
+     */
+    private static void benchmarkPersistence() {
+        System.out.println("save / load ======================");
+
+        for (int size : SIZES) {
+            fillPortfolio(size);
+            try {
+                File text = File.createTempFile("portfolio", ".txt");
+                File snapshot = File.createTempFile("portfolio", PortfolioSnapshot.EXTENSION);
+                text.deleteOnExit();
+                snapshot.deleteOnExit();
+
+                long textSave = quietly(() -> portfolio.writeInvestment(text.getPath()));
+                long snapshotSave = quietly(() -> portfolio.writeSnapshot(snapshot.getPath()));
+
+                portfolio.clear();
+                long textLoad = quietly(() -> portfolio.readInvestments(text.getPath()));
+                portfolio.clear();
+                long snapshotLoad = quietly(() -> portfolio.readInvestments(snapshot.getPath()));
+
+                System.out.printf("%,10d holdings: text save %7.1f ms, load %7.1f ms (%,d bytes)%n", size,
+                        textSave / 1e6, textLoad / 1e6, text.length());
+                System.out.printf("%,10s           snapshot save %7.1f ms, load %7.1f ms (%,d bytes)%n", "",
+                        snapshotSave / 1e6, snapshotLoad / 1e6, snapshot.length());
+            } catch (IOException e) {
+                System.out.println("Error in creating the benchmark files: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Measures trade throughput with several threads buying, selling and
+     * updating the same symbols while another thread searches, and checks the
+     * invariants afterwards: every holding has a positive quantity and a
+     * non-negative book value, the quantities add up to the trades that
+     * succeeded, the symbol index points at the right holdings, and replaying
+     * the journal on one thread rebuilds exactly the same portfolio.
+     */
+    private static void benchmarkConcurrentTrades() {
+        System.out.println("concurrent trades ================");
+
+        for (int threads : THREADS) {
+            try {
+                Path directory = Files.createTempDirectory("portfolio");
+                String loadFile = Files.createFile(directory.resolve("load.txt")).toString();
+                String saveFile = directory.resolve("save.txt").toString();
+
+                portfolio.clear();
+                quietly(() -> portfolio.recoverInvestments(loadFile, saveFile));
+                for (int i = 0; i < TRADED_SYMBOLS; i++) {
+                    portfolio.buy(i % 2 == 0 ? "stock" : "mutualfund", "SYM" + i, syntheticName(i), 100, 10);
+                }
+                long held = 100L * TRADED_SYMBOLS;
+
+                // Trade from every thread while a reader keeps searching
+                AtomicLong netQuantity = new AtomicLong();
+                AtomicBoolean trading = new AtomicBoolean(true);
+                Thread reader = new Thread(() -> {
+                    while (trading.get()) {
+                        portfolio.search("", "sector7", -1, -1);
+                        portfolio.getInvestment(portfolio.getInvestListSize() / 2);
+                    }
+                });
+                reader.start();
+
+                int trades = OPERATIONS / 4;
+                Thread[] traders = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    long seed = t;
+                    traders[t] = new Thread(() -> trade(trades / threads, seed, netQuantity));
+                }
+                long start = System.nanoTime();
+                for (Thread trader : traders) {
+                    trader.start();
+                }
+                for (Thread trader : traders) {
+                    trader.join();
+                }
+                long elapsed = System.nanoTime() - start;
+                trading.set(false);
+                reader.join();
+
+                // Check the invariants on the final state
+                long quantity = 0;
+                for (int i = 0; i < portfolio.getInvestListSize(); i++) {
+                    Investment investment = portfolio.getInvestment(i);
+                    if (investment.getQuantity() <= 0 || investment.getBookValue() < 0) {
+                        throw new IllegalStateException("Invalid holding: " + investment);
+                    }
+                    if (portfolio.findInvestment(investment.getSymbol()) != investment.getId()) {
+                        throw new IllegalStateException("The symbol index is wrong for: " + investment);
+                    }
+                    quantity += investment.getQuantity();
+                }
+                if (quantity != held + netQuantity.get()) {
+                    throw new IllegalStateException("The quantities add up to " + quantity + " instead of "
+                            + (held + netQuantity.get()));
+                }
+
+                // Replaying the journal on one thread must give the same portfolio
+                String expected = portfolio.printInvestments();
+                portfolio.closeJournal();
+                portfolio.clear();
+                quietly(() -> portfolio.recoverInvestments(loadFile, saveFile));
+                if (!portfolio.printInvestments().equals(expected)) {
+                    throw new IllegalStateException("Replaying the journal gave a different portfolio");
+                }
+                portfolio.discardJournal();
+
+                System.out.printf("%,10d threads: %,12.0f trades/s   (invariants hold, %d holdings)%n", threads,
+                        trades / (elapsed / 1e9), portfolio.getInvestListSize());
+            } catch (IOException | InterruptedException e) {
+                System.out.println("Error in running the concurrent benchmark: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compares making trades one buy or sell call at a time with carrying out
+     * the same trades as one batch through Portfolio.executeOrders, and checks
+     * that both leave exactly the same portfolio.
+     */
+    private static void benchmarkBatchOrders() {
+        System.out.println("orders (one by one vs batch) =====");
+
+        for (int size : SIZES) {
+            // Trade existing symbols plus some new ones, selling some holdings out
+            Random random = new Random(size);
+            int trades = OPERATIONS / 4;
+            ArrayList<Order> orders = new ArrayList<>(trades);
+            for (int i = 0; i < trades; i++) {
+                int n = random.nextInt(size + size / 10);
+                int quantity = 1 + random.nextInt(10);
+                double price = 1 + random.nextInt(PRICES);
+                if (random.nextBoolean()) {
+                    orders.add(n % 2 == 0 ? Order.buyStock("SYM" + n, syntheticName(n), quantity, price)
+                            : Order.buyMutualFund("SYM" + n, syntheticName(n), quantity, price));
+                } else {
+                    orders.add(Order.sell("SYM" + n, quantity, price));
+                }
+            }
+
+            fillPortfolio(size);
+            long blackhole = 0;
+            long start = System.nanoTime();
+            for (Order order : orders) {
+                String result = order.buy
+                        ? portfolio.buy(order.mutualFund ? "mutualfund" : "stock", order.symbol, order.name,
+                                order.quantity, order.price)
+                        : portfolio.sell(order.symbol, order.quantity, order.price);
+                blackhole += result.length();
+            }
+            long oneByOne = System.nanoTime() - start;
+            String expected = portfolio.printInvestments();
+
+            fillPortfolio(size);
+            start = System.nanoTime();
+            byte[] status = portfolio.executeOrders(orders);
+            long batch = System.nanoTime() - start;
+            if (!portfolio.printInvestments().equals(expected)) {
+                throw new IllegalStateException("The batch gave a different portfolio");
+            }
+
+            long filled = 0;
+            for (byte result : status) {
+                filled += result == Order.FILLED ? 1 : 0;
+            }
+            System.out.printf("%,10d holdings: one by one %7.1f ms, batch %7.1f ms   (%,d of %,d filled, check %d)%n",
+                    size, oneByOne / 1e6, batch / 1e6, filled, trades, blackhole);
+        }
+    }
+
+    /**
+     * Compares repricing holdings one update call per tick with streaming the
+     * same ticks through a PriceTickPipeline, and checks that both end with the
+     * same prices. The pipeline's counters over both of its passes are
+     * printed, along with the bytes the reading thread allocates per tick.
+     */
+    private static void benchmarkPriceTicks() {
+        System.out.println("price ticks (update vs pipeline) =");
+
+        for (int size : SIZES) {
+            // Tick random holdings, so busy symbols tick several times per batch
+            Random random = new Random(size);
+            StringBuilder text = new StringBuilder(OPERATIONS * 16);
+            for (int i = 0; i < OPERATIONS; i++) {
+                text.append("SYM").append(random.nextInt(size)).append(',')
+                        .append(1 + random.nextInt(PRICES)).append('.').append(random.nextInt(100)).append('\n');
+            }
+            byte[] ticks = text.toString().getBytes(StandardCharsets.UTF_8);
+            text = null;
+
+            fillPortfolio(size);
+            long start = System.nanoTime();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new ByteArrayInputStream(ticks), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(",");
+                    Investment investment = portfolio.getInvestmentBySymbol(fields[0]);
+                    if (investment != null) {
+                        portfolio.update(investment, Double.parseDouble(fields[1]));
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error in reading the ticks: " + e.getMessage());
+            }
+            long oneByOne = System.nanoTime() - start;
+            String expected = portfolio.printInvestments();
+
+            fillPortfolio(size);
+            PriceTickPipeline pipeline = new PriceTickPipeline(portfolio);
+            try {
+                // Give every symbol its slot with a first pass, then measure a
+                // second pass; both end with the same prices
+                pipeline.ingest(new ByteArrayInputStream(ticks));
+                pipeline.flush();
+
+                long allocated = allocatedBytes();
+                start = System.nanoTime();
+                pipeline.ingest(new ByteArrayInputStream(ticks));
+                pipeline.flush();
+                long streamed = System.nanoTime() - start;
+                long tickAllocated = allocatedBytes() - allocated;
+                pipeline.close();
+
+                if (!portfolio.printInvestments().equals(expected)) {
+                    throw new IllegalStateException("The pipeline gave different prices");
+                }
+                System.out.printf("%,10d holdings: update %7.1f ms, pipeline %7.1f ms (%,.0f B/tick read)%n", size,
+                        oneByOne / 1e6, streamed / 1e6, (double) tickAllocated / OPERATIONS);
+                System.out.printf("%10s           %s%n", "", pipeline);
+            } catch (IOException e) {
+                System.out.println("Error in reading the ticks: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Measures reading the total gain from the running totals after each of a
+     * series of price updates, against recomputing it from every holding the
+     * way getGain used to, and checks that the two agree.
+     */
+    private static void benchmarkGain() {
+        System.out.println("total gain (running vs recompute) ");
+
+        for (int size : SIZES) {
+            fillPortfolio(size);
+            Random random = new Random(size);
+            int updates = OPERATIONS / 10;
+
+            // Reprice a holding before every read, so the totals keep changing
+            double gain = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                portfolio.update(portfolio.getInvestment(random.nextInt(size)), 1 + random.nextInt(PRICES));
+                gain += Double.parseDouble(portfolio.getGain());
+            }
+            long running = System.nanoTime() - start;
+
+            // A few full recomputes are enough to show their cost
+            int recomputes = Math.max(1, 10_000_000 / size);
+            double recomputed = 0;
+            start = System.nanoTime();
+            for (int r = 0; r < recomputes; r++) {
+                recomputed = 0;
+                for (int i = 0; i < size; i++) {
+                    recomputed += portfolio.getInvestment(i).Gain();
+                }
+            }
+            long recompute = System.nanoTime() - start;
+
+            double current = portfolio.getGainTotals().getGain();
+            if (Math.abs(current - recomputed) > 1e-6 * Math.abs(recomputed)) {
+                throw new IllegalStateException("The running gain " + current + " isn't " + recomputed);
+            }
+            System.out.printf("%,10d holdings: update + running gain %8.1f ns/op, recompute %,12.0f ns/op   "
+                    + "(check %.0f)%n", size, (double) running / updates, (double) recompute / recomputes, gain);
+        }
+    }
+
+    /**
+     * Compares full scans over the Investment objects with the same scans over
+     * HoldingColumns: the total gain, and counting the holdings in a wide price
+     * band.
+     */
+    private static void benchmarkColumns() {
+        System.out.println("full scans (objects vs columns) ==");
+
+        for (int size : SIZES) {
+            ArrayList<Investment> objects = new ArrayList<>(size);
+            HoldingColumns columns = new HoldingColumns();
+            for (int i = 0; i < size; i++) {
+                Investment investment;
+                try {
+                    investment = i % 2 == 0
+                            ? new Stock("SYM" + i, syntheticName(i), 10, 1 + i % PRICES)
+                            : new MutualFund("SYM" + i, syntheticName(i), 10, 1 + i % PRICES);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                investment.setId(i);
+                objects.add(investment);
+                columns.set(investment);
+            }
+            int scans = Math.max(10, 100_000_000 / size);
+            double low = PRICES / 4;
+            double high = PRICES * 3 / 4;
+
+            // Warm up both forms before measuring them
+            long objectGain = 0;
+            long columnGain = 0;
+            long objectCount = 0;
+            long columnCount = 0;
+            for (int r = 0; r < scans / 10; r++) {
+                objectGain = objectGain(objects);
+                columnGain = columns.gain();
+                objectCount += objectCount(objects, low, high);
+                columnCount += columns.countInPriceBand(low, high);
+            }
+
+            long start = System.nanoTime();
+            for (int r = 0; r < scans; r++) {
+                objectGain = objectGain(objects);
+            }
+            long objectGainTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < scans; r++) {
+                columnGain = columns.gain();
+            }
+            long columnGainTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < scans; r++) {
+                objectCount += objectCount(objects, low, high);
+            }
+            long objectCountTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < scans; r++) {
+                columnCount += columns.countInPriceBand(low, high);
+            }
+            long columnCountTime = System.nanoTime() - start;
+
+            if (objectGain != columnGain || objectCount != columnCount) {
+                throw new IllegalStateException("The columns don't match the objects");
+            }
+            System.out.printf("%,10d holdings: gain %6.2f vs %6.2f ns/holding, band count %6.2f vs %6.2f "
+                    + "ns/holding   (check %d)%n", size, (double) objectGainTime / scans / size,
+                    (double) columnGainTime / scans / size, (double) objectCountTime / scans / size,
+                    (double) columnCountTime / scans / size, columnCount);
+        }
+    }
+
+    /**
+     * Sums the gains of Investment objects, the way the columns replace.
+     *
+     * @param objects the holdings
+     * @return the total gain in micro-units
+     */
+    private static long objectGain(ArrayList<Investment> objects) {
+        long gain = 0;
+        for (Investment investment : objects) {
+            gain += investment.gainMicros();
+        }
+        return gain;
+    }
+
+    /**
+     * Counts the Investment objects priced within a band, the way the columns
+     * replace.
+     *
+     * @param objects the holdings
+     * @param low     the lowest price
+     * @param high    the highest price
+     * @return the number of holdings in the band
+     */
+    private static int objectCount(ArrayList<Investment> objects, double low, double high) {
+        long lowMicros = Money.ceilMicros(low);
+        long highMicros = Money.floorMicros(high);
+        int count = 0;
+        for (Investment investment : objects) {
+            if (investment.getPriceMicros() >= lowMicros && investment.getPriceMicros() <= highMicros) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Compares the fixed-point book value arithmetic of Investment with the
+     * double arithmetic it replaced, on the same stream of buys and sells
+     * spread over the traded symbols, each followed by a gain read. The
+     * fixed-point result is checked against BigDecimal with the same rounding
+     * rules, and the drift of the double result from it is printed.
+     */
+    private static void benchmarkMoney() {
+        System.out.println("book value arithmetic (double vs fixed-point)");
+        int trades = OPERATIONS * 5;
+
+        // Pick the trades up front: prices in cents and mostly small quantities
+        Random random = new Random(42);
+        int[] holdings = new int[trades];
+        boolean[] buys = new boolean[trades];
+        int[] quantities = new int[trades];
+        double[] prices = new double[trades];
+        for (int i = 0; i < trades; i++) {
+            holdings[i] = random.nextInt(TRADED_SYMBOLS);
+            buys[i] = random.nextInt(10) < 6;
+            quantities[i] = 1 + random.nextInt(100);
+            prices[i] = (1 + random.nextInt(PRICES * 100)) / 100.0;
+        }
+
+        // Alternate the two paths and keep the best time of each, after a
+        // round to warm them up
+        double doubleBookValue = 0;
+        long microsBookValue = 0;
+        long doubleTime = Long.MAX_VALUE;
+        long microsTime = Long.MAX_VALUE;
+        for (int r = 0; r < 6; r++) {
+            long start = System.nanoTime();
+            doubleBookValue = doubleTrades(holdings, buys, quantities, prices, trades);
+            long elapsed = System.nanoTime() - start;
+            doubleTime = r == 0 ? doubleTime : Math.min(doubleTime, elapsed);
+
+            start = System.nanoTime();
+            microsBookValue = microsTrades(holdings, buys, quantities, prices, trades);
+            elapsed = System.nanoTime() - start;
+            microsTime = r == 0 ? microsTime : Math.min(microsTime, elapsed);
+        }
+
+        // Replay the start of the stream with BigDecimal and the same rules
+        int checked = trades / 20;
+        if (microsTrades(holdings, buys, quantities, prices, checked)
+                != decimalTrades(holdings, buys, quantities, prices, checked)) {
+            throw new IllegalStateException("The fixed-point book value doesn't match BigDecimal");
+        }
+
+        System.out.printf("%,10d trades:   double %6.2f ns/trade, fixed-point %6.2f ns/trade   "
+                + "(book value %s, double drift %.3g)%n", trades, (double) doubleTime / trades,
+                (double) microsTime / trades, Money.toString(microsBookValue),
+                doubleBookValue - Money.toDouble(microsBookValue));
+    }
+
+    /**
+     * Runs a stream of trades with the double arithmetic used before amounts
+     * were fixed-point: each trade takes the holding's share out of running
+     * totals compensated like GainTotals was, changes the holding like Stock
+     * did, adds the share back and reads the total gain.
+     *
+     * @param holdings   the holding each trade is on
+     * @param buys       whether each trade is a buy
+     * @param quantities the quantity of each trade
+     * @param prices     the price of each trade
+     * @param trades     the number of trades to run
+     * @return the total book value of the holdings
+     */
+    private static double doubleTrades(int[] holdings, boolean[] buys, int[] quantities, double[] prices,
+            int trades) {
+        int[] quantity = new int[TRADED_SYMBOLS];
+        double[] price = new double[TRADED_SYMBOLS];
+        double[] bookValue = new double[TRADED_SYMBOLS];
+        // The book value and market value totals and their rounding errors
+        double[] totals = new double[4];
+        double gains = 0;
+        for (int i = 0; i < trades; i++) {
+            int h = holdings[i];
+            if (buys[i] || quantities[i] < quantity[h]) {
+                compensatedAdd(totals, 0, -bookValue[h]);
+                compensatedAdd(totals, 2, -(quantity[h] * price[h] - 9.99));
+                price[h] = prices[i];
+                if (buys[i]) {
+                    quantity[h] += quantities[i];
+                    bookValue[h] += quantities[i] * prices[i] + 9.99;
+                } else {
+                    int oldQuantity = quantity[h];
+                    quantity[h] -= quantities[i];
+                    bookValue[h] = bookValue[h] * quantity[h] / oldQuantity;
+                }
+                compensatedAdd(totals, 0, bookValue[h]);
+                compensatedAdd(totals, 2, quantity[h] * price[h] - 9.99);
+            }
+            gains += (totals[2] + totals[3]) - (totals[0] + totals[1]);
+        }
+        gainSink += gains;
+        return totals[0] + totals[1];
+    }
+
+    /**
+     * Adds a value to a compensated sum the way GainTotals did before its
+     * sums were fixed-point.
+     *
+     * @param totals the sums, each followed by its rounding error
+     * @param sum    the position of the sum to add to
+     * @param value  the value to add
+     */
+    private static void compensatedAdd(double[] totals, int sum, double value) {
+        double total = totals[sum] + value;
+        if (Math.abs(totals[sum]) >= Math.abs(value)) {
+            totals[sum + 1] += (totals[sum] - total) + value;
+        } else {
+            totals[sum + 1] += (value - total) + totals[sum];
+        }
+        totals[sum] = total;
+    }
+
+    /**
+     * Runs the stream of trades of doubleTrades with the fixed-point
+     * arithmetic of Stock and GainTotals.
+     *
+     * @param holdings   the holding each trade is on
+     * @param buys       whether each trade is a buy
+     * @param quantities the quantity of each trade
+     * @param prices     the price of each trade
+     * @param trades     the number of trades to run
+     * @return the total book value of the holdings in micro-units
+     */
+    private static long microsTrades(int[] holdings, boolean[] buys, int[] quantities, double[] prices,
+            int trades) {
+        int[] quantity = new int[TRADED_SYMBOLS];
+        long[] price = new long[TRADED_SYMBOLS];
+        long[] bookValue = new long[TRADED_SYMBOLS];
+        long bookValueTotal = 0;
+        long marketValueTotal = 0;
+        long gains = 0;
+        for (int i = 0; i < trades; i++) {
+            int h = holdings[i];
+            if (buys[i] || quantities[i] < quantity[h]) {
+                bookValueTotal -= bookValue[h];
+                marketValueTotal -= Money.times(price[h], quantity[h]) - Stock.COMMISSION;
+                price[h] = Money.fromDouble(prices[i]);
+                if (buys[i]) {
+                    quantity[h] += quantities[i];
+                    bookValue[h] += Money.times(price[h], quantities[i]) + Stock.COMMISSION;
+                } else {
+                    int oldQuantity = quantity[h];
+                    quantity[h] -= quantities[i];
+                    bookValue[h] = Money.scale(bookValue[h], quantity[h], oldQuantity);
+                }
+                bookValueTotal += bookValue[h];
+                marketValueTotal += Money.times(price[h], quantity[h]) - Stock.COMMISSION;
+            }
+            gains += marketValueTotal - bookValueTotal;
+        }
+        gainSink += gains;
+        return bookValueTotal;
+    }
+
+    /**
+     * Runs a stream of trades with BigDecimal, rounding like Money.
+     *
+     * @param holdings   the holding each trade is on
+     * @param buys       whether each trade is a buy
+     * @param quantities the quantity of each trade
+     * @param prices     the price of each trade
+     * @param trades     the number of trades to run
+     * @return the total book value of the holdings in micro-units
+     */
+    private static long decimalTrades(int[] holdings, boolean[] buys, int[] quantities, double[] prices,
+            int trades) {
+        int[] quantity = new int[TRADED_SYMBOLS];
+        BigDecimal[] bookValue = new BigDecimal[TRADED_SYMBOLS];
+        Arrays.fill(bookValue, BigDecimal.ZERO.setScale(6));
+        BigDecimal commission = BigDecimal.valueOf(Stock.COMMISSION, 6);
+        for (int i = 0; i < trades; i++) {
+            int h = holdings[i];
+            BigDecimal price = BigDecimal.valueOf(prices[i]).setScale(6, RoundingMode.HALF_UP);
+            if (buys[i]) {
+                quantity[h] += quantities[i];
+                bookValue[h] = bookValue[h].add(price.multiply(BigDecimal.valueOf(quantities[i]))).add(commission);
+            } else if (quantities[i] < quantity[h]) {
+                int oldQuantity = quantity[h];
+                quantity[h] -= quantities[i];
+                bookValue[h] = bookValue[h].multiply(BigDecimal.valueOf(quantity[h]))
+                        .divide(BigDecimal.valueOf(oldQuantity), 6, RoundingMode.HALF_EVEN);
+            }
+        }
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (BigDecimal value : bookValue) {
+            total = total.add(value);
+        }
+        return total.unscaledValue().longValueExact();
+    }
+
+    /**
+     * Measures selling one unit at a time from a holding with a growing
+     * number of one unit tax lots under each policy, each sale followed by a
+     * one unit purchase so the number of lots stays about the same. The time per sale should
+     * stay flat as the lots grow. Then a holding is bought many more times
+     * than MAX_LOTS, to show its lots stay bounded.
+     */
+    private static void benchmarkLots() {
+        System.out.println("tax lot sales (sale + purchase)");
+        String[] names = { "average", "FIFO", "LIFO", "highest cost", "specific" };
+        int[] lotCounts = { 16, 256, TaxLots.MAX_LOTS };
+        for (int lots : lotCounts) {
+            StringBuilder line = new StringBuilder(String.format("%,10d lots:", lots));
+            for (byte policy = TaxLots.AVERAGE_COST; policy <= TaxLots.SPECIFIC_LOT; policy++) {
+                Investment holding = lotHolding(lots);
+                long best = Long.MAX_VALUE;
+                long sold = 0;
+                for (int r = 0; r < 4; r++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        // A specific sale names the newest lot
+                        long newest = holding.getLots() == null ? 0 : holding.getLots().nextId() - 1;
+                        sold += holding.sellLots(1, policy, newest);
+                        holding.setQuantity(holding.getQuantity() + 1);
+                        // Half prices, which no lot of lotHolding has, and
+                        // each differs from the last, so no purchase joins
+                        // the newest lot
+                        holding.calculateBookValue(1, 1.5 + (lots + i) % PRICES);
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    best = r == 0 ? best : Math.min(best, elapsed);
+                }
+                gainSink += sold;
+                line.append(String.format("   %s %6.1f ns", names[policy], (double) best / OPERATIONS));
+            }
+            System.out.println(line);
+        }
+
+        Investment holding = lotHolding(1);
+        Random random = new Random(42);
+        for (int i = 0; i < OPERATIONS; i++) {
+            holding.setQuantity(holding.getQuantity() + 1);
+            holding.calculateBookValue(1, 1 + random.nextInt(PRICES) / 100.0);
+            if (i % 3 == 0) {
+                holding.sellLots(1, TaxLots.HIGHEST_COST, 0);
+            }
+        }
+        System.out.printf("%,10d purchases: %,d lots kept (at most %,d)%n", OPERATIONS, holding.getLots().size(),
+                TaxLots.MAX_LOTS);
+    }
+
+    /**
+     * Makes a stock holding bought one unit at a time in a number of lots at
+     * different prices.
+     *
+     * @param lots the number of lots
+     * @return the holding
+     */
+    private static Investment lotHolding(int lots) {
+        try {
+            Investment holding = new Stock("LOTS", "Lot holding", 1, 1);
+            holding.calculateBookValue(1, 1);
+            for (int i = 1; i < lots; i++) {
+                holding.setQuantity(holding.getQuantity() + 1);
+                holding.calculateBookValue(1, 1 + i % PRICES);
+            }
+            return holding;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Measures recording prices in the compressed PriceHistory and reading
+     * them back: a random walk of prices in cents for each traded symbol,
+     * about a second apart, then range scans, last-N reads and hourly bars.
+     * The compressed size is compared with the 16 bytes a raw time and price
+     * take.
+     */
+    private static void benchmarkPriceHistory() {
+        System.out.println("price history");
+        int points = OPERATIONS * 5;
+        int perSymbol = points / TRADED_SYMBOLS;
+        long start0 = 1_700_000_000_000L;
+
+        // Pick the prices up front, so only recording is timed
+        Random random = new Random(42);
+        long[] times = new long[points];
+        double[] prices = new double[points];
+        long[] cents = new long[TRADED_SYMBOLS];
+        Arrays.fill(cents, 100_00);
+        for (int i = 0; i < points; i++) {
+            int symbol = i % TRADED_SYMBOLS;
+            times[i] = start0 + (i / TRADED_SYMBOLS) * 1000L + random.nextInt(20);
+            if (random.nextInt(4) == 0) {
+                cents[symbol] = Math.max(1, cents[symbol] + random.nextInt(21) - 10);
+            }
+            prices[i] = cents[symbol] / 100.0;
+        }
+        String[] symbols = new String[TRADED_SYMBOLS];
+        for (int i = 0; i < TRADED_SYMBOLS; i++) {
+            symbols[i] = "SYM" + i;
+        }
+
+        PriceHistory history = null;
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < 4; r++) {
+            history = new PriceHistory();
+            long start = System.nanoTime();
+            for (int i = 0; i < points; i++) {
+                history.record(symbols[i % TRADED_SYMBOLS], times[i], prices[i]);
+            }
+            long elapsed = System.nanoTime() - start;
+            best = r == 0 ? best : Math.min(best, elapsed);
+        }
+        System.out.printf("%,10d points:   record %6.1f ns/point   %.2f bytes/point (raw 16)%n", points,
+                (double) best / points, (double) history.compressedBytes() / points);
+
+        // Ranges of a tenth of each symbol's points
+        long span = perSymbol / 10 * 1000L;
+        long sum = 0;
+        long scanned = 0;
+        long start = System.nanoTime();
+        for (int q = 0; q < OPERATIONS / 100; q++) {
+            long from = start0 + random.nextInt(perSymbol - perSymbol / 10) * 1000L;
+            PriceHistory.Points range = history.range(symbols[q % TRADED_SYMBOLS], from, from + span);
+            scanned += range.size();
+            sum += range.size() > 0 ? (long) range.prices[0] : 0;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%,10d points scanned in ranges: %6.1f ns/point%n", scanned, (double) elapsed / scanned);
+
+        start = System.nanoTime();
+        for (int q = 0; q < OPERATIONS / 10; q++) {
+            sum += history.last(symbols[q % TRADED_SYMBOLS], 100).size();
+        }
+        elapsed = System.nanoTime() - start;
+        System.out.printf("%,10d last 100 reads: %8.1f ns/read%n", OPERATIONS / 10, (double) elapsed / (OPERATIONS / 10));
+
+        start = System.nanoTime();
+        for (int q = 0; q < TRADED_SYMBOLS; q++) {
+            sum += history.bars(symbols[q], start0, Long.MAX_VALUE, 3_600_000L).length;
+        }
+        elapsed = System.nanoTime() - start;
+        System.out.printf("%,10d hourly bar series: %8.1f us/series%n", TRADED_SYMBOLS,
+                elapsed / 1000.0 / TRADED_SYMBOLS);
+        gainSink += sum;
+    }
+
+    /**
+     * Measures the cost of the PortfolioMetrics instrumentation: the cheapest
+     * instrumented calls, getGain and update, and recording into a
+     * LatencyHistogram on its own. Run the benchmark once with and once
+     * without -DePortfolio.metrics=true to compare; with metrics off the
+     * calls should cost what they did before the instrumentation.
+     */
+    private static void benchmarkMetrics() {
+        System.out.println("metrics (" + (PortfolioMetrics.ENABLED ? "on" : "off") + ") ====================");
+        int size = 10_000;
+        fillPortfolio(size);
+
+        Random random = new Random(42);
+        Investment[] holdings = new Investment[OPERATIONS];
+        double[] prices = new double[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            holdings[i] = portfolio.getInvestment(random.nextInt(size));
+            prices[i] = 1 + random.nextInt(PRICES);
+        }
+
+        // Best of a few rounds, since the first ones include compiling
+        long gain = Long.MAX_VALUE;
+        long update = Long.MAX_VALUE;
+        long record = Long.MAX_VALUE;
+        long found = 0;
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                found += portfolio.getGain().length();
+            }
+            gain = Math.min(gain, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                found += portfolio.update(holdings[i], prices[i]).length();
+            }
+            update = Math.min(update, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                histogram.record(i & 0xFFFFF);
+            }
+            record = Math.min(record, System.nanoTime() - start);
+        }
+
+        System.out.printf("%,10d holdings: getGain %6.1f ns/op, update %7.1f ns/op, histogram record %5.1f ns/op   "
+                + "(check %d)%n", size, (double) gain / OPERATIONS, (double) update / OPERATIONS,
+                (double) record / OPERATIONS, found + histogram.getValueAtPercentile(50));
+        if (PortfolioMetrics.ENABLED) {
+            System.out.print(PortfolioMetrics.get().getSnapshot());
+        }
+    }
+
+    /**
+     * Makes random trades on the traded symbols, adding the quantity bought
+     * minus the quantity sold by the trades that succeeded to a total.
+     *
+     * @param trades      the number of trades to make
+     * @param seed        the seed of the random trades
+     * @param netQuantity the running total of the quantity traded
+     */
+    private static void trade(int trades, long seed, AtomicLong netQuantity) {
+        Random random = new Random(seed);
+        for (int i = 0; i < trades; i++) {
+            int n = random.nextInt(TRADED_SYMBOLS);
+            String symbol = "SYM" + n;
+            int quantity = 1 + random.nextInt(10);
+            double price = 1 + random.nextInt(100);
+            int choice = random.nextInt(10);
+
+            if (choice < 5) {
+                String result = portfolio.buy(n % 2 == 0 ? "stock" : "mutualfund", symbol, syntheticName(n),
+                        quantity, price);
+                if (result.contains("successfully")) {
+                    netQuantity.addAndGet(quantity);
+                }
+            } else if (choice < 9) {
+                if (portfolio.sell(symbol, quantity, price).startsWith("The payment received")) {
+                    netQuantity.addAndGet(-quantity);
+                }
+            } else {
+                Investment investment = portfolio.getInvestmentBySymbol(symbol);
+                if (investment != null) {
+                    portfolio.update(investment, price);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the streaming InvestmentParser with the line parser it replaced
+     * on the same in-memory text, reporting the time and the bytes allocated
+     * per record.
+     */
+    private static void benchmarkParser() {
+        System.out.println("parse text (line vs streaming) ===");
+
+        for (int size : SIZES) {
+            // Write the synthetic portfolio out in the text format
+            StringBuilder text = new StringBuilder(size * 120);
+            for (int i = 0; i < size; i++) {
+                text.append("Type = \"").append(i % 2 == 0 ? "Stock" : "MutualFund").append("\"\n")
+                        .append("Symbol = \"SYM").append(i).append("\"\n")
+                        .append("Name = \"").append(syntheticName(i)).append("\"\n")
+                        .append("Quantity = \"10\"\n")
+                        .append("Price = \"").append(1 + i % PRICES).append(".25\"\n")
+                        .append("BookValue = \"").append(10 * (1 + i % PRICES) + 9.99).append("\"\n");
+            }
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            text = null;
+
+            // Warm both parsers up before measuring them
+            long found = parseWithLines(bytes) + parseWithStream(bytes);
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            found += parseWithLines(bytes);
+            long linesTime = System.nanoTime() - start;
+            long linesAllocated = allocatedBytes() - allocated;
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            found += parseWithStream(bytes);
+            long streamTime = System.nanoTime() - start;
+            long streamAllocated = allocatedBytes() - allocated;
+
+            System.out.printf("%,10d holdings: line parser %7.1f ms (%,6d B/record), streaming %7.1f ms "
+                    + "(%,6d B/record)   (check %d)%n", size, linesTime / 1e6, linesAllocated / size, streamTime / 1e6,
+                    streamAllocated / size, found);
+        }
+    }
+
+    /**
+     * Parses text the way Portfolio.readInvestments did before the streaming
+     * parser, minus the printing, as the baseline for benchmarkParser.
+     *
+     * @param bytes the text to parse
+     * @return the number of investments read
+     */
+    private static long parseWithLines(byte[] bytes) {
+        ArrayList<Investment> investments = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))) {
+            String line;
+            String type = "", symbol = "", name = "";
+            int quantity = 0;
+            double price = 0.0, bookValue = 0.0;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split("=");
+                if (parts.length != 2) {
+                    continue;
+                }
+                String key = parts[0].trim().toLowerCase();
+                String value = parts[1].trim().replace("\"", "");
+                try {
+                    switch (key) {
+                        case "type":
+                            type = value;
+                            break;
+                        case "symbol":
+                            symbol = value;
+                            break;
+                        case "name":
+                            name = value;
+                            break;
+                        case "quantity":
+                            quantity = Integer.parseInt(value);
+                            break;
+                        case "price":
+                            price = Double.parseDouble(value);
+                            break;
+                        case "bookvalue":
+                            bookValue = Double.parseDouble(value);
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (!type.isEmpty() && !symbol.isEmpty() && !name.isEmpty() && quantity > 0 && price > 0.0
+                        && bookValue >= 0.0) {
+                    investments.add(type.equalsIgnoreCase("stock") ? new Stock(symbol, name, quantity, price)
+                            : new MutualFund(symbol, name, quantity, price));
+                    type = "";
+                    symbol = "";
+                    name = "";
+                    quantity = 0;
+                    price = 0.0;
+                    bookValue = 0.0;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error in parsing the benchmark text: " + e.getMessage());
+        }
+        return investments.size();
+    }
+
+    /**
+     * Parses text with the streaming InvestmentParser.
+     *
+     * @param bytes the text to parse
+     * @return the number of investments read
+     */
+    private static long parseWithStream(byte[] bytes) {
+        ArrayList<Investment> investments = new ArrayList<>();
+        InvestmentParser parser = new InvestmentParser(new InvestmentParser.Handler() {
+            public void investment(Investment investment) {
+                investments.add(investment);
+            }
+
+            public void problem(long line, String message) {
+            }
+        });
+        parser.feed(bytes, 0, bytes.length);
+        parser.finish();
+        return investments.size();
+    }
+
+    /**
+     * Gets the number of bytes the current thread has allocated so far.
+     *
+     * @return the allocated bytes, or 0 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Runs an operation with standard output discarded, since the file methods
+     * print a line for every holding.
+     *
+     * @param operation the operation to run
+     * @return the time the operation took in nanoseconds
+     */
+    private static long quietly(Runnable operation) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long start = System.nanoTime();
+            operation.run();
+            return System.nanoTime() - start;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Clears the portfolio and buys the given number of synthetic holdings.
+     *
+     * @param size the number of holdings to create
+     */
+    private static void fillPortfolio(int size) {
+        portfolio.clear();
+        for (int i = 0; i < size; i++) {
+            portfolio.buy(i % 2 == 0 ? "stock" : "mutualfund", "SYM" + i, syntheticName(i), 10, 1 + i % PRICES);
+        }
+    }
+
+    /**
+     * Builds the name of a synthetic holding. Every name has a unique word plus
+     * one of SECTORS sector words and one of REGIONS region words.
+     *
+     * @param i the number of the holding
+     * @return the holding's name
+     */
+    private static String syntheticName(int i) {
+        return "Holding" + i + " sector" + (i % SECTORS) + " region" + (i % REGIONS);
+    }
+
+    /**
+     * Prints one result line for a benchmark run.
+     *
+     * @param size       the portfolio size the run used
+     * @param elapsed    the measured time in nanoseconds
+     * @param operations the number of operations measured
+     * @param blackhole  a value derived from the results, printed so the JIT
+     *                   can't remove the measured work
+     */
+    private static void printResult(int size, long elapsed, int operations, long blackhole) {
+        System.out.printf("%,10d holdings: %8.1f ns/op   (check %d)%n", size, (double) elapsed / operations,
+                blackhole);
+    }
+}
@@ -0,0 +1,314 @@
+package ePortfolio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder events of the application. Portfolio emits one
+ * event per trade, batch, search and file read or write, and Gui emits one per
+ * button action, so a recording shows which engine calls each click waited
+ * for: the engine events of a click are on the same thread, inside its
+ * duration.
+ *
+ * Events cost next to nothing unless a recording is running with them
+ * enabled; their fields are only filled in when the event will be written.
+ * The bundled portfolio.jfc enables them, and RecordingAnalyzer summarizes a
+ * recording.
+ */
+public class PortfolioEvents {
+
+    /** The prefix of every event name. */
+    public static final String PREFIX = "ePortfolio.";
+
+    /**
+     * Default constructor for the PortfolioEvents class.
+     */
+    public PortfolioEvents() {
+    }
+
+    /**
+     * A buy, sell or update of one holding.
+     */
+    @Name(PREFIX + "Trade")
+    @Label("Trade")
+    @Category({ "ePortfolio", "Engine" })
+    @Description("A buy, sell or price update of one holding")
+    public static final class Trade extends Event {
+
+        /** The Portfolio method. */
+        @Label("Operation")
+        String operation;
+
+        /** The symbol traded. */
+        @Label("Symbol")
+        String symbol;
+
+        /** The quantity bought or sold, or 0 for an update. */
+        @Label("Quantity")
+        int quantity;
+
+        /** The price traded at. */
+        @Label("Price")
+        double price;
+
+        /** The first line of the message the trade returned. */
+        @Label("Result")
+        String result;
+
+        /**
+         * Constructs a Trade event.
+         */
+        public Trade() {
+        }
+
+        /**
+         * Fills in the event and writes it, if it is recorded.
+         *
+         * @param operation the Portfolio method
+         * @param symbol    the symbol traded
+         * @param quantity  the quantity bought or sold, or 0 for an update
+         * @param price     the price traded at
+         * @param result    the message the trade returned
+         */
+        void record(String operation, String symbol, int quantity, double price, String result) {
+            if (shouldCommit()) {
+                this.operation = operation;
+                this.symbol = symbol;
+                this.quantity = quantity;
+                this.price = price;
+                this.result = firstLine(result);
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A batch of price updates or orders.
+     */
+    @Name(PREFIX + "Batch")
+    @Label("Batch")
+    @Category({ "ePortfolio", "Engine" })
+    @Description("A batch of price updates or buy and sell orders")
+    public static final class Batch extends Event {
+
+        /** The Portfolio method. */
+        @Label("Operation")
+        String operation;
+
+        /** The number of prices or orders in the batch. */
+        @Label("Size")
+        int size;
+
+        /** The number of holdings repriced or orders carried out. */
+        @Label("Applied")
+        int applied;
+
+        /**
+         * Constructs a Batch event.
+         */
+        public Batch() {
+        }
+
+        /**
+         * Fills in the event and writes it, if it is recorded.
+         *
+         * @param operation the Portfolio method
+         * @param size      the number of prices or orders
+         * @param applied   the number of holdings repriced or orders carried out
+         */
+        void record(String operation, int size, int applied) {
+            if (shouldCommit()) {
+                this.operation = operation;
+                this.size = size;
+                this.applied = applied;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A search by symbol, keywords and price, or by name.
+     */
+    @Name(PREFIX + "Search")
+    @Label("Search")
+    @Category({ "ePortfolio", "Engine" })
+    @Description("A search, with the index it used and the number of matches")
+    public static final class Search extends Event {
+
+        /** The Portfolio method. */
+        @Label("Operation")
+        String operation;
+
+        /** The symbol searched for, or empty. */
+        @Label("Symbol")
+        String symbol;
+
+        /** The keywords or name searched for. */
+        @Label("Keywords")
+        String keywords;
+
+        /** The lowest price, or -1 for none. */
+        @Label("Low Price")
+        double priceLow;
+
+        /** The highest price, or -1 for none. */
+        @Label("High Price")
+        double priceHigh;
+
+        /** The index the candidates came from. */
+        @Label("Plan")
+        String plan;
+
+        /** The number of holdings checked. */
+        @Label("Candidates")
+        int candidates;
+
+        /** The number of holdings found. */
+        @Label("Results")
+        int results;
+
+        /**
+         * Constructs a Search event.
+         */
+        public Search() {
+        }
+
+        /**
+         * Fills in the event and writes it, if it is recorded.
+         *
+         * @param operation  the Portfolio method
+         * @param symbol     the symbol searched for
+         * @param keywords   the keywords or name searched for
+         * @param priceLow   the lowest price, or -1
+         * @param priceHigh  the highest price, or -1
+         * @param plan       the index the candidates came from
+         * @param candidates the number of holdings checked
+         * @param results    the number of holdings found
+         */
+        void record(String operation, String symbol, String keywords, double priceLow, double priceHigh,
+                String plan, int candidates, int results) {
+            if (shouldCommit()) {
+                this.operation = operation;
+                this.symbol = symbol;
+                this.keywords = keywords;
+                this.priceLow = priceLow;
+                this.priceHigh = priceHigh;
+                this.plan = plan;
+                this.candidates = candidates;
+                this.results = results;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Reading or writing a portfolio file.
+     */
+    @Name(PREFIX + "FileAccess")
+    @Label("Portfolio File")
+    @Category({ "ePortfolio", "Engine" })
+    @Description("Reading or writing a portfolio file")
+    public static final class FileAccess extends Event {
+
+        /** The Portfolio method. */
+        @Label("Operation")
+        String operation;
+
+        /** The file. */
+        @Label("Path")
+        String path;
+
+        /** "text", "snapshot", or "unreadable" if the file can't be read. */
+        @Label("Format")
+        String format;
+
+        /** The size of the file. */
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        /** The number of holdings afterwards. */
+        @Label("Holdings")
+        int holdings;
+
+        /**
+         * Constructs a FileAccess event.
+         */
+        public FileAccess() {
+        }
+
+        /**
+         * Fills in the event and writes it, if it is recorded. The format and
+         * size are read from the file.
+         *
+         * @param operation the Portfolio method
+         * @param path      the file
+         * @param holdings  the number of holdings afterwards
+         */
+        void record(String operation, String path, int holdings) {
+            if (shouldCommit()) {
+                this.operation = operation;
+                this.path = path;
+                try {
+                    this.format = PortfolioSnapshot.isSnapshot(Paths.get(path)) ? "snapshot" : "text";
+                } catch (IOException e) {
+                    this.format = "unreadable";
+                }
+                this.bytes = new File(path).length();
+                this.holdings = holdings;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A button action in the GUI.
+     */
+    @Name(PREFIX + "GuiAction")
+    @Label("GUI Action")
+    @Category({ "ePortfolio", "GUI" })
+    @Description("A button action in the GUI, including the engine calls it made")
+    public static final class GuiAction extends Event {
+
+        /** The listener that handled the action. */
+        @Label("Action")
+        String action;
+
+        /**
+         * Constructs a GuiAction event.
+         */
+        public GuiAction() {
+        }
+
+        /**
+         * Fills in the event and writes it, if it is recorded.
+         *
+         * @param action the listener that handled the action
+         */
+        void record(String action) {
+            if (shouldCommit()) {
+                this.action = action;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Gets the first line of a message.
+     *
+     * @param message the message
+     * @return the text before the first line break
+     */
+    private static String firstLine(String message) {
+        int end = message.indexOf('\n');
+        return end == -1 ? message : message.substring(0, end);
+    }
+}
@@ -0,0 +1,403 @@
+package ePortfolio;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms, allocation counters and index sizes for every Portfolio
+ * in the JVM, published as the MBean ePortfolio:type=PortfolioMetrics.
+ *
+ * Metrics are off unless the program is started with
+ * -DePortfolio.metrics=true. Portfolio calls start and stop around each
+ * operation; both test the constant ENABLED first, so when metrics are off
+ * the JIT compiles them away and an operation costs exactly what it did
+ * without them. When they are on, a call costs two clock reads, two reads of
+ * the thread's allocation counter and a few atomic increments.
+ *
+ * With -DePortfolio.metrics.dumpSeconds=N the snapshot is also printed every
+ * N seconds.
+ */
+public class PortfolioMetrics implements PortfolioMetricsMBean {
+
+    /** Whether operations are measured. */
+    public static final boolean ENABLED = Boolean.getBoolean("ePortfolio.metrics");
+
+    /** The name the MBean is registered under. */
+    public static final String OBJECT_NAME = "ePortfolio:type=PortfolioMetrics";
+
+    /** Operation code: Portfolio.buy. */
+    public static final byte BUY = 0;
+
+    /** Operation code: Portfolio.sell. */
+    public static final byte SELL = 1;
+
+    /** Operation code: Portfolio.update. */
+    public static final byte UPDATE = 2;
+
+    /** Operation code: Portfolio.updatePrices. */
+    public static final byte UPDATE_PRICES = 3;
+
+    /** Operation code: Portfolio.executeOrders. */
+    public static final byte ORDERS = 4;
+
+    /** Operation code: Portfolio.search. */
+    public static final byte SEARCH = 5;
+
+    /** Operation code: Portfolio.searchName. */
+    public static final byte SEARCH_NAME = 6;
+
+    /** Operation code: Portfolio.getGain. */
+    public static final byte GAIN = 7;
+
+    /** Operation code: Portfolio.getSingleGain. */
+    public static final byte SINGLE_GAIN = 8;
+
+    /** Operation code: Portfolio.printInvestments. */
+    public static final byte PRINT = 9;
+
+    /** Operation code: Portfolio.readInvestments and recoverInvestments. */
+    public static final byte READ = 10;
+
+    /** Operation code: Portfolio.writeInvestment and writeSnapshot. */
+    public static final byte WRITE = 11;
+
+    /** The name of each operation, indexed by its code. */
+    public static final String[] NAMES = { "buy", "sell", "update", "updatePrices", "executeOrders", "search",
+            "searchName", "getGain", "getSingleGain", "printInvestments", "readInvestments", "writeInvestment" };
+
+    /** The metrics of the JVM. */
+    private static final PortfolioMetrics metrics = new PortfolioMetrics();
+
+    /** The allocation counter of the JVM's threads, or null if it has none. */
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+    /** The thread's allocated bytes at the start of each operation in progress. */
+    private static final ThreadLocal<long[]> allocationStart = ThreadLocal.withInitial(() -> new long[NAMES.length]);
+
+    /** The latencies of each operation. */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[NAMES.length];
+
+    /** The bytes allocated by each operation. */
+    private final AtomicLongArray allocated = new AtomicLongArray(NAMES.length);
+
+    /** The portfolios measured; guarded by itself. */
+    private final ArrayList<WeakReference<Portfolio>> portfolios = new ArrayList<>();
+
+    /** The number of trades at the previous getTradesPerSecond call. */
+    private long lastTrades = 0;
+
+    /** The time of the previous getTradesPerSecond call. */
+    private long lastTime = System.nanoTime();
+
+    /** Set once the MBean is registered and the dump scheduled. */
+    private boolean published = false;
+
+    /**
+     * Default constructor for the PortfolioMetrics class.
+     */
+    public PortfolioMetrics() {
+        for (int i = 0; i < NAMES.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Gets the metrics of the JVM.
+     *
+     * @return the metrics every Portfolio records into
+     */
+    public static PortfolioMetrics get() {
+        return metrics;
+    }
+
+    /**
+     * Adds a portfolio to the index sizes, and publishes the MBean with the
+     * first one. Does nothing if metrics are off.
+     *
+     * @param portfolio the new portfolio
+     */
+    static void register(Portfolio portfolio) {
+        if (!ENABLED) {
+            return;
+        }
+        synchronized (metrics.portfolios) {
+            metrics.portfolios.removeIf(reference -> reference.get() == null);
+            metrics.portfolios.add(new WeakReference<>(portfolio));
+            if (!metrics.published) {
+                metrics.published = true;
+                metrics.publish();
+            }
+        }
+    }
+
+    /**
+     * Starts measuring an operation on this thread.
+     *
+     * @param operation the operation code
+     * @return the start time to pass to stop, or 0 if metrics are off
+     */
+    static long start(byte operation) {
+        if (!ENABLED) {
+            return 0;
+        }
+        if (ALLOCATIONS != null) {
+            allocationStart.get()[operation] = ALLOCATIONS.getCurrentThreadAllocatedBytes();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the latency and the allocations of an operation started on this
+     * thread.
+     *
+     * @param operation the operation code
+     * @param start     the time start returned
+     */
+    static void stop(byte operation, long start) {
+        if (!ENABLED) {
+            return;
+        }
+        metrics.latencies[operation].record(System.nanoTime() - start);
+        if (ALLOCATIONS != null) {
+            metrics.allocated.addAndGet(operation,
+                    ALLOCATIONS.getCurrentThreadAllocatedBytes() - allocationStart.get()[operation]);
+        }
+    }
+
+    /**
+     * Gets the latency histogram of an operation.
+     *
+     * @param operation the operation code
+     * @return the histogram
+     */
+    public LatencyHistogram getLatencies(byte operation) {
+        return latencies[operation];
+    }
+
+    @Override
+    public long getCount(String operation) {
+        int code = codeOf(operation);
+        return code < 0 ? -1 : latencies[code].getCount();
+    }
+
+    @Override
+    public double getMeanMicros(String operation) {
+        int code = codeOf(operation);
+        return code < 0 ? -1 : latencies[code].getMean() / 1e3;
+    }
+
+    @Override
+    public double getPercentileMicros(String operation, double percentile) {
+        int code = codeOf(operation);
+        return code < 0 ? -1 : latencies[code].getValueAtPercentile(percentile) / 1e3;
+    }
+
+    @Override
+    public double getMaxMicros(String operation) {
+        int code = codeOf(operation);
+        return code < 0 ? -1 : latencies[code].getMax() / 1e3;
+    }
+
+    @Override
+    public long getAllocatedBytes(String operation) {
+        int code = codeOf(operation);
+        return code < 0 ? -1 : allocated.get(code);
+    }
+
+    @Override
+    public String[] getOperations() {
+        return NAMES.clone();
+    }
+
+    @Override
+    public long getTrades() {
+        return latencies[BUY].getCount() + latencies[SELL].getCount() + latencies[UPDATE].getCount();
+    }
+
+    @Override
+    public synchronized double getTradesPerSecond() {
+        long trades = getTrades();
+        long now = System.nanoTime();
+        double rate = now == lastTime ? 0 : (trades - lastTrades) * 1e9 / (now - lastTime);
+        lastTrades = trades;
+        lastTime = now;
+        return rate;
+    }
+
+    @Override
+    public int getPortfolios() {
+        return live().size();
+    }
+
+    @Override
+    public long getHoldings() {
+        return indexSizes()[0];
+    }
+
+    @Override
+    public long getIndexKeys() {
+        return indexSizes()[1];
+    }
+
+    @Override
+    public long getPostings() {
+        return indexSizes()[2];
+    }
+
+    @Override
+    public long getLargestPosting() {
+        return indexSizes()[3];
+    }
+
+    @Override
+    public long getSearchCacheHits() {
+        return Portfolio.searchCacheStatistics()[0];
+    }
+
+    @Override
+    public long getSearchCacheMisses() {
+        return Portfolio.searchCacheStatistics()[1];
+    }
+
+    @Override
+    public double getSearchCacheHitRate() {
+        long[] statistics = Portfolio.searchCacheStatistics();
+        long lookups = statistics[0] + statistics[1];
+        return lookups == 0 ? 0 : (double) statistics[0] / lookups;
+    }
+
+    @Override
+    public long getSearchCacheInvalidations() {
+        return Portfolio.searchCacheStatistics()[2];
+    }
+
+    @Override
+    public long getSearchCacheEvictions() {
+        return Portfolio.searchCacheStatistics()[3];
+    }
+
+    @Override
+    public long getSearchCacheEntries() {
+        return Portfolio.searchCacheStatistics()[4];
+    }
+
+    @Override
+    public String getSnapshot() {
+        long[] sizes = indexSizes();
+        StringBuilder snapshot = new StringBuilder(String.format(
+                "Portfolio metrics: %,d portfolios, %,d holdings, %,d keywords, %,d postings (largest %,d), "
+                        + "%,d trades, %,.1f trades/s%n",
+                getPortfolios(), sizes[0], sizes[1], sizes[2], sizes[3], getTrades(), getTradesPerSecond()));
+        long[] cache = Portfolio.searchCacheStatistics();
+        snapshot.append(String.format("  search cache     %,d hits, %,d misses (%.1f%% hit rate), %,d invalidated, "
+                + "%,d evicted, %,d entries, %,d bytes%n", cache[0], cache[1], 100 * getSearchCacheHitRate(),
+                cache[2], cache[3], cache[4], cache[5]));
+        for (int i = 0; i < NAMES.length; i++) {
+            if (latencies[i].getCount() > 0) {
+                snapshot.append(String.format("  %-16s %s, %,d bytes allocated%n", NAMES[i], latencies[i],
+                        allocated.get(i)));
+            }
+        }
+        return snapshot.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < NAMES.length; i++) {
+            latencies[i].reset();
+            allocated.set(i, 0);
+        }
+    }
+
+    /**
+     * Registers the MBean and schedules the periodic dump, if one was asked
+     * for.
+     */
+    private void publish() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Error in registering the portfolio metrics: " + e.getMessage());
+        }
+
+        int seconds = Integer.getInteger("ePortfolio.metrics.dumpSeconds", 0);
+        if (seconds > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "portfolio-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> System.out.print(getSnapshot()), seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Gets the portfolios still in use.
+     *
+     * @return the live portfolios
+     */
+    private ArrayList<Portfolio> live() {
+        ArrayList<Portfolio> live = new ArrayList<>();
+        synchronized (portfolios) {
+            for (WeakReference<Portfolio> reference : portfolios) {
+                Portfolio portfolio = reference.get();
+                if (portfolio != null) {
+                    live.add(portfolio);
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Adds up the index sizes of every live portfolio.
+     *
+     * @return the holdings, keywords, postings and largest posting list
+     */
+    private long[] indexSizes() {
+        long[] sizes = new long[4];
+        for (Portfolio portfolio : live()) {
+            long[] own = portfolio.indexSizes();
+            sizes[0] += own[0];
+            sizes[1] += own[1];
+            sizes[2] += own[2];
+            sizes[3] = Math.max(sizes[3], own[3]);
+        }
+        return sizes;
+    }
+
+    /**
+     * Gets the code of an operation from its name.
+     *
+     * @param operation the name of the operation
+     * @return the operation code, or -1 if there is no such operation
+     */
+    private static int codeOf(String operation) {
+        return Arrays.asList(NAMES).indexOf(operation);
+    }
+
+    /**
+     * Gets the allocation counter of the JVM's threads.
+     *
+     * @return the counter, or null if the JVM doesn't count allocations
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ENABLED && ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                    .getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,163 @@
+package ePortfolio;
+
+/**
+ * The JMX view of PortfolioMetrics. Operations are named as in
+ * PortfolioMetrics.NAMES, like "buy" or "search".
+ */
+public interface PortfolioMetricsMBean {
+
+    /**
+     * Gets the number of calls of an operation.
+     *
+     * @param operation the name of the operation
+     * @return the number of calls, or -1 if there is no such operation
+     */
+    long getCount(String operation);
+
+    /**
+     * Gets the mean latency of an operation.
+     *
+     * @param operation the name of the operation
+     * @return the mean latency in microseconds, or -1 if there is no such
+     *         operation
+     */
+    double getMeanMicros(String operation);
+
+    /**
+     * Gets a percentile of the latency of an operation.
+     *
+     * @param operation  the name of the operation
+     * @param percentile the percentage, from 0 to 100
+     * @return the latency in microseconds, or -1 if there is no such operation
+     */
+    double getPercentileMicros(String operation, double percentile);
+
+    /**
+     * Gets the largest latency of an operation.
+     *
+     * @param operation the name of the operation
+     * @return the largest latency in microseconds, or -1 if there is no such
+     *         operation
+     */
+    double getMaxMicros(String operation);
+
+    /**
+     * Gets the number of bytes the calls of an operation allocated.
+     *
+     * @param operation the name of the operation
+     * @return the allocated bytes, or -1 if there is no such operation
+     */
+    long getAllocatedBytes(String operation);
+
+    /**
+     * Gets the names of the operations.
+     *
+     * @return the names of the operations
+     */
+    String[] getOperations();
+
+    /**
+     * Gets the number of buys, sells and updates made.
+     *
+     * @return the number of trades
+     */
+    long getTrades();
+
+    /**
+     * Gets the rate of trades since the previous call.
+     *
+     * @return the trades per second
+     */
+    double getTradesPerSecond();
+
+    /**
+     * Gets the number of portfolios measured.
+     *
+     * @return the number of live portfolios
+     */
+    int getPortfolios();
+
+    /**
+     * Gets the number of holdings in every portfolio.
+     *
+     * @return the number of holdings
+     */
+    long getHoldings();
+
+    /**
+     * Gets the number of keys in the keyword indexes of every portfolio.
+     *
+     * @return the number of keywords
+     */
+    long getIndexKeys();
+
+    /**
+     * Gets the number of entries in the keyword posting lists of every
+     * portfolio.
+     *
+     * @return the number of postings
+     */
+    long getPostings();
+
+    /**
+     * Gets the size of the longest keyword posting list of any portfolio.
+     *
+     * @return the largest number of holdings sharing a keyword
+     */
+    long getLargestPosting();
+
+    /**
+     * Gets the number of searches answered from the search caches.
+     *
+     * @return the number of cache hits
+     */
+    long getSearchCacheHits();
+
+    /**
+     * Gets the number of cacheable searches that had to be run.
+     *
+     * @return the number of cache misses
+     */
+    long getSearchCacheMisses();
+
+    /**
+     * Gets the share of cacheable searches answered from the search caches.
+     *
+     * @return the hit rate, from 0 to 1
+     */
+    double getSearchCacheHitRate();
+
+    /**
+     * Gets the number of cached search results dropped because a trade
+     * changed them.
+     *
+     * @return the number of invalidations
+     */
+    long getSearchCacheInvalidations();
+
+    /**
+     * Gets the number of cached search results dropped to make room.
+     *
+     * @return the number of evictions
+     */
+    long getSearchCacheEvictions();
+
+    /**
+     * Gets the number of search results in the cache shared by every portfolio.
+     *
+     * @return the number of cache entries
+     */
+    long getSearchCacheEntries();
+
+    /**
+     * Gets every metric as text.
+     *
+     * @return the snapshot of the metrics
+     */
+    String getSnapshot();
+
+    /**
+     * Clears the latency histograms and the allocation counters.
+     */
+    void reset();
+}
@@ -0,0 +1,506 @@
+package ePortfolio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the binary snapshot format for a portfolio.
+ * A snapshot stores the investments column by column with fixed-width numbers,
+ * so it can be written and loaded in bulk, while the text format is kept for
+ * interchange.
+ *
+ * Layout (little-endian):
+ *
+ * <pre>
+ * header (40 bytes)
+ *   int    magic            "EPSN"
+ *   short  version
+ *   short  reserved         always 0
+ *   int    count            number of investments
+ *   int    strings          number of entries in the string table
+ *   long   bodyLength       number of bytes after the header
+ *   long   sequence         last journal record folded into the snapshot
+ *   int    bodyChecksum     CRC32 of the body
+ *   int    headerChecksum   CRC32 of the 36 header bytes before it
+ * body
+ *   long   price[count]     in micro-units (see Money)
+ *   long   bookValue[count] in micro-units
+ *   int    quantity[count]
+ *   int    symbol[count]    string table entry of the symbol
+ *   int    name[count]      string table entry of the name
+ *   byte   type[count]      TYPE_STOCK or TYPE_MUTUAL_FUND
+ *   string table            for each entry: int byte length, UTF-8 bytes
+ *   int    lotted           number of investments with tax lots
+ *   for each of them:
+ *     int  investment       index of the investment
+ *     long nextLot          id of the investment's next lot
+ *     int  lots             number of unsold lots
+ *     for each lot: long id, int quantity, long cost, long unitCost
+ * </pre>
+ *
+ * Investments bought once have no tax lots and aren't listed; their whole
+ * holding is one lot (see TaxLots).
+ *
+ * Version 1 files have a 32 byte header without the sequence, which reads
+ * as 0. Version 1 and 2 files store the price and book value as doubles,
+ * which are rounded to micro-units when loaded. Files older than version 4
+ * have no tax lots. They can still be loaded.
+ */
+public class PortfolioSnapshot {
+
+    /** The file extension used for snapshot files. */
+    public static final String EXTENSION = ".snap";
+
+    /** The first four bytes of every snapshot: "EPSN". */
+    public static final int MAGIC = 0x4E535045;
+
+    /** The current version of the format. */
+    public static final short VERSION = 4;
+
+    /** The size of the header in bytes. */
+    private static final int HEADER_SIZE = 40;
+
+    /** The size of the header in version 1 files, which have no sequence. */
+    private static final int HEADER_SIZE_V1 = 32;
+
+    /** The type tag of a Stock. */
+    private static final byte TYPE_STOCK = 0;
+
+    /** The type tag of a MutualFund. */
+    private static final byte TYPE_MUTUAL_FUND = 1;
+
+    /** The size of the buffer used to stream the body to disk. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Default constructor for the PortfolioSnapshot class.
+     */
+    public PortfolioSnapshot() {
+    }
+
+    /**
+     * Checks if a file starts with the snapshot magic number.
+     *
+     * @param file the file to check
+     * @return true if the file is a snapshot
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
+                // Keep reading until the four bytes are in
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Writes investments to a snapshot file, replacing any existing file.
+     *
+     * @param file        the file to write
+     * @param investments the investments to write
+     * @return the number of bytes written
+     * @throws IOException if the file can't be written
+     */
+    public static long write(Path file, List<Investment> investments) throws IOException {
+        return write(file, investments, 0);
+    }
+
+    /**
+     * Writes investments to a snapshot file, replacing any existing file, and
+     * records the last journal record they include.
+     *
+     * @param file        the file to write
+     * @param investments the investments to write
+     * @param sequence    the sequence number of the last journal record folded
+     *                    into the investments, or 0 if there is none
+     * @return the number of bytes written
+     * @throws IOException if the file can't be written
+     */
+    public static long write(Path file, List<Investment> investments, long sequence) throws IOException {
+        int count = investments.size();
+
+        // Build the string table, storing each distinct symbol and name once
+        HashMap<String, Integer> stringIds = new HashMap<>();
+        ArrayList<byte[]> strings = new ArrayList<>();
+        int[] symbols = new int[count];
+        int[] names = new int[count];
+        for (int i = 0; i < count; i++) {
+            symbols[i] = stringId(investments.get(i).getSymbol(), stringIds, strings);
+            names[i] = stringId(investments.get(i).getName(), stringIds, strings);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 bodyChecksum = new CRC32();
+            long bodyLength = 0;
+
+            // Leave room for the header, which needs the body checksum
+            channel.position(HEADER_SIZE);
+
+            // Write each column in turn, flushing the buffer whenever it fills up
+            for (int i = 0; i < count; i++) {
+                bodyLength += flushIfFull(channel, buffer, 8, bodyChecksum);
+                buffer.putLong(investments.get(i).getPriceMicros());
+            }
+            for (int i = 0; i < count; i++) {
+                bodyLength += flushIfFull(channel, buffer, 8, bodyChecksum);
+                buffer.putLong(investments.get(i).getBookValueMicros());
+            }
+            for (int i = 0; i < count; i++) {
+                bodyLength += flushIfFull(channel, buffer, 4, bodyChecksum);
+                buffer.putInt(investments.get(i).getQuantity());
+            }
+            for (int i = 0; i < count; i++) {
+                bodyLength += flushIfFull(channel, buffer, 4, bodyChecksum);
+                buffer.putInt(symbols[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                bodyLength += flushIfFull(channel, buffer, 4, bodyChecksum);
+                buffer.putInt(names[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                bodyLength += flushIfFull(channel, buffer, 1, bodyChecksum);
+                buffer.put(investments.get(i) instanceof MutualFund ? TYPE_MUTUAL_FUND : TYPE_STOCK);
+            }
+
+            // Then the string table
+            for (byte[] string : strings) {
+                bodyLength += flushIfFull(channel, buffer, 4, bodyChecksum);
+                buffer.putInt(string.length);
+                int offset = 0;
+                while (offset < string.length) {
+                    bodyLength += flushIfFull(channel, buffer, 1, bodyChecksum);
+                    int length = Math.min(buffer.remaining(), string.length - offset);
+                    buffer.put(string, offset, length);
+                    offset += length;
+                }
+            }
+
+            // Then the tax lots of the investments that have them
+            int lotted = 0;
+            for (Investment investment : investments) {
+                if (investment.getLots() != null) {
+                    lotted++;
+                }
+            }
+            bodyLength += flushIfFull(channel, buffer, 4, bodyChecksum);
+            buffer.putInt(lotted);
+            long[] ids = new long[0];
+            int[] quantities = new int[0];
+            long[] costs = new long[0];
+            long[] unitCosts = new long[0];
+            for (int i = 0; i < count; i++) {
+                TaxLots lots = investments.get(i).getLots();
+                if (lots == null) {
+                    continue;
+                }
+                int size = lots.size();
+                if (ids.length < size) {
+                    ids = new long[size];
+                    quantities = new int[size];
+                    costs = new long[size];
+                    unitCosts = new long[size];
+                }
+                lots.copyTo(ids, quantities, costs, unitCosts);
+                bodyLength += flushIfFull(channel, buffer, 4 + 8 + 4, bodyChecksum);
+                buffer.putInt(i);
+                buffer.putLong(lots.nextId());
+                buffer.putInt(size);
+                for (int j = 0; j < size; j++) {
+                    bodyLength += flushIfFull(channel, buffer, 8 + 4 + 8 + 8, bodyChecksum);
+                    buffer.putLong(ids[j]);
+                    buffer.putInt(quantities[j]);
+                    buffer.putLong(costs[j]);
+                    buffer.putLong(unitCosts[j]);
+                }
+            }
+            bodyLength += flush(channel, buffer, bodyChecksum);
+
+            // Now the header can be written at the start of the file
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) 0);
+            header.putInt(count);
+            header.putInt(strings.size());
+            header.putLong(bodyLength);
+            header.putLong(sequence);
+            header.putInt((int) bodyChecksum.getValue());
+            CRC32 headerChecksum = new CRC32();
+            headerChecksum.update(header.array(), 0, HEADER_SIZE - 4);
+            header.putInt((int) headerChecksum.getValue());
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            return HEADER_SIZE + bodyLength;
+        }
+    }
+
+    /**
+     * Reads every investment from a snapshot file. The file is mapped into
+     * memory and each column is copied out with a single bulk read.
+     *
+     * @param file the file to read
+     * @return the investments, in the order they were written
+     * @throws IOException if the file can't be read or isn't a valid snapshot
+     */
+    public static ArrayList<Investment> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, file);
+            int headerSize = header.capacity();
+            short version = header.getShort(4);
+            int count = header.getInt(8);
+            int stringCount = header.getInt(12);
+            long bodyLength = header.getLong(16);
+            if (bodyLength != channel.size() - headerSize || bodyLength > Integer.MAX_VALUE) {
+                throw new IOException("The snapshot body has the wrong length: " + file);
+            }
+
+            // Map the body and check it as a whole
+            MappedByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, headerSize, bodyLength);
+            body.order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 bodyChecksum = new CRC32();
+            bodyChecksum.update(body.duplicate());
+            if (header.getInt(headerSize - 8) != (int) bodyChecksum.getValue()) {
+                throw new IOException("The snapshot body is corrupt: " + file);
+            }
+
+            // Copy each column out in bulk
+            long[] prices = new long[count];
+            long[] bookValues = new long[count];
+            int[] quantities = new int[count];
+            int[] symbols = new int[count];
+            int[] names = new int[count];
+            byte[] types = new byte[count];
+            try {
+                readAmounts(body, version, prices);
+                readAmounts(body, version, bookValues);
+                body.asIntBuffer().get(quantities);
+                body.position(body.position() + count * 4);
+                body.asIntBuffer().get(symbols);
+                body.position(body.position() + count * 4);
+                body.asIntBuffer().get(names);
+                body.position(body.position() + count * 4);
+                body.get(types);
+
+                // Decode the string table once, so repeated names share one String
+                String[] strings = new String[stringCount];
+                for (int i = 0; i < stringCount; i++) {
+                    byte[] bytes = new byte[body.getInt()];
+                    body.get(bytes);
+                    strings[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+
+                // Build the investments from the columns
+                ArrayList<Investment> investments = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    Investment investment;
+                    if (types[i] == TYPE_STOCK) {
+                        investment = new Stock(strings[symbols[i]], strings[names[i]], quantities[i],
+                                Money.toDouble(prices[i]));
+                    } else {
+                        investment = new MutualFund(strings[symbols[i]], strings[names[i]], quantities[i],
+                                Money.toDouble(prices[i]));
+                    }
+                    // Keep the exact amounts rather than their double conversions
+                    investment.setPriceMicros(prices[i]);
+                    investment.setBookValueMicros(bookValues[i]);
+                    investments.add(investment);
+                }
+                if (version >= 4) {
+                    readLots(body, investments);
+                }
+                return investments;
+            } catch (Exception e) {
+                // Buffer underflows, bad string references and invalid values
+                throw new IOException("The snapshot is invalid: " + file + " (" + e + ")", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the sequence number of the last journal record folded into a
+     * snapshot, without loading its investments.
+     *
+     * @param file the file to read
+     * @return the sequence number, or 0 for snapshots that have none
+     * @throws IOException if the file can't be read or isn't a valid snapshot
+     */
+    public static long readSequence(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, file);
+            return header.capacity() == HEADER_SIZE_V1 ? 0 : header.getLong(24);
+        }
+    }
+
+    /**
+     * Reads and checks the header of a snapshot of any supported version.
+     *
+     * @param channel the open snapshot file
+     * @param file    the path of the file, for error messages
+     * @return the header, whose capacity is the header size of its version
+     * @throws IOException if the file can't be read or the header isn't valid
+     */
+    private static ByteBuffer readHeader(FileChannel channel, Path file) throws IOException {
+        if (channel.size() < HEADER_SIZE_V1) {
+            throw new IOException("The file is too short to be a snapshot: " + file);
+        }
+
+        // The version decides how long the header is
+        ByteBuffer start = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        while (start.hasRemaining() && channel.read(start, start.position()) > 0) {
+            // Keep reading until the magic and version are in
+        }
+        if (start.getInt(0) != MAGIC) {
+            throw new IOException("The file is not a snapshot: " + file);
+        }
+        short version = start.getShort(4);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + ": " + file);
+        }
+        int headerSize = version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE;
+        if (channel.size() < headerSize) {
+            throw new IOException("The file is too short to be a snapshot: " + file);
+        }
+
+        // Check the header before trusting any of its values
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // Keep reading until the header is in
+        }
+        CRC32 headerChecksum = new CRC32();
+        headerChecksum.update(header.array(), 0, headerSize - 4);
+        if (header.getInt(headerSize - 4) != (int) headerChecksum.getValue()) {
+            throw new IOException("The snapshot header is corrupt: " + file);
+        }
+        return header;
+    }
+
+    /**
+     * Reads a column of amounts into micro-units, converting the doubles of
+     * files older than version 3.
+     *
+     * @param body    the snapshot body, positioned at the column
+     * @param version the version of the snapshot
+     * @param amounts receives the amounts in micro-units
+     */
+    private static void readAmounts(ByteBuffer body, short version, long[] amounts) {
+        if (version >= 3) {
+            body.asLongBuffer().get(amounts);
+        } else {
+            double[] doubles = new double[amounts.length];
+            body.asDoubleBuffer().get(doubles);
+            for (int i = 0; i < amounts.length; i++) {
+                amounts[i] = Money.fromDouble(doubles[i]);
+            }
+        }
+        body.position(body.position() + amounts.length * 8);
+    }
+
+    /**
+     * Reads the tax lots of the investments that have them.
+     *
+     * @param body        the snapshot body, positioned after the string table
+     * @param investments the investments read from the columns
+     * @throws IllegalArgumentException if the lots don't add up to their
+     *                                  investment
+     */
+    private static void readLots(ByteBuffer body, ArrayList<Investment> investments) {
+        int lotted = body.getInt();
+        for (int i = 0; i < lotted; i++) {
+            Investment investment = investments.get(body.getInt());
+            long nextId = body.getLong();
+            int size = body.getInt();
+            if (size <= 0 || size > body.remaining() / (8 + 4 + 8 + 8)) {
+                throw new IllegalArgumentException("Invalid lot count " + size);
+            }
+            long[] ids = new long[size];
+            int[] quantities = new int[size];
+            long[] costs = new long[size];
+            long[] unitCosts = new long[size];
+            long quantity = 0;
+            long cost = 0;
+            for (int j = 0; j < size; j++) {
+                ids[j] = body.getLong();
+                quantities[j] = body.getInt();
+                costs[j] = body.getLong();
+                unitCosts[j] = body.getLong();
+                quantity += quantities[j];
+                cost += costs[j];
+            }
+            if (quantity != investment.getQuantity() || cost != investment.getBookValueMicros()) {
+                throw new IllegalArgumentException("The lots of " + investment.getSymbol() + " don't add up");
+            }
+            investment.setLots(new TaxLots(ids, quantities, costs, unitCosts, nextId));
+        }
+    }
+
+    /**
+     * Gets the string table entry of a string, adding it if it is new.
+     *
+     * @param string    the string
+     * @param stringIds the entry of each string already in the table
+     * @param strings   the encoded strings in the table
+     * @return the entry of the string
+     */
+    private static int stringId(String string, HashMap<String, Integer> stringIds, ArrayList<byte[]> strings) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(string, id);
+            strings.add(string.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    /**
+     * Flushes the buffer if it can't fit the given number of bytes.
+     *
+     * @param channel  the channel to write to
+     * @param buffer   the buffer being filled
+     * @param needed   the number of bytes about to be put in the buffer
+     * @param checksum the checksum to update with the written bytes
+     * @return the number of bytes written
+     * @throws IOException if the write fails
+     */
+    private static int flushIfFull(FileChannel channel, ByteBuffer buffer, int needed, CRC32 checksum)
+            throws IOException {
+        return buffer.remaining() < needed ? flush(channel, buffer, checksum) : 0;
+    }
+
+    /**
+     * Writes the contents of the buffer and empties it.
+     *
+     * @param channel  the channel to write to
+     * @param buffer   the buffer being filled
+     * @param checksum the checksum to update with the written bytes
+     * @return the number of bytes written
+     * @throws IOException if the write fails
+     */
+    private static int flush(FileChannel channel, ByteBuffer buffer, CRC32 checksum) throws IOException {
+        buffer.flip();
+        int written = buffer.remaining();
+        checksum.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return written;
+    }
+}
@@ -0,0 +1,128 @@
+package ePortfolio;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.swing.SwingWorker;
+
+/**
+ * Runs a long Portfolio call, such as a load, a save, a search or a gain
+ * report, on a background thread so the window keeps painting and taking
+ * clicks. The call is given the task as its Portfolio.Progress, so its
+ * progress shows up in the task's "progress" property, from 0 to 100, and a
+ * search notices when the task is cancelled. SwingWorker merges progress
+ * updates that arrive faster than the event thread takes them.
+ *
+ * The result is handed to the event thread once the call returns, unless the
+ * task was cancelled: a cancelled task's result is dropped, so a task that
+ * replaces an older one never has its result overwritten by the older one's.
+ * If the call throws, the failure handler is given the exception instead, on
+ * the event thread, so the window can tell the user.
+ * Tasks are cancelled without interrupting their thread, since an interrupt
+ * would close the file channels a save or the journal is using.
+ *
+ * Each task is recorded as a PortfolioEvents.GuiAction on the background
+ * thread, so a recording puts the engine calls it made inside it.
+ *
+ * @param <T> the type of the call's result
+ */
+public class PortfolioTask<T> extends SwingWorker<T, Void> implements Portfolio.Progress {
+
+    /** The name of the action, shown while it runs and recorded. */
+    private final String name;
+
+    /** Whether the action can be stopped part way. */
+    private final boolean cancellable;
+
+    /** The Portfolio call. */
+    private final Function<Portfolio.Progress, T> work;
+
+    /** Shows the result on the event thread. */
+    private final Consumer<T> result;
+
+    /** Tells the user the call failed, on the event thread; or null. */
+    private Consumer<Throwable> failure;
+
+    /**
+     * Constructs a task. Nothing runs until execute is called.
+     *
+     * @param name        the name of the action
+     * @param cancellable true if the action can be stopped part way
+     * @param work        the Portfolio call, given the task to report to
+     * @param result      shows the call's result; run on the event thread
+     */
+    public PortfolioTask(String name, boolean cancellable, Function<Portfolio.Progress, T> work,
+            Consumer<T> result) {
+        this.name = name;
+        this.cancellable = cancellable;
+        this.work = work;
+        this.result = result;
+    }
+
+    /**
+     * Gets the name of the action.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Checks whether the action can be stopped part way. Loads and saves
+     * can't, so they always finish.
+     *
+     * @return true if cancel may be called
+     */
+    public boolean isCancellable() {
+        return cancellable;
+    }
+
+    /**
+     * Sets what to do if the call throws, instead of only logging it. Must be
+     * set before execute is called.
+     *
+     * @param failure is given the exception the call threw; run on the event
+     *                thread
+     */
+    public void setFailureHandler(Consumer<Throwable> failure) {
+        this.failure = failure;
+    }
+
+    @Override
+    public void report(long done, long total) {
+        if (total > 0) {
+            setProgress((int) Math.min(100, done * 100 / total));
+        }
+    }
+
+    @Override
+    protected T doInBackground() {
+        PortfolioEvents.GuiAction action = new PortfolioEvents.GuiAction();
+        action.begin();
+        try {
+            return work.apply(this);
+        } finally {
+            action.record(name);
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            return; // Replaced or stopped, so nobody wants the result
+        }
+        try {
+            result.accept(get());
+        } catch (CancellationException | InterruptedException e) {
+            // Not reached: the task finished and wasn't cancelled
+        } catch (ExecutionException e) {
+            System.out.println("Error in " + name + ": " + e.getCause());
+            if (failure != null) {
+                failure.accept(e.getCause());
+            }
+        }
+    }
+}
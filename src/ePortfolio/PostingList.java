@@ -0,0 +1,289 @@
+package ePortfolio;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A sorted list of primitive int positions used by the keyword index.
+ * Each keyword maps to one PostingList holding the ids of every investment
+ * whose name contains the keyword, kept in ascending order with no
+ * duplicates so lists can be intersected with a merge instead of boxed
+ * Integer lookups.
+ */
+public class PostingList {
+
+    /** The positions, sorted ascending; only the first size entries are used. */
+    private int[] positions;
+
+    /** The number of positions in the list. */
+    private int size;
+
+    /**
+     * Constructs an empty PostingList.
+     */
+    public PostingList() {
+        this.positions = new int[4];
+        this.size = 0;
+    }
+
+    /**
+     * Gets the number of positions in the list.
+     *
+     * @return the number of positions
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Checks if the list has no positions.
+     *
+     * @return true if the list is empty
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Gets the position stored at the given offset in the list.
+     *
+     * @param offset the offset in the list, from 0 to size() - 1
+     * @return the position at that offset
+     */
+    public int get(int offset) {
+        if (offset < 0 || offset >= size) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is out of bounds for size " + size);
+        }
+        return positions[offset];
+    }
+
+    /**
+     * Checks if the list contains the given position.
+     *
+     * @param position the position to look for
+     * @return true if the position is in the list
+     */
+    public boolean contains(int position) {
+        return Arrays.binarySearch(positions, 0, size, position) >= 0;
+    }
+
+    /**
+     * Adds a position to the list, keeping it sorted.
+     * Appending a position larger than every existing one is O(1), which is the
+     * common case since new investments get the next free id.
+     *
+     * @param position the position to add
+     * @return true if the position was added, false if it was already present
+     */
+    public boolean add(int position) {
+        // Fast path: append at the end
+        if (size == 0 || positions[size - 1] < position) {
+            ensureCapacity(size + 1);
+            positions[size++] = position;
+            return true;
+        }
+
+        // Otherwise insert at the sorted location
+        int location = Arrays.binarySearch(positions, 0, size, position);
+        if (location >= 0) {
+            return false;
+        }
+        location = -(location + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(positions, location, positions, location + 1, size - location);
+        positions[location] = position;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a position from the list.
+     *
+     * @param position the position to remove
+     * @return true if the position was removed, false if it was not present
+     */
+    public boolean remove(int position) {
+        int location = Arrays.binarySearch(positions, 0, size, position);
+        if (location < 0) {
+            return false;
+        }
+        System.arraycopy(positions, location + 1, positions, location, size - location - 1);
+        size--;
+
+        // Release memory when the list has shrunk well below its capacity
+        if (positions.length > 16 && size < positions.length / 4) {
+            positions = Arrays.copyOf(positions, positions.length / 2);
+        }
+        return true;
+    }
+
+    /**
+     * Adds every position in another list in a single merge, which is much
+     * cheaper than adding them one at a time to the middle of a long list.
+     *
+     * @param added the positions to add
+     * @return the number of positions added (positions already present are skipped)
+     */
+    public int addAll(PostingList added) {
+        int[] merged = new int[Math.max(positions.length, size + added.size)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < added.size) {
+            if (j == added.size || (i < size && positions[i] < added.positions[j])) {
+                merged[count++] = positions[i++];
+            } else if (i == size || added.positions[j] < positions[i]) {
+                merged[count++] = added.positions[j++];
+            } else {
+                merged[count++] = positions[i++]; // Present in both
+                j++;
+            }
+        }
+        int addedCount = count - size;
+        positions = merged;
+        size = count;
+        return addedCount;
+    }
+
+    /**
+     * Removes every position in another list in a single pass, which is much
+     * cheaper than removing them one at a time from a long list.
+     *
+     * @param removed the positions to remove
+     * @return the number of positions removed
+     */
+    public int removeAll(PostingList removed) {
+        int kept = 0;
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            int position = positions[i];
+            while (next < removed.size && removed.positions[next] < position) {
+                next++;
+            }
+            if (next < removed.size && removed.positions[next] == position) {
+                continue; // Drop it
+            }
+            positions[kept++] = position;
+        }
+        int count = size - kept;
+        size = kept;
+
+        // Release memory when the list has shrunk well below its capacity
+        if (positions.length > 16 && size < positions.length / 4) {
+            positions = Arrays.copyOf(positions, Math.max(16, positions.length / 2));
+        }
+        return count;
+    }
+
+    /**
+     * Replaces every position with its new value after the portfolio compacts its
+     * ids. The mapping must preserve order, so the list stays sorted.
+     *
+     * @param newPositions the new value of each old position
+     */
+    public void remap(int[] newPositions) {
+        for (int i = 0; i < size; i++) {
+            positions[i] = newPositions[positions[i]];
+        }
+    }
+
+    /**
+     * Intersects several posting lists without modifying any of them.
+     * The lists are processed from the smallest to the largest, so the working
+     * result never grows beyond the smallest list, and each step gallops
+     * through the larger list instead of scanning it.
+     *
+     * @param lists the lists to intersect
+     * @return the sorted positions found in every list
+     */
+    public static int[] intersect(PostingList... lists) {
+        if (lists.length == 0) {
+            return new int[0];
+        }
+
+        // Run the smallest list first so the candidate set starts small
+        PostingList[] ordered = lists.clone();
+        Arrays.sort(ordered, Comparator.comparingInt(PostingList::size));
+
+        // The only allocation: a copy of the smallest list, narrowed in place
+        int[] result = Arrays.copyOf(ordered[0].positions, ordered[0].size);
+        int count = result.length;
+
+        for (int i = 1; i < ordered.length && count > 0; i++) {
+            count = intersectInto(result, count, ordered[i]);
+        }
+
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Keeps only the candidates that are also in the given list. The surviving
+     * candidates are compacted to the front of the array.
+     *
+     * @param candidates the sorted candidate positions
+     * @param count      the number of valid candidates in the array
+     * @param list       the list to intersect with
+     * @return the number of candidates that remain
+     */
+    private static int intersectInto(int[] candidates, int count, PostingList list) {
+        int[] other = list.positions;
+        int otherSize = list.size;
+        int kept = 0;
+        int from = 0;
+
+        for (int i = 0; i < count && from < otherSize; i++) {
+            int target = candidates[i];
+            from = gallop(other, from, otherSize, target);
+            if (from < otherSize && other[from] == target) {
+                candidates[kept++] = target;
+                from++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Finds the first offset at or after from whose value is not less than the
+     * target, by doubling the step and then binary searching the last range.
+     *
+     * @param values the sorted values to search
+     * @param from   the offset to start searching from
+     * @param to     the end of the valid values (exclusive)
+     * @param target the value to search for
+     * @return the first offset with a value not less than the target, or to if
+     *         there is none
+     */
+    private static int gallop(int[] values, int from, int to, int target) {
+        if (from >= to || values[from] >= target) {
+            return from;
+        }
+
+        // Double the step until we pass the target or reach the end
+        int low = from;
+        int step = 1;
+        int high = from + step;
+        while (high < to && values[high] < target) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        if (high > to) {
+            high = to;
+        }
+
+        // values[low] < target, and values[high] >= target (or high == to)
+        int location = Arrays.binarySearch(values, low + 1, high, target);
+        return location >= 0 ? location : -(location + 1);
+    }
+
+    /**
+     * Makes sure the backing array can hold the given number of positions.
+     *
+     * @param capacity the number of positions that must fit
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(capacity, positions.length * 2));
+        }
+    }
+}
@@ -0,0 +1,827 @@
+package ePortfolio;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A compressed time series of the prices of each symbol. Every price is kept
+ * with the time it was recorded, in blocks of up to BLOCK_POINTS points that
+ * are compressed the way time series databases do:
+ *
+ * <ul>
+ * <li>A time is stored as the change in the gap since the previous point
+ * (delta-of-delta), which is a single bit when prices come in at a steady
+ * rate and a few bits when the rate wobbles.</li>
+ * <li>A price is stored as the XOR of its double bits with the previous
+ * price's: a single bit when the price didn't change, and otherwise only
+ * the bits between the leading and trailing zeros of the XOR.</li>
+ * </ul>
+ *
+ * Blocks are ordered by time, so a time range only decodes the blocks it
+ * overlaps. Times never go backwards within a symbol: a time before the last
+ * one is recorded as the last one.
+ *
+ * The history isn't synchronized; the portfolio guards it with its lock.
+ *
+ * File layout (big-endian):
+ *
+ * <pre>
+ *   int    magic            "EPPH"
+ *   short  version
+ *   int    symbols
+ *   for each symbol: UTF symbol, int blocks
+ *     for each block: long firstTime, long lastTime, int count, int bits,
+ *                     long words[(bits + 63) / 64]
+ *   int    checksum         CRC32 of everything before it
+ * </pre>
+ */
+public class PriceHistory {
+
+    /** The file extension added to the portfolio file for its price history. */
+    public static final String EXTENSION = ".history";
+
+    /** The first four bytes of every history file: "EPPH". */
+    public static final int MAGIC = 0x45505048;
+
+    /** The current version of the file format. */
+    public static final short VERSION = 1;
+
+    /** The most points in one block. */
+    static final int BLOCK_POINTS = 256;
+
+    /**
+     * Prices and the times they were recorded, oldest first.
+     */
+    public static class Points {
+
+        /** The time of each price, in milliseconds since the epoch. */
+        public final long[] times;
+
+        /** The prices. */
+        public final double[] prices;
+
+        /**
+         * Constructs Points.
+         *
+         * @param times  the time of each price
+         * @param prices the prices
+         */
+        Points(long[] times, double[] prices) {
+            this.times = times;
+            this.prices = prices;
+        }
+
+        /**
+         * Gets the number of points.
+         *
+         * @return the number of points
+         */
+        public int size() {
+            return times.length;
+        }
+    }
+
+    /**
+     * The open, high, low and close prices of one interval.
+     */
+    public static class Bar {
+
+        /** The start of the interval, in milliseconds since the epoch. */
+        public final long start;
+
+        /** The first price in the interval. */
+        public final double open;
+
+        /** The highest price in the interval. */
+        public final double high;
+
+        /** The lowest price in the interval. */
+        public final double low;
+
+        /** The last price in the interval. */
+        public final double close;
+
+        /** The number of prices in the interval. */
+        public final int count;
+
+        /**
+         * Constructs a Bar.
+         *
+         * @param start the start of the interval
+         * @param open  the first price
+         * @param high  the highest price
+         * @param low   the lowest price
+         * @param close the last price
+         * @param count the number of prices
+         */
+        Bar(long start, double open, double high, double low, double close, int count) {
+            this.start = start;
+            this.open = open;
+            this.high = high;
+            this.low = low;
+            this.close = close;
+            this.count = count;
+        }
+
+        /**
+         * Returns a string representation of the Bar.
+         *
+         * @return the start and the four prices
+         */
+        @Override
+        public String toString() {
+            return start + " O " + open + " H " + high + " L " + low + " C " + close + " (" + count + ")";
+        }
+    }
+
+    /**
+     * The compressed points of one block.
+     */
+    private static class Block {
+
+        /** The time of the first point. */
+        long firstTime;
+
+        /** The time of the last point. */
+        long lastTime;
+
+        /** The number of points. */
+        int count;
+
+        /** The compressed points, most significant bit first. */
+        long[] words;
+
+        /** The number of bits used in words. */
+        int bits;
+
+        /**
+         * Constructs an empty Block.
+         *
+         * @param words the initial words
+         */
+        Block(long[] words) {
+            this.words = words;
+        }
+
+        /**
+         * Appends the low bits of a value.
+         *
+         * @param value the value
+         * @param n     the number of bits, 1 to 64
+         */
+        void write(long value, int n) {
+            int word = bits >>> 6;
+            int offset = bits & 63;
+            if (word + (offset + n > 64 ? 1 : 0) >= words.length) {
+                words = Arrays.copyOf(words, Math.max(4, words.length * 2));
+            }
+            if (n < 64) {
+                value &= (1L << n) - 1;
+            }
+            words[word] |= value << (64 - n) >>> offset;
+            if (offset + n > 64) {
+                words[word + 1] = value << (128 - offset - n);
+            }
+            bits += n;
+        }
+
+        /**
+         * Reads bits.
+         *
+         * @param position the position of the first bit
+         * @param n        the number of bits, 1 to 64
+         * @return the bits, as the low bits of a long
+         */
+        long read(int position, int n) {
+            int word = position >>> 6;
+            int offset = position & 63;
+            long value = words[word] << offset >>> (64 - n);
+            if (offset + n > 64) {
+                value |= words[word + 1] >>> (128 - offset - n);
+            }
+            return value;
+        }
+
+    }
+
+    /**
+     * The blocks of one symbol. The series is itself the open block that new
+     * points go to, so a symbol with few points needs no other objects; full
+     * blocks are copied out to the sealed blocks, trimmed to size.
+     */
+    private static final class Series extends Block {
+
+        /** The full blocks, oldest first, or null if there are none. */
+        Block[] sealed;
+
+        /** The number of full blocks. */
+        int sealedCount;
+
+        /** The time of the last point. */
+        long latest;
+
+        /** The gap between the last two points of the open block. */
+        long lastDelta;
+
+        /** The double bits of the last price of the open block. */
+        long lastBits;
+
+        /** The leading zeros of the last stored XOR, or -1 if there is none. */
+        int leading;
+
+        /** The trailing zeros of the last stored XOR. */
+        int trailing;
+
+        /** The number of points in every block. */
+        long points;
+
+        /**
+         * Constructs an empty Series.
+         */
+        Series() {
+            super(null);
+        }
+
+        /**
+         * Constructs a copy of a Series. Sealed blocks never change, so the
+         * copy shares them and only copies the open block.
+         *
+         * @param other the series to copy
+         */
+        Series(Series other) {
+            super(other.words == null ? null : other.words.clone());
+            firstTime = other.firstTime;
+            lastTime = other.lastTime;
+            count = other.count;
+            bits = other.bits;
+            sealed = other.sealed == null ? null : other.sealed.clone();
+            sealedCount = other.sealedCount;
+            latest = other.latest;
+            lastDelta = other.lastDelta;
+            lastBits = other.lastBits;
+            leading = other.leading;
+            trailing = other.trailing;
+            points = other.points;
+        }
+
+        /**
+         * Gets the number of blocks, including the open one if it has points.
+         *
+         * @return the number of blocks
+         */
+        int blockCount() {
+            return sealedCount + (count > 0 ? 1 : 0);
+        }
+
+        /**
+         * Gets a block.
+         *
+         * @param b the index of the block, oldest first
+         * @return the block
+         */
+        Block block(int b) {
+            return b < sealedCount ? sealed[b] : this;
+        }
+
+        /**
+         * Copies the open block out to the sealed blocks and empties it.
+         */
+        void seal() {
+            Block block = new Block(Arrays.copyOf(words, (bits + 63) >>> 6));
+            block.firstTime = firstTime;
+            block.lastTime = lastTime;
+            block.count = count;
+            block.bits = bits;
+            if (sealed == null || sealedCount == sealed.length) {
+                sealed = Arrays.copyOf(sealed == null ? new Block[0] : sealed, Math.max(4, sealedCount * 2));
+            }
+            sealed[sealedCount++] = block;
+            count = 0;
+            bits = 0;
+        }
+    }
+
+    /**
+     * Walks the points of one block in order.
+     */
+    private static final class Cursor {
+
+        /** The block. */
+        private final Block block;
+
+        /** The position of the next bit. */
+        private int position;
+
+        /** The number of points read. */
+        private int index;
+
+        /** The time of the current point. */
+        long time;
+
+        /** The gap between the current point and the one before. */
+        private long delta;
+
+        /** The double bits of the current price. */
+        private long bits;
+
+        /** The leading zeros of the last XOR. */
+        private int leading;
+
+        /** The trailing zeros of the last XOR. */
+        private int trailing;
+
+        /**
+         * Constructs a Cursor before the first point of a block.
+         *
+         * @param block the block
+         */
+        Cursor(Block block) {
+            this.block = block;
+        }
+
+        /**
+         * Moves to the next point.
+         *
+         * @return false if there are no more points
+         */
+        boolean next() {
+            if (index == block.count) {
+                return false;
+            }
+            if (index++ == 0) {
+                time = block.read(0, 64);
+                bits = block.read(64, 64);
+                position = 128;
+                return true;
+            }
+
+            // The change in the gap, behind a prefix of up to five ones, read
+            // with a single look at the next five bits (fewer at the end)
+            int peek = Math.min(5, block.bits - position);
+            int ones = Math.min(peek, Long.numberOfLeadingZeros(~(block.read(position, peek) << (64 - peek))));
+            position += ones == 5 ? 5 : ones + 1;
+            if (ones > 0) {
+                int n = ones == 1 ? 7 : ones == 2 ? 9 : ones == 3 ? 12 : ones == 4 ? 32 : 64;
+                long value = block.read(position, n);
+                position += n;
+                delta += n == 64 ? value : value << (64 - n) >> (64 - n);
+            }
+            time += delta;
+
+            // The XOR with the previous price
+            if (block.read(position++, 1) == 1) {
+                if (block.read(position++, 1) == 1) {
+                    leading = (int) block.read(position, 5);
+                    int meaningful = (int) block.read(position + 5, 6) + 1;
+                    trailing = 64 - leading - meaningful;
+                    position += 11;
+                }
+                int meaningful = 64 - leading - trailing;
+                bits ^= block.read(position, meaningful) << trailing;
+                position += meaningful;
+            }
+            return true;
+        }
+
+        /**
+         * Gets the current price.
+         *
+         * @return the price
+         */
+        double price() {
+            return Double.longBitsToDouble(bits);
+        }
+    }
+
+    /** The series of each symbol. */
+    private final HashMap<String, Series> series = new HashMap<>();
+
+    /**
+     * Default constructor for the PriceHistory class.
+     */
+    public PriceHistory() {
+    }
+
+    /**
+     * Constructs a copy of a history, which can be written out while the
+     * original keeps recording.
+     *
+     * @param history the history to copy
+     */
+    public PriceHistory(PriceHistory history) {
+        history.series.forEach((symbol, s) -> series.put(symbol, new Series(s)));
+    }
+
+    /**
+     * Records a price.
+     *
+     * @param symbol the symbol
+     * @param time   the time, in milliseconds since the epoch
+     * @param price  the price
+     */
+    public void record(String symbol, long time, double price) {
+        Series s = series.computeIfAbsent(symbol, key -> new Series());
+        long bits = Double.doubleToRawLongBits(price);
+        if (s.points > 0 && time < s.latest) {
+            time = s.latest; // Times never go backwards
+        }
+        s.points++;
+
+        // Start a block with the raw time and price
+        if (s.count == BLOCK_POINTS) {
+            s.seal();
+        }
+        if (s.count == 0) {
+            s.words = new long[2];
+            s.write(time, 64);
+            s.write(bits, 64);
+            s.firstTime = time;
+            s.lastTime = time;
+            s.count = 1;
+            s.latest = time;
+            s.lastDelta = 0;
+            s.lastBits = bits;
+            s.leading = -1;
+            return;
+        }
+
+        Block block = s;
+        long delta = time - s.latest;
+        long change = delta - s.lastDelta;
+        if (change == 0) {
+            block.write(0, 1);
+        } else if (change >= -64 && change < 64) {
+            block.write(0b10L << 7 | (change & 0x7F), 2 + 7);
+        } else if (change >= -256 && change < 256) {
+            block.write(0b110L << 9 | (change & 0x1FF), 3 + 9);
+        } else if (change >= -2048 && change < 2048) {
+            block.write(0b1110L << 12 | (change & 0xFFF), 4 + 12);
+        } else if (change == (int) change) {
+            block.write(0b11110, 5);
+            block.write(change, 32);
+        } else {
+            block.write(0b11111, 5);
+            block.write(change, 64);
+        }
+
+        long xor = bits ^ s.lastBits;
+        if (xor == 0) {
+            block.write(0, 1);
+        } else {
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (s.leading != -1 && leading >= s.leading && trailing >= s.trailing) {
+                // The XOR fits in the previous window of meaningful bits
+                block.write(0b10, 2);
+                block.write(xor >>> s.trailing, 64 - s.leading - s.trailing);
+            } else {
+                int meaningful = 64 - leading - trailing;
+                block.write(0b11L << 11 | (long) leading << 6 | (meaningful - 1), 2 + 5 + 6);
+                block.write(xor >>> trailing, meaningful);
+                s.leading = leading;
+                s.trailing = trailing;
+            }
+        }
+
+        block.lastTime = time;
+        block.count++;
+        s.latest = time;
+        s.lastDelta = delta;
+        s.lastBits = bits;
+    }
+
+    /**
+     * Gets the prices of a symbol recorded within a time range.
+     *
+     * @param symbol the symbol
+     * @param from   the earliest time (inclusive)
+     * @param to     the latest time (inclusive)
+     * @return the prices, oldest first
+     */
+    public Points range(String symbol, long from, long to) {
+        return range(series.get(symbol), from, to);
+    }
+
+    /**
+     * Gets the prices of a series recorded within a time range.
+     *
+     * @param s    the series, or null
+     * @param from the earliest time (inclusive)
+     * @param to   the latest time (inclusive)
+     * @return the prices, oldest first
+     */
+    private static Points range(Series s, long from, long to) {
+        if (s == null || from > to) {
+            return new Points(new long[0], new double[0]);
+        }
+
+        // Skip the blocks that end before the range
+        int blockCount = s.blockCount();
+        int low = 0;
+        int high = blockCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (s.block(middle).lastTime < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        // The blocks that overlap the range bound the number of points
+        int end = low;
+        long most = 0;
+        while (end < blockCount && s.block(end).firstTime <= to) {
+            most += s.block(end++).count;
+        }
+
+        long[] times = new long[(int) Math.min(most, Integer.MAX_VALUE - 8)];
+        double[] prices = new double[times.length];
+        int count = 0;
+        for (int b = low; b < end; b++) {
+            Cursor cursor = new Cursor(s.block(b));
+            while (cursor.next() && cursor.time <= to) {
+                if (cursor.time >= from) {
+                    times[count] = cursor.time;
+                    prices[count] = cursor.price();
+                    count++;
+                }
+            }
+        }
+        if (count == times.length) {
+            return new Points(times, prices);
+        }
+        return new Points(Arrays.copyOf(times, count), Arrays.copyOf(prices, count));
+    }
+
+    /**
+     * Gets the last prices recorded for a symbol.
+     *
+     * @param symbol the symbol
+     * @param n      the number of prices
+     * @return up to n prices, oldest first
+     */
+    public Points last(String symbol, int n) {
+        Series s = series.get(symbol);
+        if (s == null || n <= 0) {
+            return new Points(new long[0], new double[0]);
+        }
+
+        // Walk back to the block the last n points start in
+        int blockCount = s.blockCount();
+        int first = blockCount;
+        long available = 0;
+        while (first > 0 && available < n) {
+            available += s.block(--first).count;
+        }
+        int size = (int) Math.min(n, available);
+        long skip = available - size;
+
+        long[] times = new long[size];
+        double[] prices = new double[size];
+        int count = 0;
+        for (int b = first; b < blockCount; b++) {
+            Cursor cursor = new Cursor(s.block(b));
+            while (cursor.next()) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                times[count] = cursor.time;
+                prices[count] = cursor.price();
+                count++;
+            }
+        }
+        return new Points(times, prices);
+    }
+
+    /**
+     * Down-samples the prices of a symbol within a time range into the open,
+     * high, low and close price of each interval. Intervals start at from;
+     * intervals with no price are left out.
+     *
+     * @param symbol   the symbol
+     * @param from     the start of the first interval (inclusive)
+     * @param to       the latest time (inclusive)
+     * @param interval the length of an interval in milliseconds, greater than 0
+     * @return the bars, oldest first
+     */
+    public Bar[] bars(String symbol, long from, long to, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("The interval must be greater than 0.");
+        }
+        Points points = range(symbol, from, to);
+        ArrayList<Bar> bars = new ArrayList<>();
+        int i = 0;
+        while (i < points.size()) {
+            long start = from + Math.floorDiv(points.times[i] - from, interval) * interval;
+            double open = points.prices[i];
+            double high = open;
+            double low = open;
+            int first = i;
+            while (i < points.size() && points.times[i] - start < interval) {
+                high = Math.max(high, points.prices[i]);
+                low = Math.min(low, points.prices[i]);
+                i++;
+            }
+            bars.add(new Bar(start, open, high, low, points.prices[i - 1], i - first));
+        }
+        return bars.toArray(new Bar[0]);
+    }
+
+    /**
+     * Gets the number of prices recorded for a symbol.
+     *
+     * @param symbol the symbol
+     * @return the number of prices
+     */
+    public long size(String symbol) {
+        Series s = series.get(symbol);
+        return s == null ? 0 : s.points;
+    }
+
+    /**
+     * Gets the number of prices recorded for every symbol.
+     *
+     * @return the number of prices
+     */
+    public long size() {
+        long points = 0;
+        for (Series s : series.values()) {
+            points += s.points;
+        }
+        return points;
+    }
+
+    /**
+     * Gets the memory used by the compressed blocks.
+     *
+     * @return the number of bytes in the blocks' words
+     */
+    public long compressedBytes() {
+        long words = 0;
+        for (Series s : series.values()) {
+            for (int b = 0; b < s.blockCount(); b++) {
+                words += s.block(b).words.length;
+            }
+        }
+        return words * 8;
+    }
+
+    /**
+     * Removes every price.
+     */
+    public void clear() {
+        series.clear();
+    }
+
+    /**
+     * Writes the history to a file, replacing any existing file.
+     *
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void write(Path file) throws IOException {
+        CRC32 checksum = new CRC32();
+        try (OutputStream stream = Files.newOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new CheckedOutputStream(stream, checksum), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(series.size());
+            for (Map.Entry<String, Series> entry : series.entrySet()) {
+                Series s = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(s.blockCount());
+                for (int b = 0; b < s.blockCount(); b++) {
+                    Block block = s.block(b);
+                    out.writeLong(block.firstTime);
+                    out.writeLong(block.lastTime);
+                    out.writeInt(block.count);
+                    out.writeInt(block.bits);
+                    for (int w = 0; w < (block.bits + 63) >>> 6; w++) {
+                        out.writeLong(block.words[w]);
+                    }
+                }
+            }
+            out.flush();
+            new DataOutputStream(stream).writeInt((int) checksum.getValue());
+        }
+    }
+
+    /**
+     * Reads a history file and merges it into this history. The series of a
+     * symbol this history doesn't have yet is added as it is; its blocks are
+     * all sealed, so new prices for it start a new block. The series of a
+     * symbol both have are merged by time, and a point both have is kept once.
+     *
+     * @param file the file to read
+     * @throws IOException if the file can't be read or isn't a valid history
+     */
+    public void read(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length < 14) {
+            throw new IOException("The file is too short to be a price history: " + file);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 0, bytes.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(bytes.length - 4);
+        if (in.readInt() != (int) checksum.getValue()) {
+            throw new IOException("The price history is corrupt: " + file);
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("The file is not a price history: " + file);
+        }
+        short version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported price history version " + version + ": " + file);
+        }
+        HashMap<String, Series> loaded = new HashMap<>();
+        int symbols = in.readInt();
+        for (int i = 0; i < symbols; i++) {
+            String symbol = in.readUTF();
+            int blockCount = in.readInt();
+            if (blockCount <= 0 || blockCount > bytes.length / 24) {
+                throw new IOException("The price history is invalid: " + file);
+            }
+            Series s = new Series();
+            s.sealed = new Block[blockCount];
+            for (int b = 0; b < blockCount; b++) {
+                long firstTime = in.readLong();
+                long lastTime = in.readLong();
+                int count = in.readInt();
+                int bits = in.readInt();
+                if (count <= 0 || count > BLOCK_POINTS || bits < 128 || bits > count * 192
+                        || lastTime < firstTime || (b > 0 && firstTime < s.sealed[b - 1].lastTime)) {
+                    throw new IOException("The price history is invalid: " + file);
+                }
+                long[] words = new long[(bits + 63) >>> 6];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = in.readLong();
+                }
+                Block block = new Block(words);
+                block.firstTime = firstTime;
+                block.lastTime = lastTime;
+                block.count = count;
+                block.bits = bits;
+                s.sealed[b] = block;
+                s.points += count;
+            }
+            s.sealedCount = blockCount;
+            s.latest = s.sealed[blockCount - 1].lastTime;
+            loaded.put(symbol, s);
+        }
+        loaded.forEach(this::merge);
+    }
+
+    /**
+     * Merges a series into the series of a symbol, in time order. A point at
+     * the same time and price as one already recorded is kept once.
+     *
+     * @param symbol the symbol
+     * @param other  the series to merge in
+     */
+    private void merge(String symbol, Series other) {
+        Series current = series.putIfAbsent(symbol, other);
+        if (current == null) {
+            return;
+        }
+        Points a = range(current, Long.MIN_VALUE, Long.MAX_VALUE);
+        Points b = range(other, Long.MIN_VALUE, Long.MAX_VALUE);
+        series.put(symbol, new Series());
+        int i = 0;
+        int j = 0;
+        while (i < a.size() || j < b.size()) {
+            if (j == b.size() || (i < a.size() && a.times[i] < b.times[j])) {
+                record(symbol, a.times[i], a.prices[i]);
+                i++;
+            } else if (i == a.size() || b.times[j] < a.times[i]) {
+                record(symbol, b.times[j], b.prices[j]);
+                j++;
+            } else {
+                // The same time: keep both prices unless they are the same point
+                record(symbol, a.times[i], a.prices[i]);
+                if (Double.doubleToRawLongBits(a.prices[i]) != Double.doubleToRawLongBits(b.prices[j])) {
+                    record(symbol, b.times[j], b.prices[j]);
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+}
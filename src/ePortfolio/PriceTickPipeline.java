@@ -0,0 +1,593 @@
+package ePortfolio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Feeds a stream of price ticks into a portfolio. Ticks are collected per
+ * symbol and a background thread applies them in batches with
+ * Portfolio.updatePrices; a symbol that ticks several times before its batch
+ * is applied only gets its latest price (last write wins), so a fast feed
+ * never queues more work than there are symbols.
+ *
+ * Ticks are read as text lines of the form
+ *
+ * <pre>
+ * AAPL,150.25
+ * </pre>
+ *
+ * from a file or any input stream, such as a socket's. Lines are parsed
+ * straight from the read buffer, and each symbol gets a slot the first time
+ * it ticks, so after warming up a tick costs no allocation on the way in.
+ *
+ * The pipeline counts the ticks it receives and applies, and measures the
+ * latency of each applied price from the time its oldest coalesced tick was
+ * read until its batch was applied. A batch the portfolio fails to apply is
+ * reported and counted as rejected, and the applier goes on with the next.
+ */
+public class PriceTickPipeline implements Closeable {
+
+    /** Size of the buffer tick streams are read through. */
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+
+    /** The portfolio the ticks are applied to. */
+    private final Portfolio portfolio;
+
+    /** Symbol slots by hash, open addressed; each entry is slot + 1, or 0 if empty. */
+    private int[] table = new int[1024];
+
+    /** The UTF-8 bytes of each slot's symbol. */
+    private byte[][] keys = new byte[256][];
+
+    /** The symbol of each slot. */
+    private String[] symbols = new String[256];
+
+    /** The latest price received for each slot. */
+    private double[] prices = new double[256];
+
+    /** When the oldest tick not yet applied arrived for each slot. */
+    private long[] since = new long[256];
+
+    /** Whether each slot has a tick waiting to be applied. */
+    private boolean[] dirty = new boolean[256];
+
+    /** The number of slots in use. */
+    private int slots = 0;
+
+    /** The slots with a tick waiting, in the order they first ticked. */
+    private int[] waiting = new int[256];
+
+    /** The number of slots waiting. */
+    private int waitingCount = 0;
+
+    /** The batch being applied; only touched by the applier thread. */
+    private String[] batchSymbols = new String[256];
+
+    /** The prices of the batch being applied. */
+    private double[] batchPrices = new double[256];
+
+    /** The arrival times of the batch being applied. */
+    private long[] batchSince = new long[256];
+
+    /** The number of ticks received. */
+    private long received = 0;
+
+    /** The number of lines that weren't valid ticks, and prices that failed to apply. */
+    private long rejected = 0;
+
+    /** The number of ticks included in the batches applied so far. */
+    private long appliedThrough = 0;
+
+    /** The number of prices applied, after coalescing. */
+    private long applied = 0;
+
+    /** The number of holdings whose price changed. */
+    private long repriced = 0;
+
+    /** The number of batches applied. */
+    private long batches = 0;
+
+    /** The total latency of the applied prices in nanoseconds. */
+    private long totalLatency = 0;
+
+    /** The largest latency of an applied price in nanoseconds. */
+    private long maxLatency = 0;
+
+    /** When the first tick arrived, or 0 before any. */
+    private long firstTick = 0;
+
+    /** When the last batch was applied. */
+    private long lastApplied = 0;
+
+    /** Set by close; the applier stops once everything waiting is applied. */
+    private boolean closed = false;
+
+    /** Set when the applier thread has stopped, for whatever reason. */
+    private boolean stopped = false;
+
+    /** The background thread that applies the batches. */
+    private final Thread applier;
+
+    /**
+     * Starts a pipeline feeding a portfolio.
+     *
+     * @param portfolio the portfolio to reprice
+     */
+    public PriceTickPipeline(Portfolio portfolio) {
+        this.portfolio = portfolio;
+        applier = new Thread(this::applyBatches, "ePortfolio-ticks");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Receives one tick from a caller that already has it in memory. The
+     * symbol is encoded for the lookup, so a busy feed is cheaper to read
+     * through ingest. A price that isn't positive or doesn't fit in
+     * micro-units is rejected.
+     *
+     * @param symbol the symbol
+     * @param price  the new price
+     */
+    public void tick(String symbol, double price) {
+        byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            if (!(price > 0) || !Money.isValid(price)) {
+                rejected++;
+                return;
+            }
+            receive(bytes, 0, bytes.length, price, System.nanoTime());
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reads ticks from a file until its end.
+     *
+     * @param file the tick file
+     * @return the number of lines read
+     * @throws IOException if the file can't be read
+     */
+    public long ingest(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return ingest(in);
+        }
+    }
+
+    /**
+     * Reads ticks from a stream until it ends. Each buffer full of ticks is
+     * handed over to the applier at once.
+     *
+     * @param in the stream of tick lines
+     * @return the number of lines read
+     * @throws IOException if the stream can't be read
+     */
+    public long ingest(InputStream in) throws IOException {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long lines = 0;
+        int filled = 0;
+        boolean skipping = false; // In the rest of a line longer than the buffer
+        int read;
+        while ((read = in.read(buffer, filled, buffer.length - filled)) != -1 || filled > 0) {
+            int end = read == -1 ? filled : filled + read;
+            int start = 0;
+            if (skipping) {
+                while (start < end && buffer[start] != '\n') {
+                    start++;
+                }
+                if (start < end) {
+                    start++; // The line ends here, the next one is a tick again
+                    skipping = false;
+                }
+            }
+            long now = System.nanoTime();
+            synchronized (this) {
+                for (int i = start; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        parseLine(buffer, start, i, now);
+                        lines++;
+                        start = i + 1;
+                    }
+                }
+                if (read == -1 && start < end) {
+                    parseLine(buffer, start, end, now); // The last line has no newline
+                    lines++;
+                    start = end;
+                }
+                notifyAll();
+            }
+
+            // Keep the partial line at the end for the next read
+            if (start == 0 && end == buffer.length) {
+                synchronized (this) {
+                    rejected++; // A line longer than the buffer is no tick
+                }
+                start = end;
+                skipping = true; // Drop the rest of it up to its newline
+            }
+            filled = end - start;
+            System.arraycopy(buffer, start, buffer, 0, filled);
+            if (read == -1) {
+                break;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Waits until every tick received so far has been applied to the portfolio.
+     * Returns early, with the interrupt flag set, if the thread is interrupted.
+     *
+     * @throws IllegalStateException if the applier thread stopped before the
+     *                               ticks were applied
+     */
+    public synchronized void flush() {
+        long target = received;
+        while (appliedThrough < target) {
+            if (stopped) {
+                throw new IllegalStateException("The price tick applier has stopped.");
+            }
+            if (!await()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies the ticks still waiting and stops the applier thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of ticks received.
+     *
+     * @return the number of ticks
+     */
+    public synchronized long getTicksReceived() {
+        return received;
+    }
+
+    /**
+     * Gets the number of lines that weren't valid ticks, and of prices in
+     * batches the portfolio failed to apply.
+     *
+     * @return the number of lines and prices rejected
+     */
+    public synchronized long getTicksRejected() {
+        return rejected;
+    }
+
+    /**
+     * Gets the number of prices applied to the portfolio. Ticks coalesced into
+     * a later tick for the same symbol aren't counted.
+     *
+     * @return the number of prices applied
+     */
+    public synchronized long getPricesApplied() {
+        return applied;
+    }
+
+    /**
+     * Gets the number of batches applied.
+     *
+     * @return the number of batches
+     */
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Gets the rate ticks were taken in, from the first tick until the last
+     * batch was applied.
+     *
+     * @return the ticks per second, or 0 before any batch
+     */
+    public synchronized double getTicksPerSecond() {
+        return lastApplied <= firstTick ? 0 : appliedThrough / ((lastApplied - firstTick) / 1e9);
+    }
+
+    /**
+     * Gets the average time from a tick's arrival until its price was applied.
+     *
+     * @return the mean latency in microseconds
+     */
+    public synchronized double getMeanLatencyMicros() {
+        return applied == 0 ? 0 : totalLatency / 1e3 / applied;
+    }
+
+    /**
+     * Gets the longest time from a tick's arrival until its price was applied.
+     *
+     * @return the largest latency in microseconds
+     */
+    public synchronized double getMaxLatencyMicros() {
+        return maxLatency / 1e3;
+    }
+
+    /**
+     * Describes the pipeline's counters for a report.
+     *
+     * @return the throughput and latency summary
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%,d ticks (%,d rejected), %,d prices applied in %,d batches, %,d holdings repriced, "
+                + "%,.0f ticks/s, latency mean %,.1f us, max %,.1f us", received, rejected, applied, batches,
+                repriced, getTicksPerSecond(), getMeanLatencyMicros(), getMaxLatencyMicros());
+    }
+
+    /**
+     * Parses one tick line and receives it. The caller must hold the lock.
+     *
+     * @param line the bytes holding the line
+     * @param from the first byte of the line
+     * @param to   the end of the line
+     * @param now  when the line was read
+     */
+    private void parseLine(byte[] line, int from, int to, long now) {
+        // Ignore white space around the fields and blank lines
+        while (from < to && isSpace(line[from])) {
+            from++;
+        }
+        while (to > from && isSpace(line[to - 1])) {
+            to--;
+        }
+        if (from == to) {
+            return;
+        }
+
+        int comma = from;
+        while (comma < to && line[comma] != ',') {
+            comma++;
+        }
+        int symbolEnd = comma;
+        while (symbolEnd > from && isSpace(line[symbolEnd - 1])) {
+            symbolEnd--;
+        }
+        int priceFrom = comma + 1;
+        while (priceFrom < to && isSpace(line[priceFrom])) {
+            priceFrom++;
+        }
+
+        double price = comma == to ? Double.NaN : InvestmentParser.parseDouble(line, priceFrom, to);
+        if (symbolEnd == from || !(price > 0) || !Money.isValid(price)) {
+            rejected++;
+            return;
+        }
+        receive(line, from, symbolEnd, price, now);
+    }
+
+    /**
+     * Records the latest price of a symbol and queues its slot for the next
+     * batch. The caller must hold the lock.
+     *
+     * @param symbol the bytes holding the symbol
+     * @param from   the first byte of the symbol
+     * @param to     the end of the symbol
+     * @param price  the new price
+     * @param now    when the tick arrived
+     */
+    private void receive(byte[] symbol, int from, int to, double price, long now) {
+        int slot = slotOf(symbol, from, to);
+        prices[slot] = price;
+        if (!dirty[slot]) {
+            dirty[slot] = true;
+            since[slot] = now;
+            waiting[waitingCount++] = slot;
+        }
+        if (received++ == 0) {
+            firstTick = now;
+        }
+    }
+
+    /**
+     * Finds the slot of a symbol, adding one the first time the symbol ticks.
+     * The caller must hold the lock.
+     *
+     * @param symbol the bytes holding the symbol
+     * @param from   the first byte of the symbol
+     * @param to     the end of the symbol
+     * @return the slot
+     */
+    private int slotOf(byte[] symbol, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + symbol[i];
+        }
+
+        int mask = table.length - 1;
+        for (int probe = mix(hash) & mask;; probe = (probe + 1) & mask) {
+            int entry = table[probe];
+            if (entry == 0) {
+                break;
+            }
+            if (Arrays.equals(keys[entry - 1], 0, keys[entry - 1].length, symbol, from, to)) {
+                return entry - 1;
+            }
+        }
+
+        // A new symbol: give it a slot, growing the arrays as needed
+        if (slots == symbols.length) {
+            int capacity = slots * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            since = Arrays.copyOf(since, capacity);
+            dirty = Arrays.copyOf(dirty, capacity);
+            waiting = Arrays.copyOf(waiting, capacity);
+        }
+        int slot = slots++;
+        keys[slot] = Arrays.copyOfRange(symbol, from, to);
+        symbols[slot] = StringPool.intern(new String(keys[slot], StandardCharsets.UTF_8));
+        if (slots * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            insert(slot, hash);
+        }
+        return slot;
+    }
+
+    /**
+     * Rebuilds the hash table with a new size.
+     *
+     * @param size the new size, a power of two
+     */
+    private void rehash(int size) {
+        table = new int[size];
+        for (int slot = 0; slot < slots; slot++) {
+            int hash = 0;
+            for (byte b : keys[slot]) {
+                hash = 31 * hash + b;
+            }
+            insert(slot, hash);
+        }
+    }
+
+    /**
+     * Puts a slot into the hash table.
+     *
+     * @param slot the slot
+     * @param hash the hash of its symbol
+     */
+    private void insert(int slot, int hash) {
+        int mask = table.length - 1;
+        int probe = mix(hash) & mask;
+        while (table[probe] != 0) {
+            probe = (probe + 1) & mask;
+        }
+        table[probe] = slot + 1;
+    }
+
+    /**
+     * Spreads the bits of a hash so similar symbols don't cluster.
+     *
+     * @param hash the hash
+     * @return the mixed hash
+     */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Applies the waiting ticks in batches until the pipeline is closed or the
+     * thread is interrupted, then wakes any flush that is still waiting.
+     */
+    private void applyBatches() {
+        try {
+            applyUntilClosed();
+        } finally {
+            synchronized (this) {
+                stopped = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Applies the waiting ticks in batches until the pipeline is closed. While
+     * one batch is being applied, new ticks coalesce into the next.
+     */
+    private void applyUntilClosed() {
+        while (true) {
+            int count;
+            long through;
+            synchronized (this) {
+                while (waitingCount == 0 && !closed) {
+                    if (!await()) {
+                        return;
+                    }
+                }
+                if (waitingCount == 0) {
+                    return; // Closed, and nothing left to apply
+                }
+
+                // Take the waiting prices, leaving the slots free for new ticks
+                if (batchSymbols.length < waitingCount) {
+                    batchSymbols = new String[symbols.length];
+                    batchPrices = new double[symbols.length];
+                    batchSince = new long[symbols.length];
+                }
+                for (int i = 0; i < waitingCount; i++) {
+                    int slot = waiting[i];
+                    batchSymbols[i] = symbols[slot];
+                    batchPrices[i] = prices[slot];
+                    batchSince[i] = since[slot];
+                    dirty[slot] = false;
+                }
+                count = waitingCount;
+                waitingCount = 0;
+                through = received;
+            }
+
+            int changed;
+            try {
+                changed = portfolio.updatePrices(batchSymbols, batchPrices, count);
+            } catch (RuntimeException e) {
+                System.out.println("Error in applying a batch of " + count + " price ticks: " + e);
+                changed = -1;
+            }
+            long now = System.nanoTime();
+
+            synchronized (this) {
+                if (changed == -1) {
+                    rejected += count;
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        long latency = now - batchSince[i];
+                        totalLatency += latency;
+                        maxLatency = Math.max(maxLatency, latency);
+                    }
+                    applied += count;
+                    repriced += changed;
+                }
+                batches++;
+                appliedThrough = through;
+                lastApplied = now;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits on the pipeline's lock. The caller must hold the lock.
+     *
+     * @return false if the thread was interrupted, with its interrupt flag set
+     *         again so the caller can stop
+     */
+    private boolean await() {
+        try {
+            wait();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a byte is a space, tab or carriage return.
+     *
+     * @param b the byte
+     * @return true if the byte is white space
+     */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
@@ -0,0 +1,236 @@
+package ePortfolio;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes a Flight Recorder recording of the application: the latency of
+ * every kind of PortfolioEvents event, split by operation and search plan;
+ * how much of each GUI action was spent in the engine; the garbage
+ * collection pauses; and the methods the CPU samples landed in most.
+ *
+ * Run it with: java ePortfolio.RecordingAnalyzer recording.jfr
+ */
+public class RecordingAnalyzer {
+
+    /** The number of hot methods listed. */
+    private static final int HOT_METHODS = 15;
+
+    /**
+     * The statistics of one group of events.
+     */
+    private static final class Group {
+
+        /** The durations of the events. */
+        final LatencyHistogram latencies = new LatencyHistogram();
+
+        /** The total duration of the events in nanoseconds. */
+        long nanos;
+
+        /** The total of the events' quantity, results or bytes. */
+        long amount;
+
+        /** The engine time inside the events, for GUI actions. */
+        long engineNanos;
+    }
+
+    /**
+     * Default constructor for the RecordingAnalyzer class.
+     */
+    public RecordingAnalyzer() {
+    }
+
+    /**
+     * Reads a recording and prints its summary.
+     *
+     * @param args the recording file
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java ePortfolio.RecordingAnalyzer recording.jfr");
+            return;
+        }
+        try {
+            System.out.print(analyze(Paths.get(args[0])));
+        } catch (IOException e) {
+            System.out.println("Error in reading the recording: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a recording and summarizes it.
+     *
+     * @param recording the recording file
+     * @return the summary
+     * @throws IOException if the recording can't be read
+     */
+    public static String analyze(Path recording) throws IOException {
+        TreeMap<String, Group> groups = new TreeMap<>();
+        ArrayList<RecordedEvent> actions = new ArrayList<>();
+        HashMap<Long, List<RecordedEvent>> engineByThread = new HashMap<>();
+        HashMap<String, Long> samples = new HashMap<>();
+        long totalSamples = 0;
+        long collections = 0;
+        long gcNanos = 0;
+        long longestGc = 0;
+
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                String type = event.getEventType().getName();
+
+                if (type.startsWith(PortfolioEvents.PREFIX)) {
+                    Group group = groups.computeIfAbsent(groupOf(event), key -> new Group());
+                    long nanos = event.getDuration().toNanos();
+                    group.latencies.record(nanos);
+                    group.nanos += nanos;
+                    group.amount += amountOf(event);
+                    if (type.equals(PortfolioEvents.PREFIX + "GuiAction")) {
+                        actions.add(event);
+                    } else if (event.getThread() != null) {
+                        engineByThread.computeIfAbsent(event.getThread().getJavaThreadId(), id -> new ArrayList<>())
+                                .add(event);
+                    }
+                } else if (type.equals("jdk.GarbageCollection")) {
+                    long pause = event.getDuration("sumOfPauses").toNanos();
+                    collections++;
+                    gcNanos += pause;
+                    longestGc = Math.max(longestGc, pause);
+                } else if (type.equals("jdk.ExecutionSample")) {
+                    RecordedStackTrace stack = event.getStackTrace();
+                    if (stack != null && !stack.getFrames().isEmpty()) {
+                        RecordedFrame top = stack.getFrames().get(0);
+                        String method = top.getMethod().getType().getName() + "." + top.getMethod().getName();
+                        samples.merge(method, 1L, Long::sum);
+                        totalSamples++;
+                    }
+                }
+            }
+        }
+
+        // Add the engine events of each GUI action's thread that ran inside it
+        for (List<RecordedEvent> events : engineByThread.values()) {
+            events.sort(Comparator.comparing(RecordedEvent::getStartTime));
+        }
+        for (RecordedEvent action : actions) {
+            List<RecordedEvent> events = action.getThread() == null ? null
+                    : engineByThread.get(action.getThread().getJavaThreadId());
+            if (events != null) {
+                groups.get(groupOf(action)).engineNanos += engineNanos(events, action.getStartTime(),
+                        action.getEndTime());
+            }
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("%-44s %8s %10s %10s %10s %10s %12s%n", "event", "count", "total ms",
+                "mean us", "p99 us", "max us", "amount"));
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            Group group = entry.getValue();
+            LatencyHistogram latencies = group.latencies;
+            summary.append(String.format("%-44s %,8d %,10.1f %,10.1f %,10.1f %,10.1f %,12d%n", entry.getKey(),
+                    latencies.getCount(), group.nanos / 1e6, latencies.getMean() / 1e3,
+                    latencies.getValueAtPercentile(99) / 1e3, latencies.getMax() / 1e3, group.amount));
+        }
+
+        summary.append(String.format("%nGUI actions (time spent in the engine)%n"));
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            Group group = entry.getValue();
+            if (entry.getKey().startsWith("GuiAction") && group.nanos > 0) {
+                summary.append(String.format("  %-42s %,10.1f ms of %,10.1f ms (%.0f%%)%n", entry.getKey(),
+                        group.engineNanos / 1e6, group.nanos / 1e6, 100.0 * group.engineNanos / group.nanos));
+            }
+        }
+
+        summary.append(String.format("%nGarbage collection: %,d collections, %,.1f ms paused, longest %,.1f ms%n",
+                collections, gcNanos / 1e6, longestGc / 1e6));
+
+        summary.append(String.format("%nHot methods (%,d CPU samples)%n", totalSamples));
+        long sampled = totalSamples;
+        samples.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(HOT_METHODS)
+                .forEach(entry -> summary.append(String.format("  %5.1f%%  %s%n",
+                        100.0 * entry.getValue() / sampled, entry.getKey())));
+        return summary.toString();
+    }
+
+    /**
+     * Gets the group of an application event: its type and operation, and the
+     * plan of a search.
+     *
+     * @param event the event
+     * @return the name of the group
+     */
+    private static String groupOf(RecordedEvent event) {
+        String type = event.getEventType().getName().substring(PortfolioEvents.PREFIX.length());
+        if (event.hasField("action")) {
+            return type + " " + event.getString("action");
+        }
+        String group = type + " " + event.getString("operation");
+        if (event.hasField("plan")) {
+            group += " [" + event.getString("plan") + "]";
+        }
+        if (event.hasField("format")) {
+            group += " [" + event.getString("format") + "]";
+        }
+        return group;
+    }
+
+    /**
+     * Gets the amount an application event handled: the quantity of a trade,
+     * the size of a batch, the results of a search or the bytes of a file.
+     *
+     * @param event the event
+     * @return the amount, or 0 for GUI actions
+     */
+    private static long amountOf(RecordedEvent event) {
+        for (String field : new String[] { "quantity", "size", "results", "bytes" }) {
+            if (event.hasField(field)) {
+                return event.getLong(field);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds up the durations of the events that started within a time span.
+     *
+     * @param events the events of one thread, by start time
+     * @param start  the start of the span
+     * @param end    the end of the span
+     * @return the total duration in nanoseconds
+     */
+    private static long engineNanos(List<RecordedEvent> events, Instant start, Instant end) {
+        // Find the first event that starts within the span
+        int low = 0;
+        int high = events.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (events.get(middle).getStartTime().isBefore(start)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        Duration total = Duration.ZERO;
+        for (int i = low; i < events.size() && !events.get(i).getStartTime().isAfter(end); i++) {
+            total = total.plus(events.get(i).getDuration());
+        }
+        return total.toNanos();
+    }
+}
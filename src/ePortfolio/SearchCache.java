@@ -0,0 +1,478 @@
+package ePortfolio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * The results of recent searches, so a search repeated while the portfolio
+ * barely changes is answered without planning or running it again. Entries
+ * are dropped least recently used first, once there are too many of them or
+ * their results take up too much memory.
+ *
+ * Only the entries a trade can change are dropped: Portfolio calls
+ * invalidate with a holding before and after every change, and an entry goes
+ * if the holding matches its search in either state, since then the holding
+ * is entering, leaving or changing in its results. To find those entries
+ * without checking every one, they are indexed by their symbol, or else by
+ * one of their keywords (a match must have them all), and only searches with
+ * neither are checked for every trade.
+ *
+ * One cache is shared by every portfolio in the JVM, so its limits bound the
+ * memory of all their results however many accounts an AccountRegistry holds.
+ * Each query carries the number of the portfolio that ran it, and a trade only
+ * drops the entries of its own portfolio.
+ *
+ * Portfolio reads and fills its entries under its read lock and invalidates
+ * them under its write lock, so a search can't store results that a trade has
+ * already made out of date. The cache locks itself, since several searches
+ * and portfolios use it at once.
+ */
+public class SearchCache {
+
+    /**
+     * A normalized search: the keywords are lower-cased, sorted and without
+     * repeats, as they all have to match anyway.
+     */
+    static final class Query {
+
+        /** The kind of a query for Portfolio.search. */
+        static final long SEARCH = -1;
+
+        /** The number of the portfolio searched. */
+        final long owner;
+
+        /** What is searched for: a full search or the first page in an order. */
+        final long kind;
+
+        /** The symbol, or empty. */
+        final String symbol;
+
+        /** The keywords. */
+        final String[] keywords;
+
+        /** The lowest price, or -1. */
+        final double priceLow;
+
+        /** The highest price, or -1. */
+        final double priceHigh;
+
+        /** The lowest and highest price in micro-units, for invalidation. */
+        final long lowMicros;
+        final long highMicros;
+
+        /** The hash code, computed once. */
+        private final int hash;
+
+        /**
+         * Constructs a query.
+         *
+         * @param owner         the number of the portfolio searched
+         * @param kind          SEARCH for Portfolio.search, or firstPage of the
+         *                      order and page size
+         * @param symbol        the symbol, or empty
+         * @param keywordString the keywords separated by spaces
+         * @param priceLow      the lowest price, or -1
+         * @param priceHigh     the highest price, or -1
+         */
+        Query(long owner, long kind, String symbol, String keywordString, double priceLow, double priceHigh) {
+            this.owner = owner;
+            this.kind = kind;
+            this.symbol = symbol;
+            this.keywords = normalize(keywordString);
+            this.priceLow = priceLow;
+            this.priceHigh = priceHigh;
+            this.lowMicros = Money.ceilMicros(priceLow == -1 ? 0 : priceLow);
+            this.highMicros = Money.floorMicros(priceHigh == -1 ? Integer.MAX_VALUE : priceHigh);
+            this.hash = Objects.hash(owner, kind, symbol, Arrays.hashCode(keywords), priceLow, priceHigh);
+        }
+
+        /**
+         * Gets the kind of a query for the first page of searchPage.
+         *
+         * @param order the order of the page
+         * @param limit the size of the page
+         * @return the kind
+         */
+        static long firstPage(byte order, int limit) {
+            return ((long) order << 32) | limit;
+        }
+
+        /**
+         * Checks whether a holding matches the query, given its keywords.
+         *
+         * @param investment the holding
+         * @param words      the keywords of its name
+         * @return true if the holding is in the query's results
+         */
+        boolean matches(Investment investment, String[] words) {
+            if (!symbol.isEmpty() && !symbol.equals(investment.getSymbol())) {
+                return false;
+            }
+            long price = investment.getPriceMicros();
+            if (price < lowMicros || price > highMicros) {
+                return false;
+            }
+            for (String keyword : keywords) {
+                if (!contains(words, keyword)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Checks whether a name has a keyword. Names have a few words, so a
+         * scan is quicker than a set.
+         *
+         * @param words   the keywords of the name
+         * @param keyword the keyword
+         * @return true if the keyword is one of the words
+         */
+        private static boolean contains(String[] words, String keyword) {
+            for (String word : words) {
+                if (word.equals(keyword)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Query)) {
+                return false;
+            }
+            Query query = (Query) other;
+            return owner == query.owner && kind == query.kind && symbol.equals(query.symbol) && Arrays.equals(keywords, query.keywords)
+                    && Double.compare(priceLow, query.priceLow) == 0
+                    && Double.compare(priceHigh, query.priceHigh) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * Splits keywords like the search does, then sorts them and drops
+         * repeats.
+         *
+         * @param keywordString the keywords separated by spaces
+         * @return the distinct lower-case keywords, sorted
+         */
+        private static String[] normalize(String keywordString) {
+            TreeSet<String> words = new TreeSet<>();
+            int length = keywordString.length();
+            int start = -1;
+            for (int i = 0; i <= length; i++) {
+                boolean space = i == length || isSpace(keywordString.charAt(i));
+                if (!space && start == -1) {
+                    start = i;
+                } else if (space && start != -1) {
+                    words.add(keywordString.substring(start, i).toLowerCase());
+                    start = -1;
+                }
+            }
+            return words.toArray(new String[0]);
+        }
+
+        /**
+         * Checks for the characters the search splits keywords on, those of
+         * the regular expression \s.
+         *
+         * @param c the character
+         * @return true for a space, tab, line break, vertical tab or form feed
+         */
+        private static boolean isSpace(char c) {
+            return c == ' ' || (c >= '\t' && c <= '\r');
+        }
+    }
+
+    /**
+     * The results of one query.
+     */
+    static final class Entry {
+
+        /** The query. */
+        final Query query;
+
+        /** The results: a String or a SearchPage. */
+        final Object results;
+
+        /** The number of holdings in the results. */
+        final int count;
+
+        /** The estimated memory the results take up. */
+        final long bytes;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param query   the query
+         * @param results the results
+         * @param count   the number of holdings in the results
+         * @param bytes   the estimated memory the results take up
+         */
+        Entry(Query query, Object results, int count, long bytes) {
+            this.query = query;
+            this.results = results;
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+    /** The memory an entry takes up besides its results. */
+    private static final long ENTRY_BYTES = 160;
+
+    /** The entries, least recently used first. */
+    private final LinkedHashMap<Query, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The queries with a symbol, by symbol. */
+    private final HashMap<String, HashSet<Query>> bySymbol = new HashMap<>();
+
+    /** The queries with keywords but no symbol, by their first keyword. */
+    private final HashMap<String, HashSet<Query>> byKeyword = new HashMap<>();
+
+    /** The queries with neither, which only a price range narrows. */
+    private final HashSet<Query> unindexed = new HashSet<>();
+
+    /** The largest number of entries, or 0 if the cache is off. */
+    private final int maxEntries;
+
+    /** The largest memory the entries may take up. */
+    private final long maxBytes;
+
+    /** The memory the entries take up now. */
+    private long bytes = 0;
+
+    /** The number of lookups that found results, and that didn't. */
+    private long hits = 0;
+    private long misses = 0;
+
+    /** The number of entries dropped by trades, and to make room. */
+    private long invalidations = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructs a cache.
+     *
+     * @param maxEntries the largest number of entries, or 0 to cache nothing
+     * @param maxBytes   the largest memory the results may take up
+     */
+    public SearchCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Checks whether the cache keeps any results.
+     *
+     * @return false if it was made with no room
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Looks up the results of a query, and counts the hit or miss.
+     *
+     * @param query the query
+     * @return the entry with the results, or null if they aren't cached
+     */
+    synchronized Entry get(Query query) {
+        Entry entry = entries.get(query);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Keeps the results of a query, dropping the least recently used entries
+     * to make room. Results larger than a quarter of the room aren't kept.
+     *
+     * @param query   the query
+     * @param results a String or SearchPage
+     * @param count   the number of holdings in the results
+     */
+    synchronized void put(Query query, Object results, int count) {
+        long size = ENTRY_BYTES + (results instanceof String ? 2L * ((String) results).length() : 8L * count);
+        if (maxEntries == 0 || size > maxBytes / 4) {
+            return;
+        }
+        Entry old = entries.get(query);
+        if (old != null) {
+            remove(old);
+        }
+
+        Entry entry = new Entry(query, results, count, size);
+        entries.put(query, entry);
+        bytes += size;
+        if (!query.symbol.isEmpty()) {
+            bySymbol.computeIfAbsent(query.symbol, key -> new HashSet<>()).add(query);
+        } else if (query.keywords.length > 0) {
+            byKeyword.computeIfAbsent(query.keywords[0], key -> new HashSet<>()).add(query);
+        } else {
+            unindexed.add(query);
+        }
+
+        // Drop the least recently used entries while there is too much
+        Iterator<Entry> oldest = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && oldest.hasNext()) {
+            Entry dropped = oldest.next();
+            oldest.remove();
+            unindex(dropped);
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops the results a holding is or was part of. Called before and after
+     * every change to a holding.
+     *
+     * @param owner      the number of the holding's portfolio
+     * @param investment the holding, in its state before or after the change
+     */
+    synchronized void invalidate(long owner, Investment investment) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        ArrayList<Query> stale = new ArrayList<>();
+        String[] words = null;
+        HashSet<Query> queries = bySymbol.get(investment.getSymbol());
+        if (queries != null || !byKeyword.isEmpty() || !unindexed.isEmpty()) {
+            words = Portfolio.splitName(investment.getName());
+        }
+        if (queries != null) {
+            collect(queries, owner, investment, words, stale);
+        }
+        if (!byKeyword.isEmpty()) {
+            for (String word : words) {
+                queries = byKeyword.get(word);
+                if (queries != null) {
+                    collect(queries, owner, investment, words, stale);
+                }
+            }
+        }
+        collect(unindexed, owner, investment, words, stale);
+
+        for (Query query : stale) {
+            Entry entry = entries.remove(query);
+            if (entry != null) {
+                unindex(entry);
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drops every entry of a portfolio, when all its holdings are removed at
+     * once or it is no longer used.
+     *
+     * @param owner the number of the portfolio
+     */
+    synchronized void clear(long owner) {
+        Iterator<Entry> all = entries.values().iterator();
+        while (all.hasNext()) {
+            Entry entry = all.next();
+            if (entry.query.owner == owner) {
+                all.remove();
+                unindex(entry);
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     *
+     * @return the hits, misses, invalidations, evictions, entries and bytes
+     */
+    synchronized long[] statistics() {
+        return new long[] { hits, misses, invalidations, evictions, entries.size(), bytes };
+    }
+
+    /**
+     * Describes the statistics of the cache.
+     *
+     * @return the statistics as text
+     */
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("%,d hits, %,d misses (%.1f%% hit rate), %,d invalidated, %,d evicted, "
+                + "%,d entries, %,d bytes", hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                invalidations, evictions, entries.size(), bytes);
+    }
+
+    /**
+     * Adds the queries of a portfolio that a holding matches to a list.
+     *
+     * @param queries    the queries to check
+     * @param owner      the number of the holding's portfolio
+     * @param investment the holding
+     * @param words      the keywords of its name
+     * @param stale      receives the matching queries
+     */
+    private static void collect(HashSet<Query> queries, long owner, Investment investment, String[] words,
+            ArrayList<Query> stale) {
+        for (Query query : queries) {
+            if (query.owner == owner && query.matches(investment, words)) {
+                stale.add(query);
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the cache and its index.
+     *
+     * @param entry the entry
+     */
+    private void remove(Entry entry) {
+        entries.remove(entry.query);
+        unindex(entry);
+    }
+
+    /**
+     * Removes an entry from the index and its memory from the total.
+     *
+     * @param entry the entry, already out of the entries
+     */
+    private void unindex(Entry entry) {
+        Query query = entry.query;
+        bytes -= entry.bytes;
+        if (!query.symbol.isEmpty()) {
+            removeFrom(bySymbol, query.symbol, query);
+        } else if (query.keywords.length > 0) {
+            removeFrom(byKeyword, query.keywords[0], query);
+        } else {
+            unindexed.remove(query);
+        }
+    }
+
+    /**
+     * Removes a query from one of the indexes.
+     *
+     * @param index the index
+     * @param key   the symbol or keyword it is under
+     * @param query the query
+     */
+    private static void removeFrom(Map<String, HashSet<Query>> index, String key, Query query) {
+        HashSet<Query> queries = index.get(key);
+        if (queries != null) {
+            queries.remove(query);
+            if (queries.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
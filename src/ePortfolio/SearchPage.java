@@ -0,0 +1,204 @@
+package ePortfolio;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+/**
+ * One page of the holdings matching a search, from Portfolio.searchPage. A
+ * page holds references to the live holdings rather than their text, so a
+ * view only formats the rows it shows.
+ *
+ * Pages are fetched by key rather than by offset: the key of a page's last
+ * holding is passed to fetch the next page, which starts right after it in
+ * the sort order. Trades made between two pages therefore never repeat or
+ * skip a holding that stayed in the results, and a page costs the same deep
+ * into the results as at the start.
+ */
+public class SearchPage {
+
+    /** Order: portfolio order, the order holdings were bought in. */
+    public static final byte BY_PORTFOLIO = 0;
+
+    /** Order: by symbol. Ties are in portfolio order. */
+    public static final byte BY_SYMBOL = 1;
+
+    /** Order: lowest price first, then by symbol. Ties are in portfolio order. */
+    public static final byte BY_PRICE = 2;
+
+    /** Order: largest gain first, then by symbol. Ties are in portfolio order. */
+    public static final byte BY_GAIN = 3;
+
+    /**
+     * Where a page ended: the sort values of its last holding, as they were
+     * when the page was fetched.
+     */
+    public static final class Key {
+
+        /** The order of the pages. */
+        final byte order;
+
+        /** The price or gain in micro-units; 0 for the other orders. */
+        final long value;
+
+        /** The symbol, which breaks ties of the value. */
+        final String symbol;
+
+        /**
+         * The id of the holding, for portfolio order and to break ties of the
+         * symbol, since a load file can hold the same symbol twice.
+         */
+        final int id;
+
+        /** The number of times the portfolio had compacted its ids. */
+        final long compactions;
+
+        /** The holding, to find its id again after a compaction. */
+        final Investment holding;
+
+        /**
+         * Constructs the key of a holding.
+         *
+         * @param order       the order of the pages
+         * @param holding     the last holding of the page
+         * @param compactions the number of compactions so far
+         */
+        Key(byte order, Investment holding, long compactions) {
+            this.order = order;
+            this.value = valueOf(order, holding);
+            this.symbol = holding.getSymbol();
+            this.id = holding.getId();
+            this.compactions = compactions;
+            this.holding = holding;
+        }
+
+        /**
+         * Checks whether a holding comes after this key in its order. Not used
+         * for portfolio order, which compares ids.
+         *
+         * @param investment the holding
+         * @param id         the key's holding's id now, or -1 if it was sold and
+         *                   the ids were compacted since
+         * @return true if it belongs on a later page
+         * @throws ConcurrentModificationException if the holding has the key's
+         *                                         symbol but the key's id is lost
+         */
+        boolean precedes(Investment investment, int id) {
+            long other = valueOf(order, investment);
+            if (value != other) {
+                return order == BY_GAIN ? other < value : other > value;
+            }
+            int bySymbol = investment.getSymbol().compareTo(symbol);
+            if (bySymbol != 0) {
+                return bySymbol > 0;
+            }
+            if (id < 0) {
+                throw new ConcurrentModificationException("The holding the page ended at was sold: " + symbol);
+            }
+            return investment.getId() > id;
+        }
+    }
+
+    /** The holdings of the page, in order. */
+    private final List<Investment> holdings;
+
+    /** Whether more holdings match after this page. */
+    private final boolean more;
+
+    /** The key of the last holding, or null if the page is empty. */
+    private final Key last;
+
+    /**
+     * Constructs a page.
+     *
+     * @param holdings the holdings of the page, in order
+     * @param more     true if more holdings match after the page
+     * @param last     the key of the last holding, or null if there is none
+     */
+    SearchPage(List<Investment> holdings, boolean more, Key last) {
+        this.holdings = Collections.unmodifiableList(holdings);
+        this.more = more;
+        this.last = last;
+    }
+
+    /**
+     * Gets the holdings of the page. They are the live holdings, so a trade
+     * made afterwards shows in them.
+     *
+     * @return the holdings, in order
+     */
+    public List<Investment> getHoldings() {
+        return holdings;
+    }
+
+    /**
+     * Checks whether more holdings matched after this page.
+     *
+     * @return true if there is a next page
+     */
+    public boolean hasMore() {
+        return more;
+    }
+
+    /**
+     * Gets the key to pass to Portfolio.searchPage for the next page.
+     *
+     * @return the key of the last holding, or null if the page is empty
+     */
+    public Key getNextKey() {
+        return last;
+    }
+
+    /**
+     * Builds the text of the page, one holding after another, the way
+     * Portfolio.search prints its results.
+     *
+     * @return the holdings' descriptions
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Investment investment : holdings) {
+            text.append(investment.toString()).append("\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Gets the comparator of an order other than portfolio order.
+     *
+     * @param order BY_SYMBOL, BY_PRICE or BY_GAIN
+     * @return the comparator
+     */
+    static Comparator<Investment> comparator(byte order) {
+        Comparator<Investment> bySymbol = Comparator.comparing(Investment::getSymbol)
+                .thenComparingInt(Investment::getId);
+        switch (order) {
+            case BY_PRICE:
+                return Comparator.comparingLong(Investment::getPriceMicros).thenComparing(bySymbol);
+            case BY_GAIN:
+                return Comparator.comparingLong(Investment::gainMicros).reversed().thenComparing(bySymbol);
+            default:
+                return bySymbol;
+        }
+    }
+
+    /**
+     * Gets the sort value of a holding.
+     *
+     * @param order      the order
+     * @param investment the holding
+     * @return the price or gain in micro-units, or 0 for the other orders
+     */
+    private static long valueOf(byte order, Investment investment) {
+        switch (order) {
+            case BY_PRICE:
+                return investment.getPriceMicros();
+            case BY_GAIN:
+                return investment.gainMicros();
+            default:
+                return 0;
+        }
+    }
+}
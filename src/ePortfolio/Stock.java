@@ -12,9 +12,10 @@ package ePortfolio;
 public class Stock extends Investment {
 
     /**
-     * The fixed commission fee applied to each stock transaction.
+     * The fixed commission fee applied to each stock transaction, in micro-units
+     * (9.99).
      */
-    private static final double COMMISSION = 9.99;
+    static final long COMMISSION = 9_990_000L;
 
     /**
      * Constructs a new Stock object with the specified details.
@@ -47,36 +48,35 @@ public class Stock extends Investment {
      */
     @Override
     public void calculateBookValue(int quantity, double price) {
-        // Compute the total cost of the purchased stocks, including commission
-        double result = (quantity * price) + COMMISSION;
-        // Add the cost to the current book value
-        this.setBookValue(this.getBookValue() + result);
+        // Add the cost to the current book value as a new lot
+        this.addLot(quantity, costMicros(quantity, Money.fromDouble(price)));
     }
 
     /**
-     * Calculates the payment received after selling a specified quantity of stocks.
-     * The payment excludes the commission fee.
+     * Calculates the cost of buying a quantity of stocks at a price, including
+     * the commission fee.
      * 
-     * @param quantity the number of stocks sold
-     * @return the total payment after deducting the commission fee
+     * @param quantity the number of stocks purchased
+     * @param price    the price per stock unit in micro-units
+     * @return the total cost including the commission fee, in micro-units
      */
     @Override
-    public double payment(int quantity) {
-        // Compute the payment for the sold stocks, deducting the commission
-        double result = quantity * this.getPrice() - COMMISSION;
-        return result;
+    public long costMicros(int quantity, long price) {
+        // Compute the total cost of the purchased stocks, including commission
+        return Math.addExact(Money.times(price, quantity), COMMISSION);
     }
 
     /**
-     * Adjusts the book value of the stock after selling a specified quantity.
-     * The adjustment is based on the proportion of the stock that remains.
+     * Calculates the payment received after selling a specified quantity of stocks.
+     * The payment excludes the commission fee.
      * 
-     * @param quantityOld the total quantity of stocks before selling
+     * @param quantity the number of stocks sold
+     * @param price    the price per unit in micro-units
+     * @return the total payment after deducting the commission fee, in micro-units
      */
     @Override
-    public void bValueSellC(int quantityOld) {
-        // Calculate the adjusted book value based on the remaining stock quantity
-        double result = this.getBookValue() * this.getQuantity() / quantityOld;
-        this.setBookValue(result); // Update the book value
+    public long paymentMicros(int quantity, long price) {
+        // Compute the payment for the sold stocks, deducting the commission
+        return Math.subtractExact(Money.times(price, quantity), COMMISSION);
     }
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package ePortfolio;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * A pool of the symbols, names and keywords shared by every portfolio in the
+ * JVM. When many accounts hold the same investments, each distinct string is
+ * kept once instead of once per account, and the keyword indexes of all the
+ * accounts share their keys.
+ *
+ * The pool only refers to its strings weakly: a string stays pooled while a
+ * portfolio still uses it, and is dropped by the garbage collector once the
+ * accounts using it are evicted, so a long-running process doesn't keep the
+ * names of every account it ever loaded.
+ */
+public class StringPool {
+
+    /** Each pooled string, mapped to a weak reference to itself; guarded by itself. */
+    private static final WeakHashMap<String, WeakReference<String>> strings = new WeakHashMap<>();
+
+    /**
+     * Default constructor for the StringPool class.
+     */
+    public StringPool() {
+    }
+
+    /**
+     * Gets the pooled copy of a string, adding the string if it is new.
+     *
+     * @param string the string
+     * @return the pooled string equal to it
+     */
+    public static String intern(String string) {
+        synchronized (strings) {
+            WeakReference<String> reference = strings.get(string);
+            String pooled = reference == null ? null : reference.get();
+            if (pooled == null) {
+                strings.put(string, new WeakReference<>(string));
+                pooled = string;
+            }
+            return pooled;
+        }
+    }
+
+    /**
+     * Gets the number of distinct strings in the pool, including any the
+     * garbage collector has not dropped yet.
+     *
+     * @return the number of strings
+     */
+    public static int size() {
+        synchronized (strings) {
+            return strings.size();
+        }
+    }
+}
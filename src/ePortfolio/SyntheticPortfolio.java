@@ -0,0 +1,174 @@
+package ePortfolio;
+
+/**
+ * A deterministic generator of synthetic holdings for benchmarks. Every
+ * attribute of holding i is computed from the seed and i alone, so the same
+ * seed always builds the same portfolio, on any machine, and any holding can
+ * be regenerated without building the ones before it.
+ *
+ * Each name is a unique word followed by WORDS_PER_NAME words drawn from a
+ * vocabulary of a chosen size, the keyword cardinality. A small vocabulary
+ * gives long posting lists and large keyword search results; a large one
+ * gives short lists and small results.
+ */
+public class SyntheticPortfolio {
+
+    /** The seed used when none is given. */
+    public static final long DEFAULT_SEED = 42;
+
+    /** The number of vocabulary words in every name. */
+    public static final int WORDS_PER_NAME = 2;
+
+    /** The number of distinct prices, in steps of one unit from 1. */
+    public static final int PRICES = 500;
+
+    /** The largest quantity of a holding. */
+    public static final int MAX_QUANTITY = 1_000;
+
+    /** The number of holdings. */
+    private final int size;
+
+    /** The number of distinct vocabulary words. */
+    private final int cardinality;
+
+    /** The seed every attribute is derived from. */
+    private final long seed;
+
+    /**
+     * Constructs a generator with the default seed.
+     *
+     * @param size        the number of holdings
+     * @param cardinality the number of distinct vocabulary words
+     */
+    public SyntheticPortfolio(int size, int cardinality) {
+        this(size, cardinality, DEFAULT_SEED);
+    }
+
+    /**
+     * Constructs a generator.
+     *
+     * @param size        the number of holdings
+     * @param cardinality the number of distinct vocabulary words
+     * @param seed        the seed every attribute is derived from
+     * @throws IllegalArgumentException if the size is negative or the
+     *                                  cardinality isn't positive
+     */
+    public SyntheticPortfolio(int size, int cardinality, long seed) {
+        if (size < 0 || cardinality <= 0) {
+            throw new IllegalArgumentException("Invalid size " + size + " or cardinality " + cardinality);
+        }
+        this.size = size;
+        this.cardinality = cardinality;
+        this.seed = seed;
+    }
+
+    /**
+     * Gets the number of holdings.
+     *
+     * @return the number of holdings
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of distinct vocabulary words.
+     *
+     * @return the keyword cardinality
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Gets the type of a holding, as Portfolio.buy takes it.
+     *
+     * @param i the number of the holding
+     * @return "stock" or "mutualfund"
+     */
+    public String type(int i) {
+        return (mix(i, 0) & 1) == 0 ? "stock" : "mutualfund";
+    }
+
+    /**
+     * Gets the symbol of a holding.
+     *
+     * @param i the number of the holding
+     * @return the symbol, unique to the holding
+     */
+    public String symbol(int i) {
+        return "SYM" + i;
+    }
+
+    /**
+     * Gets the name of a holding: a unique word and WORDS_PER_NAME
+     * vocabulary words.
+     *
+     * @param i the number of the holding
+     * @return the name
+     */
+    public String name(int i) {
+        StringBuilder name = new StringBuilder("Holding").append(i);
+        for (int w = 0; w < WORDS_PER_NAME; w++) {
+            name.append(' ').append(word((int) Long.remainderUnsigned(mix(i, 1 + w), cardinality)));
+        }
+        return name.toString();
+    }
+
+    /**
+     * Gets the quantity a holding is bought with.
+     *
+     * @param i the number of the holding
+     * @return a quantity from 1 to MAX_QUANTITY
+     */
+    public int quantity(int i) {
+        return 1 + (int) Long.remainderUnsigned(mix(i, 8), MAX_QUANTITY);
+    }
+
+    /**
+     * Gets the price a holding is bought at.
+     *
+     * @param i the number of the holding
+     * @return a whole price from 1 to PRICES
+     */
+    public double price(int i) {
+        return 1 + Long.remainderUnsigned(mix(i, 9), PRICES);
+    }
+
+    /**
+     * Gets a vocabulary word.
+     *
+     * @param k the number of the word, from 0 to the cardinality
+     * @return the word
+     */
+    public String word(int k) {
+        return "word" + k;
+    }
+
+    /**
+     * Clears a portfolio and buys every synthetic holding into it.
+     *
+     * @param portfolio the portfolio to fill
+     */
+    public void fill(Portfolio portfolio) {
+        portfolio.clear();
+        for (int i = 0; i < size; i++) {
+            portfolio.buy(type(i), symbol(i), name(i), quantity(i), price(i));
+        }
+    }
+
+    /**
+     * Derives a well mixed value from the seed, a holding and an attribute,
+     * with the SplitMix64 finalizer.
+     *
+     * @param i         the number of the holding
+     * @param attribute the number of the attribute
+     * @return the mixed value
+     */
+    private long mix(int i, int attribute) {
+        long z = seed + (((long) i << 4) + attribute + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,469 @@
+package ePortfolio;
+
+import java.util.Arrays;
+
+/**
+ * The tax lots of one holding: every purchase is a lot with its own quantity
+ * and cost, in micro-units (see Money), so a sale can say which purchases it
+ * sells and report the gain it realized.
+ *
+ * Lots sit in parallel arrays in the order they were bought, and are only
+ * appended to. Each lot has an id that is never reused, and ids increase
+ * along the arrays, so a specific lot is found with a binary search. The sell
+ * policies each take the next lot in O(log lots) or better:
+ *
+ * <ul>
+ * <li>FIFO takes the oldest lot, from a cursor past the sold out lots at the
+ * front.</li>
+ * <li>LIFO takes the newest lot, dropping sold out lots from the back.</li>
+ * <li>HIGHEST_COST takes the lot with the highest cost per unit from a binary
+ * heap, which is built the first time it is needed and then kept up to date
+ * as lots are bought.</li>
+ * </ul>
+ *
+ * Memory stays bounded for symbols bought very many times: a purchase at the
+ * same cost per unit as the newest lot joins it, no more than MAX_LOTS lots
+ * are kept unsold (later purchases join the newest one), and the sold out
+ * lots are dropped once they are as many as the unsold ones.
+ *
+ * The sum of the quantities and costs of the lots is the holding's quantity
+ * and book value; Investment keeps them in step.
+ */
+public class TaxLots {
+
+    /** Sells at the average cost of the holding, pooling its lots into one. */
+    public static final byte AVERAGE_COST = 0;
+
+    /** Sells the oldest lots first. */
+    public static final byte FIFO = 1;
+
+    /** Sells the newest lots first. */
+    public static final byte LIFO = 2;
+
+    /** Sells the lots with the highest cost per unit first. */
+    public static final byte HIGHEST_COST = 3;
+
+    /** Sells from one lot chosen by its id. */
+    public static final byte SPECIFIC_LOT = 4;
+
+    /** The most unsold lots kept for a holding. */
+    static final int MAX_LOTS = 4096;
+
+    /** The id of each lot. */
+    private long[] id;
+
+    /** The unsold quantity of each lot, 0 once it is sold out. */
+    private int[] quantity;
+
+    /** The cost of the unsold quantity of each lot. */
+    private long[] cost;
+
+    /** The cost per unit each lot was bought at, which orders HIGHEST_COST. */
+    private long[] unitCost;
+
+    /** The number of lots in the arrays, including sold out ones. */
+    private int size;
+
+    /** The number of lots that aren't sold out. */
+    private int live;
+
+    /** No lot before this index is unsold. */
+    private int head;
+
+    /** The id given to the next lot. */
+    private long nextId;
+
+    /**
+     * A binary heap of lot indexes ordered by cost per unit, or null until
+     * HIGHEST_COST is used. Entries may be stale; see highest.
+     */
+    private int[] heap;
+
+    /** The cost per unit of each heap entry when it was added. */
+    private long[] heapKey;
+
+    /** The number of indexes in the heap. */
+    private int heapSize;
+
+    /**
+     * Constructs the lots of a holding that had no lots yet, starting with
+     * one lot for everything it holds.
+     *
+     * @param quantity the quantity held
+     * @param cost     the book value in micro-units
+     */
+    TaxLots(int quantity, long cost) {
+        this.id = new long[4];
+        this.quantity = new int[4];
+        this.cost = new long[4];
+        this.unitCost = new long[4];
+        add(quantity, cost);
+    }
+
+    /**
+     * Constructs a copy of other lots.
+     *
+     * @param lots the lots to copy
+     */
+    TaxLots(TaxLots lots) {
+        int capacity = Math.max(4, lots.size);
+        this.id = Arrays.copyOf(lots.id, capacity);
+        this.quantity = Arrays.copyOf(lots.quantity, capacity);
+        this.cost = Arrays.copyOf(lots.cost, capacity);
+        this.unitCost = Arrays.copyOf(lots.unitCost, capacity);
+        this.size = lots.size;
+        this.live = lots.live;
+        this.head = lots.head;
+        this.nextId = lots.nextId;
+    }
+
+    /**
+     * Constructs lots read back from a snapshot.
+     *
+     * @param id       the id of each lot, increasing
+     * @param quantity the unsold quantity of each lot, greater than 0
+     * @param cost     the cost of each lot
+     * @param unitCost the cost per unit of each lot
+     * @param nextId   the id for the next lot, greater than every id
+     * @throws IllegalArgumentException if the lots aren't valid
+     */
+    TaxLots(long[] id, int[] quantity, long[] cost, long[] unitCost, long nextId) {
+        for (int i = 0; i < id.length; i++) {
+            if (quantity[i] <= 0 || id[i] >= nextId || (i > 0 && id[i] <= id[i - 1])) {
+                throw new IllegalArgumentException("Invalid lot " + id[i]);
+            }
+        }
+        this.id = id;
+        this.quantity = quantity;
+        this.cost = cost;
+        this.unitCost = unitCost;
+        this.size = id.length;
+        this.live = id.length;
+        this.nextId = nextId;
+    }
+
+    /**
+     * Adds a purchase as a new lot, or to the newest lot if it was bought at
+     * the same cost per unit or the holding already has MAX_LOTS lots.
+     *
+     * @param quantity the quantity bought
+     * @param cost     the cost of the purchase in micro-units
+     */
+    void add(int quantity, long cost) {
+        long perUnit = cost / quantity;
+        int last = size - 1;
+        if (last >= head && this.quantity[last] > 0 && (unitCost[last] == perUnit || live >= MAX_LOTS)) {
+            this.quantity[last] += quantity;
+            this.cost[last] += cost;
+            if (unitCost[last] != perUnit) {
+                unitCost[last] = this.cost[last] / this.quantity[last];
+                if (heap != null) {
+                    push(last); // The old entry is now stale
+                }
+            }
+            return;
+        }
+
+        if (size == id.length) {
+            int capacity = size * 2;
+            id = Arrays.copyOf(id, capacity);
+            this.quantity = Arrays.copyOf(this.quantity, capacity);
+            this.cost = Arrays.copyOf(this.cost, capacity);
+            unitCost = Arrays.copyOf(unitCost, capacity);
+        }
+        id[size] = nextId++;
+        this.quantity[size] = quantity;
+        this.cost[size] = cost;
+        unitCost[size] = perUnit;
+        if (heap != null) {
+            push(size);
+        }
+        size++;
+        live++;
+    }
+
+    /**
+     * Replaces every lot with one lot for the whole holding, as selling at
+     * the average cost does. The new lot gets a new id.
+     *
+     * @param quantity the quantity held
+     * @param cost     the book value in micro-units
+     */
+    void pool(int quantity, long cost) {
+        id = new long[4];
+        this.quantity = new int[4];
+        this.cost = new long[4];
+        unitCost = new long[4];
+        size = 0;
+        live = 0;
+        head = 0;
+        heap = null;
+        add(quantity, cost);
+    }
+
+    /**
+     * Gets the unsold quantity of a lot.
+     *
+     * @param lot the id of the lot
+     * @return the quantity, or 0 if there is no unsold lot with the id
+     */
+    int quantityOf(long lot) {
+        int index = indexOf(lot);
+        return index < 0 ? 0 : quantity[index];
+    }
+
+    /**
+     * Removes a quantity from the lots under a sell policy. The caller makes
+     * sure there is enough to sell: in total, or in the lot for SPECIFIC_LOT.
+     *
+     * @param quantity the quantity sold
+     * @param policy   FIFO, LIFO, HIGHEST_COST or SPECIFIC_LOT
+     * @param lot      the id of the lot for SPECIFIC_LOT
+     * @return the cost of the quantity sold, in micro-units
+     */
+    long sell(int quantity, byte policy, long lot) {
+        long sold = 0;
+        int left = quantity;
+        while (left > 0) {
+            int index;
+            switch (policy) {
+                case FIFO:
+                    index = head;
+                    break;
+                case LIFO:
+                    index = size - 1;
+                    break;
+                case HIGHEST_COST:
+                    index = highest();
+                    break;
+                default:
+                    index = indexOf(lot);
+                    break;
+            }
+            int taken = Math.min(left, this.quantity[index]);
+            sold += take(index, taken);
+            left -= taken;
+
+            // Move the cursors past the sold out lots
+            while (head < size && this.quantity[head] == 0) {
+                head++;
+            }
+            while (size > head && this.quantity[size - 1] == 0) {
+                size--;
+            }
+        }
+        dropSoldOut();
+        return sold;
+    }
+
+    /**
+     * Takes units from a lot, which loses a share of its cost in proportion,
+     * rounded like Investment.bValueSellC. A lot sold out loses all of it.
+     *
+     * @param index the index of the lot
+     * @param taken the quantity taken, at most the lot's quantity
+     * @return the cost of the units taken
+     */
+    private long take(int index, int taken) {
+        int remaining = quantity[index] - taken;
+        long kept = Money.scale(cost[index], remaining, quantity[index]);
+        long sold = cost[index] - kept;
+        quantity[index] = remaining;
+        cost[index] = kept;
+        if (remaining == 0) {
+            live--;
+        }
+        return sold;
+    }
+
+    /**
+     * Drops the sold out lots from the arrays once they are as many as the
+     * unsold ones.
+     */
+    private void dropSoldOut() {
+        if (size - live <= Math.max(live, 8)) {
+            return;
+        }
+
+        // Slide the unsold lots down, keeping their order
+        int kept = 0;
+        for (int i = head; i < size; i++) {
+            if (quantity[i] > 0) {
+                id[kept] = id[i];
+                quantity[kept] = quantity[i];
+                cost[kept] = cost[i];
+                unitCost[kept] = unitCost[i];
+                kept++;
+            }
+        }
+        size = kept;
+        head = 0;
+        heap = null; // The indexes moved
+        int capacity = Math.max(4, Integer.highestOneBit(Math.max(1, kept)) * 2);
+        if (capacity < id.length / 2) {
+            id = Arrays.copyOf(id, capacity);
+            quantity = Arrays.copyOf(quantity, capacity);
+            cost = Arrays.copyOf(cost, capacity);
+            unitCost = Arrays.copyOf(unitCost, capacity);
+        }
+    }
+
+    /**
+     * Finds a lot by its id.
+     *
+     * @param lot the id of the lot
+     * @return the index of the lot, or -1 if there is no unsold lot with the id
+     */
+    private int indexOf(long lot) {
+        int index = Arrays.binarySearch(id, head, size, lot);
+        return index >= 0 && quantity[index] > 0 ? index : -1;
+    }
+
+    /**
+     * Finds the unsold lot with the highest cost per unit, the oldest of
+     * equals. Entries of sold out lots, and entries left behind when a lot's
+     * cost per unit changed, are dropped when they reach the top.
+     *
+     * @return the index of the lot
+     */
+    private int highest() {
+        if (heap == null || heapSize > 2 * live + 8) {
+            // Build the heap, or rebuild it once it is mostly stale entries
+            heap = new int[Math.max(4, live * 2)];
+            heapKey = new long[heap.length];
+            heapSize = 0;
+            for (int i = head; i < size; i++) {
+                if (quantity[i] > 0) {
+                    push(i);
+                }
+            }
+        }
+        while (quantity[heap[0]] == 0 || heapKey[0] != unitCost[heap[0]]) {
+            pop();
+        }
+        return heap[0];
+    }
+
+    /**
+     * Checks if an entry comes before another in the heap.
+     *
+     * @param keyA   the cost per unit of one entry
+     * @param indexA the lot of that entry
+     * @param keyB   the cost per unit of another entry
+     * @param indexB the lot of that entry
+     * @return true if the first entry has the higher cost per unit, or the
+     *         same and the older lot
+     */
+    private static boolean before(long keyA, int indexA, long keyB, int indexB) {
+        return keyA > keyB || (keyA == keyB && indexA < indexB);
+    }
+
+    /**
+     * Adds a lot to the heap at its current cost per unit.
+     *
+     * @param index the index of the lot
+     */
+    private void push(int index) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heapSize * 2);
+            heapKey = Arrays.copyOf(heapKey, heapSize * 2);
+        }
+        long key = unitCost[index];
+        int child = heapSize++;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (!before(key, index, heapKey[parent], heap[parent])) {
+                break;
+            }
+            heap[child] = heap[parent];
+            heapKey[child] = heapKey[parent];
+            child = parent;
+        }
+        heap[child] = index;
+        heapKey[child] = key;
+    }
+
+    /**
+     * Removes the top of the heap.
+     */
+    private void pop() {
+        heapSize--;
+        int index = heap[heapSize];
+        long key = heapKey[heapSize];
+        int parent = 0;
+        while (true) {
+            int child = parent * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && before(heapKey[child + 1], heap[child + 1], heapKey[child], heap[child])) {
+                child++;
+            }
+            if (!before(heapKey[child], heap[child], key, index)) {
+                break;
+            }
+            heap[parent] = heap[child];
+            heapKey[parent] = heapKey[child];
+            parent = child;
+        }
+        heap[parent] = index;
+        heapKey[parent] = key;
+    }
+
+    /**
+     * Gets the number of unsold lots.
+     *
+     * @return the number of lots
+     */
+    public int size() {
+        return live;
+    }
+
+    /**
+     * Gets the id the next lot will have.
+     *
+     * @return the id
+     */
+    long nextId() {
+        return nextId;
+    }
+
+    /**
+     * Copies out the unsold lots, oldest first, into arrays of at least
+     * size() entries.
+     *
+     * @param ids        receives the id of each lot
+     * @param quantities receives the quantity of each lot
+     * @param costs      receives the cost of each lot
+     * @param unitCosts  receives the cost per unit of each lot
+     */
+    void copyTo(long[] ids, int[] quantities, long[] costs, long[] unitCosts) {
+        int count = 0;
+        for (int i = head; i < size; i++) {
+            if (quantity[i] > 0) {
+                ids[count] = id[i];
+                quantities[count] = quantity[i];
+                costs[count] = cost[i];
+                unitCosts[count] = unitCost[i];
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Returns a string with a line for every unsold lot, oldest first.
+     *
+     * @return the lots, like "Lot 3: 10 units, cost 1009.99"
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = head; i < size; i++) {
+            if (quantity[i] > 0) {
+                text.append("Lot ").append(id[i]).append(": ").append(quantity[i]).append(" units, cost ")
+                        .append(Money.toString(cost[i])).append('\n');
+            }
+        }
+        return text.toString();
+    }
+}
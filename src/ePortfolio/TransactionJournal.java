@@ -0,0 +1,782 @@
+package ePortfolio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead journal of the trades made on a portfolio.
+ * Every buy, sell and price update is appended as a small binary record, so a
+ * crash loses at most the records that hadn't reached the disk yet instead of
+ * the whole session.
+ *
+ * Records are collected in memory and written by a background thread in
+ * groups (group commit): every record appended while one group is being
+ * written goes out in the next single write, and shares a single fsync. How
+ * often the file is forced to the disk is set by the SyncPolicy.
+ *
+ * Layout of each record (little-endian):
+ *
+ * <pre>
+ *   int    length           number of bytes from sequence to the end of the record
+ *   int    checksum         CRC32 of those bytes
+ *   long   sequence         increases by one for every record
+ *   byte   operation        BUY, SELL or UPDATE
+ *   BUY:    byte type, string symbol, string name, int quantity, double price[, long time]
+ *   SELL:   string symbol, int quantity, double price[, byte policy, long lot[, long time]]
+ *   UPDATE: string symbol, double price[, long time]
+ * </pre>
+ *
+ * A sale under a TaxLots policy other than AVERAGE_COST carries the policy and
+ * the lot it named; records without them are average cost sales. Every record
+ * ends with the time it was appended, in milliseconds since the epoch, so the
+ * prices it recovers can be put back in the price history; records written
+ * before the time was added have none.
+ *
+ * Strings are stored as a short byte length followed by UTF-8 bytes. A record
+ * cut short by a crash fails its checksum, and replay stops there.
+ */
+public class TransactionJournal implements Closeable {
+
+    /** The operation tag of a purchase. */
+    public static final byte BUY = 1;
+
+    /** The operation tag of a sale. */
+    public static final byte SELL = 2;
+
+    /** The operation tag of a price update. */
+    public static final byte UPDATE = 3;
+
+    /** The type tag of a Stock, the same as in snapshots. */
+    public static final byte TYPE_STOCK = 0;
+
+    /** The type tag of a MutualFund, the same as in snapshots. */
+    public static final byte TYPE_MUTUAL_FUND = 1;
+
+    /** The size of the length and checksum in front of every record. */
+    private static final int RECORD_HEADER = 8;
+
+    /** The largest record accepted when replaying, to reject garbage lengths. */
+    private static final int MAX_RECORD = 1 << 20;
+
+    /** The buffered bytes that wake the writer before its interval is up. */
+    private static final int GROUP_BYTES = 64 << 10;
+
+    /**
+     * How appended records reach the disk.
+     */
+    public enum SyncPolicy {
+        /** Records are written in groups and the operating system decides when to flush them. */
+        NONE,
+
+        /** Records are written in groups and the file is forced every few groups. */
+        BATCH,
+
+        /**
+         * Every group is written and forced as soon as it has a record, and
+         * commit() waits until it is, so a trade is durable once commit()
+         * returns. Records appended during one fsync share the next one.
+         */
+        COMMIT
+    }
+
+    /**
+     * A record read back from the journal.
+     */
+    public static class Record {
+
+        /** The sequence number of the record. */
+        public final long sequence;
+
+        /** BUY, SELL or UPDATE. */
+        public final byte operation;
+
+        /** The type of the investment bought; only set for BUY. */
+        public final String type;
+
+        /** The symbol of the investment. */
+        public final String symbol;
+
+        /** The name of the investment bought; only set for BUY. */
+        public final String name;
+
+        /** The quantity bought or sold; 0 for UPDATE. */
+        public final int quantity;
+
+        /** The price of the trade or the new price. */
+        public final double price;
+
+        /** The TaxLots policy of a sale; AVERAGE_COST for other records. */
+        public final byte policy;
+
+        /** The lot named by a SPECIFIC_LOT sale; 0 otherwise. */
+        public final long lot;
+
+        /** When the record was appended, in milliseconds since the epoch; 0 if the record has no time. */
+        public final long time;
+
+        /**
+         * Constructs a Record.
+         *
+         * @param sequence  the sequence number
+         * @param operation the operation tag
+         * @param type      the investment type, or null
+         * @param symbol    the symbol
+         * @param name      the investment name, or null
+         * @param quantity  the quantity
+         * @param price     the price
+         * @param time      when the record was appended, or 0
+         */
+        Record(long sequence, byte operation, String type, String symbol, String name, int quantity, double price,
+                long time) {
+            this(sequence, operation, type, symbol, name, quantity, price, TaxLots.AVERAGE_COST, 0, time);
+        }
+
+        /**
+         * Constructs a Record of a sale under a lot policy.
+         *
+         * @param sequence  the sequence number
+         * @param operation the operation tag
+         * @param type      the investment type, or null
+         * @param symbol    the symbol
+         * @param name      the investment name, or null
+         * @param quantity  the quantity
+         * @param price     the price
+         * @param policy    the TaxLots policy
+         * @param lot       the lot for SPECIFIC_LOT
+         * @param time      when the record was appended, or 0
+         */
+        Record(long sequence, byte operation, String type, String symbol, String name, int quantity, double price,
+                byte policy, long lot, long time) {
+            this.sequence = sequence;
+            this.operation = operation;
+            this.type = type;
+            this.symbol = symbol;
+            this.name = name;
+            this.quantity = quantity;
+            this.price = price;
+            this.policy = policy;
+            this.lot = lot;
+            this.time = time;
+        }
+    }
+
+    /** The journal file. */
+    private final Path file;
+
+    /** How appended records reach the disk. */
+    private final SyncPolicy policy;
+
+    /** With SyncPolicy.BATCH, the file is forced once every this many groups. */
+    private final int syncEvery;
+
+    /** The longest a record waits in memory before its group is written. */
+    private final long flushMillis;
+
+    /** The open journal file. */
+    private FileChannel channel;
+
+    /** Records appended but not yet handed to the writer. */
+    private ByteBuffer pending = newBuffer(GROUP_BYTES);
+
+    /** The group being written, swapped with pending so appends never wait on I/O. */
+    private ByteBuffer writing = newBuffer(GROUP_BYTES);
+
+    /** Used to checksum each record. */
+    private final CRC32 checksum = new CRC32();
+
+    /** The sequence number of the last record appended. */
+    private long lastSequence;
+
+    /** The sequence number of the last record known to be on the disk. */
+    private long syncedSequence;
+
+    /** The number of groups written since the file was last forced. */
+    private int unsyncedGroups = 0;
+
+    /** Set when a caller needs the next group forced whatever the policy. */
+    private boolean forceRequested = false;
+
+    /** The offset in the pending group of the record being appended. */
+    private int recordStart = 0;
+
+    /** The size of the journal file, including groups still in memory. */
+    private long size;
+
+    /** The first error the writer ran into, reported by later appends. */
+    private IOException failure = null;
+
+    /** Set once the journal is closed. */
+    private boolean closed = false;
+
+    /** The background thread that writes the groups. */
+    private final Thread writer;
+
+    /**
+     * Opens a journal for appending, creating the file if needed.
+     *
+     * @param file         the journal file
+     * @param lastSequence the sequence number of the last record already in
+     *                     the portfolio; new records continue after it
+     * @param policy       how appended records reach the disk
+     * @param syncEvery    with SyncPolicy.BATCH, the number of groups written
+     *                     between forces
+     * @param flushMillis  the longest a record waits in memory before its group
+     *                     is written
+     * @throws IOException if the file can't be opened
+     */
+    public TransactionJournal(Path file, long lastSequence, SyncPolicy policy, int syncEvery, long flushMillis)
+            throws IOException {
+        this.file = file;
+        this.policy = policy;
+        this.syncEvery = Math.max(1, syncEvery);
+        this.flushMillis = Math.max(1, flushMillis);
+        this.lastSequence = lastSequence;
+        this.syncedSequence = lastSequence;
+        this.channel = open(file);
+        this.size = channel.size();
+
+        writer = new Thread(this::writeGroups, "ePortfolio-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a purchase.
+     *
+     * @param mutualFund true for a MutualFund, false for a Stock
+     * @param symbol     the symbol bought
+     * @param name       the name of the investment
+     * @param quantity   the quantity bought
+     * @param price      the price paid
+     * @return the sequence number of the record
+     * @throws IOException if the journal can't be written
+     */
+    public long logBuy(boolean mutualFund, String symbol, String name, int quantity, double price)
+            throws IOException {
+        byte[] symbolBytes = symbol.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            ByteBuffer record = startRecord(BUY, 1 + 2 + symbolBytes.length + 2 + nameBytes.length + 4 + 8 + 8);
+            record.put(mutualFund ? TYPE_MUTUAL_FUND : TYPE_STOCK);
+            putString(record, symbolBytes);
+            putString(record, nameBytes);
+            record.putInt(quantity);
+            record.putDouble(price);
+            record.putLong(System.currentTimeMillis());
+            return finishRecord();
+        }
+    }
+
+    /**
+     * Appends a sale.
+     *
+     * @param symbol   the symbol sold
+     * @param quantity the quantity sold
+     * @param price    the price received
+     * @return the sequence number of the record
+     * @throws IOException if the journal can't be written
+     */
+    public long logSell(String symbol, int quantity, double price) throws IOException {
+        return logSell(symbol, quantity, price, TaxLots.AVERAGE_COST, 0);
+    }
+
+    /**
+     * Appends a sale under a lot policy.
+     *
+     * @param symbol   the symbol sold
+     * @param quantity the quantity sold
+     * @param price    the price received
+     * @param policy   the TaxLots policy
+     * @param lot      the lot sold from, for SPECIFIC_LOT
+     * @return the sequence number of the record
+     * @throws IOException if the journal can't be written
+     */
+    public long logSell(String symbol, int quantity, double price, byte policy, long lot) throws IOException {
+        byte[] symbolBytes = symbol.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            // The policy and lot are always written now, since the time follows them
+            ByteBuffer record = startRecord(SELL, 2 + symbolBytes.length + 4 + 8 + 1 + 8 + 8);
+            putString(record, symbolBytes);
+            record.putInt(quantity);
+            record.putDouble(price);
+            record.put(policy);
+            record.putLong(lot);
+            record.putLong(System.currentTimeMillis());
+            return finishRecord();
+        }
+    }
+
+    /**
+     * Appends a price update.
+     *
+     * @param symbol the symbol updated
+     * @param price  the new price
+     * @return the sequence number of the record
+     * @throws IOException if the journal can't be written
+     */
+    public long logUpdate(String symbol, double price) throws IOException {
+        byte[] symbolBytes = symbol.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            ByteBuffer record = startRecord(UPDATE, 2 + symbolBytes.length + 8 + 8);
+            putString(record, symbolBytes);
+            record.putDouble(price);
+            record.putLong(System.currentTimeMillis());
+            return finishRecord();
+        }
+    }
+
+    /**
+     * With SyncPolicy.COMMIT, waits until every record appended so far is on
+     * the disk; with the other policies, returns at once. Appending and
+     * committing are separate so a caller can append under its own lock and
+     * commit after releasing it, letting other threads' records join the same
+     * fsync.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    public synchronized void commit() throws IOException {
+        if (policy == SyncPolicy.COMMIT) {
+            awaitSynced(lastSequence);
+        }
+    }
+
+    /**
+     * Gets the sequence number of the last record appended.
+     *
+     * @return the sequence number
+     */
+    public synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Gets the size of the journal, including records not yet written.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Writes every appended record and forces the file to the disk, whatever
+     * the sync policy.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    public synchronized void sync() throws IOException {
+        if (syncedSequence == lastSequence) {
+            return; // Everything is already on the disk
+        }
+        forceRequested = true;
+        notifyAll();
+        awaitSynced(lastSequence);
+    }
+
+    /**
+     * Makes the journal durable and renames it, then starts a new empty file
+     * in its place. The compactor uses this to freeze the records it is about
+     * to fold into a snapshot while trades keep being appended.
+     *
+     * @param target the new name of the current file, replaced if it exists
+     * @throws IOException if the journal can't be written or renamed
+     */
+    public synchronized void rotate(Path target) throws IOException {
+        sync();
+        channel.close();
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = open(file);
+        size = 0;
+    }
+
+    /**
+     * Writes and forces every appended record, then stops the writer and
+     * closes the file. Closing twice has no effect.
+     *
+     * @throws IOException if the last records can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                sync();
+            } finally {
+                closed = true;
+                notifyAll();
+            }
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Reads the records of a journal file in order and passes every record
+     * after the given sequence number to a consumer. Reading stops at the
+     * first record that is cut short or fails its checksum, which is where a
+     * crash interrupted the last write; the file is truncated there so new
+     * records follow the last good one.
+     *
+     * @param file  the journal file; a missing file has no records
+     * @param after the sequence number of the last record already applied
+     * @param apply receives each record to apply
+     * @return the sequence number of the last record in the file, or after if
+     *         there is none beyond it
+     * @throws IOException if the file can't be read
+     */
+    public static long replay(Path file, long after, Consumer<Record> apply) throws IOException {
+        if (!Files.exists(file)) {
+            return after;
+        }
+
+        long last = after;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            ByteBuffer header = newBuffer(RECORD_HEADER);
+            ByteBuffer body = newBuffer(256);
+            CRC32 crc = new CRC32();
+            long position = 0;
+
+            while (position + RECORD_HEADER <= fileSize) {
+                header.clear();
+                readFully(channel, header, position);
+                int length = header.getInt(0);
+                if (length < 9 || length > MAX_RECORD || position + RECORD_HEADER + length > fileSize) {
+                    break; // A torn or garbled record
+                }
+                if (body.capacity() < length) {
+                    body = newBuffer(Math.max(length, body.capacity() * 2));
+                }
+                body.clear().limit(length);
+                readFully(channel, body, position + RECORD_HEADER);
+                crc.reset();
+                crc.update(body.array(), 0, length);
+                if (header.getInt(4) != (int) crc.getValue()) {
+                    break;
+                }
+
+                body.flip();
+                Record record = decode(body);
+                if (record == null) {
+                    break;
+                }
+                if (record.sequence > last) {
+                    apply.accept(record);
+                    last = record.sequence;
+                }
+                position += RECORD_HEADER + length;
+            }
+
+            // Drop the torn tail so the next record is appended after a good one
+            if (position < fileSize) {
+                System.out.println("Warning: Ignoring " + (fileSize - position)
+                        + " bytes of an incomplete journal record in: " + file);
+                channel.truncate(position);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Decodes the body of a record.
+     *
+     * @param body the bytes from the sequence number to the end of the record
+     * @return the record, or null if the operation is unknown or the body is
+     *         malformed
+     */
+    private static Record decode(ByteBuffer body) {
+        try {
+            long sequence = body.getLong();
+            byte operation = body.get();
+            switch (operation) {
+                case BUY: {
+                    String type = body.get() == TYPE_MUTUAL_FUND ? "mutualfund" : "stock";
+                    String symbol = getString(body);
+                    String name = getString(body);
+                    int quantity = body.getInt();
+                    double price = body.getDouble();
+                    return new Record(sequence, operation, type, symbol, name, quantity, price, getTime(body));
+                }
+                case SELL: {
+                    String symbol = getString(body);
+                    int quantity = body.getInt();
+                    double price = body.getDouble();
+                    if (!body.hasRemaining()) {
+                        return new Record(sequence, operation, null, symbol, null, quantity, price, 0);
+                    }
+                    byte policy = body.get();
+                    long lot = body.getLong();
+                    return new Record(sequence, operation, null, symbol, null, quantity, price, policy, lot,
+                            getTime(body));
+                }
+                case UPDATE: {
+                    String symbol = getString(body);
+                    double price = body.getDouble();
+                    return new Record(sequence, operation, null, symbol, null, 0, price, getTime(body));
+                }
+                default:
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            // Buffer underflows from a length that doesn't match the contents
+            return null;
+        }
+    }
+
+    /**
+     * Starts a record in the pending group, growing the group if needed.
+     *
+     * @param operation the operation tag
+     * @param payload   the number of bytes after the operation tag
+     * @return the pending group, positioned after the operation tag
+     * @throws IOException if the journal is closed or the writer failed
+     */
+    private ByteBuffer startRecord(byte operation, int payload) throws IOException {
+        if (closed) {
+            throw new IOException("The journal is closed: " + file);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        int length = 8 + 1 + payload;
+        if (pending.remaining() < RECORD_HEADER + length) {
+            ByteBuffer larger = newBuffer(Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER + length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+
+        recordStart = pending.position();
+        pending.putInt(length);
+        pending.putInt(0); // The checksum is filled in by finishRecord
+        pending.putLong(lastSequence + 1);
+        pending.put(operation);
+        return pending;
+    }
+
+    /**
+     * Fills in the checksum of the record just written to the pending group and
+     * hands the group to the writer if it is ready.
+     *
+     * @return the sequence number of the record
+     * @throws IOException if the journal can't be written
+     */
+    private long finishRecord() throws IOException {
+        int start = recordStart;
+        int end = pending.position();
+        checksum.reset();
+        checksum.update(pending.array(), start + RECORD_HEADER, end - start - RECORD_HEADER);
+        pending.putInt(start + 4, (int) checksum.getValue());
+
+        long sequence = ++lastSequence;
+        size += end - start;
+
+        if (groupReady()) {
+            notifyAll();
+        }
+        return sequence;
+    }
+
+    /**
+     * Waits until the record with the given sequence number is on the disk.
+     *
+     * @param sequence the sequence number to wait for
+     * @throws IOException if the writer failed or the wait was interrupted
+     */
+    private void awaitSynced(long sequence) throws IOException {
+        while (syncedSequence < sequence) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (closed) {
+                throw new IOException("The journal is closed: " + file);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Waiting for the journal was interrupted: " + file, e);
+            }
+        }
+    }
+
+    /**
+     * The writer loop: waits for the pending group to fill up or for the flush
+     * interval, swaps it out, and writes it without holding the lock so appends
+     * can continue meanwhile. With SyncPolicy.COMMIT a group is written as soon
+     * as it has a record, and the records appended during that write form the
+     * next group.
+     */
+    private void writeGroups() {
+        while (true) {
+            ByteBuffer group;
+            long groupSequence;
+            boolean force;
+            FileChannel target;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + flushMillis;
+                while (!closed && !forceRequested && !groupReady()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        if (pending.position() > 0) {
+                            break; // The interval is up and there is something to write
+                        }
+                        deadline = System.currentTimeMillis() + flushMillis;
+                        remaining = flushMillis;
+                    }
+                    waitQuietly(remaining);
+                }
+                if (closed && pending.position() == 0) {
+                    return;
+                }
+
+                // Swap the buffers so appends fill the other one during the write
+                group = pending;
+                pending = writing;
+                pending.clear();
+                writing = group;
+                groupSequence = lastSequence;
+                unsyncedGroups++;
+                force = forceRequested || policy == SyncPolicy.COMMIT
+                        || (policy == SyncPolicy.BATCH && unsyncedGroups >= syncEvery);
+                forceRequested = false;
+                target = channel;
+            }
+
+            IOException error = null;
+            try {
+                group.flip();
+                while (group.hasRemaining()) {
+                    target.write(group);
+                }
+                if (force) {
+                    target.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                if (error != null) {
+                    failure = error;
+                } else if (force) {
+                    syncedSequence = Math.max(syncedSequence, groupSequence);
+                    unsyncedGroups = 0;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Checks if the pending group should be written without waiting for the
+     * flush interval.
+     *
+     * @return true if the group is full, or has a record waiting to commit
+     */
+    private boolean groupReady() {
+        return pending.position() >= GROUP_BYTES || (policy == SyncPolicy.COMMIT && pending.position() > 0);
+    }
+
+    /**
+     * Waits on the journal's lock, ignoring interrupts.
+     *
+     * @param millis the longest time to wait
+     */
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            // The loop checks its condition again
+        }
+    }
+
+    /**
+     * Opens a journal file for appending.
+     *
+     * @param file the file
+     * @return the open channel, positioned at the end
+     * @throws IOException if the file can't be opened
+     */
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Allocates a little-endian heap buffer.
+     *
+     * @param capacity the capacity in bytes
+     * @return the buffer
+     */
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Puts a string as a short length followed by its bytes.
+     *
+     * @param buffer the buffer to write to
+     * @param bytes  the UTF-8 bytes of the string
+     */
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Gets a string written by putString.
+     *
+     * @param buffer the buffer to read from
+     * @return the string
+     */
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the time at the end of a record, if it has one.
+     *
+     * @param buffer the buffer to read from
+     * @return the time, or 0 for a record written without one
+     */
+    private static long getTime(ByteBuffer buffer) {
+        return buffer.hasRemaining() ? buffer.getLong() : 0;
+    }
+
+    /**
+     * Reads until the buffer is full or the file ends.
+     *
+     * @param channel  the file
+     * @param buffer   the buffer to fill
+     * @param position the file position to read from
+     * @throws IOException if the file can't be read
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read <= 0) {
+                break;
+            }
+        }
+    }
+}